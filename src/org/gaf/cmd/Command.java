@@ -0,0 +1,98 @@
+package org.gaf.cmd;
+
+/**
+ * Describes a command understood by an Arduino-style command server: a
+ * 1-byte command code, an optional 2-byte parameter, and a reply made of
+ * big-endian 2-byte integers.
+ * <p>
+ * The length of the reply is either fixed, or given by the parameter.
+ * A reply can optionally start with a status; a status of -1 means the
+ * command failed and nothing else follows.
+ * </p>
+ */
+public class Command {
+
+    /**
+     * Reply length indicating the number of 2-byte integers in the reply
+     * equals the command parameter.
+     */
+    public static final int PARM_COUNT = -1;
+
+    /**
+     * Status value indicating failure.
+     */
+    public static final short STATUS_FAIL = -1;
+
+    /**
+     * The command code.
+     */
+    public final int code;
+    /**
+     * Indicates the command has a 2-byte parameter.
+     */
+    public final boolean hasParm;
+    /**
+     * Indicates the reply starts with a status.
+     */
+    public final boolean statusFirst;
+
+    private final int replyLength;
+
+    /**
+     * Creates a command descriptor.
+     * @param code the command code
+     * @param hasParm true if the command has a 2-byte parameter
+     * @param replyLength the number of 2-byte integers in the reply (not
+     * including any status), or PARM_COUNT
+     * @param statusFirst true if the reply starts with a status
+     */
+    public Command(int code, boolean hasParm, int replyLength,
+            boolean statusFirst) {
+        if (replyLength == PARM_COUNT && !hasParm)
+            throw new IllegalArgumentException("Reply length needs a parameter");
+        this.code = code;
+        this.hasParm = hasParm;
+        this.replyLength = replyLength;
+        this.statusFirst = statusFirst;
+    }
+
+    /**
+     * Creates a command descriptor for a reply without status.
+     * @param code the command code
+     * @param hasParm true if the command has a 2-byte parameter
+     * @param replyLength the number of 2-byte integers in the reply,
+     * or PARM_COUNT
+     */
+    public Command(int code, boolean hasParm, int replyLength) {
+        this(code, hasParm, replyLength, false);
+    }
+
+    /**
+     * Returns the number of 2-byte integers in the reply (not including
+     * any status).
+     * @param parm the command parameter
+     * @return the reply length
+     */
+    public int getReplyLength(int parm) {
+        return (replyLength == PARM_COUNT) ? (parm & 0xFFFF) : replyLength;
+    }
+
+    /**
+     * Encodes the command into a buffer.
+     * @param parm the parameter; ignored if the command has none
+     * @param buffer buffer of at least 3 bytes
+     * @return the number of bytes encoded
+     */
+    public int encode(int parm, byte[] buffer) {
+        buffer[0] = (byte) code;
+        if (!hasParm) return 1;
+        buffer[1] = (byte) (parm >> 8);
+        buffer[2] = (byte) parm;
+        return 3;
+    }
+
+    @Override
+    public String toString() {
+        return "Command " + code;
+    }
+}
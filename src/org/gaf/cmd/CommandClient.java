@@ -0,0 +1,485 @@
+package org.gaf.cmd;
+
+import com.diozero.api.RuntimeIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.gaf.util.SerialHandler;
+import org.gaf.util.SerialPort;
+import org.gaf.util.SerialReactor;
+
+/**
+ * A client for an Arduino-style command server connected via a serial port.
+ * The command server handles commands in order and replies in order, so
+ * the client can pipeline several outstanding commands and match replies
+ * to requests by position.
+ * <p>
+ * Requests are submitted without waiting; up to <i>window</i> requests can
+ * be outstanding at the command server. Each request decodes its reply
+ * into a caller-supplied (and so reusable) short array. A request can be
+ * waited on with a timeout, or cancelled. Replies to cancelled requests
+ * are read and discarded to keep the byte stream in sync. Since the server
+ * replies in order, a request's timeout runs only once the replies to all
+ * earlier requests have arrived; so a command sent during a long running
+ * task does not time out while the task runs.
+ * </p>
+ * <p>
+ * After a timeout the position in the reply stream is unknown, so the
+ * client fails the outstanding requests and discards input until the line
+ * has been quiet for the settle time; only then does it send the next
+ * request. A reply that arrives later than that would still be taken as
+ * the reply to the next request, so the settle time must cover the
+ * longest a late reply can take.
+ * </p>
+ * <p>
+ * By default the client reads replies only when asked, via {@link #poll()}
+ * or {@link Request#await(long)}; it creates no threads. While waiting, it
+ * polls the serial port at intervals that start short, for a fast reply,
+ * and lengthen to MAX_POLL_PARK_NANOS while nothing arrives, so waiting on
+ * a long task does not keep a core busy. Alternatively, it can be attached
+ * to a SerialReactor, which then delivers reply bytes and waiting requests
+ * are notified.
+ * </p>
+ */
+public class CommandClient implements SerialHandler {
+
+    // interval between polls while waiting: initial, and maximum
+    private static final long POLL_PARK_NANOS = 50_000;
+    private static final long MAX_POLL_PARK_NANOS = 20_000_000;
+    // default time the line must be quiet after a timeout
+    private static final long SETTLE_NANOS = 20_000_000;
+
+    private final SerialPort port;
+    private final int window;
+
+    private final ArrayDeque<Request> queued = new ArrayDeque<>();
+    private final ArrayDeque<Request> sent = new ArrayDeque<>();
+
+    private final byte[] frame1 = new byte[1];
+    private final byte[] frame3 = new byte[3];
+    private final byte[] shortBuffer = new byte[2];
+
+    // partially received 2-byte integer
+    private int hiByte = -1;
+    
+    // true if a reactor reads the serial port
+    private volatile boolean attached = false;
+
+    // true while discarding input after a timeout, until settleDeadline
+    private volatile boolean resyncing = false;
+    private long settleDeadline;
+    private long settleNanos = SETTLE_NANOS;
+
+    /**
+     * Creates a client.
+     * @param port the serial port connected to the command server
+     * @param window the maximum number of requests outstanding at the
+     * command server; 1 means no pipelining
+     */
+    public CommandClient(SerialPort port, int window) {
+        if (window < 1) throw new IllegalArgumentException("Window must be >= 1");
+        this.port = port;
+        this.window = window;
+    }
+
+    /**
+     * Returns the serial port used by the client.
+     * @return the serial port
+     */
+    public SerialPort getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the time the line must be quiet after a timeout before the next
+     * request is sent. It should cover a late reply still in flight.
+     * @param millis the settle time in milliseconds
+     */
+    public synchronized void setSettleTime(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Settle time must be >= 0");
+        settleNanos = millis * 1_000_000;
+    }
+
+    /**
+     * Attaches the client to a reactor, which from then on reads the serial
+     * port and delivers the replies.
+     * @param reactor the reactor
+     * @return the registration with the reactor
+     */
+    public SerialReactor.Registration attach(SerialReactor reactor) {
+        attached = true;
+        return reactor.register(port, this);
+    }
+
+    /**
+     * Submits a request without waiting for the reply. The request is sent
+     * immediately if the window allows, else when earlier requests complete.
+     * @param command the command
+     * @param parm the command parameter; ignored if the command has none
+     * @param reply array to receive the reply; if null, one is allocated
+     * @return the request
+     * @throws RuntimeIOException
+     */
+    public synchronized Request submit(Command command, int parm, short[] reply)
+            throws RuntimeIOException {
+        int length = command.getReplyLength(parm);
+        if (reply == null) {
+            reply = new short[length];
+        } else if (reply.length < length) {
+            throw new IllegalArgumentException("Reply array too short for " +
+                    command);
+        }
+        Request request = new Request(command, parm, reply, length);
+        queued.add(request);
+        sendQueued();
+        return request;
+    }
+
+    /**
+     * Submits a request and waits for the reply.
+     * @param command the command
+     * @param parm the command parameter; ignored if the command has none
+     * @param reply array to receive the reply; if null, one is allocated
+     * @param timeout maximum time to wait in milliseconds, once earlier 
+     * requests have their replies; 0 means forever
+     * @return the reply array
+     * @throws RuntimeIOException on timeout or communication failure
+     */
+    public short[] call(Command command, int parm, short[] reply, long timeout)
+            throws RuntimeIOException {
+        return submit(command, parm, reply).await(timeout);
+    }
+
+    /**
+     * Reads any reply bytes available without blocking, completing requests
+     * as their replies arrive, and sends queued requests as the window
+     * allows. Does nothing if attached to a reactor.
+     * @return true if any bytes were read
+     * @throws RuntimeIOException
+     */
+    public synchronized boolean poll() throws RuntimeIOException {
+        if (attached) return false;
+        boolean progress = readAvailable();
+        if (resyncing) sendQueued();
+        return progress;
+    }
+
+    /**
+     * Reads and handles the reply bytes available.
+     * @return true if any bytes were read
+     */
+    private boolean readAvailable() throws RuntimeIOException {
+        boolean progress = false;
+        int available = port.bytesAvailable();
+        while (available > 1) {
+            port.read(shortBuffer);
+            receive(shortBuffer[0]);
+            receive(shortBuffer[1]);
+            available -= 2;
+            progress = true;
+        }
+        if (available == 1) {
+            receive(port.readByte());
+            progress = true;
+        }
+        return progress;
+    }
+
+    @Override
+    public synchronized void onData(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            receive(data[i]);
+        }
+    }
+
+    @Override
+    public synchronized void onError(RuntimeIOException ex) {
+        attached = false;
+        for (Request r : sent) {
+            if (r.state == Request.SENT) r.state = Request.FAILED;
+        }
+        sent.clear();
+        notifyAll();
+    }
+
+    /**
+     * Handles a single reply byte.
+     * @param data the reply byte
+     */
+    public synchronized void receive(byte data) {
+        if (resyncing) {
+            // part of a stale reply; the line is not yet quiet
+            settleDeadline = System.nanoTime() + settleNanos;
+            return;
+        }
+        if (hiByte < 0) {
+            hiByte = Byte.toUnsignedInt(data);
+            return;
+        }
+        short value = (short) ((hiByte << 8) | Byte.toUnsignedInt(data));
+        hiByte = -1;
+
+        Request request = sent.peek();
+        if (request == null) return; // unsolicited; drop it
+        if (request.accept(value)) {
+            sent.poll();
+            Request next = sent.peek();
+            if (next != null) next.headTime = System.nanoTime();
+            sendQueued();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of requests sent and awaiting a reply.
+     * @return number of outstanding requests
+     */
+    public synchronized int getOutstanding() {
+        return sent.size();
+    }
+
+    /**
+     * Cancels all requests, both queued and outstanding.
+     */
+    public synchronized void cancelAll() {
+        for (Request r : queued) {
+            r.state = Request.CANCELLED;
+        }
+        queued.clear();
+        for (Request r : sent) {
+            r.state = Request.CANCELLED;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Sends queued requests while the window allows.
+     */
+    private void sendQueued() throws RuntimeIOException {
+        if (!settled()) return;
+        while (!queued.isEmpty() && sent.size() < window) {
+            Request request = queued.poll();
+            if (request.command.encode(request.parm, frame3) == 1) {
+                frame1[0] = frame3[0];
+                port.write(frame1);
+            } else {
+                port.write(frame3);
+            }
+            request.state = Request.SENT;
+            if (request.isReplyEmpty()) {
+                request.state = Request.DONE;
+            } else {
+                if (sent.isEmpty()) request.headTime = System.nanoTime();
+                sent.add(request);
+            }
+        }
+    }
+
+    /**
+     * Indicates if the line has been quiet for the settle time since a
+     * timeout, reading (and so discarding) any input first unless a 
+     * reactor reads the port.
+     * @return true if requests can be sent
+     */
+    private boolean settled() throws RuntimeIOException {
+        if (!resyncing) return true;
+        if (!attached) readAvailable();
+        if (System.nanoTime() - settleDeadline < 0) return false;
+        resyncing = false;
+        return true;
+    }
+
+    /**
+     * Handles a timeout on an outstanding request. Since the position in the
+     * reply stream is no longer known, fails all outstanding requests and
+     * discards input until the line settles.
+     * @param request the request that timed out
+     * @return false if the request completed meanwhile, so there was no
+     * timeout
+     */
+    private synchronized boolean resync(Request request) 
+            throws RuntimeIOException {
+        if (request.isDone()) return false;
+        for (Request r : sent) {
+            if (r.state == Request.SENT) r.state = Request.FAILED;
+        }
+        sent.clear();
+        hiByte = -1;
+        resyncing = true;
+        settleDeadline = System.nanoTime() + settleNanos;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * A request submitted to the command server.
+     */
+    public class Request {
+
+        static final int QUEUED = 0;
+        static final int SENT = 1;
+        static final int DONE = 2;
+        static final int FAILED = 3;
+        static final int CANCELLED = 4;
+
+        private final Command command;
+        private final int parm;
+        private final short[] reply;
+        private final int length;
+
+        private volatile int state = QUEUED;
+        // when the replies to all earlier requests had arrived; 0 if not yet
+        private volatile long headTime = 0;
+        private int received = 0;
+        private short status = 0;
+        private boolean statusRead = false;
+
+        private Request(Command command, int parm, short[] reply, int length) {
+            this.command = command;
+            this.parm = parm;
+            this.reply = reply;
+            this.length = length;
+        }
+
+        /**
+         * Accepts a 2-byte integer of the reply.
+         * @return true if the reply is complete
+         */
+        private boolean accept(short value) {
+            if (command.statusFirst && !statusRead) {
+                statusRead = true;
+                status = value;
+                if (value == Command.STATUS_FAIL) {
+                    complete();
+                    return true;
+                }
+            } else {
+                // discard the reply of a cancelled request
+                if (state != CANCELLED) reply[received] = value;
+                received++;
+            }
+            if (received == length) {
+                complete();
+                return true;
+            }
+            return false;
+        }
+
+        private void complete() {
+            if (state == SENT) state = DONE;
+        }
+
+        private boolean isReplyEmpty() {
+            return length == 0 && !command.statusFirst;
+        }
+
+        /**
+         * Indicates if the request has finished, successfully or not.
+         * @return true if finished
+         */
+        public boolean isDone() {
+            return state >= DONE;
+        }
+
+        /**
+         * Indicates if the request was cancelled.
+         * @return true if cancelled
+         */
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * Returns the reply status, for commands with a status.
+         * @return the status; STATUS_FAIL means the command failed
+         */
+        public short getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the array holding the reply.
+         * @return the reply
+         */
+        public short[] getReply() {
+            return reply;
+        }
+
+        /**
+         * Cancels the request. If not yet sent, it never is; if sent,
+         * its reply is discarded.
+         */
+        public void cancel() {
+            synchronized (CommandClient.this) {
+                if (state == QUEUED) queued.remove(this);
+                if (state < DONE) state = CANCELLED;
+                CommandClient.this.notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the reply, reading replies from the serial port
+         * as they arrive (unless a reactor reads the port).
+         * @param timeout maximum time to wait in milliseconds, from when
+         * the replies to all earlier requests have arrived; 0 means forever
+         * @return the reply array
+         * @throws RuntimeIOException on timeout, failure, or cancellation
+         */
+        public short[] await(long timeout) throws RuntimeIOException {
+            long timeoutNanos = timeout * 1_000_000;
+            long park = POLL_PARK_NANOS;
+            while (!isDone()) {
+                if (!attached && poll()) {
+                    park = POLL_PARK_NANOS;
+                } else {
+                    // the timeout runs only once this request is next
+                    long head = headTime;
+                    boolean timed = timeout > 0 && head != 0;
+                    long remaining = timed ? 
+                            head + timeoutNanos - System.nanoTime() : 0;
+                    if (timed && remaining <= 0) {
+                        if (!resync(this)) continue;
+                        throw new RuntimeIOException("Timeout on " + command);
+                    }
+                    try {
+                        if (attached) {
+                            synchronized (CommandClient.this) {
+                                // while resyncing, wake to send when settled
+                                long wait = timed ? remaining : 0;
+                                if (resyncing) {
+                                    sendQueued();
+                                    wait = timed ? 
+                                            Math.min(wait, settleNanos) : 
+                                            settleNanos;
+                                }
+                                if (!isDone() && wait > 0) {
+                                    TimeUnit.NANOSECONDS.timedWait(
+                                            CommandClient.this, wait);
+                                } else if (!isDone()) {
+                                    CommandClient.this.wait();
+                                }
+                            }
+                        } else {
+                            LockSupport.parkNanos(timed ? 
+                                    Math.min(park, remaining) : park);
+                            park = Math.min(MAX_POLL_PARK_NANOS, 
+                                    park + park / 4);
+                            if (Thread.interrupted()) 
+                                throw new InterruptedException();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        cancel();
+                        throw new RuntimeIOException("Interrupted waiting on " +
+                                command);
+                    }
+                }
+            }
+            if (state == FAILED)
+                throw new RuntimeIOException("Failed on " + command);
+            if (state == CANCELLED)
+                throw new RuntimeIOException("Cancelled " + command);
+            return reply;
+        }
+    }
+}
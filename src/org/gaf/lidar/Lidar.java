@@ -3,8 +3,12 @@ package org.gaf.lidar;
 import static com.diozero.api.SerialConstants.BAUD_115200;
 import com.diozero.api.SerialDevice;
 import com.diozero.api.RuntimeIOException;
-import com.diozero.util.SleepUtil;
 import java.io.IOException;
+import org.gaf.cmd.Command;
+import org.gaf.cmd.CommandClient;
+import org.gaf.util.SerialDevicePort;
+import org.gaf.util.SerialPort;
+import org.gaf.util.SerialReactor;
 
 /**
  * This class represents a Lidar Unit connected to a Raspberry Pi via USB.
@@ -18,7 +22,18 @@ public class Lidar implements AutoCloseable {
      */
     public static final int LIDAR_ID = 600; // known ID
     
-    private SerialDevice device; // the Lidar serial device
+    /**
+     * The default number of commands that can be outstanding at the
+     * Lidar Unit.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+    
+    private static final long TIMEOUT = 1000; // ms for ordinary commands
+    private static final long ID_TIMEOUT = 100; // ms to detect no power
+    
+    private SerialPort device; // the Lidar serial device
+    private CommandClient client; // the command server client
+    private CommandClient.Request task = null; // scan or warmup underway
     
     /**
      * Creates a Lidar instance with serial characteristics appropriate for 
@@ -29,20 +44,31 @@ public class Lidar implements AutoCloseable {
     public Lidar(String deviceFile) throws IOException {
         // open a serial port at baudrate 115200; other parameter are defaults        
         try {
-            device = SerialDevice.builder(deviceFile).
-                setBaud(BAUD_115200).build();
-
+            device = new SerialDevicePort(SerialDevice.builder(deviceFile).
+                setBaud(BAUD_115200).build());
+            client = new CommandClient(device, DEFAULT_WINDOW);
         } catch (RuntimeIOException ex) {
             throw new IOException(ex.getMessage());            
         }
     }
     
+    /**
+     * Creates a Lidar instance that communicates over an already open 
+     * serial port; for example, a LidarSimulator.
+     * @param port the serial port connected to a Lidar Unit
+     */
+    public Lidar(SerialPort port) {
+        device = port;
+        client = new CommandClient(device, DEFAULT_WINDOW);
+    }
+    
     /**
      * Close an instance.
      */
     @Override
     public void close() {
         if (device != null) {
+            client.cancelAll();
             device.close();
             device = null;
         }
@@ -59,6 +85,24 @@ public class Lidar implements AutoCloseable {
         return LIDAR_ID == getID();            
     }
 
+    /**
+     * Hands reading of the serial port to a reactor shared with other 
+     * serial devices, instead of reading from the calling thread.
+     * @param reactor the reactor
+     * @return the registration with the reactor, which provides statistics
+     */
+    public SerialReactor.Registration attach(SerialReactor reactor) {
+        return client.attach(reactor);
+    }
+    
+    /**
+     * Returns the command server client, which allows pipelining commands.
+     * @return the client
+     */
+    protected CommandClient getClient() {
+        return client;
+    }
+
     /**
      * Returns the device ID.
      * @return device ID
@@ -66,13 +110,11 @@ public class Lidar implements AutoCloseable {
      * @throws java.io.IOException if no power
      */
     protected short getID() throws RuntimeIOException, IOException {
-        writeCmdType(CommandTypes.ID.code);
-
-        SleepUtil.sleepMillis(100);
-        if (!(device.bytesAvailable() > 1)) {
+        try {
+            return client.call(ID, 0, null, ID_TIMEOUT)[0];
+        } catch (RuntimeIOException ex) {
             throw new IOException("Lidar not powered!");
         }
-        return readShort();
     }
     
     /**
@@ -85,8 +127,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException 
      */
     protected short echoParameter(short parm) throws RuntimeIOException {
-        writeCmdTypeParm(CommandTypes.ECHO.code, parm);
-        return readShort();
+        return client.call(ECHO, parm, null, TIMEOUT)[0];
     }
     
     /**
@@ -100,8 +141,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException
      */
     protected int setServoPosition(int positionHalfDeg) throws RuntimeIOException {
-        writeCmdTypeParm(CommandTypes.SERVO_POS.code, positionHalfDeg);
-        return (int) readShort();
+        return (int) client.call(SERVO_POS, positionHalfDeg, null, TIMEOUT)[0];
     }
     
     /**
@@ -113,8 +153,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException
      */
     public short[] getServoParms() throws RuntimeIOException {
-        writeCmdType(CommandTypes.SERVO_PARMS.code);            
-        return readNShort(3);
+        return client.call(SERVO_PARMS, 0, null, TIMEOUT);
     }
 
     /**
@@ -128,8 +167,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException
      */
     protected short[] getRanges(int number) throws RuntimeIOException {
-        writeCmdTypeParm(CommandTypes.MULTIPLE.code, number);
-        return readNShort(number);
+        return client.call(MULTIPLE, number, null, 0);
     }
     
     /**
@@ -141,7 +179,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException
      */
     public void scanStart(int delay) throws RuntimeIOException {
-        writeCmdTypeParm(CommandTypes.SCAN.code, delay);
+        task = client.submit(SCAN, delay, null);
     }
 
     /**
@@ -151,34 +189,28 @@ public class Lidar implements AutoCloseable {
      * @param delay the delay (in milliseconds) between a servo movement 
      * and a Lidar range reading; 0 produces the default of 80 ms
      * @throws RuntimeIOException
-     * @throws java.lang.InterruptedException
      */
-    public void scan(int delay) throws RuntimeIOException, InterruptedException {
-        writeCmdTypeParm(CommandTypes.SCAN.code, delay);
+    public void scan(int delay) throws RuntimeIOException {
+        scanStart(delay);
         isTaskDone(true);
     }
 
     /**
      * Determines if a long running task (a scan or a warmup) had completed.Can simply check or wait for completion.
      * @param wait indicates if should wait for task completion
-     * @return an indication if task has completed
+     * @return an indication if task has completed; false if no task started
      * @throws RuntimeIOException
      */
     public boolean isTaskDone(boolean wait) throws RuntimeIOException {
-        if (device.bytesAvailable() > 1) {
-            readShort(); // to keep sync
-            return true;
+        if (task == null) return false;
+        if (wait) {
+            task.await(0);
         } else {
-            if (!wait) {
-                return false;
-            } else { // wait
-                while (device.bytesAvailable() < 2) {
-                    SleepUtil.sleepMillis(1000);
-                }
-                readShort(); // to keep sync
-                return true;
-            }
-        }       
+            client.poll();
+        }
+        if (!task.isDone()) return false;
+        task = null;
+        return true;
     }
 
     /**
@@ -188,11 +220,24 @@ public class Lidar implements AutoCloseable {
      * @throws java.io.IOException if scan cannot be retrieved
      */
     public short[] scanRetrieve() throws RuntimeIOException, IOException {
-        writeCmdType(CommandTypes.SCAN_RETRIEVE.code);
+        return scanRetrieve(new short[SCAN_SIZE]);
+    }
+
+    /**
+     * Provides the "raw" ranges from a scan of 180 degrees in a caller 
+     * supplied array, so the array can be reused from scan to scan. 
+     * @param ranges array of at least 361 to receive the ranges
+     * @return the range readings for a 180 degree scan (361 ranges)
+     * @throws RuntimeIOException
+     * @throws java.io.IOException if scan cannot be retrieved
+     */
+    public short[] scanRetrieve(short[] ranges) 
+            throws RuntimeIOException, IOException {
+        CommandClient.Request request = client.submit(SCAN_RETRIEVE, 0, ranges);
+        request.await(TIMEOUT);
         // check the status code
-        if (readShort() == -1 ) throw new IOException("No scan to retrieve");
-        // get the ranges
-        short[] ranges = readNShort(361);
+        if (request.getStatus() == Command.STATUS_FAIL) 
+            throw new IOException("No scan to retrieve");
         return ranges;
     }
 
@@ -204,7 +249,7 @@ public class Lidar implements AutoCloseable {
      * @throws RuntimeIOException
      */
     public void warmupStart(int period) throws RuntimeIOException {
-        writeCmdTypeParm(CommandTypes.WARMUP.code, period);
+        task = client.submit(WARMUP, period, null);
     }
 
     /**
@@ -212,76 +257,26 @@ public class Lidar implements AutoCloseable {
      * @param period code for the warmup period; valid values 0-5; 
      * 0 = a few seconds; 5 = a few minutes
      * @throws RuntimeIOException
-     * @throws java.lang.InterruptedException
      */
-    public void warmup(int period) throws RuntimeIOException, InterruptedException {
-        writeCmdTypeParm(CommandTypes.WARMUP.code, period);
+    public void warmup(int period) throws RuntimeIOException {
+        warmupStart(period);
         isTaskDone(true);
     }
     
     /**
-     * Writes a single byte that is the command type.
-     * @param type command code
-     * @throws RuntimeIOException
-     */
-    private void writeCmdType(int type) throws RuntimeIOException {
-        device.writeByte((byte) type);
-    }
-    
-    /**
-     * Writes three bytes, the single byte command type and a 2-byte 
-     * command parameter.
-     * @param type command code
-     * @param parm command parameter
-     * @throws RuntimeIOException
+     * The number of ranges in a scan.
      */
-    private void writeCmdTypeParm(int type, int parm) throws RuntimeIOException {
-        device.write((byte) type, (byte) (parm >> 8), (byte) parm);        
-    }
+    public static final int SCAN_SIZE = 361;
     
-    /**
-     * Reads a 2-byte integer or Java short.
-     * @return a 2-byte integer
-     * @throws RuntimeIOException
-     */
-    private short readShort() throws RuntimeIOException {
-        byte[] res = new byte[2];
-        // read the response byte array
-        device.read(res);           
-        // construct response as short
-        short value = (short)(res[0] << 8);
-        value = (short) (value | (short) Byte.toUnsignedInt(res[1]));
-        return value;
-    }
-    
-    /** 
-     * Reads a number of 2-byte integers from the device.
-     * @param number of 2-byte integers to read.
-     * @return an array of 2-byte integers
-     * @throws RuntimeIOException
-     */
-    private short[] readNShort(int number) throws RuntimeIOException {
-        short[] values = new short[number];
-        for (int i = 0; i < number; i++) {
-            values[i] = readShort();
-        }
-        return values;
-    }
-        
-    private enum CommandTypes {
-        ID(10),
-        ECHO(11),
-        SERVO_POS(30),
-        SERVO_PARMS(32),
-        MULTIPLE(50),
-        SCAN(52),
-        SCAN_RETRIEVE(54),
-        WARMUP(60);
-
-        public final int code;
-
-        CommandTypes(int code) {
-            this.code = code;
-        }
-    }        
+    // the commands supported by the Lidar Unit command server
+    protected static final Command ID = new Command(10, false, 1);
+    protected static final Command ECHO = new Command(11, true, 1);
+    protected static final Command SERVO_POS = new Command(30, true, 1);
+    protected static final Command SERVO_PARMS = new Command(32, false, 3);
+    protected static final Command MULTIPLE = 
+            new Command(50, true, Command.PARM_COUNT);
+    protected static final Command SCAN = new Command(52, true, 1);
+    protected static final Command SCAN_RETRIEVE = 
+            new Command(54, false, SCAN_SIZE, true);
+    protected static final Command WARMUP = new Command(60, true, 1);
 }
@@ -0,0 +1,117 @@
+package org.gaf.lidar;
+
+import java.util.Arrays;
+
+/**
+ * A 2D map made of polygons (walls, furniture, etc.) that can be
+ * ray-cast to produce the ranges a Lidar Unit would see. Coordinates
+ * are in centimeters, to match the ranges from the Lidar Unit.
+ * <p>
+ * The polygon edges are kept as line segments in flat primitive arrays
+ * so that casting a ray touches no objects and allocates nothing.
+ * </p>
+ */
+public class LidarMap {
+
+    // segment start points and (end - start) vectors
+    private float[] x1 = new float[16];
+    private float[] y1 = new float[16];
+    private float[] dx = new float[16];
+    private float[] dy = new float[16];
+    private int segments = 0;
+
+    /**
+     * Adds a closed polygon to the map.
+     * @param xy the vertices as x,y pairs; the last vertex connects
+     * to the first
+     * @return this map
+     */
+    public LidarMap addPolygon(float... xy) {
+        if (xy.length < 6 || (xy.length % 2) != 0)
+            throw new IllegalArgumentException("Need at least 3 x,y vertices");
+
+        int n = xy.length / 2;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            addSegment(xy[2 * i], xy[2 * i + 1], xy[2 * j], xy[2 * j + 1]);
+        }
+        return this;
+    }
+
+    /**
+     * Adds an axis aligned rectangle to the map.
+     * @param xMin minimum x
+     * @param yMin minimum y
+     * @param xMax maximum x
+     * @param yMax maximum y
+     * @return this map
+     */
+    public LidarMap addRectangle(float xMin, float yMin, float xMax, float yMax) {
+        return addPolygon(xMin, yMin, xMax, yMin, xMax, yMax, xMin, yMax);
+    }
+
+    /**
+     * Adds a single line segment (e.g., a thin wall) to the map.
+     * @param xa start x
+     * @param ya start y
+     * @param xb end x
+     * @param yb end y
+     * @return this map
+     */
+    public LidarMap addSegment(float xa, float ya, float xb, float yb) {
+        if (segments == x1.length) {
+            int size = segments * 2;
+            x1 = Arrays.copyOf(x1, size);
+            y1 = Arrays.copyOf(y1, size);
+            dx = Arrays.copyOf(dx, size);
+            dy = Arrays.copyOf(dy, size);
+        }
+        x1[segments] = xa;
+        y1[segments] = ya;
+        dx[segments] = xb - xa;
+        dy[segments] = yb - ya;
+        segments++;
+        return this;
+    }
+
+    /**
+     * Returns the number of line segments in the map.
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments;
+    }
+
+    /**
+     * Casts a ray and returns the distance to the nearest segment hit.
+     * @param ox ray origin x
+     * @param oy ray origin y
+     * @param cos cosine of the ray direction
+     * @param sin sine of the ray direction
+     * @param maxRange the maximum distance of interest
+     * @return distance to the nearest hit; Float.POSITIVE_INFINITY if
+     * nothing within maxRange
+     */
+    public float cast(float ox, float oy, float cos, float sin, float maxRange) {
+        float nearest = maxRange;
+        boolean hit = false;
+        for (int i = 0; i < segments; i++) {
+            float sx = dx[i];
+            float sy = dy[i];
+            // denominator of the ray/segment intersection; 0 if parallel
+            float denom = cos * sy - sin * sx;
+            if (denom == 0) continue;
+            float qx = x1[i] - ox;
+            float qy = y1[i] - oy;
+            // distance along the ray
+            float t = (qx * sy - qy * sx) / denom;
+            if (t < 0 || t >= nearest) continue;
+            // position along the segment
+            float u = (qx * sin - qy * cos) / denom;
+            if (u < 0 || u > 1) continue;
+            nearest = t;
+            hit = true;
+        }
+        return hit ? nearest : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,451 @@
+package org.gaf.lidar;
+
+import com.diozero.api.RuntimeIOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.gaf.util.SerialPort;
+
+/**
+ * Simulates a Lidar Unit connected via a serial port. It implements the
+ * Lidar Unit command server protocol (1-byte command, optional 2-byte
+ * parameter, big-endian 2-byte responses) and produces ranges by
+ * ray-casting a LidarMap from a configurable pose, with optional noise
+ * and dropouts.
+ * <p>
+ * An instance can be handed to {@link Lidar#Lidar(SerialPort)} so that
+ * anything built on a Lidar can run without the hardware.
+ * </p>
+ */
+public class LidarSimulator implements SerialPort {
+
+    /**
+     * Number of ranges in a scan.
+     */
+    public static final int SCAN_SIZE = Lidar.SCAN_SIZE;
+
+    private static final int DEFAULT_DELAY = 80; // ms, per the Lidar Unit
+    private static final short STATUS_OK = 0;
+    private static final short STATUS_FAIL = -1;
+
+    private final LidarMap map;
+    private final Random random;
+
+    // precomputed sensor frame directions for each scan index
+    private final float[] cosTable = new float[SCAN_SIZE];
+    private final float[] sinTable = new float[SCAN_SIZE];
+
+    // pose: position in cm, heading in radians (direction of index 180)
+    private float poseX, poseY, poseHeading;
+
+    private float maxRange = 4000f; // cm
+    private float noiseSigma = 0f; // cm
+    private float dropoutRate = 0f; // probability
+    private float timeScale = 0f; // 0 = tasks complete immediately
+    private short[] servoParms = {544, 1472, 2400};
+
+    private int servoPosition = 180; // half degrees
+    private final short[] scan = new short[SCAN_SIZE];
+    private boolean scanValid = false;
+
+    // command parsing
+    private int command = -1;
+    private int parmBytes = 0;
+    private int parm = 0;
+
+    // response bytes waiting to be read
+    private byte[] out = new byte[2 * (SCAN_SIZE + 1)];
+    private int outHead = 0;
+    private int outTail = 0;
+
+    // pending completion of a long running task (scan or warmup)
+    private long taskDone = -1;
+
+    // round trip latency, and commands received but not yet executed
+    private long latency = 0; // ns
+    private static final int PENDING_SIZE = 64;
+    private final int[] pendingCode = new int[PENDING_SIZE];
+    private final short[] pendingParm = new short[PENDING_SIZE];
+    private final long[] pendingTime = new long[PENDING_SIZE];
+    private int pendingHead = 0;
+    private int pendingCount = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a simulator for a map, with a random seed for repeatable
+     * noise and dropouts.
+     * @param map the map to ray-cast
+     * @param seed seed for noise and dropouts
+     */
+    public LidarSimulator(LidarMap map, long seed) {
+        this.map = map;
+        this.random = new Random(seed);
+        for (int i = 0; i < SCAN_SIZE; i++) {
+            // index 0 is 0 degrees (right), index 180 is 90 degrees (ahead)
+            double theta = Math.toRadians(i / 2.0) - Math.PI / 2;
+            cosTable[i] = (float) Math.cos(theta);
+            sinTable[i] = (float) Math.sin(theta);
+        }
+    }
+
+    /**
+     * Sets the pose of the simulated Lidar Unit.
+     * @param x x position in cm
+     * @param y y position in cm
+     * @param heading direction (radians) of the 90 degree reading
+     */
+    public synchronized void setPose(float x, float y, float heading) {
+        poseX = x;
+        poseY = y;
+        poseHeading = heading;
+    }
+
+    /**
+     * Sets the maximum range; anything farther reads as 0 (no return).
+     * @param maxRange maximum range in cm
+     */
+    public synchronized void setMaxRange(float maxRange) {
+        this.maxRange = maxRange;
+    }
+
+    /**
+     * Sets the standard deviation of the Gaussian noise added to ranges.
+     * @param sigma standard deviation in cm
+     */
+    public synchronized void setNoise(float sigma) {
+        this.noiseSigma = sigma;
+    }
+
+    /**
+     * Sets the probability that a range reading is dropped (reads as 0).
+     * @param rate probability 0-1
+     */
+    public synchronized void setDropoutRate(float rate) {
+        this.dropoutRate = rate;
+    }
+
+    /**
+     * Sets how simulated time for scans and warmups relates to real time.
+     * @param timeScale 0 means tasks complete immediately; 1 means real
+     * Lidar Unit timing
+     */
+    public synchronized void setTimeScale(float timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    /**
+     * Sets the delay between receiving a command and its response becoming
+     * available, to model USB and command server latency.
+     * @param micros latency in microseconds; 0 means none
+     */
+    public synchronized void setLatency(long micros) {
+        this.latency = micros * 1000;
+    }
+
+    /**
+     * Sets the servo parameters returned by the SERVO_PARMS command.
+     * @param parms microseconds for 0, 90, and 180 degrees
+     */
+    public synchronized void setServoParms(short[] parms) {
+        servoParms = parms.clone();
+    }
+
+    /**
+     * Produces a complete scan for the current pose by ray-casting the map.
+     * Allocates nothing.
+     * @param ranges array of at least 361 to receive the ranges (cm)
+     */
+    public synchronized void scan(short[] ranges) {
+        float c = (float) Math.cos(poseHeading);
+        float s = (float) Math.sin(poseHeading);
+        for (int i = 0; i < SCAN_SIZE; i++) {
+            // rotate the sensor frame direction by the heading
+            float cos = cosTable[i] * c - sinTable[i] * s;
+            float sin = sinTable[i] * c + cosTable[i] * s;
+            ranges[i] = measure(cos, sin);
+        }
+    }
+
+    /**
+     * Produces a single range reading in a direction, applying
+     * noise and dropouts.
+     */
+    private short measure(float cos, float sin) {
+        float range = map.cast(poseX, poseY, cos, sin, maxRange);
+        if (range == Float.POSITIVE_INFINITY) return 0;
+        if (dropoutRate > 0 && random.nextFloat() < dropoutRate) return 0;
+        if (noiseSigma > 0) range += (float) random.nextGaussian() * noiseSigma;
+        if (range < 0) range = 0;
+        return (short) Math.min(Math.round(range), Short.MAX_VALUE);
+    }
+
+    /**
+     * Produces a single range reading at the current servo position.
+     */
+    private short measure() {
+        int i = Math.max(0, Math.min(SCAN_SIZE - 1, servoPosition));
+        float c = (float) Math.cos(poseHeading);
+        float s = (float) Math.sin(poseHeading);
+        return measure(cosTable[i] * c - sinTable[i] * s,
+                sinTable[i] * c + cosTable[i] * s);
+    }
+
+    @Override
+    public synchronized void writeByte(byte data) throws RuntimeIOException {
+        checkOpen();
+        accept(data);
+    }
+
+    @Override
+    public synchronized void write(byte... data) throws RuntimeIOException {
+        checkOpen();
+        for (byte b : data) {
+            accept(b);
+        }
+    }
+
+    @Override
+    public synchronized int bytesAvailable() throws RuntimeIOException {
+        checkOpen();
+        advance(false);
+        return outTail - outHead;
+    }
+
+    @Override
+    public synchronized int read() throws RuntimeIOException {
+        return Byte.toUnsignedInt(readByte());
+    }
+
+    @Override
+    public synchronized byte readByte() throws RuntimeIOException {
+        checkOpen();
+        awaitBytes(1);
+        return out[outHead++];
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer) throws RuntimeIOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) 
+            throws RuntimeIOException {
+        checkOpen();
+        awaitBytes(length);
+        System.arraycopy(out, outHead, buffer, offset, length);
+        outHead += length;
+        return length;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private void checkOpen() throws RuntimeIOException {
+        if (closed) throw new RuntimeIOException("Lidar simulator closed");
+    }
+
+    /**
+     * Makes sure the requested number of bytes is available, waiting
+     * for pending commands and tasks if necessary. A real device would 
+     * block forever if nothing is coming; the simulator fails instead.
+     */
+    private void awaitBytes(int number) throws RuntimeIOException {
+        while (outTail - outHead < number) {
+            if (!advance(true))
+                throw new RuntimeIOException("Lidar simulator has no response");
+        }
+    }
+
+    /**
+     * Completes a pending task whose time has come, and executes pending 
+     * commands, in the order of the Lidar Unit: like the command server, 
+     * which handles one command at a time, commands received during a task
+     * are executed only after the task completes, so their replies follow
+     * the task's status. If told to wait, waits for the next event if 
+     * nothing is ready.
+     * @return true if anything was done, or there is anything to wait for
+     */
+    private boolean advance(boolean wait) {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        boolean progress = false;
+        while (true) {
+            if (taskDone >= 0) {
+                if (!completeTask(now)) {
+                    next = taskDone;
+                    break;
+                }
+                progress = true;
+            }
+            if (pendingCount == 0) break;
+            long due = pendingTime[pendingHead] + latency;
+            if (due - now > 0) {
+                next = due;
+                break;
+            }
+            int code = pendingCode[pendingHead];
+            short value = pendingParm[pendingHead];
+            pendingHead = (pendingHead + 1) % PENDING_SIZE;
+            pendingCount--;
+            execute(code, value);
+            progress = true;
+        }
+        if (progress) return true;
+        if (next == Long.MAX_VALUE) return false;
+        if (wait) {
+            long remaining = next - now;
+            try {
+                Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException(ex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Completes a pending task, queuing its status, if its time has come.
+     * @return true if completed
+     */
+    private boolean completeTask(long now) {
+        if (taskDone >= 0 && taskDone - now <= 0) {
+            taskDone = -1;
+            putShort(STATUS_OK);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the incoming command stream one byte at a time.
+     */
+    private void accept(byte data) {
+        if (command < 0) {
+            command = Byte.toUnsignedInt(data);
+            parm = 0;
+            parmBytes = hasParm(command) ? 2 : 0;
+        } else {
+            parm = (parm << 8) | Byte.toUnsignedInt(data);
+            parmBytes--;
+        }
+        if (parmBytes == 0) {
+            // complete any task whose time has come, so not to wait on it
+            if (taskDone >= 0) completeTask(System.nanoTime());
+            if (latency == 0 && pendingCount == 0 && taskDone < 0) {
+                execute(command, (short) parm);
+            } else {
+                if (pendingCount == PENDING_SIZE)
+                    throw new RuntimeIOException("Lidar simulator input overrun");
+                int i = (pendingHead + pendingCount) % PENDING_SIZE;
+                pendingCode[i] = command;
+                pendingParm[i] = (short) parm;
+                pendingTime[i] = System.nanoTime();
+                pendingCount++;
+            }
+            command = -1;
+        }
+    }
+
+    private static boolean hasParm(int command) {
+        switch (command) {
+            case ID:
+            case SERVO_PARMS:
+            case SCAN_RETRIEVE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Executes a complete command, queuing the response.
+     */
+    private void execute(int command, short parm) {
+        switch (command) {
+            case ID:
+                putShort((short) Lidar.LIDAR_ID);
+                break;
+            case ECHO:
+                putShort(parm);
+                break;
+            case SERVO_POS:
+                if (parm < 0 || parm >= SCAN_SIZE) {
+                    putShort(STATUS_FAIL);
+                } else {
+                    servoPosition = parm;
+                    putShort(parm);
+                }
+                break;
+            case SERVO_PARMS:
+                for (short p : servoParms) {
+                    putShort(p);
+                }
+                break;
+            case MULTIPLE:
+                for (int i = 0; i < parm; i++) {
+                    putShort(measure());
+                }
+                break;
+            case SCAN:
+                scan(scan);
+                scanValid = true;
+                int delay = (parm == 0) ? DEFAULT_DELAY : parm;
+                startTask((long) delay * SCAN_SIZE);
+                break;
+            case SCAN_RETRIEVE:
+                if (!scanValid) {
+                    putShort(STATUS_FAIL);
+                } else {
+                    putShort(STATUS_OK);
+                    for (short r : scan) {
+                        putShort(r);
+                    }
+                }
+                break;
+            case WARMUP:
+                // from a few seconds to a few minutes
+                int period = Math.max(0, Math.min(5, parm));
+                startTask(5000L + 55000L * period);
+                break;
+            default:
+                // the Lidar Unit ignores unknown commands
+                break;
+        }
+    }
+
+    private void startTask(long millis) {
+        taskDone = System.nanoTime() + (long) (millis * 1_000_000L * timeScale);
+    }
+
+    /**
+     * Queues a big-endian short response.
+     */
+    private void putShort(short value) {
+        if (outTail + 2 > out.length) {
+            // compact, and grow if still needed
+            int pending = outTail - outHead;
+            if (pending + 2 > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, pending + 2));
+            }
+            System.arraycopy(out, outHead, out, 0, pending);
+            outHead = 0;
+            outTail = pending;
+        }
+        out[outTail++] = (byte) (value >> 8);
+        out[outTail++] = (byte) value;
+    }
+
+    // command codes of the Lidar Unit
+    private static final int ID = 10;
+    private static final int ECHO = 11;
+    private static final int SERVO_POS = 30;
+    private static final int SERVO_PARMS = 32;
+    private static final int MULTIPLE = 50;
+    private static final int SCAN = 52;
+    private static final int SCAN_RETRIEVE = 54;
+    private static final int WARMUP = 60;
+}
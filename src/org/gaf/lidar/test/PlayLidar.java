@@ -1,43 +1,40 @@
 package org.gaf.lidar.test;
 
 import static com.diozero.api.SerialConstants.*;
+import com.diozero.api.RuntimeIOException;
 import com.diozero.api.SerialDevice;
+import org.gaf.cmd.Command;
+import org.gaf.cmd.CommandClient;
+import org.gaf.util.SerialDevicePort;
 
 /**
  * Play with Lidar Unit. Get the ID and echo a parameter.
  */
 public class PlayLidar {
 
-    public static void main(String[] args) throws InterruptedException {
+    private static final Command ID = new Command(10, false, 1);
+    private static final Command ECHO = new Command(11, true, 1);
+
+    public static void main(String[] args) {
         SerialDevice device = new SerialDevice("/dev/ttyACM0", BAUD_115200, 
                     DEFAULT_DATA_BITS, DEFAULT_STOP_BITS, DEFAULT_PARITY);
+        CommandClient client = 
+                new CommandClient(new SerialDevicePort(device), 1);
         
-        // get the ID        
-        device.writeByte((byte) 10);
-        byte[] res = new byte[2];
-        
-        // see if active
-        Thread.sleep(100);
-        if (!(device.bytesAvailable() > 1)) {
+        // get the ID; if no reply, not active
+        short value;
+        try {
+            value = client.call(ID, 0, null, 100)[0];
+        } catch (RuntimeIOException ex) {
             System.out.println("Lidar not powered!");
             System.exit(-1);
+            return;
         }
-        
-        // read the response byte array
-        device.read(res);           
-        // construct response as short
-        short value = (short)(res[0] << 8);
-        value = (short) (value | (short) Byte.toUnsignedInt(res[1]));
         System.out.println("ID= " + value);
         
         // echo a parameter
         short parameter = 12345;
-        device.write((byte) 11, (byte) (parameter >> 8), (byte) parameter);        
-        // read the response byte array
-        device.read(res);           
-        // construct response as short
-        value = (short)(res[0] << 8);
-        value = (short) (value | (short) Byte.toUnsignedInt(res[1]));
+        value = client.call(ECHO, parameter, null, 1000)[0];
         System.out.println("Parameter= " + value);
     }    
 }
@@ -16,7 +16,7 @@ public class TestLidarAll extends Lidar {
         super(fileName);
     }
 
-    public static void main(String arg[]) throws IOException, InterruptedException {
+    public static void main(String arg[]) throws IOException {
         // identity verification
         String deviceFile = LidarUtil.findDeviceFile("1ffb", "2300");    
 
@@ -0,0 +1,80 @@
+package org.gaf.lidar.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import org.gaf.cmd.CommandClient;
+import org.gaf.lidar.Lidar;
+import org.gaf.lidar.LidarMap;
+import org.gaf.lidar.LidarSimulator;
+import org.gaf.lidar.LidarUtil;
+import org.gaf.util.SerialPort;
+
+/**
+ * Compares the throughput of serialized Lidar commands with pipelined 
+ * commands. Uses the Lidar Unit if the first argument is "hw", else
+ * the Lidar simulator with a round trip latency typical of USB.
+ */
+public class TestLidarPipeline extends Lidar {
+
+    public TestLidarPipeline(String fileName) throws IOException {
+        super(fileName);
+    }
+
+    public TestLidarPipeline(SerialPort port) {
+        super(port);
+    }
+
+    public static void main(String arg[]) throws IOException {
+        final int number = 1000;
+        
+        TestLidarPipeline tester;
+        if (arg.length > 0 && arg[0].equals("hw")) {
+            String deviceFile = LidarUtil.findDeviceFile("1ffb", "2300");
+            if (deviceFile == null) {
+                throw new IOException("No matching device!");
+            }
+            tester = new TestLidarPipeline(deviceFile);
+        } else {
+            LidarSimulator sim = new LidarSimulator(
+                    new LidarMap().addRectangle(0, 0, 500, 400), 42);
+            sim.setLatency(1000);
+            tester = new TestLidarPipeline(sim);
+        }
+
+        try {
+            // serialized: each command waits for its reply
+            long tStart = System.nanoTime();
+            for (int i = 0; i < number; i++) {
+                if (tester.echoParameter((short) i) != i) 
+                    System.out.println("Echo BAD");
+            }
+            long tSerial = System.nanoTime() - tStart;
+
+            // pipelined: up to DEFAULT_WINDOW commands outstanding
+            CommandClient client = tester.getClient();
+            CommandClient.Request[] requests = 
+                    new CommandClient.Request[DEFAULT_WINDOW];
+            short[][] replies = new short[DEFAULT_WINDOW][1];
+            tStart = System.nanoTime();
+            for (int i = 0; i < number + DEFAULT_WINDOW; i++) {
+                int slot = i % DEFAULT_WINDOW;
+                if (i >= DEFAULT_WINDOW) {
+                    short echo = requests[slot].await(1000)[0];
+                    if (echo != (short) (i - DEFAULT_WINDOW))
+                        System.out.println("Echo BAD");
+                }
+                if (i < number) 
+                    requests[slot] = client.submit(ECHO, i, replies[slot]);
+            }
+            long tPipelined = System.nanoTime() - tStart;
+
+            System.out.format("serialized: %.0f commands/s%n", 
+                    number / (tSerial / 1e9));
+            System.out.format("pipelined (window %d): %.0f commands/s%n", 
+                    DEFAULT_WINDOW, number / (tPipelined / 1e9));
+        } finally {
+            tester.close();
+            Diozero.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.gaf.lidar.test;
+
+import static org.gaf.test.Checks.finish;
+import java.io.IOException;
+import org.gaf.lidar.Lidar;
+import org.gaf.lidar.LidarMap;
+import org.gaf.lidar.LidarPoint;
+import org.gaf.lidar.LidarSimulator;
+
+/**
+ * Test the Lidar implementation against the Lidar simulator, check the
+ * simulator replies in the order of the Lidar Unit when commands arrive
+ * during a task, and measure the ray-casting rate of the simulator. No
+ * hardware needed.
+ */
+public class TestLidarSim {
+
+    public static void main(String arg[]) throws IOException {
+        // a 5m x 4m room with a box in it
+        LidarMap map = new LidarMap().
+                addRectangle(0, 0, 500, 400).
+                addRectangle(300, 250, 350, 300);
+
+        LidarSimulator sim = new LidarSimulator(map, 42);
+        sim.setPose(250, 100, (float) Math.PI / 2);
+        sim.setNoise(1.5f);
+        sim.setDropoutRate(0.01f);
+
+        try (Lidar lidar = new Lidar(sim)) {
+            System.out.println("Identity verified: " + lidar.verifyIdentity());
+
+            short[] parms = lidar.getServoParms();
+            LidarPoint.setServoParms(parms);
+
+            lidar.scan(0);
+            short[] ranges = lidar.scanRetrieve();
+            LidarPoint[] lps = LidarPoint.processScan(ranges);
+            for (int i = 0; i < lps.length; i += 30) {
+                System.out.println(lps[i]);
+            }
+        }
+
+        boolean ok = interleave(new LidarSimulator(map, 42));
+
+        // ray-casting rate
+        short[] ranges = new short[LidarSimulator.SCAN_SIZE];
+        int number = Integer.valueOf(arg.length > 0 ? arg[0] : "20000");
+        for (int i = 0; i < number / 10; i++) { // warm up
+            sim.scan(ranges);
+        }
+        long tStart = System.nanoTime();
+        for (int i = 0; i < number; i++) {
+            sim.setPose(250, 100, i * 0.001f);
+            sim.scan(ranges);
+        }
+        long tDelta = System.nanoTime() - tStart;
+        System.out.format("%d scans of %d segments: %.0f scans/s%n", number,
+                map.getSegmentCount(), number / (tDelta / 1e9));
+
+        finish(ok);
+    }
+
+    /**
+     * Sends commands during a scan and a warmup, and checks their replies
+     * follow the task status, as from the Lidar Unit's command server.
+     */
+    private static boolean interleave(LidarSimulator sim) {
+        // a scan of about 0.3 s, a warmup of 50 ms
+        sim.setTimeScale(0.01f);
+        sim.write((byte) 52, (byte) 0, (byte) 0); // SCAN
+        sim.write((byte) 11, (byte) 0x12, (byte) 0x34); // ECHO
+        sim.writeByte((byte) 10); // ID
+        sim.write((byte) 60, (byte) 0, (byte) 0); // WARMUP
+        sim.writeByte((byte) 54); // SCAN_RETRIEVE
+        // nothing until the scan completes
+        boolean ok = sim.bytesAvailable() == 0;
+        short[] expected = {0, 0x1234, Lidar.LIDAR_ID, 0, 0};
+        byte[] reply = new byte[2];
+        for (short e : expected) {
+            sim.read(reply);
+            short value = (short) ((reply[0] << 8) | (reply[1] & 0xFF));
+            ok &= value == e;
+        }
+        for (int i = 0; i < LidarSimulator.SCAN_SIZE; i++) {
+            sim.read(reply);
+        }
+        ok &= sim.bytesAvailable() == 0;
+        sim.close();
+        System.out.println("Replies in device order during tasks: " + ok);
+        return ok;
+    }
+}
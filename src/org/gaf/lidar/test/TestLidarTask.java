@@ -0,0 +1,80 @@
+package org.gaf.lidar.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import com.diozero.api.RuntimeIOException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.gaf.cmd.CommandClient;
+import org.gaf.lidar.Lidar;
+import org.gaf.lidar.LidarMap;
+import org.gaf.lidar.LidarSimulator;
+import org.gaf.util.SerialPort;
+
+/**
+ * Tests commands during a long running task, against the Lidar simulator
+ * with a scan of about 2 s: an echo sent during a scan, whose reply comes
+ * only after the scan's status, must not time out or fail the scan; and
+ * waiting for a scan must not keep a core busy. Also, after a timeout the
+ * late reply must not be taken as the reply to the next command. No
+ * hardware needed.
+ */
+public class TestLidarTask extends Lidar {
+
+    public TestLidarTask(SerialPort port) {
+        super(port);
+    }
+
+    public static void main(String arg[]) throws IOException {
+        LidarMap map = new LidarMap().addRectangle(0, 0, 500, 400);
+        LidarSimulator sim = new LidarSimulator(map, 42);
+        sim.setPose(250, 100, (float) Math.PI / 2);
+        // 361 readings at 80 ms, scaled to about 2 s
+        sim.setTimeScale(0.07f);
+        boolean ok = true;
+
+        try (TestLidarTask tester = new TestLidarTask(sim)) {
+            // an echo during a scan
+            long tStart = System.nanoTime();
+            tester.scanStart(0);
+            short echo = tester.echoParameter((short) 1234);
+            double waited = (System.nanoTime() - tStart) / 1e9;
+            boolean done = tester.isTaskDone(false);
+            System.out.format("echo during scan: %d after %.2f s, scan done " +
+                    "%b%n", echo, waited, done);
+            ok &= check("echo", echo == 1234 && waited > 1.5) &
+                    check("scan done", done);
+            ok &= check("retrieve",
+                    tester.scanRetrieve().length == SCAN_SIZE);
+
+            // the CPU used waiting for a scan
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            long cpuStart = mx.getCurrentThreadCpuTime();
+            tStart = System.nanoTime();
+            tester.scan(0);
+            long wall = System.nanoTime() - tStart;
+            long cpu = mx.getCurrentThreadCpuTime() - cpuStart;
+            System.out.format("waiting for scan: %.2f s, CPU %.1f%%%n",
+                    wall / 1e9, 100.0 * cpu / wall);
+            ok &= check("CPU", cpu < wall / 20);
+            ok &= check("echo after scan",
+                    tester.echoParameter((short) -5) == -5);
+        }
+
+        // an echo that times out, with its reply still on the way
+        LidarSimulator slow = new LidarSimulator(map, 7);
+        slow.setLatency(10_000);
+        CommandClient client = new CommandClient(slow, 1);
+        boolean timedOut = false;
+        try {
+            client.call(ECHO, 1, null, 2);
+        } catch (RuntimeIOException ex) {
+            timedOut = true;
+        }
+        short next = client.call(ECHO, 2, null, 500)[0];
+        System.out.format("echo after timeout: %d%n", next);
+        ok &= check("timeout", timedOut) & check("after timeout", next == 2);
+        finish(ok);
+    }
+}
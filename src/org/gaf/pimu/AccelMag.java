@@ -3,36 +3,239 @@
 import com.diozero.api.DigitalInputDevice;
 import com.diozero.api.GpioEventTrigger;
 import com.diozero.api.GpioPullUpDown;
+import com.diozero.api.I2CConstants;
 import com.diozero.api.RuntimeIOException;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * A accelerometer/magnetometer that is "data ready interrupt" driven. 
  * It delivers results via
- * a FIFO queue. The results are raw readings.
+ * a SampleRing. The results are raw readings.
+ * <p>
+ * Each record in the ring has two fields: the value (at VALUE) and the time 
+ * delta from the previous interrupt in nanoseconds (at TS_DELTA).
+ * </p>
+ * <p>
+ * In FIFO mode, the records are instead BATCH_RECORD_WIDTH fields wide: 
+ * the kind of sample (at KIND), the X, Y and Z values (at X, Y, Z) and the 
+ * absolute timestamp in nanoseconds (at TIMESTAMP). Records are in 
+ * timestamp order. The FIFO holds accelerometer samples only, so the 
+ * magnetometer is decimated by the watermark (see activateFifo).
+ * </p>
+ * <p>
+ * In frame mode, every interrupt publishes one record with all the values
+ * of a {@link Frame}. Accelerometer only and magnetometer only frames use 
+ * the FIFO mode layout. Six axis frames are FRAME_RECORD_WIDTH fields 
+ * wide: the accelerometer X, Y and Z values (at ACCEL_X, ACCEL_Y, 
+ * ACCEL_Z), the magnetometer X, Y and Z values (at MAG_X, MAG_Y, MAG_Z), 
+ * the absolute interrupt timestamp (at FRAME_TIMESTAMP) and the time delta 
+ * from the previous interrupt (at FRAME_TS_DELTA), both in nanoseconds.
+ * In motion wake mode, frames are delivered only while the device is 
+ * moving; while it is still the host is not interrupted.
+ * </p>
  */
 public class AccelMag implements AutoCloseable {
     
-    private final BlockingQueue queue;
+    /**
+     * The record field holding the value.
+     */
+    public static final int VALUE = 0;
+    /**
+     * The record field holding the time delta.
+     */
+    public static final int TS_DELTA = 1;
+    /**
+     * The number of fields in a record.
+     */
+    public static final int RECORD_WIDTH = 2;
+    
+    /**
+     * The FIFO mode record field holding the kind of sample.
+     */
+    public static final int KIND = 0;
+    /**
+     * The FIFO mode record field holding the X axis value.
+     */
+    public static final int X = 1;
+    /**
+     * The FIFO mode record field holding the Y axis value.
+     */
+    public static final int Y = 2;
+    /**
+     * The FIFO mode record field holding the Z axis value.
+     */
+    public static final int Z = 3;
+    /**
+     * The FIFO mode record field holding the timestamp.
+     */
+    public static final int TIMESTAMP = 4;
+    /**
+     * The number of fields in a FIFO mode record.
+     */
+    public static final int BATCH_RECORD_WIDTH = 5;
+    /**
+     * The kind of an accelerometer sample.
+     */
+    public static final int KIND_ACCEL = 0;
+    /**
+     * The kind of a magnetometer sample.
+     */
+    public static final int KIND_MAG = 1;
+    
+    /**
+     * The six axis frame record field holding the accelerometer X value.
+     */
+    public static final int ACCEL_X = 0;
+    /**
+     * The six axis frame record field holding the accelerometer Y value.
+     */
+    public static final int ACCEL_Y = 1;
+    /**
+     * The six axis frame record field holding the accelerometer Z value.
+     */
+    public static final int ACCEL_Z = 2;
+    /**
+     * The six axis frame record field holding the magnetometer X value.
+     */
+    public static final int MAG_X = 3;
+    /**
+     * The six axis frame record field holding the magnetometer Y value.
+     */
+    public static final int MAG_Y = 4;
+    /**
+     * The six axis frame record field holding the magnetometer Z value.
+     */
+    public static final int MAG_Z = 5;
+    /**
+     * The six axis frame record field holding the timestamp.
+     */
+    public static final int FRAME_TIMESTAMP = 6;
+    /**
+     * The six axis frame record field holding the time delta.
+     */
+    public static final int FRAME_TS_DELTA = 7;
+    /**
+     * The number of fields in a six axis frame record.
+     */
+    public static final int FRAME_RECORD_WIDTH = 8;
+    
+    /**
+     * The frames that can be delivered in frame mode.
+     */
+    public enum Frame {
+        SIX_AXIS(FRAME_RECORD_WIDTH),
+        ACCEL(BATCH_RECORD_WIDTH),
+        MAG(BATCH_RECORD_WIDTH);
+        
+        /**
+         * The minimum record width for the frame.
+         */
+        public final int width;
+        
+        Frame(int width) {
+            this.width = width;
+        }
+    }
+    
+    /**
+     * The default motion wake threshold for motion, in g.
+     */
+    public static final float DEFAULT_MOTION_THRESHOLD = 0.126F;
+    /**
+     * The default motion wake threshold for freefall, in g.
+     */
+    public static final float DEFAULT_FREEFALL_THRESHOLD = 0.315F;
+    /**
+     * The default motion wake threshold for a tap, in g.
+     */
+    public static final float DEFAULT_TAP_THRESHOLD = 1.5F;
+    
+    // motion wake detection timing: motion debounce in samples, freefall 
+    // duration, and pulse timing in steps (see the datasheet)
+    private static final int MOTION_DEBOUNCE = 1;
+    private static final int FREEFALL_MILLIS = 100;
+    private static final int PULSE_TIME_LIMIT = 0x18;
+    private static final int PULSE_LATENCY = 0x28;
+    private static final int PULSE_WINDOW = 0x3C;
+    // the limit on handling interrupt sources in one interrupt
+    private static final int MAX_SOURCE_READS = 4;
+    
+    private final SampleRing ring;
     private FXOS8700CQ fxos = null;
     private DigitalInputDevice catcher = null;
     
     private long tsLast;
     private boolean active = false;
     
+    // the latest reading, reused to avoid allocation in the handler
+    private final int[] xyzxyz = new int[6];
+    
+    // FIFO mode
+    private final int[] fifoXyz = new int[3 * FXOS8700CQ.FIFO_SIZE];
+    private final int[] magXyz = new int[3];
+    private FifoClock fifoClock;
+    private long batches;
+    private long fifoOverflows;
+    
+    // the frame published by the frame and motion wake handlers
+    private Frame frame;
+    
+    // motion wake; the counts and the state are updated in the handler
+    private FXOS8700CQ.ODR idleOdr;
+    private FXOS8700CQ.ODR streamOdr;
+    private float motionThreshold = DEFAULT_MOTION_THRESHOLD;
+    private float freefallThreshold = DEFAULT_FREEFALL_THRESHOLD;
+    private float tapThreshold = DEFAULT_TAP_THRESHOLD;
+    private long motionCounts;
+    private long quietNanos;
+    private long quietStart;
+    private final int[] quietAccel = new int[3];
+    private volatile boolean streaming = false;
+    private long streamStart;
+    private volatile long streamingNanos;
+    private volatile long interrupts;
+    private volatile long wakes;
+    private volatile long freefalls;
+    private volatile long taps;
+    private volatile long doubleTaps;
+    
+    // magnetometer calibration, hard iron then soft iron; applied in FIFO 
+    // and frame modes if set
+    private volatile float[] magCalibration = null;
+    private volatile MagCalibrator magCalibrator = null;
     
     /**
-     * Constructs a new accelerometer/magnetometer.
+     * Constructs a new accelerometer/magnetometer at the default address on
+     * the default I2C controller.
      * 
      * @param interruptPin The GPIO pin for interrupts from the device.
-     * @param queue The queue used to provide data
+     * @param ring The ring buffer used to provide data; records must have
+     * at least RECORD_WIDTH fields
      * @throws IOException 
      */
-    public AccelMag(int interruptPin, BlockingQueue queue) throws IOException {
-        this.queue = queue;
+    public AccelMag(int interruptPin, SampleRing ring) throws IOException {
+        this(I2CConstants.CONTROLLER_1, FXOS8700CQ.DEFAULT_ADDRESS, 
+                interruptPin, ring);
+    }
+    
+    /**
+     * Constructs a new accelerometer/magnetometer on an I2C controller at 
+     * an address, for example for a second board on another bus.
+     * 
+     * @param controller The I2C controller (bus).
+     * @param address The I2C address of the FXOS8700CQ.
+     * @param interruptPin The GPIO pin for interrupts from the device.
+     * @param ring The ring buffer used to provide data; records must have
+     * at least RECORD_WIDTH fields
+     * @throws IOException 
+     */
+    public AccelMag(int controller, int address, int interruptPin, 
+            SampleRing ring) throws IOException {
+        if (ring.width() < RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        this.ring = ring;
         // create a FXOS8700CQ
-        this.fxos = new FXOS8700CQ();
+        this.fxos = new FXOS8700CQ(controller, address);
         // create a interrupt catcher
         try {
             catcher = new DigitalInputDevice(
@@ -40,6 +243,7 @@ public class AccelMag implements AutoCloseable {
                     GpioPullUpDown.NONE,
                     GpioEventTrigger.RISING);
         } catch (RuntimeIOException ex) {
+            fxos.close();
             throw new IOException(ex.getMessage());            
         }        
     }
@@ -68,17 +272,96 @@ public class AccelMag implements AutoCloseable {
         fxos.begin();
     }
 
+    /**
+     * Configures the FXOS8700CQ with an output data rate and activates 
+     * the device.
+     * @param odr The desired output data rate.
+     * @throws RuntimeIOException 
+     */
+    public void begin(FXOS8700CQ.ODR odr) throws RuntimeIOException {
+        fxos.begin(odr);
+    }
+
+    /**
+     * Configures the FXOS8700CQ with an output data rate and activates 
+     * the device, and loads the magnetometer calibration from a 
+     * calibration cache.
+     * @param odr The desired output data rate.
+     * @param cache The calibration cache.
+     * @return true if a magnetometer calibration was loaded
+     * @throws RuntimeIOException 
+     */
+    public boolean begin(FXOS8700CQ.ODR odr, CalibrationCache cache) 
+            throws RuntimeIOException {
+        fxos.begin(odr);
+        float[] hard = new float[3];
+        float[] soft = new float[9];
+        if (cache.getMagCalibration(fxos.getKey(), hard, soft)) {
+            setMagCalibration(hard, soft);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Sets the magnetometer calibration applied to the magnetometer samples
+     * published in FIFO and frame modes. A calibrated value is 
+     * softIron * (raw - hardIron). Can be set while active.
+     * @param hardIron the offsets in counts
+     * @param softIron the 3x3 matrix, row major
+     */
+    public void setMagCalibration(float[] hardIron, float[] softIron) {
+        float[] calibration = new float[12];
+        System.arraycopy(hardIron, 0, calibration, 0, 3);
+        System.arraycopy(softIron, 0, calibration, 3, 9);
+        magCalibration = calibration;
+    }
+    
+    /**
+     * Removes the magnetometer calibration, so raw magnetometer samples 
+     * are published.
+     */
+    public void clearMagCalibration() {
+        magCalibration = null;
+    }
+    
+    /**
+     * Indicates if a magnetometer calibration is set.
+     * @return true if set
+     */
+    public boolean isMagCalibrated() {
+        return magCalibration != null;
+    }
+    
+    /**
+     * Sets a calibrator to receive every raw magnetometer sample in FIFO 
+     * and frame modes, before any calibration is applied.
+     * @param calibrator the calibrator; null for none
+     */
+    public void setMagCalibrator(MagCalibrator calibrator) {
+        magCalibrator = calibrator;
+    }
+    
     /**
      * Activates an interrupt handler. The interrupt handler is assumed
      * to be configured prior to activation.
      * @throws RuntimeIOException
      */
     public void activateIH() throws RuntimeIOException {               
+        // the handlers other than the FIFO and motion wake handlers need 
+        // data ready interrupts only
+        if (fxos.getFifoWatermark() > 0) {
+            fxos.disableFifo();
+        } else if (fxos.getInterrupts() != 
+                FXOS8700CQ.Interrupt.DataReady.mask) {
+            fxos.setInterrupts(FXOS8700CQ.Interrupt.DataReady.mask);
+        }
+        
         // read to clear interrupt status
-        fxos.readRaw();
+        fxos.readRaw(xyzxyz);
 
-        // empty the queue
-        queue.clear();
+        // empty the ring
+        ring.clear();
 
         // set active
         tsLast = 0;
@@ -96,6 +379,227 @@ public class AccelMag implements AutoCloseable {
         activateIH();
     }
     
+    /**
+     * Activates the interrupt handler to deliver frames: all six axes, or
+     * the accelerometer or magnetometer only, at the rate of each sensor. 
+     * Each interrupt costs one I2C block read of all six axes, whatever 
+     * the frame (which also keeps the data ready interrupt cleared). The 
+     * ring must have records at least as wide as the frame.
+     * @param frame the frame to deliver
+     * @throws RuntimeIOException
+     */
+    public void activateFrames(Frame frame) throws RuntimeIOException {
+        if (ring.width() < frame.width)
+            throw new IllegalArgumentException("Ring records too narrow");
+        this.frame = frame;
+        // identify interrupt handler
+        catcher.whenActivated(this::queueFrame);
+        
+        activateIH();
+    }
+    
+    /**
+     * Activates motion wake, to idle the host while the device is still. 
+     * While idle, the FXOS8700CQ runs at a low ODR with data ready 
+     * interrupts disabled, so the host is interrupted only by motion (its 
+     * freefall/motion block) or a tap (its pulse block). On motion it 
+     * switches to the stream ODR and delivers frames as in frame mode, with
+     * the freefall/motion block detecting freefall, until the acceleration
+     * has stayed within the motion threshold of its value at the start of 
+     * a quiet period (and there has been no tap or freefall) for that 
+     * period; then it drops back to idle. It starts idle. Events and time 
+     * streaming are counted. The ring must have records at least as wide 
+     * as the frame.
+     * @param frame the frame to deliver while streaming
+     * @param idleOdr the ODR while idle
+     * @param streamOdr the ODR while streaming
+     * @param quietMillis the quiet period in milliseconds
+     * @throws RuntimeIOException
+     */
+    public void activateMotionWake(Frame frame, FXOS8700CQ.ODR idleOdr, 
+            FXOS8700CQ.ODR streamOdr, long quietMillis) 
+            throws RuntimeIOException {
+        if (ring.width() < frame.width)
+            throw new IllegalArgumentException("Ring records too narrow");
+        if (fxos.getFifoWatermark() > 0) fxos.disableFifo();
+        this.frame = frame;
+        this.idleOdr = idleOdr;
+        this.streamOdr = streamOdr;
+        quietNanos = quietMillis * 1_000_000;
+        motionCounts = Math.round(motionThreshold / 
+                FXOS8700CQ.AccelRange.RANGE_2G.sensitivity);
+        interrupts = 0;
+        wakes = 0;
+        freefalls = 0;
+        taps = 0;
+        doubleTaps = 0;
+        streamingNanos = 0;
+        
+        // identify interrupt handler
+        catcher.whenActivated(this::queueMotion);
+
+        fxos.configurePulse(tapThreshold, PULSE_TIME_LIMIT, PULSE_LATENCY, 
+                PULSE_WINDOW);
+        idle(0);
+        
+        // clear any events and data ready
+        fxos.readMotionSource();
+        fxos.readPulseSource();
+        fxos.readRaw(xyzxyz);
+        
+        // empty the ring
+        ring.clear();
+        
+        // set active
+        tsLast = 0;
+        this.active = true;
+    }
+    
+    /**
+     * Sets the thresholds for motion wake; they take effect at the next
+     * activation.
+     * @param motion the motion threshold in g, on X and Y (which must 
+     * allow for any tilt)
+     * @param freefall the freefall threshold in g
+     * @param tap the tap threshold in g
+     */
+    public void setMotionThresholds(float motion, float freefall, float tap) {
+        motionThreshold = motion;
+        freefallThreshold = freefall;
+        tapThreshold = tap;
+    }
+    
+    /**
+     * Indicates if motion wake is streaming (rather than idle).
+     * @return true if streaming
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+    
+    /**
+     * Returns the number of interrupts handled since motion wake 
+     * activation.
+     * @return number of interrupts
+     */
+    public long getInterruptCount() {
+        return interrupts;
+    }
+    
+    /**
+     * Returns the number of switches from idle to streaming since motion 
+     * wake activation.
+     * @return number of wakes
+     */
+    public long getWakeCount() {
+        return wakes;
+    }
+    
+    /**
+     * Returns the number of freefalls detected since motion wake activation.
+     * @return number of freefalls
+     */
+    public long getFreefallCount() {
+        return freefalls;
+    }
+    
+    /**
+     * Returns the number of single taps detected since motion wake 
+     * activation.
+     * @return number of taps
+     */
+    public long getTapCount() {
+        return taps;
+    }
+    
+    /**
+     * Returns the number of double taps detected since motion wake 
+     * activation.
+     * @return number of double taps
+     */
+    public long getDoubleTapCount() {
+        return doubleTaps;
+    }
+    
+    /**
+     * Returns the time spent streaming since motion wake activation, up to
+     * the last switch back to idle.
+     * @return the time in nanoseconds
+     */
+    public long getStreamingTime() {
+        return streamingNanos;
+    }
+    
+    /**
+     * Activates the accelerometer FIFO of the FXOS8700CQ and the interrupt 
+     * handler to deliver results in batches. There is one interrupt and 
+     * (usually) two I2C transactions per batch, rather than per sample. 
+     * Each batch publishes the accelerometer samples, each with a timestamp 
+     * reconstructed from the interrupt timestamps and the measured sample 
+     * period, followed by one magnetometer sample. The ring must have 
+     * records at least BATCH_RECORD_WIDTH wide.
+     * <p>
+     * The FXOS8700CQ has no magnetometer FIFO: only its latest magnetometer
+     * sample can be read, so in hybrid mode the magnetometer rate is the 
+     * accelerometer rate divided by the watermark (see getMagDecimation). 
+     * Reading every magnetometer sample would need an interrupt per sample,
+     * which is what the FIFO avoids. The magnetometer is sampled with the 
+     * accelerometer, so its sample has the timestamp of the newest 
+     * accelerometer sample, and follows it in the ring. A small watermark 
+     * trades interrupts for magnetometer rate; for the magnetometer at the 
+     * full rate use frame mode. Consumers aligning the streams (such as 
+     * FrameAssembler) must allow for the magnetometer period.
+     * </p>
+     * @param watermark the number of accelerometer samples in a batch (1-32)
+     * @throws RuntimeIOException
+     */
+    public void activateFifo(int watermark) throws RuntimeIOException {
+        if (ring.width() < BATCH_RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        fxos.enableFifo(watermark);
+
+        // identify interrupt handler
+        catcher.whenActivated(this::queueFifo);
+
+        // drain to clear interrupt status
+        fxos.readFifo(fifoXyz);
+
+        // empty the ring
+        ring.clear();
+
+        // set active
+        fifoClock = new FifoClock(watermark, fxos.getSensorRate());
+        batches = 0;
+        fifoOverflows = 0;
+        this.active = true;
+    }
+    
+    /**
+     * Returns the decimation of the magnetometer in FIFO mode: the number of
+     * accelerometer samples per magnetometer sample.
+     * @return the decimation, which is the watermark; 0 if not in FIFO mode
+     */
+    public int getMagDecimation() {
+        return fxos.getFifoWatermark();
+    }
+    
+    /**
+     * Returns the number of FIFO batches handled since FIFO activation.
+     * @return number of batches
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+    
+    /**
+     * Returns the number of FIFO overflows (each losing samples) since 
+     * FIFO activation.
+     * @return number of overflows
+     */
+    public long getFifoOverflowCount() {
+        return fifoOverflows;
+    }
+    
     /**
      * Deactivates the interrupt handler.
      */
@@ -105,21 +609,224 @@ public class AccelMag implements AutoCloseable {
        
     /**
      * Interrupt handler: Reads raw data. Calculates time delta between this
-     * and last interrupt. Queues the accelerometer X axis value.
+     * and last interrupt. Publishes the accelerometer X axis value.
      * @param timestamp timestamp for the interrupt in nanoseconds
      * @throws RuntimeIOException
      */
     private void queueRaw(long timestamp) throws RuntimeIOException {
         if (active) {
-            int[] xyzxyz = fxos.readRaw();
+            fxos.readRaw(xyzxyz);
             
             long tsDelta = timestamp - tsLast;
             tsLast = timestamp;
-            long[] sample = {xyzxyz[3], tsDelta};
 
-            // queue it if queue not full
-            if (!queue.offer(sample))
-                System.err.println("Queue Full!");
+            // publish it; a full ring applies its overflow policy
+            ring.offer(xyzxyz[3], tsDelta);
+        }       
+    }           
+
+    /**
+     * Interrupt handler: Reads raw data. Publishes the frame being 
+     * delivered.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     * @throws RuntimeIOException
+     */
+    private void queueFrame(long timestamp) throws RuntimeIOException {
+        if (active) {
+            fxos.readRaw(xyzxyz);
+            publishFrame(frame, timestamp);
         }       
     }           
+    
+    /**
+     * Interrupt handler: Reads the interrupt sources, and handles each 
+     * until none is asserted (otherwise there would be no further rising 
+     * edge). A tap is counted and restarts the quiet period. A motion event
+     * while idle switches to streaming; while streaming the block detects 
+     * freefall instead, which is counted. Data ready while streaming 
+     * publishes a frame, and checks for the end of the quiet period.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     * @throws RuntimeIOException
+     */
+    private void queueMotion(long timestamp) throws RuntimeIOException {
+        if (active) {
+            interrupts++;
+            int source = fxos.readInterruptSource();
+            for (int n = 0; source != 0 && n < MAX_SOURCE_READS; n++) {
+                if ((source & FXOS8700CQ.Interrupt.Pulse.mask) != 0) {
+                    int pulse = fxos.readPulseSource();
+                    if ((pulse & FXOS8700CQ.PULSE_DOUBLE) != 0) {
+                        doubleTaps++;
+                    } else {
+                        taps++;
+                    }
+                    quietStart = timestamp;
+                }
+                if ((source & FXOS8700CQ.Interrupt.FreefallMotion.mask) != 0) {
+                    fxos.readMotionSource();
+                    if (streaming) {
+                        freefalls++;
+                        quietStart = timestamp;
+                    } else {
+                        wakes++;
+                        stream(timestamp);
+                    }
+                }
+                if ((source & FXOS8700CQ.Interrupt.DataReady.mask) != 0) {
+                    // read even if idle, to clear it
+                    fxos.readRaw(xyzxyz);
+                    if (streaming) {
+                        publishFrame(frame, timestamp);
+                        checkQuiet(timestamp);
+                    }
+                }
+                source = fxos.readInterruptSource();
+            }
+        }       
+    }
+    
+    /**
+     * Switches to streaming: the stream ODR, data ready interrupts, and 
+     * freefall detection.
+     */
+    private void stream(long timestamp) throws RuntimeIOException {
+        fxos.configureFreefall(freefallThreshold, 
+                Math.round(FREEFALL_MILLIS * streamOdr.odr / 1000));
+        fxos.setOdr(streamOdr);
+        fxos.setInterrupts(FXOS8700CQ.Interrupt.DataReady.mask | 
+                FXOS8700CQ.Interrupt.FreefallMotion.mask | 
+                FXOS8700CQ.Interrupt.Pulse.mask);
+        streaming = true;
+        streamStart = timestamp;
+        quietStart = 0;
+        tsLast = 0;
+    }
+    
+    /**
+     * Switches to idle: the idle ODR, and only motion and tap interrupts.
+     */
+    private void idle(long timestamp) throws RuntimeIOException {
+        fxos.configureMotion(motionThreshold, MOTION_DEBOUNCE);
+        fxos.setOdr(idleOdr);
+        fxos.setInterrupts(FXOS8700CQ.Interrupt.FreefallMotion.mask | 
+                FXOS8700CQ.Interrupt.Pulse.mask);
+        if (streamStart != 0) streamingNanos += timestamp - streamStart;
+        streaming = false;
+        streamStart = 0;
+    }
+    
+    /**
+     * Restarts the quiet period if the acceleration has changed by more 
+     * than the motion threshold on any axis since it started; switches to 
+     * idle if the quiet period has passed.
+     */
+    private void checkQuiet(long timestamp) throws RuntimeIOException {
+        boolean moved = quietStart == 0;
+        for (int a = 0; a < 3; a++) {
+            if (Math.abs(xyzxyz[3 + a] - quietAccel[a]) > motionCounts) 
+                moved = true;
+        }
+        if (moved) {
+            System.arraycopy(xyzxyz, 3, quietAccel, 0, 3);
+            quietStart = timestamp;
+        } else if (timestamp - quietStart > quietNanos) {
+            idle(timestamp);
+        }
+    }
+    
+    /**
+     * Publishes a frame from the latest reading; a full ring applies its 
+     * overflow policy.
+     */
+    private void publishFrame(Frame frame, long timestamp) {
+        switch (frame) {
+            case ACCEL:
+                publish(KIND_ACCEL, xyzxyz, 3, timestamp);
+                return;
+            case MAG:
+                magSample(xyzxyz);
+                publish(KIND_MAG, xyzxyz, 0, timestamp);
+                return;
+            default:
+        }
+        magSample(xyzxyz);
+        long tsDelta = (tsLast == 0) ? 0 : timestamp - tsLast;
+        tsLast = timestamp;
+        if (ring.claim()) {
+            ring.put(ACCEL_X, xyzxyz[3]);
+            ring.put(ACCEL_Y, xyzxyz[4]);
+            ring.put(ACCEL_Z, xyzxyz[5]);
+            ring.put(MAG_X, xyzxyz[0]);
+            ring.put(MAG_Y, xyzxyz[1]);
+            ring.put(MAG_Z, xyzxyz[2]);
+            ring.put(FRAME_TIMESTAMP, timestamp);
+            ring.put(FRAME_TS_DELTA, tsDelta);
+            ring.publish();
+        }
+    }
+
+    /**
+     * Interrupt handler: Drains the FIFO and reads the magnetometer. 
+     * Reconstructs the timestamp of each accelerometer sample. Publishes
+     * the accelerometer samples, then the magnetometer sample (the only 
+     * one available, taken with the newest accelerometer sample) with the 
+     * timestamp of the newest accelerometer sample.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     * @throws RuntimeIOException
+     */
+    private void queueFifo(long timestamp) throws RuntimeIOException {
+        if (active) {
+            int count = fxos.readFifo(fifoXyz);
+            fxos.readMag(magXyz);
+            boolean overflow = fxos.isFifoOverflow();
+            if (overflow) fifoOverflows++;
+            batches++;
+            fifoClock.batch(timestamp, count, overflow);
+
+            for (int i = 0; i < count; i++) {
+                publish(KIND_ACCEL, fifoXyz, 3 * i, fifoClock.timestamp(i));
+            }
+            magSample(magXyz);
+            publish(KIND_MAG, magXyz, 0, 
+                    (count > 0) ? fifoClock.timestamp(count - 1) : timestamp);
+        }
+    }
+    
+    /**
+     * Passes a raw magnetometer sample (the first three values) to the 
+     * calibrator, if any, then applies the calibration, if any, in place.
+     */
+    private void magSample(int[] xyz) {
+        MagCalibrator calibrator = magCalibrator;
+        if (calibrator != null) calibrator.add(xyz[0], xyz[1], xyz[2]);
+        float[] calibration = magCalibration;
+        if (calibration != null) calibrateMag(calibration, xyz);
+    }
+    
+    /**
+     * Applies the magnetometer calibration to a sample, in place.
+     */
+    private static void calibrateMag(float[] calibration, int[] xyz) {
+        float x = xyz[0] - calibration[0];
+        float y = xyz[1] - calibration[1];
+        float z = xyz[2] - calibration[2];
+        for (int r = 0; r < 3; r++) {
+            xyz[r] = Math.round(calibration[3 + 3 * r] * x + 
+                    calibration[4 + 3 * r] * y + calibration[5 + 3 * r] * z);
+        }
+    }
+    
+    /**
+     * Publishes a FIFO mode record; a full ring applies its overflow policy.
+     */
+    private void publish(int kind, int[] xyz, int offset, long timestamp) {
+        if (ring.claim()) {
+            ring.put(KIND, kind);
+            ring.put(X, xyz[offset]);
+            ring.put(Y, xyz[offset + 1]);
+            ring.put(Z, xyz[offset + 2]);
+            ring.put(TIMESTAMP, timestamp);
+            ring.publish();
+        }
+    }
 }
@@ -0,0 +1,391 @@
+package org.gaf.pimu;
+
+import com.diozero.api.DigitalInputDevice;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Decides when a sensor has data ready and runs a handler to read it. The
+ * handler gets the timestamp in nanoseconds (System.nanoTime) of the data
+ * ready event, as for a GPIO interrupt. There are three modes:
+ * <ul>
+ * <li>INTERRUPT: the handler runs on the GPIO interrupt thread. Cheapest
+ * in CPU, but the latency depends on the interrupt path.</li>
+ * <li>POLL: a thread busy polls the data ready status. Lowest latency, but
+ * one CPU is kept busy.</li>
+ * <li>HYBRID: a thread sleeps until shortly before the next sample is due,
+ * then busy polls. The margin adapts: it grows when the sample is already
+ * ready on waking and shrinks while it is not.</li>
+ * </ul>
+ * <p>
+ * For the polling modes, the timestamp is the midpoint between the last
+ * poll that found no data and the poll that found data. Each mode reports
+ * the dispatch latency (timestamp to handler completion), the polls per
+ * sample, and the CPU time of the thread running the handler: the polling
+ * thread, or the GPIO interrupt thread.
+ * </p>
+ * <p>
+ * If the handler throws an exception in a polling mode, the polling thread
+ * stops, and the exception is kept for getFailure.
+ * </p>
+ */
+public class Acquisition implements AutoCloseable {
+
+    /**
+     * The acquisition modes.
+     */
+    public enum Mode {
+        INTERRUPT,
+        POLL,
+        HYBRID
+    }
+
+    private static final ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean();
+
+    // hybrid margin limits, and how often the polling thread CPU time is read
+    private static final long MIN_MARGIN = 100_000;
+    private static final long INITIAL_MARGIN = 500_000;
+    private static final long MAX_MARGIN = 2_000_000;
+    private static final int CPU_SAMPLE_INTERVAL = 64;
+
+    private final DigitalInputDevice catcher;
+    private final BooleanSupplier ready;
+    private volatile float odr = 0;
+    private Mode mode;
+
+    private volatile boolean running = false;
+    private volatile RuntimeException failure = null;
+    private LongConsumer handler = null;
+    private Thread poller = null;
+
+    // statistics, written by the handler thread
+    private long samples;
+    private long polls;
+    private long latencySum;
+    private long latencyMax;
+    private long oversleeps;
+    private long margin;
+    private volatile long cpuTime;
+    // interrupt mode: the thread running the handler, its CPU time when
+    // first seen, and the CPU time used by any thread that ran it before
+    private volatile Thread interruptThread;
+    private long cpuStart;
+    private long cpuBefore;
+
+    // data gap measurement around a reconfiguration
+    private volatile long lastTimestamp = 0;
+    private volatile long gapStart = 0;
+    private volatile long lastGap = 0;
+
+    /**
+     * Creates an acquisition.
+     * @param catcher the GPIO interrupt input; null if interrupts are not
+     * available
+     * @param ready checks (without waiting) if the sensor has data ready
+     * @param mode the initial mode
+     */
+    public Acquisition(DigitalInputDevice catcher, BooleanSupplier ready,
+            Mode mode) {
+        this.catcher = catcher;
+        this.ready = ready;
+        setMode(mode);
+    }
+
+    /**
+     * Sets the expected output data rate, needed by the hybrid mode. Can be
+     * changed while running.
+     * @param odr the output data rate in Hz
+     */
+    public void setOdr(float odr) {
+        this.odr = odr;
+    }
+
+    /**
+     * Marks the start of a data gap, for example a sensor reconfiguration.
+     * The gap is measured from the last sample before the mark to the first
+     * sample after it.
+     */
+    public void markGap() {
+        gapStart = lastTimestamp;
+    }
+
+    /**
+     * Returns the last data gap measured after {@link #markGap()}.
+     * @return the gap in nanoseconds; 0 if none measured yet
+     */
+    public long getLastGap() {
+        return lastGap;
+    }
+
+    /**
+     * Sets the mode. Must be set while stopped.
+     * @param mode the mode
+     */
+    public void setMode(Mode mode) {
+        if (running)
+            throw new IllegalStateException("Cannot change mode while running");
+        if (mode == Mode.INTERRUPT && catcher == null)
+            throw new IllegalArgumentException("No interrupt input");
+        this.mode = mode;
+    }
+
+    /**
+     * Returns the mode.
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Starts running a handler for each sample, and clears the statistics.
+     * A running handler is stopped first.
+     * @param handler the handler; gets the data ready timestamp
+     */
+    public void start(LongConsumer handler) {
+        stop();
+        if (mode == Mode.HYBRID && odr <= 0)
+            throw new IllegalStateException("Hybrid mode needs the ODR");
+        this.handler = handler;
+        samples = 0;
+        polls = 0;
+        latencySum = 0;
+        latencyMax = 0;
+        oversleeps = 0;
+        margin = INITIAL_MARGIN;
+        cpuTime = 0;
+        interruptThread = null;
+        cpuBefore = 0;
+        failure = null;
+        running = true;
+        if (mode == Mode.INTERRUPT) {
+            catcher.whenActivated(this::interrupt);
+        } else {
+            poller = new Thread(this::poll, "pimu-" +
+                    mode.name().toLowerCase());
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    /**
+     * Stops running the handler. Waits for a polling thread to finish.
+     */
+    public void stop() {
+        running = false;
+        Thread i = interruptThread;
+        if (i != null && THREADS.isThreadCpuTimeSupported()) {
+            long now = THREADS.getThreadCpuTime(i.getId());
+            if (now >= 0) cpuTime = cpuBefore + now - cpuStart;
+        }
+        Thread t = poller;
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        poller = null;
+    }
+
+    /**
+     * Stops running the handler.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Returns the exception that stopped a polling thread: thrown by the
+     * handler or the data ready check. Cleared at start.
+     * @return the exception; null if none
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Indicates if a handler is running: started, and not stopped by a
+     * failure.
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of samples handled since start.
+     * @return number of samples
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Returns the average number of status polls per sample; 0 for
+     * interrupts.
+     * @return polls per sample
+     */
+    public float getPollsPerSample() {
+        return (samples == 0) ? 0 : (float) polls / samples;
+    }
+
+    /**
+     * Returns the mean time from the data ready timestamp to the
+     * completion of the handler.
+     * @return the mean latency in nanoseconds
+     */
+    public long getLatencyMean() {
+        return (samples == 0) ? 0 : latencySum / samples;
+    }
+
+    /**
+     * Returns the maximum time from the data ready timestamp to the
+     * completion of the handler.
+     * @return the maximum latency in nanoseconds
+     */
+    public long getLatencyMax() {
+        return latencyMax;
+    }
+
+    /**
+     * Returns the number of times, in hybrid mode, that the sample was
+     * already ready on waking, so the timestamp is an estimate.
+     * @return number of oversleeps
+     */
+    public long getOversleepCount() {
+        return oversleeps;
+    }
+
+    /**
+     * Returns the current hybrid mode margin: how long before the next
+     * sample is due polling starts.
+     * @return the margin in nanoseconds
+     */
+    public long getMargin() {
+        return margin;
+    }
+
+    /**
+     * Returns the CPU time used by the thread running the handler since
+     * start (for interrupts, since the first interrupt; the interrupt thread
+     * may also serve other GPIO inputs). Updated periodically while running,
+     * and at stop.
+     * @return the CPU time in nanoseconds
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Interrupt mode: runs the handler for a GPIO interrupt.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     */
+    private void interrupt(long timestamp) {
+        if (!running) return;
+        boolean cpuTimed = THREADS.isCurrentThreadCpuTimeSupported();
+        Thread t = Thread.currentThread();
+        if (cpuTimed && t != interruptThread) {
+            // the first interrupt, or a new interrupt thread
+            Thread last = interruptThread;
+            long lastCpu = (last == null) ? -1 :
+                    THREADS.getThreadCpuTime(last.getId());
+            if (lastCpu >= 0) cpuBefore += lastCpu - cpuStart;
+            cpuStart = THREADS.getCurrentThreadCpuTime();
+            interruptThread = t;
+        }
+        dispatch(timestamp);
+        if (cpuTimed && samples % CPU_SAMPLE_INTERVAL == 0)
+            cpuTime = cpuBefore + THREADS.getCurrentThreadCpuTime() - cpuStart;
+    }
+
+    /**
+     * Polling modes: the body of the polling thread.
+     */
+    private void poll() {
+        boolean cpuTimed = THREADS.isCurrentThreadCpuTimeSupported();
+        long cpuStart = cpuTimed ? THREADS.getCurrentThreadCpuTime() : 0;
+        try {
+            pollLoop(cpuTimed, cpuStart);
+        } catch (RuntimeException ex) {
+            failure = ex;
+            running = false;
+        }
+        if (cpuTimed) cpuTime = THREADS.getCurrentThreadCpuTime() - cpuStart;
+    }
+
+    private void pollLoop(boolean cpuTimed, long cpuStart) {
+        long last = 0;
+        while (running) {
+            // the ODR can change while running
+            long period = (mode == Mode.HYBRID) ? (long) (1e9 / odr) : 0;
+            boolean woke = false;
+            if (mode == Mode.HYBRID && last != 0) {
+                // sleep until the margin before the next sample is due
+                long wake = last + period - margin;
+                long now;
+                while (running && (now = System.nanoTime()) < wake) {
+                    LockSupport.parkNanos(wake - now);
+                }
+                woke = true;
+            }
+
+            // poll until ready
+            long before = System.nanoTime();
+            long notReady = 0;
+            boolean found;
+            while (!(found = ready.getAsBoolean()) && running) {
+                polls++;
+                notReady = before;
+                Thread.onSpinWait();
+                before = System.nanoTime();
+            }
+            if (!found) break;
+            polls++;
+
+            long timestamp;
+            if (notReady != 0) {
+                timestamp = (notReady + before) / 2;
+                // not ready on waking, so wake a little later next time
+                if (woke) margin = Math.max(MIN_MARGIN, margin - margin / 8);
+            } else if (woke) {
+                // already ready, so the sample time is unknown; assume it
+                // was when due, and wake earlier next time
+                timestamp = Math.min(before, last + period);
+                oversleeps++;
+                margin = Math.min(Math.min(period / 2, MAX_MARGIN),
+                        margin + margin / 2);
+            } else {
+                timestamp = before;
+            }
+            last = timestamp;
+            dispatch(timestamp);
+
+            if (cpuTimed && samples % CPU_SAMPLE_INTERVAL == 0)
+                cpuTime = THREADS.getCurrentThreadCpuTime() - cpuStart;
+        }
+    }
+
+    /**
+     * Runs the handler and records the latency.
+     * @param timestamp the data ready timestamp in nanoseconds
+     */
+    private void dispatch(long timestamp) {
+        if (gapStart != 0) {
+            lastGap = timestamp - gapStart;
+            gapStart = 0;
+        }
+        lastTimestamp = timestamp;
+        handler.accept(timestamp);
+        long latency = System.nanoTime() - timestamp;
+        samples++;
+        latencySum += latency;
+        if (latency > latencyMax) latencyMax = latency;
+    }
+}
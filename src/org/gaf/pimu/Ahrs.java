@@ -0,0 +1,520 @@
+package org.gaf.pimu;
+
+/**
+ * An attitude and heading reference system (AHRS) that fuses 3-axis
+ * gyroscope, accelerometer and magnetometer data into an orientation,
+ * using either the Madgwick gradient descent filter or the Mahony
+ * complementary filter.
+ * <p>
+ * The orientation is a quaternion that rotates the sensor (body) frame into
+ * the earth frame (Z up); roll, pitch and yaw (Z-Y-X order) are derived
+ * from it on demand. An update is intended to be called for every gyroscope
+ * sample, with the latest accelerometer and magnetometer samples. All
+ * arithmetic is float, an update has a fixed cost, and nothing is allocated.
+ * </p>
+ * <p>
+ * Gyroscope rates are in radians per second. The accelerometer and
+ * magnetometer can be in any units, since only their directions are used.
+ * An instance must be used by only one thread.
+ * </p>
+ */
+public class Ahrs {
+
+    /**
+     * The fusion algorithm.
+     */
+    public enum Algorithm {
+        MADGWICK,
+        MAHONY
+    }
+
+    /**
+     * The default Madgwick gain.
+     */
+    public static final float DEFAULT_BETA = 0.1f;
+    /**
+     * The default Mahony proportional gain.
+     */
+    public static final float DEFAULT_KP = 1.0f;
+    /**
+     * The default Mahony integral gain.
+     */
+    public static final float DEFAULT_KI = 0.0f;
+
+    private static final float RAD_TO_DEG = (float) (180 / Math.PI);
+
+    private final Algorithm algorithm;
+
+    private float beta = DEFAULT_BETA;
+    private float twoKp = 2 * DEFAULT_KP;
+    private float twoKi = 2 * DEFAULT_KI;
+
+    // the orientation quaternion
+    private float q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+    // Mahony integral feedback
+    private float iFbX = 0, iFbY = 0, iFbZ = 0;
+
+    /**
+     * Creates an AHRS with the orientation at the identity.
+     * @param algorithm the fusion algorithm
+     */
+    public Ahrs(Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns the fusion algorithm.
+     * @return the algorithm
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Sets the Madgwick gain; larger converges faster but is noisier.
+     * @param beta the gain
+     */
+    public void setBeta(float beta) {
+        this.beta = beta;
+    }
+
+    /**
+     * Sets the Mahony gains.
+     * @param kp the proportional gain
+     * @param ki the integral gain; 0 disables gyroscope bias correction
+     */
+    public void setGains(float kp, float ki) {
+        this.twoKp = 2 * kp;
+        this.twoKi = 2 * ki;
+    }
+
+    /**
+     * Resets the orientation to the identity.
+     */
+    public void reset() {
+        q0 = 1;
+        q1 = 0;
+        q2 = 0;
+        q3 = 0;
+        iFbX = 0;
+        iFbY = 0;
+        iFbZ = 0;
+    }
+
+    /**
+     * Sets the orientation directly from an accelerometer and magnetometer
+     * sample taken at rest, so the filter need not converge from the 
+     * identity. The gyroscope bias estimate (Mahony) is reset.
+     * @param ax accelerometer X
+     * @param ay accelerometer Y
+     * @param az accelerometer Z
+     * @param mx magnetometer X
+     * @param my magnetometer Y
+     * @param mz magnetometer Z
+     */
+    public void align(float ax, float ay, float az, float mx, float my,
+            float mz) {
+        double roll = Math.atan2(ay, az);
+        double pitch = Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+        // tilt compensated heading
+        double cr = Math.cos(roll);
+        double sr = Math.sin(roll);
+        double cp = Math.cos(pitch);
+        double sp = Math.sin(pitch);
+        double hx = mx * cp + (my * sr + mz * cr) * sp;
+        double hy = my * cr - mz * sr;
+        double yaw = Math.atan2(-hy, hx);
+
+        cr = Math.cos(roll / 2);
+        sr = Math.sin(roll / 2);
+        cp = Math.cos(pitch / 2);
+        sp = Math.sin(pitch / 2);
+        double cy = Math.cos(yaw / 2);
+        double sy = Math.sin(yaw / 2);
+        q0 = (float) (cr * cp * cy + sr * sp * sy);
+        q1 = (float) (sr * cp * cy - cr * sp * sy);
+        q2 = (float) (cr * sp * cy + sr * cp * sy);
+        q3 = (float) (cr * cp * sy - sr * sp * cy);
+        iFbX = 0;
+        iFbY = 0;
+        iFbZ = 0;
+    }
+
+    /**
+     * Updates the orientation from all three sensors.
+     * @param gx gyroscope X rate in radians/s
+     * @param gy gyroscope Y rate in radians/s
+     * @param gz gyroscope Z rate in radians/s
+     * @param ax accelerometer X
+     * @param ay accelerometer Y
+     * @param az accelerometer Z
+     * @param mx magnetometer X
+     * @param my magnetometer Y
+     * @param mz magnetometer Z
+     * @param dt the time since the last update in seconds
+     */
+    public void update(float gx, float gy, float gz, float ax, float ay,
+            float az, float mx, float my, float mz, float dt) {
+        // without a magnetometer sample, heading is unobservable
+        if (mx == 0 && my == 0 && mz == 0) {
+            update(gx, gy, gz, ax, ay, az, dt);
+        } else if (algorithm == Algorithm.MADGWICK) {
+            madgwick(gx, gy, gz, ax, ay, az, mx, my, mz, dt);
+        } else {
+            mahony(gx, gy, gz, ax, ay, az, mx, my, mz, dt);
+        }
+    }
+
+    /**
+     * Updates the orientation from the gyroscope and accelerometer only.
+     * Yaw is then driven by the gyroscope alone.
+     * @param gx gyroscope X rate in radians/s
+     * @param gy gyroscope Y rate in radians/s
+     * @param gz gyroscope Z rate in radians/s
+     * @param ax accelerometer X
+     * @param ay accelerometer Y
+     * @param az accelerometer Z
+     * @param dt the time since the last update in seconds
+     */
+    public void update(float gx, float gy, float gz, float ax, float ay,
+            float az, float dt) {
+        if (algorithm == Algorithm.MADGWICK) {
+            madgwickImu(gx, gy, gz, ax, ay, az, dt);
+        } else {
+            mahonyImu(gx, gy, gz, ax, ay, az, dt);
+        }
+    }
+
+    /**
+     * Copies the orientation quaternion.
+     * @param q array of at least 4 to receive w, x, y, z
+     */
+    public void getQuaternion(float[] q) {
+        q[0] = q0;
+        q[1] = q1;
+        q[2] = q2;
+        q[3] = q3;
+    }
+
+    /**
+     * Returns the roll (rotation about X).
+     * @return roll in degrees
+     */
+    public float getRoll() {
+        return RAD_TO_DEG * (float) Math.atan2(q0 * q1 + q2 * q3,
+                0.5f - q1 * q1 - q2 * q2);
+    }
+
+    /**
+     * Returns the pitch (rotation about Y).
+     * @return pitch in degrees
+     */
+    public float getPitch() {
+        float sinp = 2 * (q0 * q2 - q1 * q3);
+        if (sinp > 1) sinp = 1;
+        else if (sinp < -1) sinp = -1;
+        return RAD_TO_DEG * (float) Math.asin(sinp);
+    }
+
+    /**
+     * Returns the yaw (rotation about Z), counter-clockwise positive.
+     * @return yaw in degrees
+     */
+    public float getYaw() {
+        return RAD_TO_DEG * (float) Math.atan2(q0 * q3 + q1 * q2,
+                0.5f - q2 * q2 - q3 * q3);
+    }
+
+    /**
+     * Copies the Euler angles.
+     * @param rpy array of at least 3 to receive roll, pitch, yaw in degrees
+     */
+    public void getEuler(float[] rpy) {
+        rpy[0] = getRoll();
+        rpy[1] = getPitch();
+        rpy[2] = getYaw();
+    }
+
+    /**
+     * Madgwick update with magnetometer.
+     */
+    private void madgwick(float gx, float gy, float gz, float ax, float ay,
+            float az, float mx, float my, float mz, float dt) {
+        // rate of change of quaternion from gyroscope
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+            recipNorm = invSqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            float _2q0mx = 2 * q0 * mx;
+            float _2q0my = 2 * q0 * my;
+            float _2q0mz = 2 * q0 * mz;
+            float _2q1mx = 2 * q1 * mx;
+            float _2q0 = 2 * q0;
+            float _2q1 = 2 * q1;
+            float _2q2 = 2 * q2;
+            float _2q3 = 2 * q3;
+            float _2q0q2 = 2 * q0 * q2;
+            float _2q2q3 = 2 * q2 * q3;
+            float q0q0 = q0 * q0;
+            float q0q1 = q0 * q1;
+            float q0q2 = q0 * q2;
+            float q0q3 = q0 * q3;
+            float q1q1 = q1 * q1;
+            float q1q2 = q1 * q2;
+            float q1q3 = q1 * q3;
+            float q2q2 = q2 * q2;
+            float q2q3 = q2 * q3;
+            float q3q3 = q3 * q3;
+
+            // reference direction of earth's magnetic field
+            float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1
+                    + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+            float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2
+                    - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+            float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+            float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3
+                    - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+            float _4bx = 2 * _2bx;
+            float _4bz = 2 * _2bz;
+
+            // gradient descent corrective step
+            float fax = 2 * q1q3 - _2q0q2 - ax;
+            float fay = 2 * q0q1 + _2q2q3 - ay;
+            float faz = 1 - 2 * q1q1 - 2 * q2q2 - az;
+            float fmx = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+            float fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+            float fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+            float s0 = -_2q2 * fax + _2q1 * fay - _2bz * q2 * fmx
+                    + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+            float s1 = _2q3 * fax + _2q0 * fay - 4 * q1 * faz
+                    + _2bz * q3 * fmx + (_2bx * q2 + _2bz * q0) * fmy
+                    + (_2bx * q3 - _4bz * q1) * fmz;
+            float s2 = -_2q0 * fax + _2q3 * fay - 4 * q2 * faz
+                    + (-_4bx * q2 - _2bz * q0) * fmx
+                    + (_2bx * q1 + _2bz * q3) * fmy
+                    + (_2bx * q0 - _4bz * q2) * fmz;
+            float s3 = _2q1 * fax + _2q2 * fay
+                    + (-_4bx * q3 + _2bz * q1) * fmx
+                    + (-_2bx * q0 + _2bz * q2) * fmy + _2bx * q1 * fmz;
+            // a zero gradient (already aligned) has no direction to step in
+            float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (norm > 0) {
+                recipNorm = invSqrt(norm);
+                qDot0 -= beta * s0 * recipNorm;
+                qDot1 -= beta * s1 * recipNorm;
+                qDot2 -= beta * s2 * recipNorm;
+                qDot3 -= beta * s3 * recipNorm;
+            }
+        }
+
+        integrate(qDot0, qDot1, qDot2, qDot3, dt);
+    }
+
+    /**
+     * Madgwick update without magnetometer.
+     */
+    private void madgwickImu(float gx, float gy, float gz, float ax,
+            float ay, float az, float dt) {
+        // rate of change of quaternion from gyroscope
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            float _2q0 = 2 * q0;
+            float _2q1 = 2 * q1;
+            float _2q2 = 2 * q2;
+            float _2q3 = 2 * q3;
+            float _4q0 = 4 * q0;
+            float _4q1 = 4 * q1;
+            float _4q2 = 4 * q2;
+            float _8q1 = 8 * q1;
+            float _8q2 = 8 * q2;
+            float q0q0 = q0 * q0;
+            float q1q1 = q1 * q1;
+            float q2q2 = q2 * q2;
+            float q3q3 = q3 * q3;
+
+            // gradient descent corrective step
+            float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            float s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay
+                    - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+            float s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay
+                    - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+            float s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+            float norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (norm > 0) {
+                recipNorm = invSqrt(norm);
+                qDot0 -= beta * s0 * recipNorm;
+                qDot1 -= beta * s1 * recipNorm;
+                qDot2 -= beta * s2 * recipNorm;
+                qDot3 -= beta * s3 * recipNorm;
+            }
+        }
+
+        integrate(qDot0, qDot1, qDot2, qDot3, dt);
+    }
+
+    /**
+     * Mahony update with magnetometer.
+     */
+    private void mahony(float gx, float gy, float gz, float ax, float ay,
+            float az, float mx, float my, float mz, float dt) {
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+            recipNorm = invSqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            float q0q0 = q0 * q0;
+            float q0q1 = q0 * q1;
+            float q0q2 = q0 * q2;
+            float q0q3 = q0 * q3;
+            float q1q1 = q1 * q1;
+            float q1q2 = q1 * q2;
+            float q1q3 = q1 * q3;
+            float q2q2 = q2 * q2;
+            float q2q3 = q2 * q3;
+            float q3q3 = q3 * q3;
+
+            // reference direction of earth's magnetic field
+            float hx = 2 * (mx * (0.5f - q2q2 - q3q3) + my * (q1q2 - q0q3)
+                    + mz * (q1q3 + q0q2));
+            float hy = 2 * (mx * (q1q2 + q0q3) + my * (0.5f - q1q1 - q3q3)
+                    + mz * (q2q3 - q0q1));
+            float bx = (float) Math.sqrt(hx * hx + hy * hy);
+            float bz = 2 * (mx * (q1q3 - q0q2) + my * (q2q3 + q0q1)
+                    + mz * (0.5f - q1q1 - q2q2));
+
+            // estimated directions of gravity and magnetic field
+            float halfvx = q1q3 - q0q2;
+            float halfvy = q0q1 + q2q3;
+            float halfvz = q0q0 - 0.5f + q3q3;
+            float halfwx = bx * (0.5f - q2q2 - q3q3) + bz * (q1q3 - q0q2);
+            float halfwy = bx * (q1q2 - q0q3) + bz * (q0q1 + q2q3);
+            float halfwz = bx * (q0q2 + q1q3) + bz * (0.5f - q1q1 - q2q2);
+
+            // error is the cross product of estimated and measured directions
+            float halfex = (ay * halfvz - az * halfvy)
+                    + (my * halfwz - mz * halfwy);
+            float halfey = (az * halfvx - ax * halfvz)
+                    + (mz * halfwx - mx * halfwz);
+            float halfez = (ax * halfvy - ay * halfvx)
+                    + (mx * halfwy - my * halfwx);
+
+            feedback(halfex, halfey, halfez, dt);
+            gx += twoKp * halfex + iFbX;
+            gy += twoKp * halfey + iFbY;
+            gz += twoKp * halfez + iFbZ;
+        }
+
+        rotate(gx, gy, gz, dt);
+    }
+
+    /**
+     * Mahony update without magnetometer.
+     */
+    private void mahonyImu(float gx, float gy, float gz, float ax, float ay,
+            float az, float dt) {
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            // estimated direction of gravity
+            float halfvx = q1 * q3 - q0 * q2;
+            float halfvy = q0 * q1 + q2 * q3;
+            float halfvz = q0 * q0 - 0.5f + q3 * q3;
+
+            // error is the cross product of estimated and measured directions
+            float halfex = ay * halfvz - az * halfvy;
+            float halfey = az * halfvx - ax * halfvz;
+            float halfez = ax * halfvy - ay * halfvx;
+
+            feedback(halfex, halfey, halfez, dt);
+            gx += twoKp * halfex + iFbX;
+            gy += twoKp * halfey + iFbY;
+            gz += twoKp * halfez + iFbZ;
+        }
+
+        rotate(gx, gy, gz, dt);
+    }
+
+    /**
+     * Accumulates the Mahony integral feedback.
+     */
+    private void feedback(float halfex, float halfey, float halfez, float dt) {
+        if (twoKi > 0) {
+            iFbX += twoKi * halfex * dt;
+            iFbY += twoKi * halfey * dt;
+            iFbZ += twoKi * halfez * dt;
+        } else {
+            iFbX = 0;
+            iFbY = 0;
+            iFbZ = 0;
+        }
+    }
+
+    /**
+     * Integrates the quaternion by corrected body rates.
+     */
+    private void rotate(float gx, float gy, float gz, float dt) {
+        gx *= 0.5f * dt;
+        gy *= 0.5f * dt;
+        gz *= 0.5f * dt;
+        float qa = q0;
+        float qb = q1;
+        float qc = q2;
+        q0 += -qb * gx - qc * gy - q3 * gz;
+        q1 += qa * gx + qc * gz - q3 * gy;
+        q2 += qa * gy - qb * gz + q3 * gx;
+        q3 += qa * gz + qb * gy - qc * gx;
+        normalize();
+    }
+
+    /**
+     * Integrates the quaternion by its rate of change.
+     */
+    private void integrate(float qDot0, float qDot1, float qDot2, float qDot3,
+            float dt) {
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+        normalize();
+    }
+
+    private void normalize() {
+        float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= recipNorm;
+        q1 *= recipNorm;
+        q2 *= recipNorm;
+        q3 *= recipNorm;
+    }
+
+    private static float invSqrt(float x) {
+        return (float) (1 / Math.sqrt(x));
+    }
+}
@@ -0,0 +1,231 @@
+package org.gaf.pimu;
+
+/**
+ * Computes the Allan variance of one stream of samples (for example one
+ * gyroscope axis) in a single pass, for octave-spaced cluster times
+ * tau = 2^k sample periods.
+ * <p>
+ * For each octave k there is an accumulator holding the sum of the current
+ * cluster, the average of the previous cluster and the sum of the squared
+ * differences of successive cluster averages. A completed cluster of octave
+ * k is passed up to octave k+1 to pair with the next one, like the carry of
+ * a binary counter, so each sample costs two accumulator updates on
+ * average. Samples are discarded once added: memory is one accumulator per
+ * octave, that is, logarithmic in the length of the recording (MAX_LEVELS
+ * covers any practical length). The clusters do not overlap, so the
+ * relative error of a deviation is about 1 / sqrt(2 (K - 1)) for K
+ * clusters; estimates from the longer cluster times use only octaves with
+ * at least MIN_CLUSTERS clusters.
+ * </p>
+ * <p>
+ * Values can be in any unit (raw counts, or degrees/s); the deviations,
+ * angle random walk and bias instability are in the same unit. Not thread
+ * safe; use one instance per stream (see {@link NoiseAnalyzer}).
+ * </p>
+ */
+public class AllanVariance {
+
+    /**
+     * The number of octaves accumulated.
+     */
+    public static final int MAX_LEVELS = 48;
+    /**
+     * The minimum number of clusters in an octave used for the angle random
+     * walk and bias instability.
+     */
+    public static final int MIN_CLUSTERS = 16;
+
+    // the Allan deviation of flicker noise is sqrt(2 ln 2 / pi) times the
+    // bias instability
+    private static final double FLICKER_FACTOR =
+            Math.sqrt(2 * Math.log(2) / Math.PI);
+
+    private final double period;
+
+    // per octave: the sum of the pending cluster (waiting for its pair),
+    // the previous cluster average, the cluster count, and the sum of the
+    // squared differences of successive averages
+    private final double[] pending = new double[MAX_LEVELS];
+    private final double[] previous = new double[MAX_LEVELS];
+    private final long[] clusters = new long[MAX_LEVELS];
+    private final double[] sumSquares = new double[MAX_LEVELS];
+    private long samples = 0;
+
+    /**
+     * Creates an Allan variance accumulator.
+     * @param period the sample period in seconds
+     */
+    public AllanVariance(double period) {
+        this.period = period;
+    }
+
+    /**
+     * Adds a sample.
+     * @param value the value
+     */
+    public void add(double value) {
+        samples++;
+        double sum = value;
+        double size = 1;
+        for (int k = 0; k < MAX_LEVELS; k++) {
+            double average = sum / size;
+            long n = clusters[k]++;
+            if (n > 0) {
+                double d = average - previous[k];
+                sumSquares[k] += d * d;
+            }
+            previous[k] = average;
+            // the first of a pair waits; the second completes a cluster of
+            // the next octave
+            if ((n & 1) == 0) {
+                pending[k] = sum;
+                return;
+            }
+            sum += pending[k];
+            size *= 2;
+        }
+    }
+
+    /**
+     * Adds a block of samples.
+     * @param values the values
+     * @param offset the index of the first value
+     * @param length the number of values
+     */
+    public void add(double[] values, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i]);
+        }
+    }
+
+    /**
+     * Clears all accumulators.
+     */
+    public void reset() {
+        for (int k = 0; k < MAX_LEVELS; k++) {
+            pending[k] = 0;
+            previous[k] = 0;
+            clusters[k] = 0;
+            sumSquares[k] = 0;
+        }
+        samples = 0;
+    }
+
+    /**
+     * Returns the number of samples added.
+     * @return number of samples
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Returns the number of octaves with a variance, that is, with at least
+     * two clusters.
+     * @return number of octaves
+     */
+    public int getLevels() {
+        int k = 0;
+        while (k < MAX_LEVELS && clusters[k] >= 2) k++;
+        return k;
+    }
+
+    /**
+     * Returns the cluster time of an octave.
+     * @param level the octave
+     * @return the cluster time in seconds
+     */
+    public double getTau(int level) {
+        return period * Math.scalb(1.0, level);
+    }
+
+    /**
+     * Returns the number of clusters of an octave.
+     * @param level the octave
+     * @return number of clusters
+     */
+    public long getClusterCount(int level) {
+        return clusters[level];
+    }
+
+    /**
+     * Returns the Allan variance of an octave.
+     * @param level the octave
+     * @return the variance; NaN if fewer than two clusters
+     */
+    public double getVariance(int level) {
+        long n = clusters[level];
+        if (n < 2) return Double.NaN;
+        return sumSquares[level] / (2 * (n - 1));
+    }
+
+    /**
+     * Returns the Allan deviation of an octave.
+     * @param level the octave
+     * @return the deviation; NaN if fewer than two clusters
+     */
+    public double getDeviation(int level) {
+        return Math.sqrt(getVariance(level));
+    }
+
+    /**
+     * Returns the angle random walk: the deviation at a cluster time of 1 s
+     * of the line of slope -1/2 (white noise) fitted where the deviation
+     * curve is closest to that slope.
+     * @return the angle random walk in units * sqrt(s) (for degrees/s,
+     * multiply by 60 for degrees/sqrt(h)); NaN if too few samples
+     */
+    public double getAngleRandomWalk() {
+        int levels = usableLevels();
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int k = 0; k + 1 < levels; k++) {
+            double slope = Math.log(getDeviation(k + 1) / getDeviation(k)) /
+                    Math.log(2);
+            double distance = Math.abs(slope + 0.5);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = k;
+            }
+        }
+        if (best < 0) return Double.NaN;
+        // through the midpoint of the segment, in log space
+        double deviation = Math.sqrt(getDeviation(best) *
+                getDeviation(best + 1));
+        double tau = getTau(best) * Math.sqrt(2);
+        return deviation * Math.sqrt(tau);
+    }
+
+    /**
+     * Returns the bias instability: the minimum deviation (the flicker
+     * floor) divided by sqrt(2 ln 2 / pi).
+     * @return the bias instability in units (for degrees/s, multiply by
+     * 3600 for degrees/h); NaN if too few samples
+     */
+    public double getBiasInstability() {
+        int k = getMinimumLevel();
+        return (k < 0) ? Double.NaN : getDeviation(k) / FLICKER_FACTOR;
+    }
+
+    /**
+     * Returns the octave with the minimum deviation.
+     * @return the octave; -1 if too few samples
+     */
+    public int getMinimumLevel() {
+        int levels = usableLevels();
+        int best = -1;
+        for (int k = 0; k < levels; k++) {
+            if (best < 0 || getDeviation(k) < getDeviation(best)) best = k;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of octaves with enough clusters for estimates.
+     */
+    private int usableLevels() {
+        int k = 0;
+        while (k < MAX_LEVELS && clusters[k] >= MIN_CLUSTERS) k++;
+        return k;
+    }
+}
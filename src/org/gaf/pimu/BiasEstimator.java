@@ -0,0 +1,99 @@
+package org.gaf.pimu;
+
+/**
+ * Refines a gyroscope bias (zero offset) in the background while the
+ * device is stationary. Samples are gathered in windows; a window is taken
+ * as stationary if the standard deviation of every axis is below a
+ * threshold and the mean of every axis is near the current bias. The bias
+ * then moves a fraction of the way toward the window mean.
+ * <p>
+ * The check on the mean keeps a slow constant rotation (which also has low
+ * variance) from being absorbed into the bias. Intended to be called from
+ * an interrupt handler; allocates nothing.
+ * </p>
+ */
+public class BiasEstimator {
+
+    private final int window;
+    private final float threshold;
+    private final float maxStep;
+    private final float gain;
+
+    private final long[] sum = new long[3];
+    private final long[] sumSq = new long[3];
+    private int count = 0;
+
+    private boolean stationary = false;
+    private long updates = 0;
+
+    /**
+     * Creates an estimator.
+     * @param window the number of samples in a window
+     * @param threshold the maximum standard deviation, in counts, of a
+     * stationary window
+     * @param maxStep the maximum difference, in counts, between a window
+     * mean and the bias for the mean to be used
+     * @param gain the fraction of the difference applied per window (0-1)
+     */
+    public BiasEstimator(int window, float threshold, float maxStep,
+            float gain) {
+        if (window < 2) throw new IllegalArgumentException("Window must be >= 2");
+        this.window = window;
+        this.threshold = threshold;
+        this.maxStep = maxStep;
+        this.gain = gain;
+    }
+
+    /**
+     * Adds a sample; at the end of a stationary window, refines the bias.
+     * @param xyz the raw X, Y, Z sample
+     * @param bias the X, Y, Z bias, refined in place
+     * @return true if the bias was refined
+     */
+    public boolean update(int[] xyz, float[] bias) {
+        for (int a = 0; a < 3; a++) {
+            sum[a] += xyz[a];
+            sumSq[a] += (long) xyz[a] * xyz[a];
+        }
+        if (++count < window) return false;
+
+        boolean still = true;
+        double limit = threshold * threshold;
+        for (int a = 0; a < 3 && still; a++) {
+            double mean = (double) sum[a] / count;
+            double variance = (double) sumSq[a] / count - mean * mean;
+            still = variance <= limit && Math.abs(mean - bias[a]) <= maxStep;
+        }
+        if (still) {
+            for (int a = 0; a < 3; a++) {
+                float mean = (float) sum[a] / count;
+                bias[a] += gain * (mean - bias[a]);
+            }
+            updates++;
+        }
+        stationary = still;
+
+        for (int a = 0; a < 3; a++) {
+            sum[a] = 0;
+            sumSq[a] = 0;
+        }
+        count = 0;
+        return still;
+    }
+
+    /**
+     * Indicates if the last complete window was stationary.
+     * @return true if stationary
+     */
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    /**
+     * Returns the number of times the bias was refined.
+     * @return number of refinements
+     */
+    public long getUpdateCount() {
+        return updates;
+    }
+}
@@ -0,0 +1,197 @@
+package org.gaf.pimu;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A small file of persisted IMU calibration profiles, so a device can
+ * start delivering calibrated data at its first interrupt rather than after
+ * a blocking calibration.
+ * <p>
+ * Gyroscope bias is keyed by device and temperature band, since the bias
+ * drifts with temperature. Magnetometer hard iron offsets and the soft iron
+ * matrix are keyed by device only. The file is a properties file; it is
+ * read when the cache is created and written atomically by {@link #save()}.
+ * </p>
+ */
+public class CalibrationCache {
+
+    /**
+     * The default width of a temperature band in degrees C.
+     */
+    public static final int DEFAULT_BAND_WIDTH = 5;
+    /**
+     * The default maximum number of bands away a gyroscope bias can be
+     * borrowed from, if the exact band has no profile.
+     */
+    public static final int DEFAULT_BAND_REACH = 2;
+
+    private final Path file;
+    private final Properties profiles = new Properties();
+    private final int bandWidth;
+    private int bandReach = DEFAULT_BAND_REACH;
+    private boolean dirty = false;
+
+    /**
+     * Creates a cache backed by a file, with the default temperature band
+     * width. Reads the file if it exists.
+     * @param file the file path
+     * @throws IOException if the file exists but cannot be read
+     */
+    public CalibrationCache(String file) throws IOException {
+        this(file, DEFAULT_BAND_WIDTH);
+    }
+
+    /**
+     * Creates a cache backed by a file. Reads the file if it exists.
+     * @param file the file path
+     * @param bandWidth the width of a temperature band in degrees C
+     * @throws IOException if the file exists but cannot be read
+     */
+    public CalibrationCache(String file, int bandWidth) throws IOException {
+        if (bandWidth < 1)
+            throw new IllegalArgumentException("Band width must be >= 1");
+        this.file = Paths.get(file);
+        this.bandWidth = bandWidth;
+        if (Files.exists(this.file)) {
+            try (Reader reader = Files.newBufferedReader(this.file,
+                    StandardCharsets.ISO_8859_1)) {
+                profiles.load(reader);
+            }
+        }
+    }
+
+    /**
+     * Sets how many temperature bands away a gyroscope bias can be borrowed
+     * from when the exact band has no profile; 0 means exact band only.
+     * @param bandReach the number of bands
+     */
+    public void setBandReach(int bandReach) {
+        this.bandReach = bandReach;
+    }
+
+    /**
+     * Returns the temperature band for a temperature.
+     * @param temperature the temperature in degrees C
+     * @return the band
+     */
+    public int band(int temperature) {
+        return Math.floorDiv(temperature, bandWidth);
+    }
+
+    /**
+     * Gets the gyroscope bias for a device at a temperature. The profile for
+     * the temperature band is preferred; failing that, the nearest band
+     * within the reach.
+     * @param device the device key
+     * @param temperature the temperature in degrees C
+     * @param bias array of at least 3 to receive the X, Y, Z bias in counts
+     * @return true if a profile was found
+     */
+    public synchronized boolean getGyroBias(String device, int temperature,
+            float[] bias) {
+        int band = band(temperature);
+        for (int d = 0; d <= bandReach; d++) {
+            if (getFloats(gyroKey(device, band - d), bias, 3)) return true;
+            if (d > 0 && getFloats(gyroKey(device, band + d), bias, 3))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts the gyroscope bias for a device at a temperature. Call
+     * {@link #save()} to persist it.
+     * @param device the device key
+     * @param temperature the temperature in degrees C
+     * @param bias the X, Y, Z bias in counts
+     */
+    public synchronized void putGyroBias(String device, int temperature,
+            float[] bias) {
+        putFloats(gyroKey(device, band(temperature)), bias, 3);
+    }
+
+    /**
+     * Gets the magnetometer calibration for a device. A calibrated value is
+     * softIron * (raw - hardIron).
+     * @param device the device key
+     * @param hardIron array of at least 3 to receive the offsets in counts
+     * @param softIron array of at least 9 to receive the 3x3 matrix, row
+     * major
+     * @return true if a profile was found
+     */
+    public synchronized boolean getMagCalibration(String device,
+            float[] hardIron, float[] softIron) {
+        return getFloats(device + ".mag.hard", hardIron, 3) &&
+                getFloats(device + ".mag.soft", softIron, 9);
+    }
+
+    /**
+     * Puts the magnetometer calibration for a device. Call
+     * {@link #save()} to persist it.
+     * @param device the device key
+     * @param hardIron the offsets in counts
+     * @param softIron the 3x3 matrix, row major
+     */
+    public synchronized void putMagCalibration(String device,
+            float[] hardIron, float[] softIron) {
+        putFloats(device + ".mag.hard", hardIron, 3);
+        putFloats(device + ".mag.soft", softIron, 9);
+    }
+
+    /**
+     * Writes the profiles to the file, if changed since last read or
+     * written. The file is replaced atomically, so a crash cannot leave
+     * it partially written.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        Path temp = Paths.get(file.toString() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp,
+                StandardCharsets.ISO_8859_1)) {
+            profiles.store(writer, "PIMU calibration profiles");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private static String gyroKey(String device, int band) {
+        return device + ".gyro.band" + band;
+    }
+
+    private boolean getFloats(String key, float[] values, int number) {
+        String value = profiles.getProperty(key);
+        if (value == null) return false;
+        String[] fields = value.split(",");
+        if (fields.length != number) return false;
+        try {
+            for (int i = 0; i < number; i++) {
+                values[i] = Float.parseFloat(fields[i].trim());
+            }
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    private void putFloats(String key, float[] values, int number) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < number; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        profiles.setProperty(key, sb.toString());
+        dirty = true;
+    }
+}
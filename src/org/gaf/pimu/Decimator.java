@@ -0,0 +1,374 @@
+package org.gaf.pimu;
+
+/**
+ * Fans one high rate stream of sample records out to several subscribers,
+ * each receiving the stream filtered and decimated to its own rate; for
+ * example the gyroscope at 800 Hz for fusion, 50 Hz for logging and 10 Hz
+ * for a display.
+ * <p>
+ * Each subscriber has a decimation factor M and a filter:
+ * </p>
+ * <ul>
+ * <li>CIC: a cascaded integrator-comb filter of CIC_STAGES stages. Per
+ * input sample it costs only a few additions per channel; the combs run at
+ * the output rate. There is some droop in the passband.</li>
+ * <li>FIR: a linear phase windowed-sinc low pass filter, cut off at 0.4 of
+ * the output rate. The input history is shared by all subscribers, and only
+ * the outputs that are kept are computed (as in a polyphase decimator), so
+ * the cost is the number of taps per output sample.</li>
+ * <li>NONE: every Mth sample, without filtering (factor 1 passes the stream
+ * through).</li>
+ * </ul>
+ * <p>
+ * The channels to filter are given as field indices of the source records;
+ * they must hold integer values (raw counts). In an output record the
+ * channels hold the filtered values, the timestamp field (if any) holds the
+ * timestamp of the input sample at the center of the filter (so the group
+ * delay is accounted for), the time delta field (if any) holds the time
+ * since the previous output, and other fields are copied from the latest
+ * input. If the source has only time deltas, timestamps are reconstructed
+ * by summing them. Output rings must be as wide as the source ring. There
+ * is no output until a filter has filled with samples.
+ * </p>
+ * <p>
+ * The decimator is driven by calling {@link #pump()} from a single
+ * consumer thread; it allocates nothing.
+ * </p>
+ */
+public class Decimator {
+
+    /**
+     * The decimation filters.
+     */
+    public enum Filter {
+        NONE,
+        CIC,
+        FIR
+    }
+
+    /**
+     * The number of integrator and comb stages of a CIC filter.
+     */
+    public static final int CIC_STAGES = 3;
+    /**
+     * The default number of FIR taps per unit of the decimation factor.
+     */
+    public static final int DEFAULT_TAPS_PER_FACTOR = 8;
+
+    private static final int MAX_SUBSCRIBERS = 8;
+
+    private final SampleRing source;
+    private final int[] channels;
+    private final int timestampField;
+    private final int deltaField;
+    private final long[] record;
+    private long timestamp = 0;
+
+    // input history shared by the subscribers: per channel, then timestamps
+    private long[][] history;
+    private long[] tsHistory;
+    private int historyMask;
+    private long inputs = 0;
+
+    private final Subscriber[] subscribers = new Subscriber[MAX_SUBSCRIBERS];
+    private int subscriberCount = 0;
+
+    /**
+     * Creates a decimator.
+     * @param source the ring delivering the high rate stream
+     * @param channels the fields of a record to filter
+     * @param timestampField the field holding the absolute timestamp in
+     * nanoseconds; -1 if none
+     * @param deltaField the field holding the time delta from the previous
+     * sample in nanoseconds; -1 if none
+     */
+    public Decimator(SampleRing source, int[] channels, int timestampField,
+            int deltaField) {
+        for (int c : channels) {
+            if (c < 0 || c >= source.width())
+                throw new IllegalArgumentException("No such field " + c);
+        }
+        this.source = source;
+        this.channels = channels.clone();
+        this.timestampField = timestampField;
+        this.deltaField = deltaField;
+        this.record = new long[source.width()];
+        allocateHistory(1);
+    }
+
+    /**
+     * Adds a subscriber with a FIR filter of the default length, or another
+     * filter. Subscribers must be added before pumping.
+     * @param out the ring to receive the output records
+     * @param factor the decimation factor (1 or more)
+     * @param filter the filter
+     * @return the subscriber number
+     */
+    public int subscribe(SampleRing out, int factor, Filter filter) {
+        return subscribe(out, factor, filter,
+                DEFAULT_TAPS_PER_FACTOR * factor + 1);
+    }
+
+    /**
+     * Adds a subscriber. Subscribers must be added before pumping.
+     * @param out the ring to receive the output records
+     * @param factor the decimation factor (1 or more)
+     * @param filter the filter
+     * @param taps for a FIR filter, the number of taps (odd, so the delay
+     * is a whole number of samples); otherwise ignored
+     * @return the subscriber number
+     */
+    public int subscribe(SampleRing out, int factor, Filter filter,
+            int taps) {
+        if (out.width() < source.width())
+            throw new IllegalArgumentException("Ring records too narrow");
+        if (factor < 1)
+            throw new IllegalArgumentException("Factor must be >= 1");
+        if (subscriberCount == MAX_SUBSCRIBERS)
+            throw new IllegalStateException("Too many subscribers");
+        if (filter == Filter.FIR && (taps < 1 || taps % 2 == 0))
+            throw new IllegalArgumentException("Taps must be odd");
+        Subscriber s;
+        switch (filter) {
+            case CIC:
+                s = new Cic(out, factor, channels.length);
+                break;
+            case FIR:
+                s = new Fir(out, factor, taps);
+                break;
+            default:
+                s = new Subscriber(out, factor, 0, 1);
+        }
+        allocateHistory((filter == Filter.FIR) ? taps : s.delay + 1);
+        subscribers[subscriberCount] = s;
+        return subscriberCount++;
+    }
+
+    /**
+     * Processes all records available from the source, publishing output
+     * records to the subscribers when due.
+     * @return the number of source records processed
+     */
+    public int pump() {
+        int n = 0;
+        while (source.poll(record)) {
+            if (timestampField >= 0) {
+                timestamp = record[timestampField];
+            } else if (deltaField >= 0) {
+                timestamp += record[deltaField];
+            }
+            int slot = (int) (inputs & historyMask);
+            for (int c = 0; c < channels.length; c++) {
+                history[c][slot] = record[channels[c]];
+            }
+            tsHistory[slot] = timestamp;
+            inputs++;
+            for (int i = 0; i < subscriberCount; i++) {
+                subscribers[i].input();
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of source records processed.
+     * @return number of records
+     */
+    public long getInputCount() {
+        return inputs;
+    }
+
+    /**
+     * Returns the number of records output to a subscriber.
+     * @param subscriber the subscriber number
+     * @return number of records
+     */
+    public long getOutputCount(int subscriber) {
+        return subscribers[subscriber].outputs;
+    }
+
+    /**
+     * Returns the delay of a subscriber's filter, in source samples.
+     * @param subscriber the subscriber number
+     * @return the delay
+     */
+    public int getDelay(int subscriber) {
+        return subscribers[subscriber].delay;
+    }
+
+    /**
+     * Makes sure the history holds at least a number of samples; a power of
+     * 2, so slots are found by masking.
+     */
+    private void allocateHistory(int length) {
+        if (history != null && historyMask + 1 >= length) return;
+        int size = Integer.highestOneBit(Math.max(1, length - 1)) << 1;
+        history = new long[channels.length][size];
+        tsHistory = new long[size];
+        historyMask = size - 1;
+    }
+
+    /**
+     * Returns a channel value from the history.
+     * @param channel the channel
+     * @param age the number of samples before the latest
+     */
+    private long past(int channel, int age) {
+        return history[channel][(int) ((inputs - 1 - age) & historyMask)];
+    }
+
+    /**
+     * A subscriber without filtering; the filters extend it.
+     */
+    private class Subscriber {
+        final SampleRing out;
+        final int factor;
+        final int delay;
+        final int fill;
+        final long[] values = new long[channels.length];
+        int phase = 0;
+        long tsLast = 0;
+        long outputs = 0;
+
+        Subscriber(SampleRing out, int factor, int delay, int fill) {
+            this.out = out;
+            this.factor = factor;
+            this.delay = delay;
+            this.fill = fill;
+        }
+
+        /**
+         * Handles the latest input, publishing an output when due. The
+         * output is computed even if it cannot be published, to keep the
+         * filter state consistent.
+         */
+        void input() {
+            if (++phase < factor) return;
+            phase = 0;
+            for (int c = 0; c < channels.length; c++) {
+                values[c] = value(c);
+            }
+            long ts = tsHistory[(int) ((inputs - 1 - delay) & historyMask)];
+            long tsDelta = (tsLast == 0) ? 0 : ts - tsLast;
+            tsLast = ts;
+
+            // not until the filter is full, nor if the ring is full
+            if (inputs < fill || !out.claim()) return;
+            for (int f = 0; f < record.length; f++) {
+                out.put(f, record[f]);
+            }
+            for (int c = 0; c < channels.length; c++) {
+                out.put(channels[c], values[c]);
+            }
+            if (timestampField >= 0) out.put(timestampField, ts);
+            if (deltaField >= 0) out.put(deltaField, tsDelta);
+            out.publish();
+            outputs++;
+        }
+
+        /**
+         * Returns the output value of a channel.
+         */
+        long value(int channel) {
+            return past(channel, 0);
+        }
+    }
+
+    /**
+     * A CIC decimating subscriber. The integrators and combs use wrapping
+     * long arithmetic, which is exact as long as the output fits.
+     */
+    private class Cic extends Subscriber {
+        // per channel: integrators, then comb delays
+        private final long[][] integrators;
+        private final long[][] combs;
+        private final long gain;
+
+        Cic(SampleRing out, int factor, int channelCount) {
+            super(out, factor, CIC_STAGES * (factor - 1) / 2,
+                    CIC_STAGES * factor);
+            integrators = new long[channelCount][CIC_STAGES];
+            combs = new long[channelCount][CIC_STAGES];
+            long g = 1;
+            for (int i = 0; i < CIC_STAGES; i++) {
+                g *= factor;
+            }
+            gain = g;
+        }
+
+        @Override
+        void input() {
+            for (int c = 0; c < integrators.length; c++) {
+                long[] integrator = integrators[c];
+                long v = past(c, 0);
+                for (int i = 0; i < CIC_STAGES; i++) {
+                    v = integrator[i] += v;
+                }
+            }
+            super.input();
+        }
+
+        @Override
+        long value(int channel) {
+            long v = integrators[channel][CIC_STAGES - 1];
+            long[] comb = combs[channel];
+            for (int i = 0; i < CIC_STAGES; i++) {
+                long d = v - comb[i];
+                comb[i] = v;
+                v = d;
+            }
+            return Math.floorDiv(v + gain / 2, gain);
+        }
+    }
+
+    /**
+     * A FIR decimating subscriber, computing only the outputs kept.
+     */
+    private class Fir extends Subscriber {
+        private final double[] coefficients;
+
+        Fir(SampleRing out, int factor, int taps) {
+            super(out, factor, (taps - 1) / 2, taps);
+            coefficients = design(taps, 0.4 / factor);
+        }
+
+        @Override
+        long value(int channel) {
+            double sum = 0;
+            long[] h = history[channel];
+            long latest = inputs - 1;
+            for (int k = 0; k < coefficients.length; k++) {
+                sum += coefficients[k] * h[(int) ((latest - k) & historyMask)];
+            }
+            return Math.round(sum);
+        }
+    }
+
+    /**
+     * Designs a low pass filter by the windowed-sinc method, with a
+     * Blackman window and unity gain at DC.
+     * @param taps the number of taps
+     * @param cutoff the cutoff as a fraction of the input sample rate
+     * @return the coefficients
+     */
+    static double[] design(int taps, double cutoff) {
+        double[] h = new double[taps];
+        int middle = (taps - 1) / 2;
+        double sum = 0;
+        for (int k = 0; k < taps; k++) {
+            int n = k - middle;
+            double sinc = (n == 0) ? 2 * cutoff :
+                    Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            double window = (taps == 1) ? 1 :
+                    0.42 - 0.5 * Math.cos(2 * Math.PI * k / (taps - 1)) +
+                    0.08 * Math.cos(4 * Math.PI * k / (taps - 1));
+            h[k] = sinc * window;
+            sum += h[k];
+        }
+        for (int k = 0; k < taps; k++) {
+            h[k] /= sum;
+        }
+        return h;
+    }
+}
@@ -1,5 +1,6 @@
 package org.gaf.pimu;
 
+import com.diozero.api.I2CConstants;
 import com.diozero.api.I2CDevice;
 import com.diozero.api.RuntimeIOException;
 import com.diozero.util.SleepUtil;
@@ -10,14 +11,52 @@ import java.io.IOException;
  */
 public class FXAS21002C implements AutoCloseable {
 
-    private static final int FXAS21002C_ADDRESS = 0x21; 
+    /**
+     * The default I2C address (SA0 high).
+     */
+    public static final int DEFAULT_ADDRESS = 0x21;
+    /**
+     * The alternate I2C address (SA0 low).
+     */
+    public static final int ALTERNATE_ADDRESS = 0x20;
     private static final byte FXAS21002C_ID = (byte) 0xD7;
 
-    // the device used for communication
+    /**
+     * The key identifying the device at the default controller and address,
+     * for calibration profiles.
+     */
+    public static final String DEVICE_KEY = "FXAS21002C-0x21";
+
+    /**
+     * The number of samples the FIFO can hold.
+     */
+    public static final int FIFO_SIZE = 32;
+
+    // the device used for communication, and its calibration key
     private I2CDevice device = null;
+    private final String key;
+    
+    // the value written to CTRL_REG1 to make the device active
+    private int activeCtrlReg1 = 0;
+    
+    // the current configuration
+    private LpfCutoff lpfCutoff = null;
+    private ODR odr = null;
+    private Range range = Range.DPS250;
+    
+    // FIFO configuration and buffers
+    private int fifoWatermark = 0;
+    private byte[] fifoBuffer = null; // status + watermark samples
+    private final byte[][] fifoExtra = new byte[FIFO_SIZE + 1][];
+    private int fifoStatus = 0;
+    
+    // buffers for the single sample reads
+    private final byte[] rawBuffer = new byte[6];
+    private final byte[] zBuffer = new byte[2];
     
     /**
-     * Constructs the FXAS21002C.
+     * Constructs the FXAS21002C at the default address on the default 
+     * I2C controller.
      * <p>
      * Creates the diozero I2CDevice for the FXAS21002C and checks 
      * the "who am I" register.
@@ -26,22 +65,52 @@ public class FXAS21002C implements AutoCloseable {
      * @throws IOException if fails due to I/O or identity errors
      */
     public FXAS21002C() throws IOException {
+        this(I2CConstants.CONTROLLER_1, DEFAULT_ADDRESS);
+    }
+
+    /**
+     * Constructs the FXAS21002C on an I2C controller at an address, for 
+     * example for a second board on another bus.
+     * <p>
+     * Creates the diozero I2CDevice for the FXAS21002C and checks 
+     * the "who am I" register.
+     * <p>
+     *
+     * @param controller the I2C controller (bus)
+     * @param address the address (DEFAULT_ADDRESS or ALTERNATE_ADDRESS)
+     * @throws IOException if fails due to I/O or identity errors
+     */
+    public FXAS21002C(int controller, int address) throws IOException {
+        key = (controller == I2CConstants.CONTROLLER_1 && 
+                address == DEFAULT_ADDRESS) ? DEVICE_KEY : 
+                String.format("FXAS21002C-%d-0x%02X", controller, address);
         try {
             // create an I2C device for an FXAS21002C
-            device = I2CDevice.builder(FXAS21002C_ADDRESS).build();
+            device = I2CDevice.builder(address).setController(controller).
+                    build();
 
             // check the "who am I" register         
             byte whoID = device.readByteData(Registers.WHO_AM_I.register);
             System.out.format("who am I: 0x%2x%n", whoID);
             if (whoID != FXAS21002C_ID) {
                 throw new IOException("FXAS21002C not found at address " +
-                        FXAS21002C_ADDRESS);
+                        address + " on controller " + controller);
             }
         } catch (RuntimeIOException ex) {
             throw new IOException(ex.getMessage());            
         }
     }
 
+    /**
+     * Returns the key identifying the device, for calibration profiles: 
+     * DEVICE_KEY at the default controller and address, otherwise one 
+     * including the controller and address.
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
     /**
      * Close an instance.
      */
@@ -52,13 +121,27 @@ public class FXAS21002C implements AutoCloseable {
     } 
     
     /**
-     * Configures and activates the FXAS21002C.
+     * Configures and activates the FXAS21002C, with the 250 dps full scale 
+     * range.
      *
      * @param lpfCutoff the low pass filter cutoff desired
      * @param odr the output data rate desired
      * @throws RuntimeIOException
      */
     public void begin(LpfCutoff lpfCutoff, ODR odr) throws RuntimeIOException {
+        begin(lpfCutoff, odr, Range.DPS250);
+    }
+    
+    /**
+     * Configures and activates the FXAS21002C.
+     *
+     * @param lpfCutoff the low pass filter cutoff desired
+     * @param odr the output data rate desired
+     * @param range the full scale range desired
+     * @throws RuntimeIOException
+     */
+    public void begin(LpfCutoff lpfCutoff, ODR odr, Range range) 
+            throws RuntimeIOException {
         // reset
         device.writeByteData(Registers.CTRL_REG1.register, 
                 PowerState.StandBy.state);
@@ -75,8 +158,8 @@ public class FXAS21002C implements AutoCloseable {
 
         // set the lpf value
         int cntl_reg0 = lpfCutoff.level;
-        // set the default full scale range
-        cntl_reg0 |= Range.DPS250.rangeCode;
+        // set the full scale range
+        cntl_reg0 |= range.rangeCode;
         // write the FSR and LPF cutoff
         device.writeByteData(Registers.CTRL_REG0.register, (byte) cntl_reg0);
 
@@ -88,10 +171,196 @@ public class FXAS21002C implements AutoCloseable {
         // write ODR as requested and active state
         cntl_reg1 |= PowerState.Active.state;
         device.writeByteData(Registers.CTRL_REG1.register, (byte) cntl_reg1);   
+        activeCtrlReg1 = cntl_reg1;
+        fifoWatermark = 0;
+        this.lpfCutoff = lpfCutoff;
+        this.odr = odr;
+        this.range = range;
         // delay for settling
         SleepUtil.sleepMillis(100);
     }
     
+    /**
+     * Changes the output data rate, full scale range and low pass filter 
+     * cutoff of an active FXAS21002C, without a reset. The device goes 
+     * to the ready state (in which the drive stays on, so it becomes active 
+     * again quickly), is reconfigured, and returns to active. The FIFO and 
+     * interrupt configuration is kept. Data resumes after about 
+     * 1/ODR + 5 ms (see the datasheet); there is no delay here for settling.
+     * Must be called after begin.
+     *
+     * @param lpfCutoff the low pass filter cutoff desired
+     * @param odr the output data rate desired
+     * @param range the full scale range desired
+     * @throws RuntimeIOException
+     */
+    public void reconfigure(LpfCutoff lpfCutoff, ODR odr, Range range) 
+            throws RuntimeIOException {
+        // CTRL_REG0 and the ODR can only be changed in standby or ready 
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                (byte) (this.odr.odrCode | PowerState.Ready.state));
+        device.writeByteData(Registers.CTRL_REG0.register, 
+                (byte) (lpfCutoff.level | range.rangeCode));
+        int cntl_reg1 = odr.odrCode | PowerState.Active.state;
+        device.writeByteData(Registers.CTRL_REG1.register, (byte) cntl_reg1);
+        activeCtrlReg1 = cntl_reg1;
+        this.lpfCutoff = lpfCutoff;
+        this.odr = odr;
+        this.range = range;
+    }
+    
+    /**
+     * Returns the low pass filter cutoff configured.
+     * @return the cutoff
+     */
+    public LpfCutoff getLpfCutoff() {
+        return lpfCutoff;
+    }
+    
+    /**
+     * Returns the output data rate configured.
+     * @return the output data rate
+     */
+    public ODR getOdr() {
+        return odr;
+    }
+    
+    /**
+     * Returns the full scale range configured.
+     * @return the range
+     */
+    public Range getRange() {
+        return range;
+    }
+    
+    /**
+     * Enables the FIFO in circular mode, with an interrupt when the FIFO
+     * holds the watermark number of samples. The data ready interrupt
+     * is disabled. Must be called after begin.
+     * <p>
+     * In FIFO mode, the samples must be read with readFifo.
+     * </p>
+     * @param watermark the number of samples that triggers an 
+     * interrupt (1-32)
+     * @throws RuntimeIOException
+     */
+    public void enableFifo(int watermark) throws RuntimeIOException {
+        if (watermark < 1 || watermark > FIFO_SIZE)
+            throw new IllegalArgumentException("Watermark must be 1-32");
+        
+        // go to standby state so can change other control registers
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                PowerState.StandBy.state);
+        
+        // FIFO off first, as required to change the mode
+        device.writeByteData(Registers.F_SETUP.register, 0);
+        device.writeByteData(Registers.F_SETUP.register, 
+                FIFO_CIRCULAR | watermark);
+        // FIFO interrupt instead of data ready
+        device.writeByteData(Registers.CTRL_REG2.register, FIFO_INTERRUPT);
+        // block reads wrap from OUT_Z_LSB to OUT_X_MSB
+        device.writeByteData(Registers.CTRL_REG3.register, WRAP_TO_ONE);
+        
+        fifoWatermark = watermark;
+        fifoBuffer = new byte[1 + watermark * 6];
+        
+        // back to active
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                (byte) activeCtrlReg1);   
+        // delay for settling
+        SleepUtil.sleepMillis(100);
+    }
+    
+    /**
+     * Disables the FIFO and restores the data ready interrupt.
+     * @throws RuntimeIOException
+     */
+    public void disableFifo() throws RuntimeIOException {
+        // go to standby state so can change other control registers
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                PowerState.StandBy.state);
+        
+        device.writeByteData(Registers.F_SETUP.register, 0);
+        device.writeByteData(Registers.CTRL_REG2.register, DATA_READY_INTERRUPT);
+        device.writeByteData(Registers.CTRL_REG3.register, 0);
+        fifoWatermark = 0;
+        
+        // back to active
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                (byte) activeCtrlReg1);   
+        // delay for settling
+        SleepUtil.sleepMillis(100);
+    }
+    
+    /**
+     * Returns the FIFO watermark.
+     * @return the watermark; 0 if the FIFO is disabled
+     */
+    public int getFifoWatermark() {
+        return fifoWatermark;
+    }
+    
+    /**
+     * Drains the FIFO. A single block read gets the FIFO status and the
+     * watermark number of samples; only if more samples than the 
+     * watermark have accumulated is a second block read needed.
+     * <p>
+     * Allocates nothing, except on the first use of each count of 
+     * samples beyond the watermark.
+     * </p>
+     * @param xyz array of at least 3 * 32 to receive the samples, oldest
+     * first, as x,y,z triples
+     * @return the number of samples read
+     * @throws RuntimeIOException
+     */
+    public int readFifo(int[] xyz) throws RuntimeIOException {
+        // the status register mirrors F_STATUS in FIFO mode
+        device.readI2CBlockData(Registers.STATUS.register, fifoBuffer);
+        fifoStatus = Byte.toUnsignedInt(fifoBuffer[0]);
+        int count = fifoStatus & FIFO_COUNT_MASK;
+        
+        int first = Math.min(count, fifoWatermark);
+        decode(fifoBuffer, 1, xyz, 0, first);
+        
+        if (count > fifoWatermark) {
+            int extra = count - fifoWatermark;
+            byte[] buffer = fifoExtra[extra];
+            if (buffer == null) {
+                buffer = new byte[extra * 6];
+                fifoExtra[extra] = buffer;
+            }
+            device.readI2CBlockData(Registers.OUT_X_MSB.register, buffer);
+            decode(buffer, 0, xyz, first * 3, extra);
+        }
+        return count;
+    }
+    
+    /**
+     * Indicates if the FIFO overflowed (and so lost samples) before the 
+     * last readFifo.
+     * @return true if overflowed
+     */
+    public boolean isFifoOverflow() {
+        return (fifoStatus & FIFO_OVERFLOW) != 0;
+    }
+    
+    /**
+     * Decodes big-endian 2-byte x,y,z samples into ints, with sign extension.
+     * Allocates nothing.
+     * @param buffer the raw bytes
+     * @param offset the index in buffer of the first sample
+     * @param xyz the array to receive the samples as x,y,z triples
+     * @param start the index in xyz for the first sample
+     * @param samples the number of samples
+     */
+    public static void decode(byte[] buffer, int offset, int[] xyz, 
+            int start, int samples) {
+        for (int i = 0; i < samples * 3; i++) {
+            int b = offset + 2 * i;
+            xyz[start + i] = (buffer[b] << 8) | Byte.toUnsignedInt(buffer[b + 1]);
+        }
+    }
+    
     /**
      * Read raw data from the gyroscope, all three axis.
      *
@@ -99,38 +368,46 @@ public class FXAS21002C implements AutoCloseable {
      * @throws RuntimeIOException
      */
     public int[] readRaw() throws RuntimeIOException {
-        // read the data from the device
-        byte[] buffer = new byte[6];
-        device.readI2CBlockData(Registers.OUT_X_MSB.register, buffer);
-
-        // construct the response as an int[]
         int[] res = new int[3];
-        res[0] = (int) (buffer[0] << 8);
-        res[0] = res[0] | Byte.toUnsignedInt(buffer[1]);
-        res[1] = (int) (buffer[2] << 8);
-        res[1] = res[1] | Byte.toUnsignedInt(buffer[3]);
-        res[2] = (int) (buffer[4] << 8);
-        res[2] = res[2] | Byte.toUnsignedInt(buffer[5]);
+        readRaw(res);
         return res;
     }
 
     /**
-     * Read raw data from the gyroscope, Z axis only.
+     * Read raw data from the gyroscope, all three axis, into an array. 
+     * Allocates nothing, so is suitable for interrupt handlers.
+     *
+     * @param xyz array of at least 3 to receive the x,y,z axis readings
+     * @throws RuntimeIOException
+     */
+    public void readRaw(int[] xyz) throws RuntimeIOException {
+        device.readI2CBlockData(Registers.OUT_X_MSB.register, rawBuffer);
+        decode(rawBuffer, 0, xyz, 0, 1);
+    }
+
+    /**
+     * Read raw data from the gyroscope, Z axis only. Allocates nothing.
      *
      * @return the z axis reading
      * @throws RuntimeIOException
      */
     public int readRawZ() throws RuntimeIOException {
         // read only the Z axis 
-        byte[] buffer = new byte[2];
-        device.readI2CBlockData(Registers.OUT_Z_MSB.register, buffer);
+        device.readI2CBlockData(Registers.OUT_Z_MSB.register, zBuffer);
 
         // construct the int data
-        int value = buffer[0] << 8;
-        value = value | Byte.toUnsignedInt(buffer[1]);       
-        return value;
+        return (zBuffer[0] << 8) | Byte.toUnsignedInt(zBuffer[1]);
     }   
     
+    /**
+     * Reads the die temperature.
+     * @return the temperature in degrees C
+     * @throws RuntimeIOException
+     */
+    public int readTemperature() throws RuntimeIOException {
+        return device.readByteData(Registers.TEMP.register);
+    }
+    
     /**
      * Checks if data for all three axes ready.
      * @param wait if want to wait
@@ -184,6 +461,7 @@ public class FXAS21002C implements AutoCloseable {
         INT_SOURCE_FLAG(0x0B),
         WHO_AM_I(0x0C),    
         CTRL_REG0(0x0D),
+        TEMP(0x12),
         CTRL_REG1(0x13), 
         CTRL_REG2(0x14), 
         CTRL_REG3(0x15);
@@ -264,4 +542,28 @@ public class FXAS21002C implements AutoCloseable {
     -- push-pull output driver
     */
     private static final byte DATA_READY_INTERRUPT = 0x0e;   
+    /*
+    The contents of register CNTL_REG2 (see datasheet) to set up an 
+    interrupt:
+    -- on FIFO watermark
+    -- to pin 1
+    -- active high
+    -- push-pull output driver
+    */
+    private static final byte FIFO_INTERRUPT = (byte) 0xc2;
+    /*
+    The contents of register CNTL_REG3 (see datasheet) so that block reads
+    roll over from OUT_Z_LSB to OUT_X_MSB, allowing a FIFO burst read.
+    */
+    private static final byte WRAP_TO_ONE = 0x08;
+    /*
+    The FIFO mode bits of register F_SETUP (see datasheet) for circular
+    buffer mode.
+    */
+    private static final int FIFO_CIRCULAR = 0x40;
+    /*
+    Fields of register F_STATUS (see datasheet).
+    */
+    private static final int FIFO_OVERFLOW = 0x80;
+    private static final int FIFO_COUNT_MASK = 0x3f;
 }
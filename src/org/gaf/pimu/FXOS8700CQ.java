@@ -1,5 +1,6 @@
 package org.gaf.pimu;
 
+import com.diozero.api.I2CConstants;
 import com.diozero.api.I2CDevice;
 import com.diozero.api.RuntimeIOException;
 import com.diozero.util.SleepUtil;
@@ -10,33 +11,99 @@ import java.io.IOException;
  */
 public class FXOS8700CQ implements AutoCloseable {
 
-    private static final int FXOS8700CQ_ADDRESS = 0x1F; 
+    /**
+     * The default I2C address (SA1 and SA0 high).
+     */
+    public static final int DEFAULT_ADDRESS = 0x1F;
+    /**
+     * The alternate I2C addresses (SA1, SA0 low/low, low/high, high/low).
+     */
+    public static final int[] ALTERNATE_ADDRESSES = {0x1E, 0x1D, 0x1C};
+
+    /**
+     * The key identifying the device at the default controller and address,
+     * for calibration profiles.
+     */
+    public static final String DEVICE_KEY = "FXOS8700CQ-0x1F";
     private static final byte FXOS8700CQ_ID = (byte) 0xC7; 
 
-    // the device used for communication
+    /**
+     * The magnetometer sensitivity in microtesla per count.
+     */
+    public static final float MAG_SENSITIVITY = 0.1F;
+    
+    /**
+     * The number of accelerometer samples the FIFO can hold.
+     */
+    public static final int FIFO_SIZE = 32;
+
+    // the device used for communication, and its calibration key
     private I2CDevice device = null;
+    private final String key;
+    
+    // the value written to CTRL_REG1 to make the device active
+    private int activeCtrlReg1 = 0;
+    private ODR odr = ODR.ODR_100;
+    
+    // FIFO configuration and buffers
+    private int fifoWatermark = 0;
+    private byte[] fifoBuffer = null; // status + watermark samples
+    private final byte[][] fifoExtra = new byte[FIFO_SIZE + 1][];
+    private final byte[] magBuffer = new byte[6];
+    private final byte[] rawBuffer = new byte[12];
+    private int fifoStatus = 0;
+    
+    // the interrupts enabled (all routed to pin 1)
+    private int interrupts = INTERRUPT_DATA_READY;
 
     /**
-     * Creates an FXOS8700CQ instance.
+     * Creates an FXOS8700CQ instance at the default address on the default
+     * I2C controller.
      * @throws IOException if fails due to I/O or identity errors
      */
     public FXOS8700CQ() throws IOException {
+        this(I2CConstants.CONTROLLER_1, DEFAULT_ADDRESS);
+    }
+    
+    /**
+     * Creates an FXOS8700CQ instance on an I2C controller at an address, 
+     * for example for a second board on another bus.
+     * @param controller the I2C controller (bus)
+     * @param address the address (DEFAULT_ADDRESS or one of the 
+     * ALTERNATE_ADDRESSES)
+     * @throws IOException if fails due to I/O or identity errors
+     */
+    public FXOS8700CQ(int controller, int address) throws IOException {
+        key = (controller == I2CConstants.CONTROLLER_1 && 
+                address == DEFAULT_ADDRESS) ? DEVICE_KEY : 
+                String.format("FXOS8700CQ-%d-0x%02X", controller, address);
         try {
             // create an I2C device for an FXOS8700CQ
-            device = I2CDevice.builder(FXOS8700CQ_ADDRESS).build();
+            device = I2CDevice.builder(address).setController(controller).
+                    build();
 
             // check the "who am I" register         
             byte whoID = device.readByteData(Registers.WHO_AM_I.register);
             System.out.format("who am I: %2x%n", whoID);
             if (whoID != FXOS8700CQ_ID) {
                 throw new IOException("FXOS8700CQ not found at address " +
-                        FXOS8700CQ_ADDRESS);
+                        address + " on controller " + controller);
             }
         } catch (RuntimeIOException ex) {
             throw new IOException(ex.getMessage());            
         } 
     }
     
+    /**
+     * Returns the key identifying the device, for calibration profiles: 
+     * DEVICE_KEY at the default controller and address, otherwise one 
+     * including the controller and address.
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+    
     /**
      * Close an instance.
      */
@@ -47,10 +114,21 @@ public class FXOS8700CQ implements AutoCloseable {
     }
  
     /**
-     * Configures the FXOS8700CQ and activates the device.
+     * Configures the FXOS8700CQ and activates the device, with an ODR 
+     * of 100 Hz (50 Hz for each sensor in hybrid mode).
      * @throws RuntimeIOException 
      */
     public void begin() throws RuntimeIOException {
+        begin(ODR.ODR_100);
+    }
+    
+    /**
+     * Configures the FXOS8700CQ and activates the device.
+     * @param odr the output data rate; in hybrid mode each sensor 
+     * delivers half the rate
+     * @throws RuntimeIOException 
+     */
+    public void begin(ODR odr) throws RuntimeIOException {
         // reset    
         device.writeByteData(Registers.CTRL_REG1.register, 
                 PowerState.StandBy.stateCode);
@@ -90,10 +168,325 @@ public class FXOS8700CQ implements AutoCloseable {
                 AccelOSR.HighResolution.osrCode);
 
         // set ODR, normal read speed, and device ACTIVE
-        int cntl_reg1 = ODR.ODR_100.odrCode | NoiseMode.Reduced.noiseCode |
+        int cntl_reg1 = odr.odrCode | NoiseMode.Reduced.noiseCode |
                 ReadSpeed.Normal.speedCode | PowerState.Active.stateCode;
         System.out.println("ctrl_reg1 = " + String.format("0x%02X", cntl_reg1));
         device.writeByteData(Registers.CTRL_REG1.register, cntl_reg1);
+        activeCtrlReg1 = cntl_reg1;
+        this.odr = odr;
+        fifoWatermark = 0;
+        interrupts = INTERRUPT_DATA_READY;
+    }
+    
+    /**
+     * Changes the output data rate quickly: goes to standby, sets the ODR, 
+     * and returns to active, keeping all other configuration. Data resumes
+     * after about 1/ODR (see the datasheet). Must be called after begin.
+     * @param odr the output data rate
+     * @throws RuntimeIOException
+     */
+    public void setOdr(ODR odr) throws RuntimeIOException {
+        standby();
+        activeCtrlReg1 = (activeCtrlReg1 & ~ODR_MASK) | odr.odrCode;
+        this.odr = odr;
+        resume();
+    }
+    
+    /**
+     * Returns the output data rate.
+     * @return the output data rate
+     */
+    public ODR getOdr() {
+        return odr;
+    }
+    
+    /**
+     * Returns the rate at which each sensor delivers samples (hybrid mode).
+     * @return the rate in Hz
+     */
+    public float getSensorRate() {
+        return odr.odr / 2;
+    }
+    
+    /**
+     * Enables the accelerometer FIFO in circular mode, with an interrupt 
+     * when the FIFO holds the watermark number of samples. The data ready 
+     * interrupt is disabled. Must be called after begin. 
+     * <p>
+     * In FIFO mode, the accelerometer samples must be read with readFifo,
+     * and the magnetometer with readMag. The FIFO holds only accelerometer
+     * samples.
+     * </p>
+     * @param watermark the number of samples that triggers an 
+     * interrupt (1-32)
+     * @throws RuntimeIOException
+     */
+    public void enableFifo(int watermark) throws RuntimeIOException {
+        if (watermark < 1 || watermark > FIFO_SIZE)
+            throw new IllegalArgumentException("Watermark must be 1-32");
+        
+        // go to standby state so can change other control registers
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                PowerState.StandBy.stateCode);
+        
+        // FIFO off first, as required to change the mode
+        device.writeByteData(Registers.F_SETUP.register, 0);
+        device.writeByteData(Registers.F_SETUP.register, 
+                FIFO_CIRCULAR | watermark);
+        // FIFO interrupt instead of data ready
+        device.writeByteData(Registers.CTRL_REG4.register, INTERRUPT_FIFO);
+        device.writeByteData(Registers.CTRL_REG5.register, INTERRUPT_FIFO);
+        interrupts = INTERRUPT_FIFO;
+        // burst reads must stay in the accelerometer registers
+        device.writeByteData(Registers.M_CTRL_REG2.register, 0);
+        
+        fifoWatermark = watermark;
+        fifoBuffer = new byte[1 + watermark * 6];
+        
+        // back to active
+        device.writeByteData(Registers.CTRL_REG1.register, activeCtrlReg1);   
+    }
+    
+    /**
+     * Disables the FIFO and restores the data ready interrupt.
+     * @throws RuntimeIOException
+     */
+    public void disableFifo() throws RuntimeIOException {
+        // go to standby state so can change other control registers
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                PowerState.StandBy.stateCode);
+        
+        device.writeByteData(Registers.F_SETUP.register, 0);
+        device.writeByteData(Registers.CTRL_REG4.register, INTERRUPT_DATA_READY);
+        device.writeByteData(Registers.CTRL_REG5.register, INTERRUPT_PIN1);
+        device.writeByteData(Registers.M_CTRL_REG2.register, HYBRID_AUTO_INC);
+        fifoWatermark = 0;
+        interrupts = INTERRUPT_DATA_READY;
+        
+        // back to active
+        device.writeByteData(Registers.CTRL_REG1.register, activeCtrlReg1);   
+    }
+    
+    /**
+     * Returns the FIFO watermark.
+     * @return the watermark; 0 if the FIFO is disabled
+     */
+    public int getFifoWatermark() {
+        return fifoWatermark;
+    }
+    
+    /**
+     * Drains the accelerometer FIFO. A single block read gets the FIFO 
+     * status and the watermark number of samples; only if more samples 
+     * than the watermark have accumulated is a second block read needed.
+     * <p>
+     * Allocates nothing, except on the first use of each count of 
+     * samples beyond the watermark.
+     * </p>
+     * @param xyz array of at least 3 * 32 to receive the samples, oldest
+     * first, as x,y,z triples
+     * @return the number of samples read
+     * @throws RuntimeIOException
+     */
+    public int readFifo(int[] xyz) throws RuntimeIOException {
+        // the status register is F_STATUS in FIFO mode
+        device.readI2CBlockData(Registers.STATUS.register, fifoBuffer);
+        fifoStatus = Byte.toUnsignedInt(fifoBuffer[0]);
+        int count = fifoStatus & FIFO_COUNT_MASK;
+        
+        int first = Math.min(count, fifoWatermark);
+        decodeAccel(fifoBuffer, 1, xyz, 0, first);
+        
+        if (count > fifoWatermark) {
+            int extra = count - fifoWatermark;
+            byte[] buffer = fifoExtra[extra];
+            if (buffer == null) {
+                buffer = new byte[extra * 6];
+                fifoExtra[extra] = buffer;
+            }
+            device.readI2CBlockData(Registers.OUT_X_MSB.register, buffer);
+            decodeAccel(buffer, 0, xyz, first * 3, extra);
+        }
+        return count;
+    }
+    
+    /**
+     * Indicates if the FIFO overflowed (and so lost samples) before the 
+     * last readFifo.
+     * @return true if overflowed
+     */
+    public boolean isFifoOverflow() {
+        return (fifoStatus & FIFO_OVERFLOW) != 0;
+    }
+    
+    /**
+     * Sets the interrupts enabled, all routed to pin 1. Must be called 
+     * after begin; for the FIFO interrupt use enableFifo.
+     * @param interrupts the OR of the masks of the {@link Interrupt}s
+     * @throws RuntimeIOException
+     */
+    public void setInterrupts(int interrupts) throws RuntimeIOException {
+        standby();
+        device.writeByteData(Registers.CTRL_REG4.register, (byte) interrupts);
+        device.writeByteData(Registers.CTRL_REG5.register, (byte) interrupts);
+        this.interrupts = interrupts;
+        resume();
+    }
+    
+    /**
+     * Returns the interrupts enabled.
+     * @return the OR of the masks of the {@link Interrupt}s
+     */
+    public int getInterrupts() {
+        return interrupts;
+    }
+    
+    /**
+     * Reads the interrupt source register, which has the bits of the 
+     * {@link Interrupt}s that are asserted. Each is cleared by reading its
+     * own source or data.
+     * @return the interrupt sources
+     * @throws RuntimeIOException
+     */
+    public int readInterruptSource() throws RuntimeIOException {
+        return Byte.toUnsignedInt(
+                device.readByteData(Registers.INT_SOURCE.register));
+    }
+    
+    /**
+     * Configures the freefall/motion block to detect motion: the X or Y 
+     * acceleration above a threshold. Z is not used, as it carries gravity
+     * when the device is level; the threshold must allow for any tilt. 
+     * Events are latched until {@link #readMotionSource()}. Must be called 
+     * after begin.
+     * @param threshold the threshold in g (0.063 g resolution)
+     * @param debounce the number of samples the condition must last
+     * @throws RuntimeIOException
+     */
+    public void configureMotion(float threshold, int debounce) 
+            throws RuntimeIOException {
+        configureFreefallMotion(FF_MT_LATCH | FF_MT_MOTION | FF_MT_X | FF_MT_Y, 
+                threshold, debounce);
+    }
+    
+    /**
+     * Configures the freefall/motion block to detect freefall: all three
+     * axes below a threshold. Events are latched until 
+     * {@link #readMotionSource()}. Must be called after begin.
+     * @param threshold the threshold in g (0.063 g resolution)
+     * @param debounce the number of samples the condition must last
+     * @throws RuntimeIOException
+     */
+    public void configureFreefall(float threshold, int debounce) 
+            throws RuntimeIOException {
+        configureFreefallMotion(FF_MT_LATCH | FF_MT_X | FF_MT_Y | FF_MT_Z, 
+                threshold, debounce);
+    }
+    
+    private void configureFreefallMotion(int config, float threshold, 
+            int debounce) throws RuntimeIOException {
+        standby();
+        device.writeByteData(Registers.FF_MT_CFG.register, (byte) config);
+        device.writeByteData(Registers.FF_MT_THS.register, 
+                (byte) (FF_MT_DEBOUNCE_CLEAR | thresholdCode(threshold)));
+        device.writeByteData(Registers.FF_MT_COUNT.register, 
+                (byte) Math.max(0, Math.min(255, debounce)));
+        resume();
+    }
+    
+    /**
+     * Reads the freefall/motion source register, clearing a latched event.
+     * @return the source; bit 7 is set if an event was active
+     * @throws RuntimeIOException
+     */
+    public int readMotionSource() throws RuntimeIOException {
+        return Byte.toUnsignedInt(
+                device.readByteData(Registers.FF_MT_SRC.register));
+    }
+    
+    /**
+     * Configures the pulse block to detect single and double taps on all
+     * axes. The time limit, latency and window are in steps that depend on 
+     * the ODR and oversampling (see the datasheet). Events are latched 
+     * until {@link #readPulseSource()}. Must be called after begin.
+     * @param threshold the threshold in g (0.063 g resolution)
+     * @param timeLimit the maximum duration of a pulse, in steps
+     * @param latency the time after a pulse during which another is 
+     * ignored, in steps
+     * @param window the time after the latency within which a second pulse
+     * makes a double tap, in steps
+     * @throws RuntimeIOException
+     */
+    public void configurePulse(float threshold, int timeLimit, int latency,
+            int window) throws RuntimeIOException {
+        standby();
+        device.writeByteData(Registers.PULSE_CFG.register, 
+                (byte) PULSE_ALL_AXES);
+        byte code = (byte) thresholdCode(threshold);
+        device.writeByteData(Registers.PULSE_THSX.register, code);
+        device.writeByteData(Registers.PULSE_THSY.register, code);
+        device.writeByteData(Registers.PULSE_THSZ.register, code);
+        device.writeByteData(Registers.PULSE_TMLT.register, (byte) timeLimit);
+        device.writeByteData(Registers.PULSE_LTCY.register, (byte) latency);
+        device.writeByteData(Registers.PULSE_WIND.register, (byte) window);
+        resume();
+    }
+    
+    /**
+     * Reads the pulse source register, clearing a latched event.
+     * @return the source; PULSE_DOUBLE is set for a double tap
+     * @throws RuntimeIOException
+     */
+    public int readPulseSource() throws RuntimeIOException {
+        return Byte.toUnsignedInt(
+                device.readByteData(Registers.PULSE_SRC.register));
+    }
+    
+    /**
+     * Converts a threshold in g to the 7 bit code of the freefall/motion
+     * and pulse threshold registers.
+     */
+    private static int thresholdCode(float threshold) {
+        return Math.max(1, Math.min(127, Math.round(threshold / THRESHOLD_STEP)));
+    }
+    
+    /**
+     * Goes to standby, so control registers can be changed.
+     */
+    private void standby() throws RuntimeIOException {
+        device.writeByteData(Registers.CTRL_REG1.register, 
+                PowerState.StandBy.stateCode);
+    }
+    
+    /**
+     * Returns to active with the current configuration.
+     */
+    private void resume() throws RuntimeIOException {
+        device.writeByteData(Registers.CTRL_REG1.register, activeCtrlReg1);
+    }
+    
+    /**
+     * Reads the latest magnetometer sample. Allocates nothing.
+     * @param xyz array of at least 3 to receive the sample
+     * @throws RuntimeIOException
+     */
+    public void readMag(int[] xyz) throws RuntimeIOException {
+        device.readI2CBlockData(Registers.M_OUT_X_MSB.register, magBuffer);
+        xyz[0] = (magBuffer[0] << 8) | Byte.toUnsignedInt(magBuffer[1]);
+        xyz[1] = (magBuffer[2] << 8) | Byte.toUnsignedInt(magBuffer[3]);
+        xyz[2] = (magBuffer[4] << 8) | Byte.toUnsignedInt(magBuffer[5]);
+    }
+    
+    /**
+     * Decodes 14-bit left justified accelerometer samples into ints.
+     */
+    private static void decodeAccel(byte[] buffer, int offset, int[] xyz, 
+            int start, int samples) {
+        for (int i = 0; i < samples * 3; i++) {
+            int b = offset + 2 * i;
+            xyz[start + i] = 
+                    ((buffer[b] << 8) | Byte.toUnsignedInt(buffer[b + 1])) >> 2;
+        }
     }
 
     /**
@@ -102,12 +495,32 @@ public class FXOS8700CQ implements AutoCloseable {
      * @throws RuntimeIOException 
      */
     public int[] readRaw() throws RuntimeIOException {
-        // read the data from the device
-        byte[] buffer = new byte[12];
-        device.readI2CBlockData(Registers.M_OUT_X_MSB.register, buffer);
+        int[] res = new int[6];
+        readRaw(res);
+        return res;
+    }
+
+    /**
+     * Reads raw data for all three axes of the accelerometer and 
+     * magnetometer into an array. Allocates nothing, so is suitable for 
+     * interrupt handlers.
+     * @param res array of at least 6 to receive magnetometer XYZ then 
+     * accelerometer XYZ
+     * @throws RuntimeIOException 
+     */
+    public void readRaw(int[] res) throws RuntimeIOException {
+        device.readI2CBlockData(Registers.M_OUT_X_MSB.register, rawBuffer);
+        decodeRaw(rawBuffer, res);
+    }
 
-        // construct the response as an int[]
-        int[] res = new int[6];        
+    /**
+     * Decodes the 12 bytes of a hybrid mode read starting at M_OUT_X_MSB 
+     * into ints, with sign extension. Allocates nothing.
+     * @param buffer the raw bytes
+     * @param res array of at least 6 to receive magnetometer XYZ then 
+     * accelerometer XYZ
+     */
+    public static void decodeRaw(byte[] buffer, int[] res) {
         // magnetometer
         res[0] = (int) (buffer[0] << 8);
         res[0] = res[0] | Byte.toUnsignedInt(buffer[1]);
@@ -122,8 +535,6 @@ public class FXOS8700CQ implements AutoCloseable {
         res[4] = ((res[4] | Byte.toUnsignedInt(buffer[9])) << 18) >> 18 ;
         res[5] = (int) (buffer[10] << 8);
         res[5] = ((res[5] | Byte.toUnsignedInt(buffer[11])) << 18) >> 18 ;
-
-        return res;
     }
 
     /**
@@ -151,9 +562,25 @@ public class FXOS8700CQ implements AutoCloseable {
         OUT_Z_MSB(0x05),
         OUT_Z_LSB(0x06),
 
+        F_SETUP(0x09),
+        
+        INT_SOURCE(0x0C),
         WHO_AM_I(0x0D),
         XYZ_DATA_CFG(0x0E),
 
+        FF_MT_CFG(0x15),
+        FF_MT_SRC(0x16),
+        FF_MT_THS(0x17),
+        FF_MT_COUNT(0x18),
+        PULSE_CFG(0x21),
+        PULSE_SRC(0x22),
+        PULSE_THSX(0x23),
+        PULSE_THSY(0x24),
+        PULSE_THSZ(0x25),
+        PULSE_TMLT(0x26),
+        PULSE_LTCY(0x27),
+        PULSE_WIND(0x28),
+
         CTRL_REG1(0x2A),
         CTRL_REG2(0x2B),
         CTRL_REG3(0x2C),
@@ -181,32 +608,56 @@ public class FXOS8700CQ implements AutoCloseable {
         }
     }
 
+    /**
+     * The interrupts used here, with their bits in CTRL_REG4, CTRL_REG5 and
+     * INT_SOURCE.
+     */
+    public enum Interrupt {
+        DataReady(0x01),
+        FreefallMotion(0x04),
+        Pulse(0x08),
+        Fifo(0x40);
+        
+        public final int mask;
+        
+        Interrupt(int mask) { this.mask = mask; }
+    }
+    
+    /**
+     * The bit of the pulse source set for a double tap.
+     */
+    public static final int PULSE_DOUBLE = 0x08;
+
     public enum AccelRange
     {
-        RANGE_2G(0x00),
-        RANGE_4G(0x01),
-        RANGE_8G(0x02);
+        RANGE_2G(0x00, 0.000244F),
+        RANGE_4G(0x01, 0.000488F),
+        RANGE_8G(0x02, 0.000976F);
 
         public final int rangeCode;
+        public final float sensitivity; // g per count
 
-        AccelRange(int rangeCode) {
+        AccelRange(int rangeCode, float sensitivity) {
             this.rangeCode = rangeCode;
+            this.sensitivity = sensitivity;
         }
     }
 
     public enum ODR {
-        ODR_800(0 << 3),
-        ODR_400(1 << 3),
-        ODR_200(2 << 3),
-        ODR_100(3 << 3),
-        ODR_50(4 << 3),
-        ODR_12_5(5 << 3),
-        ODR_06_25(6 << 3),
-        ODR_01_56(7 << 3);
-
+        ODR_800(800f, 0 << 3),
+        ODR_400(400f, 1 << 3),
+        ODR_200(200f, 2 << 3),
+        ODR_100(100f, 3 << 3),
+        ODR_50(50f, 4 << 3),
+        ODR_12_5(12.5f, 5 << 3),
+        ODR_06_25(6.25f, 6 << 3),
+        ODR_01_56(1.5625f, 7 << 3);
+
+        public final float odr;
         public final int odrCode;
 
-        ODR(int odrCode) {
+        ODR(float odr, int odrCode) {
+            this.odr = odr;
             this.odrCode = odrCode;
         }
     }
@@ -302,4 +753,46 @@ public class FXOS8700CQ implements AutoCloseable {
     -- to pin 1
     */
     private static final byte INTERRUPT_PIN1 = 0x01;
+    /*
+    The contents of registers CNTL_REG4 and CNTL_REG5 (see datasheet) to 
+    set up an interrupt:
+    -- on FIFO watermark
+    -- to pin 1
+    */
+    private static final byte INTERRUPT_FIFO = 0x40;
+    /*
+    The FIFO mode bits of register F_SETUP (see datasheet) for circular
+    buffer mode.
+    */
+    private static final int FIFO_CIRCULAR = 0x40;
+    /*
+    Fields of register F_STATUS (see datasheet).
+    */
+    private static final int FIFO_OVERFLOW = 0x80;
+    private static final int FIFO_COUNT_MASK = 0x3f;
+    /*
+    The ODR bits of register CTRL_REG1.
+    */
+    private static final int ODR_MASK = 0x38;
+    /*
+    Fields of registers FF_MT_CFG and FF_MT_THS (see datasheet): latch
+    events, motion (OR of axes above) rather than freefall (AND of axes
+    below), the axes, and clearing the debounce counter when the condition
+    ends.
+    */
+    private static final int FF_MT_LATCH = 0x80;
+    private static final int FF_MT_MOTION = 0x40;
+    private static final int FF_MT_Z = 0x20;
+    private static final int FF_MT_Y = 0x10;
+    private static final int FF_MT_X = 0x08;
+    private static final int FF_MT_DEBOUNCE_CLEAR = 0x80;
+    /*
+    The contents of register PULSE_CFG (see datasheet): latch events, single
+    and double pulses on all axes.
+    */
+    private static final int PULSE_ALL_AXES = 0x7F;
+    /*
+    The resolution of the freefall/motion and pulse thresholds in g.
+    */
+    private static final float THRESHOLD_STEP = 0.063F;
 }
@@ -0,0 +1,61 @@
+package org.gaf.pimu;
+
+/**
+ * Reconstructs per-sample timestamps for batches of samples drained from a
+ * sensor FIFO on a watermark interrupt. The watermark sample of a batch is
+ * taken to have arrived at the interrupt timestamp, and the others at
+ * multiples of the sample period from it. The period is estimated from
+ * successive interrupts, since the actual ODR of a sensor can differ from
+ * the nominal ODR by a few percent.
+ */
+class FifoClock {
+
+    private final int watermark;
+    private float period; // ns
+    private long tsInterrupt = 0;
+    private int countLast = 0;
+
+    /**
+     * Creates a clock.
+     * @param watermark the FIFO watermark
+     * @param odr the nominal output data rate in Hz
+     */
+    FifoClock(int watermark, float odr) {
+        this.watermark = watermark;
+        this.period = 1_000_000_000f / odr;
+    }
+
+    /**
+     * Starts a new batch.
+     * @param timestamp the interrupt timestamp in nanoseconds
+     * @param count the number of samples in the batch
+     * @param overflow true if the FIFO overflowed, so samples were lost
+     */
+    void batch(long timestamp, int count, boolean overflow) {
+        // the watermark samples of successive batches are separated by the
+        // number of samples in the earlier batch
+        if (tsInterrupt != 0 && countLast > 0 && !overflow) {
+            float measured = (float) (timestamp - tsInterrupt) / countLast;
+            period += (measured - period) / 8;
+        }
+        tsInterrupt = timestamp;
+        countLast = count;
+    }
+
+    /**
+     * Returns the reconstructed timestamp of a sample in the current batch.
+     * @param index the index of the sample, 0 being the oldest
+     * @return the timestamp in nanoseconds
+     */
+    long timestamp(int index) {
+        return tsInterrupt + (long) ((index - (watermark - 1)) * period);
+    }
+
+    /**
+     * Returns the estimated sample period.
+     * @return the period in nanoseconds
+     */
+    float getPeriod() {
+        return period;
+    }
+}
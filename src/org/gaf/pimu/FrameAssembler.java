@@ -0,0 +1,442 @@
+package org.gaf.pimu;
+
+/**
+ * Assembles synchronised 9-axis frames from the separate Gyro and AccelMag
+ * streams. Every sample carries a timestamp from the same monotonic clock
+ * (the interrupt timestamps), so each gyroscope sample is matched with
+ * accelerometer and magnetometer values at the same instant, either by
+ * linear interpolation between the samples either side, or by taking the
+ * nearest sample. A match is only made within a tolerance; gyroscope
+ * samples that cannot be matched are dropped and counted.
+ * <p>
+ * The gyroscope must deliver three axis records (Gyro.activateRawXYZ) and
+ * the accelerometer/magnetometer FIFO mode records
+ * (AccelMag.activateFifo). Since the accelerometer/magnetometer samples
+ * arrive in batches, a gyroscope sample is held until both streams have
+ * caught up with it, or until it is older than the maximum latency. In FIFO
+ * mode the magnetometer is decimated by the watermark, so it has its own 
+ * tolerance, which should be at least its period (see setMagTolerance).
+ * </p>
+ * <p>
+ * Frames are published to a SampleRing with FRAME_WIDTH fields; the values
+ * are raw counts. The assembler is driven by calling {@link #pump()} from
+ * a single consumer thread; it allocates nothing. Statistics on timing
+ * skew and dropped samples are kept.
+ * </p>
+ */
+public class FrameAssembler {
+
+    /**
+     * The frame field holding the timestamp in nanoseconds.
+     */
+    public static final int TIMESTAMP = 0;
+    /**
+     * The frame field holding the gyroscope X axis value.
+     */
+    public static final int GX = 1;
+    /**
+     * The frame field holding the gyroscope Y axis value.
+     */
+    public static final int GY = 2;
+    /**
+     * The frame field holding the gyroscope Z axis value.
+     */
+    public static final int GZ = 3;
+    /**
+     * The frame field holding the accelerometer X axis value.
+     */
+    public static final int AX = 4;
+    /**
+     * The frame field holding the accelerometer Y axis value.
+     */
+    public static final int AY = 5;
+    /**
+     * The frame field holding the accelerometer Z axis value.
+     */
+    public static final int AZ = 6;
+    /**
+     * The frame field holding the magnetometer X axis value.
+     */
+    public static final int MX = 7;
+    /**
+     * The frame field holding the magnetometer Y axis value.
+     */
+    public static final int MY = 8;
+    /**
+     * The frame field holding the magnetometer Z axis value.
+     */
+    public static final int MZ = 9;
+    /**
+     * The number of fields in a frame.
+     */
+    public static final int FRAME_WIDTH = 10;
+
+    /**
+     * How the accelerometer and magnetometer are aligned with a gyroscope
+     * sample.
+     */
+    public enum Alignment {
+        INTERPOLATE,
+        NEAREST
+    }
+
+    private static final int PENDING_SIZE = 256;
+    private static final int HISTORY_SIZE = 64;
+
+    private final SampleRing gyroRing;
+    private final SampleRing accelMagRing;
+    private final SampleRing frameRing;
+    private final Alignment alignment;
+    private final long tolerance;
+    private long magTolerance;
+    private long maxLatency = 100_000_000L;
+
+    private final long[] gyroRecord = new long[Gyro.XYZ_RECORD_WIDTH];
+    private final long[] amRecord = new long[AccelMag.BATCH_RECORD_WIDTH];
+
+    // gyroscope samples waiting for the other streams: ts, x, y, z
+    private final long[] pending = new long[PENDING_SIZE * 4];
+    private int pendingHead = 0;
+    private int pendingCount = 0;
+
+    private final Stream accel = new Stream();
+    private final Stream mag = new Stream();
+
+    // statistics
+    private long frames;
+    private long unmatched;
+    private long frameDrops;
+    private long pendingDrops;
+    private long gyroGaps;
+    private long gyroTsLast;
+    private float gyroPeriod;
+
+    /**
+     * Creates an assembler.
+     * @param gyroRing the ring receiving three axis records from a Gyro
+     * @param accelMagRing the ring receiving FIFO mode records from an
+     * AccelMag
+     * @param frameRing the ring to receive frames; records must be at least
+     * FRAME_WIDTH wide
+     * @param alignment how to align accelerometer and magnetometer samples
+     * @param tolerance the maximum time between a gyroscope sample and the
+     * accelerometer or magnetometer sample matched with it, in nanoseconds;
+     * the magnetometer tolerance can be set separately
+     */
+    public FrameAssembler(SampleRing gyroRing, SampleRing accelMagRing,
+            SampleRing frameRing, Alignment alignment, long tolerance) {
+        if (gyroRing.width() < Gyro.XYZ_RECORD_WIDTH ||
+                accelMagRing.width() < AccelMag.BATCH_RECORD_WIDTH ||
+                frameRing.width() < FRAME_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        this.gyroRing = gyroRing;
+        this.accelMagRing = accelMagRing;
+        this.frameRing = frameRing;
+        this.alignment = alignment;
+        this.tolerance = tolerance;
+        this.magTolerance = tolerance;
+    }
+
+    /**
+     * Sets the maximum time between a gyroscope sample and the 
+     * magnetometer sample matched with it. In FIFO mode there is one 
+     * magnetometer sample per batch, so allow at least the magnetometer 
+     * period: the accelerometer period times AccelMag.getMagDecimation().
+     * The default is the tolerance given at construction.
+     * @param magTolerance the time in nanoseconds
+     */
+    public void setMagTolerance(long magTolerance) {
+        this.magTolerance = magTolerance;
+    }
+
+    /**
+     * Sets the maximum time a gyroscope sample is held waiting for the
+     * accelerometer and magnetometer streams to catch up. The default is
+     * 100 ms.
+     * @param maxLatency the time in nanoseconds
+     */
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * Consumes all available samples from the input rings, and publishes
+     * any frames that can be completed.
+     * @return the number of frames published
+     */
+    public int pump() {
+        long before = frames;
+        while (gyroRing.poll(gyroRecord)) {
+            addGyro();
+        }
+        while (accelMagRing.poll(amRecord)) {
+            Stream stream = (amRecord[AccelMag.KIND] == AccelMag.KIND_ACCEL) ?
+                    accel : mag;
+            stream.add(amRecord[AccelMag.TIMESTAMP], amRecord[AccelMag.X],
+                    amRecord[AccelMag.Y], amRecord[AccelMag.Z]);
+        }
+        emit();
+        return (int) (frames - before);
+    }
+
+    /**
+     * Resets the assembler, discarding held samples and statistics.
+     */
+    public void reset() {
+        pendingHead = 0;
+        pendingCount = 0;
+        accel.clear();
+        mag.clear();
+        frames = 0;
+        unmatched = 0;
+        frameDrops = 0;
+        pendingDrops = 0;
+        gyroGaps = 0;
+        gyroTsLast = 0;
+        gyroPeriod = 0;
+    }
+
+    /**
+     * Holds a gyroscope sample; detects gaps in the gyroscope stream.
+     */
+    private void addGyro() {
+        long ts = gyroRecord[Gyro.TIMESTAMP];
+        if (gyroTsLast != 0) {
+            long delta = ts - gyroTsLast;
+            if (gyroPeriod == 0) {
+                gyroPeriod = delta;
+            } else if (delta > 1.5f * gyroPeriod) {
+                gyroGaps += Math.round(delta / gyroPeriod) - 1;
+            } else {
+                gyroPeriod += (delta - gyroPeriod) / 16;
+            }
+        }
+        gyroTsLast = ts;
+
+        if (pendingCount == PENDING_SIZE) {
+            // the other streams have stalled; drop the oldest
+            pendingHead = (pendingHead + 1) & (PENDING_SIZE - 1);
+            pendingCount--;
+            pendingDrops++;
+        }
+        int i = ((pendingHead + pendingCount) & (PENDING_SIZE - 1)) * 4;
+        pending[i] = ts;
+        pending[i + 1] = gyroRecord[Gyro.VALUE_X];
+        pending[i + 2] = gyroRecord[Gyro.VALUE_Y];
+        pending[i + 3] = gyroRecord[Gyro.VALUE];
+        pendingCount++;
+    }
+
+    /**
+     * Completes held gyroscope samples that the other streams have caught
+     * up with, or that have waited too long.
+     */
+    private void emit() {
+        while (pendingCount > 0) {
+            int i = pendingHead * 4;
+            long ts = pending[i];
+            boolean ready = accel.newest() >= ts && mag.newest() >= ts;
+            if (!ready && gyroTsLast - ts < maxLatency) return;
+
+            if (accel.match(ts, alignment, tolerance) &&
+                    mag.match(ts, alignment, magTolerance)) {
+                if (frameRing.claim()) {
+                    frameRing.put(TIMESTAMP, ts);
+                    frameRing.put(GX, pending[i + 1]);
+                    frameRing.put(GY, pending[i + 2]);
+                    frameRing.put(GZ, pending[i + 3]);
+                    frameRing.put(AX, accel.x);
+                    frameRing.put(AY, accel.y);
+                    frameRing.put(AZ, accel.z);
+                    frameRing.put(MX, mag.x);
+                    frameRing.put(MY, mag.y);
+                    frameRing.put(MZ, mag.z);
+                    frameRing.publish();
+                    frames++;
+                    accel.recordSkew();
+                    mag.recordSkew();
+                } else {
+                    frameDrops++;
+                }
+            } else {
+                unmatched++;
+            }
+            pendingHead = (pendingHead + 1) & (PENDING_SIZE - 1);
+            pendingCount--;
+        }
+    }
+
+    /**
+     * Returns the number of frames published.
+     * @return number of frames
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of gyroscope samples dropped because no
+     * accelerometer or magnetometer sample was within its tolerance.
+     * @return number of samples
+     */
+    public long getUnmatchedCount() {
+        return unmatched;
+    }
+
+    /**
+     * Returns the number of frames dropped because the frame ring was full.
+     * @return number of frames
+     */
+    public long getFrameDropCount() {
+        return frameDrops;
+    }
+
+    /**
+     * Returns the number of gyroscope samples dropped because too many were
+     * held waiting for the other streams.
+     * @return number of samples
+     */
+    public long getPendingDropCount() {
+        return pendingDrops;
+    }
+
+    /**
+     * Returns the number of gyroscope samples missing from the gyroscope
+     * stream, judged from gaps in its timestamps.
+     * @return number of samples
+     */
+    public long getGyroGapCount() {
+        return gyroGaps;
+    }
+
+    /**
+     * Returns the mean absolute time between a gyroscope sample and the
+     * nearest accelerometer sample, over the published frames.
+     * @return the skew in nanoseconds
+     */
+    public long getAccelSkewMean() {
+        return accel.skewMean();
+    }
+
+    /**
+     * Returns the maximum absolute time between a gyroscope sample and the
+     * nearest accelerometer sample, over the published frames.
+     * @return the skew in nanoseconds
+     */
+    public long getAccelSkewMax() {
+        return accel.skewMax;
+    }
+
+    /**
+     * Returns the mean absolute time between a gyroscope sample and the
+     * nearest magnetometer sample, over the published frames.
+     * @return the skew in nanoseconds
+     */
+    public long getMagSkewMean() {
+        return mag.skewMean();
+    }
+
+    /**
+     * Returns the maximum absolute time between a gyroscope sample and the
+     * nearest magnetometer sample, over the published frames.
+     * @return the skew in nanoseconds
+     */
+    public long getMagSkewMax() {
+        return mag.skewMax;
+    }
+
+    /**
+     * The recent history of the accelerometer or magnetometer stream, and
+     * the result of the latest match.
+     */
+    private static class Stream {
+
+        // ts, x, y, z
+        private final long[] history = new long[HISTORY_SIZE * 4];
+        private int next = 0;
+        private int count = 0;
+
+        // the latest match
+        private long x, y, z;
+        private long skew;
+
+        private long skewSum;
+        private long skewCount;
+        private long skewMax;
+
+        void add(long ts, long x, long y, long z) {
+            int i = next * 4;
+            history[i] = ts;
+            history[i + 1] = x;
+            history[i + 2] = y;
+            history[i + 3] = z;
+            next = (next + 1) & (HISTORY_SIZE - 1);
+            if (count < HISTORY_SIZE) count++;
+        }
+
+        void clear() {
+            count = 0;
+            skewSum = 0;
+            skewCount = 0;
+            skewMax = 0;
+        }
+
+        long newest() {
+            if (count == 0) return Long.MIN_VALUE;
+            return history[((next - 1) & (HISTORY_SIZE - 1)) * 4];
+        }
+
+        /**
+         * Finds the values at a time.
+         * @return true if matched within the tolerance
+         */
+        boolean match(long ts, Alignment alignment, long tolerance) {
+            if (count == 0) return false;
+            // search back from the newest for the sample at or before ts
+            int after = -1;
+            int before = -1;
+            for (int n = 1; n <= count; n++) {
+                int i = ((next - n) & (HISTORY_SIZE - 1)) * 4;
+                if (history[i] <= ts) {
+                    before = i;
+                    break;
+                }
+                after = i;
+            }
+
+            long dBefore = (before < 0) ? Long.MAX_VALUE : ts - history[before];
+            long dAfter = (after < 0) ? Long.MAX_VALUE : history[after] - ts;
+            skew = Math.min(dBefore, dAfter);
+            if (skew > tolerance) return false;
+
+            if (alignment == Alignment.INTERPOLATE && before >= 0 &&
+                    after >= 0) {
+                long span = history[after] - history[before];
+                float f = (span == 0) ? 0 : (float) dBefore / span;
+                x = interpolate(history[before + 1], history[after + 1], f);
+                y = interpolate(history[before + 2], history[after + 2], f);
+                z = interpolate(history[before + 3], history[after + 3], f);
+            } else {
+                int i = (dBefore <= dAfter) ? before : after;
+                x = history[i + 1];
+                y = history[i + 2];
+                z = history[i + 3];
+            }
+            return true;
+        }
+
+        void recordSkew() {
+            skewSum += skew;
+            skewCount++;
+            if (skew > skewMax) skewMax = skew;
+        }
+
+        long skewMean() {
+            return (skewCount == 0) ? 0 : skewSum / skewCount;
+        }
+
+        private static long interpolate(long a, long b, float f) {
+            return a + Math.round((b - a) * f);
+        }
+    }
+}
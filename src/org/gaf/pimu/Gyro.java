@@ -3,57 +3,162 @@ package org.gaf.pimu;
 import com.diozero.api.DigitalInputDevice;
 import com.diozero.api.GpioEventTrigger;
 import com.diozero.api.GpioPullUpDown;
+import com.diozero.api.I2CConstants;
 import com.diozero.api.RuntimeIOException;
 import com.diozero.util.SleepUtil;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
 
 /**
  * A gyroscope that is "data ready interrupt" driven. It delivers results via
- * a FIFO queue. The results range from raw readings to an absolute heading
+ * a SampleRing. The results range from raw readings to an absolute heading
  * calculated from data that has a zero offset and a dead zone applied.
+ * Instead of the interrupt, data ready can be detected by polling; see
+ * setAcquisitionMode.
+ * <p>
+ * Each record in the ring has two fields: the value (at VALUE) and the time 
+ * delta from the previous interrupt in nanoseconds (at TS_DELTA). For a
+ * heading, the value is a float encoded via SampleRing.fromFloat. Raw 
+ * results for all three axes use wider records: the value field holds the 
+ * Z axis, and the X and Y axes and the absolute interrupt timestamp follow
+ * at VALUE_X, VALUE_Y and TIMESTAMP. A heading record can be wider too,
+ * with an error estimate (a float) at HEADING_ERROR.
+ * </p>
  */
 public class Gyro implements AutoCloseable {
     
-    private final BlockingQueue queue;
+    /**
+     * The record field holding the value.
+     */
+    public static final int VALUE = 0;
+    /**
+     * The record field holding the time delta.
+     */
+    public static final int TS_DELTA = 1;
+    /**
+     * The number of fields in a record.
+     */
+    public static final int RECORD_WIDTH = 2;
+    /**
+     * The record field holding the X axis value for three axis results.
+     */
+    public static final int VALUE_X = 2;
+    /**
+     * The record field holding the Y axis value for three axis results.
+     */
+    public static final int VALUE_Y = 3;
+    /**
+     * The record field holding the interrupt timestamp in nanoseconds for
+     * three axis results.
+     */
+    public static final int TIMESTAMP = 4;
+    /**
+     * The number of fields in a three axis record.
+     */
+    public static final int XYZ_RECORD_WIDTH = 5;
+    /**
+     * The record field holding the heading error estimate for headings.
+     */
+    public static final int HEADING_ERROR = 2;
+    /**
+     * The number of fields in a heading record with an error estimate.
+     */
+    public static final int HEADING_RECORD_WIDTH = 3;
+    
+    private final SampleRing ring;
     private FXAS21002C fxas = null;
     private DigitalInputDevice catcher = null;
+    private Acquisition acquisition = null;
     private FXAS21002C.ODR odr;
     
     private long tsLast;
     private boolean active = false;
     
+    // the latest reading, reused to avoid allocation in the handlers
+    private final int[] xyz = new int[3];
+    
     private static final int BAD_DATA = 5;
     private final long[] acc = new long[3];
     private int total;
-    private final float[] zeroOffset = new float[3];
+    // replaced, not changed, by the caller's thread, so a handler sees a
+    // whole offset; refined in place by the estimator on the handler thread
+    private volatile float[] zeroOffset = new float[3];
     
-    private static final long DEAD_ZONE = 20;
+    /**
+     * The default dead zone in counts.
+     */
+    public static final long DEFAULT_DEAD_ZONE = 20;
+    // kept unrounded, so scaling back and forth between ranges does not drift
+    private volatile float deadZone = DEFAULT_DEAD_ZONE;
 
-    private float angle;    
-    private float sensitivity;
-    private float period;    
+    // persisted calibration and background refinement
+    private CalibrationCache cache = null;
+    private int temperature;
+    private boolean calibrated = false;
+    private volatile BiasEstimator estimator = null;
+    
+    // heading integration; sensitivity (dps per count) changes with range
+    private volatile float sensitivity;
+    private HeadingIntegrator.Method headingMethod = 
+            HeadingIntegrator.Method.TRAPEZOIDAL;
+    private volatile HeadingIntegrator integrator = null;
+    private boolean headingError;
+    
+    // FIFO mode
+    private final int[] fifoXyz = new int[3 * FXAS21002C.FIFO_SIZE];
+    private volatile FifoClock fifoClock;
+    private long batches;
+    private long fifoOverflows;
     
     /**
-     * Constructs a new gyroscope.
+     * Constructs a new gyroscope at the default address on the default I2C
+     * controller.
      * 
      * @param interruptPin The GPIO pin for interrupts from the device.
-     * @param queue The queue used to provide data
+     * @param ring The ring buffer used to provide data; records must have
+     * at least RECORD_WIDTH fields
      * @throws IOException 
      */
-    public Gyro(int interruptPin, BlockingQueue queue) throws IOException {
-        this.queue = queue;
+    public Gyro(int interruptPin, SampleRing ring) throws IOException {
+        this(I2CConstants.CONTROLLER_1, FXAS21002C.DEFAULT_ADDRESS, 
+                interruptPin, ring);
+    }
+    
+    /**
+     * Constructs a new gyroscope on an I2C controller at an address, for 
+     * example for a second board on another bus.
+     * 
+     * @param controller The I2C controller (bus).
+     * @param address The I2C address of the FXAS21002C.
+     * @param interruptPin The GPIO pin for interrupts from the device; -1 
+     * if not connected, in which case the hybrid acquisition mode is used.
+     * @param ring The ring buffer used to provide data; records must have
+     * at least RECORD_WIDTH fields
+     * @throws IOException 
+     */
+    public Gyro(int controller, int address, int interruptPin, 
+            SampleRing ring) throws IOException {
+        if (ring.width() < RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        this.ring = ring;
         // create a FXAS21002C
-        this.fxas = new FXAS21002C();
+        this.fxas = new FXAS21002C(controller, address);
         // create a interrupt catcher
-        try {
-            catcher = new DigitalInputDevice(
-                    interruptPin, 
-                    GpioPullUpDown.NONE,
-                    GpioEventTrigger.RISING);
-        } catch (RuntimeIOException ex) {
-            throw new IOException(ex.getMessage());            
-        }        
+        if (interruptPin >= 0) {
+            try {
+                catcher = new DigitalInputDevice(
+                        interruptPin, 
+                        GpioPullUpDown.NONE,
+                        GpioEventTrigger.RISING);
+            } catch (RuntimeIOException ex) {
+                fxas.close();
+                throw new IOException(ex.getMessage());            
+            }        
+        }
+        // interrupts by default; polling checks for all three axes ready
+        acquisition = new Acquisition(catcher, () -> fxas.isXYZReady(false),
+                (catcher != null) ? Acquisition.Mode.INTERRUPT : 
+                        Acquisition.Mode.HYBRID);
     }
 
     /**
@@ -62,6 +167,10 @@ public class Gyro implements AutoCloseable {
     @Override
     public void close() {
         System.out.println("Gyro close");
+        if (acquisition != null) {
+            acquisition.close();
+            acquisition = null;
+        }
         if (fxas != null) {
             fxas.close();
             fxas = null; 
@@ -80,9 +189,194 @@ public class Gyro implements AutoCloseable {
      */
     public void begin(FXAS21002C.LpfCutoff lpfCutoff, FXAS21002C.ODR odr) 
             throws RuntimeIOException {
+        begin(lpfCutoff, odr, FXAS21002C.Range.DPS250);
+    }
+
+    /**
+     * Set the configuration for the underlying FXAS21002C, including the 
+     * full scale range.
+     * @param lpfCutoff The low pass filter cutoff option.
+     * @param odr The desired output data rate.
+     * @param range The desired full scale range.
+     * @throws RuntimeIOException 
+     */
+    public void begin(FXAS21002C.LpfCutoff lpfCutoff, FXAS21002C.ODR odr,
+            FXAS21002C.Range range) throws RuntimeIOException {
         this.odr = odr;
+        acquisition.setOdr(odr.odr);
         // start the FXAS21002C
-        fxas.begin(lpfCutoff, odr);       
+        fxas.begin(lpfCutoff, odr, range);       
+    }
+    
+    /**
+     * Changes the output data rate, full scale range and low pass filter 
+     * cutoff without a reset, for example to switch between low power 
+     * cruising and high rate manoeuvring. Can be called while active; the 
+     * zero offset and dead zone (both in counts), the heading sensitivity 
+     * and period, the FIFO clock and the bias estimation window are kept in
+     * step. The rescaled zero offset is handed to the handlers as a new 
+     * array, as the estimator is, so a refinement made during the call is
+     * lost. The data gap is measured by the acquisition (see 
+     * Acquisition.getLastGap).
+     * @param lpfCutoff The low pass filter cutoff option.
+     * @param odr The desired output data rate.
+     * @param range The desired full scale range.
+     * @throws RuntimeIOException 
+     */
+    public void reconfigure(FXAS21002C.LpfCutoff lpfCutoff, 
+            FXAS21002C.ODR odr, FXAS21002C.Range range) 
+            throws RuntimeIOException {
+        FXAS21002C.Range old = fxas.getRange();
+        acquisition.markGap();
+        fxas.reconfigure(lpfCutoff, odr, range);
+        this.odr = odr;
+        acquisition.setOdr(odr.odr);
+
+        // the zero offset and dead zone are in counts, so scale them to the
+        // new range
+        float ratio = old.sensitivity / range.sensitivity;
+        float[] offset = zeroOffset.clone();
+        for (int a = 0; a < 3; a++) {
+            offset[a] *= ratio;
+        }
+        zeroOffset = offset;
+        deadZone = deadZone * ratio;
+        sensitivity = range.sensitivity;
+        HeadingIntegrator hi = integrator;
+        if (hi != null) hi.setNominalPeriod(nominalPeriod());
+        int watermark = fxas.getFifoWatermark();
+        if (watermark > 0) fifoClock = new FifoClock(watermark, odr.odr);
+        if (estimator != null) enableBiasEstimation(true);
+    }
+
+    /**
+     * Set the configuration for the underlying FXAS21002C, and load the 
+     * zero offset for the current temperature from a calibration cache. 
+     * If one is found, there is no need to call calcZeroOffset, so 
+     * calibrated results are available from the first interrupt.
+     * @param lpfCutoff The low pass filter cutoff option.
+     * @param odr The desired output data rate.
+     * @param cache The calibration cache.
+     * @return true if a zero offset was loaded
+     * @throws RuntimeIOException 
+     */
+    public boolean begin(FXAS21002C.LpfCutoff lpfCutoff, FXAS21002C.ODR odr,
+            CalibrationCache cache) throws RuntimeIOException {
+        begin(lpfCutoff, odr);
+        this.cache = cache;
+        temperature = fxas.readTemperature();
+        float[] offset = new float[3];
+        calibrated = cache.getGyroBias(fxas.getKey(), temperature, offset);
+        if (calibrated) zeroOffset = offset;
+        return calibrated;
+    }
+    
+    /**
+     * Returns the temperature read by begin with a calibration cache, which 
+     * selects the zero offset loaded from, and saved to, the cache.
+     * @return the temperature in C
+     */
+    public int getCalibrationTemperature() {
+        return temperature;
+    }
+    
+    /**
+     * Copies the zero offset (including any refinement).
+     * @param offset array of at least 3 to receive the X, Y, Z offset in 
+     * counts
+     */
+    public void getZeroOffset(float[] offset) {
+        System.arraycopy(zeroOffset, 0, offset, 0, 3);
+    }
+    
+    /**
+     * Indicates if the zero offset is known, either loaded from a 
+     * calibration cache or calculated.
+     * @return true if known
+     */
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+    
+    /**
+     * Enables refinement of the zero offset while the gyroscope is 
+     * stationary, in the interrupt handlers that apply the zero offset.
+     * Windows of half a second are used. Must be called after begin.
+     * @param enable true to enable
+     */
+    public void enableBiasEstimation(boolean enable) {
+        estimator = enable ? 
+                new BiasEstimator(Math.max(2, (int) (odr.odr / 2)), 
+                        deadZone / 2, deadZone, 0.1f) : 
+                null;
+    }
+    
+    /**
+     * Sets the dead zone applied by the zero offset and dead zone and the
+     * heading handlers; results within it are taken as zero. It is in 
+     * counts at the current range; reconfigure scales it to a new range, as
+     * it does the zero offset. NoiseAnalyzer can suggest a value from a 
+     * recording. Affects a bias estimator enabled afterwards.
+     * @param deadZone the dead zone in counts
+     */
+    public void setDeadZone(long deadZone) {
+        if (deadZone < 0)
+            throw new IllegalArgumentException("Dead zone must be >= 0");
+        this.deadZone = deadZone;
+    }
+    
+    /**
+     * Returns the dead zone, at the current range.
+     * @return the dead zone in counts, to the nearest count
+     */
+    public long getDeadZone() {
+        return Math.round(deadZone);
+    }
+    
+    /**
+     * Returns the bias estimator, if enabled.
+     * @return the estimator; null if not enabled
+     */
+    public BiasEstimator getBiasEstimator() {
+        return estimator;
+    }
+    
+    /**
+     * Saves the current zero offset (including any refinement) to the 
+     * calibration cache used by begin, for the temperature at begin.
+     * @throws IOException if the cache cannot be written
+     */
+    public void saveCalibration() throws IOException {
+        if (cache == null || !calibrated) return;
+        // profiles are kept in counts at the default range used by begin
+        float ratio = fxas.getRange().sensitivity / 
+                FXAS21002C.Range.DPS250.sensitivity;
+        float[] offset = zeroOffset;
+        float[] bias = new float[3];
+        for (int a = 0; a < 3; a++) {
+            bias[a] = offset[a] * ratio;
+        }
+        cache.putGyroBias(fxas.getKey(), temperature, bias);
+        cache.save();
+    }
+
+    /**
+     * Sets how data ready is detected: by interrupt (the default), by busy
+     * polling the data ready status, or by a hybrid of sleeping and polling.
+     * Takes effect at the next activation; must be set while not active. 
+     * The FIFO mode needs interrupts.
+     * @param mode the acquisition mode
+     */
+    public void setAcquisitionMode(Acquisition.Mode mode) {
+        acquisition.setMode(mode);
+    }
+    
+    /**
+     * Returns the acquisition, for its latency and CPU statistics.
+     * @return the acquisition
+     */
+    public Acquisition getAcquisition() {
+        return acquisition;
     }
 
     /**
@@ -91,26 +385,104 @@ public class Gyro implements AutoCloseable {
      * @throws RuntimeIOException
      */
     public void activateIH() throws RuntimeIOException {               
+        // the handlers other than the FIFO handler need data ready interrupts
+        if (fxas.getFifoWatermark() > 0) fxas.disableFifo();
+        
         // read to clear interrupt status
-        fxas.readRaw();
+        fxas.readRaw(xyz);
 
-        // empty the queue
-        queue.clear();
+        // empty the ring
+        ring.clear();
 
         // set active
         tsLast = 0;
         this.active = true;
     }
 
+    /**
+     * Starts the acquisition with a handler, and activates it. Interrupts are
+     * listened for before the read that clears the interrupt status, so none
+     * is missed; a polling thread starts after that read, so the two do not
+     * share the bus.
+     * @param handler the handler
+     * @throws RuntimeIOException
+     */
+    private void activate(LongConsumer handler) throws RuntimeIOException {
+        acquisition.stop();
+        boolean interrupts = acquisition.getMode() == Acquisition.Mode.INTERRUPT;
+        if (interrupts) acquisition.start(handler);
+        activateIH();
+        if (!interrupts) acquisition.start(handler);
+    }
+
      /**
      * Activates the interrupt handler to deliver raw results.
      * @throws RuntimeIOException
      */
     public void activateRaw() throws RuntimeIOException {       
         // identify interrupt handler
-        catcher.whenActivated(this::queueRaw);
-        
-        activateIH();
+        activate(this::queueRaw);
+    }
+   
+    /**
+     * Activates the interrupt handler to deliver raw results for all three
+     * axes, for example for sensor fusion. The ring must have records at 
+     * least XYZ_RECORD_WIDTH wide.
+     * @throws RuntimeIOException
+     */
+    public void activateRawXYZ() throws RuntimeIOException {
+        if (ring.width() < XYZ_RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        // identify interrupt handler
+        activate(this::queueRawXYZ);
+    }
+   
+    /**
+     * Activates the FIFO of the FXAS21002C and the interrupt handler to 
+     * deliver raw Z axis results in batches. There is one interrupt and 
+     * (usually) one I2C transaction per batch, rather than per sample. The 
+     * time delta for each sample is reconstructed from the interrupt 
+     * timestamps and the measured sample period.
+     * @param watermark the number of samples in a batch (1-32)
+     * @throws RuntimeIOException
+     */
+    public void activateFifo(int watermark) throws RuntimeIOException {
+        if (acquisition.getMode() != Acquisition.Mode.INTERRUPT)
+            throw new IllegalStateException("FIFO mode needs interrupts");
+        fxas.enableFifo(watermark);
+
+        // identify interrupt handler
+        acquisition.start(this::queueFifo);
+
+        // drain to clear interrupt status
+        fxas.readFifo(fifoXyz);
+
+        // empty the ring
+        ring.clear();
+
+        // set active
+        tsLast = 0;
+        fifoClock = new FifoClock(watermark, odr.odr);
+        batches = 0;
+        fifoOverflows = 0;
+        this.active = true;
+    }
+    
+    /**
+     * Returns the number of FIFO batches handled since FIFO activation.
+     * @return number of batches
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+    
+    /**
+     * Returns the number of FIFO overflows (each losing samples) since 
+     * FIFO activation.
+     * @return number of overflows
+     */
+    public long getFifoOverflowCount() {
+        return fifoOverflows;
     }
    
     /**
@@ -118,6 +490,7 @@ public class Gyro implements AutoCloseable {
      */
     public void deactivate() {
         this.active = false;
+        acquisition.stop();
     }
 
      /**
@@ -127,9 +500,7 @@ public class Gyro implements AutoCloseable {
      */
     public void activateZO() throws RuntimeIOException {       
         // identify interrupt handler
-        catcher.whenActivated(this::queueO);
-        
-        activateIH();
+        activate(this::queueO);
     }
    
      /**
@@ -139,9 +510,7 @@ public class Gyro implements AutoCloseable {
      */
     public void activateZODZ() throws RuntimeIOException {       
         // identify interrupt handler
-        catcher.whenActivated(this::queueOD);
-
-        activateIH();
+        activate(this::queueOD);
     }
    
     /**
@@ -162,8 +531,7 @@ public class Gyro implements AutoCloseable {
         total = 0;
         
         // identify interrupt handler that accumulates raw data and activate
-        catcher.whenActivated(this::accumulateRaw);
-        activateIH();
+        activate(this::accumulateRaw);
             
         // sleept to gather raw data
         SleepUtil.sleepMillis(period);
@@ -171,53 +539,142 @@ public class Gyro implements AutoCloseable {
         
         // calculate the zero offsets
         float denom = (float) (total - BAD_DATA);
-        zeroOffset[0] = (float) acc[0] / denom;
-        zeroOffset[1] = (float) acc[1] / denom;
-        zeroOffset[2] = (float) acc[2] / denom;
+        float[] offset = new float[3];
+        offset[0] = (float) acc[0] / denom;
+        offset[1] = (float) acc[1] / denom;
+        offset[2] = (float) acc[2] / denom;
+        zeroOffset = offset;
         System.out.println("Total = " + denom);
-        System.out.format("Zero offsets: z=%f ", zeroOffset[2]);
+        System.out.format("Zero offsets: z=%f ", offset[2]);
+        calibrated = true;
+    }
+    
+    /**
+     * Activates the interrupt handler to deliver a Z axis heading, using the
+     * range configured in the FXAS21002C. 
+     * @throws RuntimeIOException
+     */
+    public void activateHeading() throws RuntimeIOException {
+        activateHeading(fxas.getRange());
+    }
+    
+    /**
+     * Sets the method used to integrate the heading; takes effect 
+     * immediately. The default is trapezoidal.
+     * @param method the integration method
+     */
+    public void setHeadingMethod(HeadingIntegrator.Method method) {
+        headingMethod = method;
+        HeadingIntegrator hi = integrator;
+        if (hi != null) hi.setMethod(method);
+    }
+    
+    /**
+     * Returns the heading integrator, for its error estimate and gap 
+     * counts.
+     * @return the integrator; null if a heading has not been activated
+     */
+    public HeadingIntegrator getHeadingIntegrator() {
+        return integrator;
     }
     
     /**
-     * Activates the interrupt handler to deliver a Z axis heading. 
+     * Activates the interrupt handler to deliver a Z axis heading. The 
+     * heading is integrated using the interrupt timestamps (see 
+     * HeadingIntegrator). If the ring records are HEADING_RECORD_WIDTH 
+     * wide, an error estimate is included.
      * @param range The range used by the FXAS21002C instance
      * @throws RuntimeIOException
      */
     public void activateHeading(FXAS21002C.Range range) 
             throws RuntimeIOException {
         // initialize
-        angle = 0;
         sensitivity = range.sensitivity;
-        period = 1 / odr.odr;
-//        System.out.println("sensitivity = " + sensitivity + " period = " + period);
+        integrator = new HeadingIntegrator(headingMethod, nominalPeriod());
+        headingError = ring.width() >= HEADING_RECORD_WIDTH;
 
         // identify interrupt handler
-        catcher.whenActivated(this::queueHeading);
-
-        activateIH();        
+        activate(this::queueHeading);
     }
         
     
+    /**
+     * Returns the nominal sample period in nanoseconds.
+     */
+    private long nominalPeriod() {
+        return (long) (1e9 / odr.odr);
+    }
+    
     /**
      * Interrupt handler: Reads raw data. Calculates time delta between this
-     * and last interrupt. Queues the Z axis value.
+     * and last interrupt. Publishes the Z axis value.
      * @param timestamp timestamp for the interrupt in nanoseconds
      * @throws RuntimeIOException
      */
     private void queueRaw(long timestamp) throws RuntimeIOException {
         if (active) {
-            int[] xyz = fxas.readRaw();
+            fxas.readRaw(xyz);
             
             long tsDelta = timestamp - tsLast;
             tsLast = timestamp;
-            long[] sample = {xyz[2], tsDelta};
 
-            // queue it if queue not full
-            if (!queue.offer(sample))
-                System.err.println("Queue Full!");
+            // publish it; a full ring applies its overflow policy
+            ring.offer(xyz[2], tsDelta);
         }       
     }    
         
+    /**
+     * Interrupt handler: Reads raw data. Calculates time delta between this
+     * and last interrupt. Publishes all three axes with the timestamp.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     * @throws RuntimeIOException
+     */
+    private void queueRawXYZ(long timestamp) throws RuntimeIOException {
+        if (active) {
+            fxas.readRaw(xyz);
+            
+            long tsDelta = timestamp - tsLast;
+            tsLast = timestamp;
+
+            // publish it; a full ring applies its overflow policy
+            if (ring.claim()) {
+                ring.put(VALUE, xyz[2]);
+                ring.put(TS_DELTA, tsDelta);
+                ring.put(VALUE_X, xyz[0]);
+                ring.put(VALUE_Y, xyz[1]);
+                ring.put(TIMESTAMP, timestamp);
+                ring.publish();
+            }
+        }       
+    }    
+        
+    /**
+     * Interrupt handler: Drains the FIFO. Reconstructs the timestamp of each
+     * sample. Publishes the Z axis value of each sample with its time delta.
+     * @param timestamp timestamp for the interrupt in nanoseconds
+     * @throws RuntimeIOException
+     */
+    private void queueFifo(long timestamp) throws RuntimeIOException {
+        if (active) {
+            int count = fxas.readFifo(fifoXyz);
+            boolean overflow = fxas.isFifoOverflow();
+            if (overflow) fifoOverflows++;
+            batches++;
+            // the clock is replaced when the ODR is reconfigured
+            FifoClock clock = fifoClock;
+            clock.batch(timestamp, count, overflow);
+
+            for (int i = 0; i < count; i++) {
+                long ts = clock.timestamp(i);
+                long tsDelta = (tsLast == 0) ? 0 : ts - tsLast;
+                tsLast = ts;
+
+                // publish it; a full ring applies its overflow policy
+                ring.offer(fifoXyz[3 * i + 2], tsDelta);
+            }
+        }
+    }
+        
     /**
      * Interrupt handler: Reads raw data; adds to the accumulation
      * to used to calculate the zero offsets. It skips the first few 
@@ -227,7 +684,7 @@ public class Gyro implements AutoCloseable {
      */
     private void accumulateRaw(long timestamp) throws RuntimeIOException {
         if (active) { 
-            int[] xyz = fxas.readRaw();
+            fxas.readRaw(xyz);
 
             if (total >= BAD_DATA) {
                 acc[0] += xyz[0];
@@ -241,23 +698,23 @@ public class Gyro implements AutoCloseable {
     /**
      * Interrupt handler: Reads the raw data, subtracts the zero offset. 
      * Calculates time delta between this
-     * and last interrupt. Queues the results for the Z axis. 
+     * and last interrupt. Publishes the results for the Z axis. 
      * @param timestamp timestamp for the interrupt in nanoseconds
      * @throws RuntimeIOException
      */
     public void queueO(long timestamp) throws RuntimeIOException {        
         if (active) {
-            int[] xyz = fxas.readRaw();
+            fxas.readRaw(xyz);
+            float[] offset = zeroOffset;
+            if (estimator != null) estimator.update(xyz, offset);
 
             long tsDelta = timestamp - tsLast;
             tsLast = timestamp;
 
-            long z =  xyz[2] - (long) zeroOffset[2];
-            long[] sample = {z, tsDelta};
+            long z =  xyz[2] - (long) offset[2];
 
-            // queue it if queue not full
-            if (!queue.offer(sample))
-                System.err.println("Queue Full!");
+            // publish it; a full ring applies its overflow policy
+            ring.offer(z, tsDelta);
         }              
     }
 
@@ -265,27 +722,27 @@ public class Gyro implements AutoCloseable {
      * Interrupt handler: Reads the raw data, subtracts the zero offset, 
      * restricts result to outside the dead zone. 
      * Calculates time delta between this
-     * and last interrupt. Queues the results for the Z axis. 
+     * and last interrupt. Publishes the results for the Z axis. 
      * @param timestamp timestamp for the interrupt in nanoseconds
      * @throws RuntimeIOException
      */
     public void queueOD(long timestamp) throws RuntimeIOException {
         if (active) {
-            int[] xyz = fxas.readRaw();
+            fxas.readRaw(xyz);
+            float[] offset = zeroOffset;
+            if (estimator != null) estimator.update(xyz, offset);
 
             long tsDelta = timestamp - tsLast;
             tsLast = timestamp;
-            long z =  xyz[2] - (long) zeroOffset[2];
+            long z =  xyz[2] - (long) offset[2];
 
-            if ((-DEAD_ZONE <= z) && (z <= DEAD_ZONE)) {
+            float dz = deadZone;
+            if ((-dz <= z) && (z <= dz)) {
                  z = 0;
             }
 
-            long[] sample = {z, tsDelta};
-
-            // queue it if queue not full
-            if (!queue.offer(sample))
-                System.err.println("Queue Full!");
+            // publish it; a full ring applies its overflow policy
+            ring.offer(z, tsDelta);
         }              
     }
     
@@ -293,24 +750,36 @@ public class Gyro implements AutoCloseable {
      * Interrupt handler: Reads the raw data, calculates
      * the Z axis minus the zero offset, determines if the result is outside
      * the "dead zone", integrates the result or 0 (as appropriate) to produce
-     * an updated heading.
+     * an updated heading, and publishes it.
      * 
      * @param timestamp timestamp for the interrupt in nanoseconds
      * @throws RuntimeIOException
      */
     public void queueHeading(long timestamp) throws RuntimeIOException {
         if (active) {
-            int[] xyz = fxas.readRaw();
-            float z =  (float) xyz[2] - zeroOffset[2];
-            if ((-DEAD_ZONE <= z) && (z <= DEAD_ZONE)) {
+            fxas.readRaw(xyz);
+            float[] offset = zeroOffset;
+            if (estimator != null) estimator.update(xyz, offset);
+
+            long tsDelta = timestamp - tsLast;
+            tsLast = timestamp;
+            float z =  (float) xyz[2] - offset[2];
+            float dz = deadZone;
+            if ((-dz <= z) && (z <= dz)) {
                  z = 0;
             }
-            // integrate
-            angle += (z * sensitivity) * period;
+            // integrate using the timestamp
+            HeadingIntegrator hi = integrator;
+            float heading = (float) hi.update(z * sensitivity, timestamp);
 
-            // put the angle in queue if queue not full
-            if (!queue.offer(angle))
-                System.err.println("Queue Full!");
+            // publish the heading; a full ring applies its overflow policy
+            if (ring.claim()) {
+                ring.put(VALUE, SampleRing.fromFloat(heading));
+                ring.put(TS_DELTA, tsDelta);
+                if (headingError) ring.put(HEADING_ERROR, 
+                        SampleRing.fromFloat((float) hi.getErrorEstimate()));
+                ring.publish();
+            }
         }       
     }    
 }
@@ -0,0 +1,212 @@
+package org.gaf.pimu;
+
+/**
+ * Integrates an angular rate into a heading, using the actual time between
+ * samples (from the interrupt timestamps) rather than the nominal period,
+ * so timestamp jitter, an ODR that differs from nominal, and missed samples
+ * do not turn directly into heading error.
+ * <p>
+ * There are three methods:
+ * </p>
+ * <ul>
+ * <li>RECTANGULAR: rate times time delta; first order.</li>
+ * <li>TRAPEZOIDAL: the average of successive rates times the time delta;
+ * second order.</li>
+ * <li>QUADRATIC: the integral over the latest interval of the quadratic
+ * through the last three samples, allowing for unequal intervals; third
+ * order, like an RK3 step, but using only the samples available.</li>
+ * </ul>
+ * <p>
+ * An interval longer than GAP_FACTOR nominal periods is a gap (missed
+ * samples). A gap is bridged by the trapezoidal rule, that is, assuming the
+ * rate changed linearly across it. An error estimate accumulates the
+ * difference on each interval between the chosen method and the next
+ * higher order one (for QUADRATIC, the trapezoidal, so the estimate is
+ * conservative), and half the rate change across each gap times its
+ * length. It does not include sensor noise or bias.
+ * </p>
+ * <p>
+ * The update is meant to be called from an interrupt handler; it allocates
+ * nothing. The method and nominal period can be changed from another
+ * thread.
+ * </p>
+ */
+public class HeadingIntegrator {
+
+    /**
+     * The integration methods.
+     */
+    public enum Method {
+        RECTANGULAR,
+        TRAPEZOIDAL,
+        QUADRATIC
+    }
+
+    /**
+     * The interval, in nominal periods, beyond which samples are taken to
+     * be missed.
+     */
+    public static final float GAP_FACTOR = 1.5f;
+
+    private volatile Method method;
+    private volatile long period;
+
+    private double heading = 0;
+    private double error = 0;
+
+    // the last two samples: rates in degrees/s, timestamps in nanoseconds
+    private int history = 0;
+    private float rate0, rate1;
+    private long ts0, ts1;
+
+    private long gaps = 0;
+    private long missed = 0;
+
+    /**
+     * Creates an integrator.
+     * @param method the integration method
+     * @param period the nominal sample period in nanoseconds
+     */
+    public HeadingIntegrator(Method method, long period) {
+        this.method = method;
+        this.period = period;
+    }
+
+    /**
+     * Sets the integration method.
+     * @param method the method
+     */
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    /**
+     * Returns the integration method.
+     * @return the method
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Sets the nominal sample period, for example after an ODR change.
+     * @param period the period in nanoseconds
+     */
+    public void setNominalPeriod(long period) {
+        this.period = period;
+    }
+
+    /**
+     * Sets the heading, and clears the error estimate, the samples and the
+     * gap counts. Must not be called while updates are in progress.
+     * @param heading the heading in degrees
+     */
+    public void reset(double heading) {
+        this.heading = heading;
+        error = 0;
+        history = 0;
+        gaps = 0;
+        missed = 0;
+    }
+
+    /**
+     * Adds a sample.
+     * @param rate the angular rate in degrees/s
+     * @param timestamp the sample timestamp in nanoseconds
+     * @return the heading in degrees
+     */
+    public double update(float rate, long timestamp) {
+        if (history == 0) {
+            rate1 = rate;
+            ts1 = timestamp;
+            history = 1;
+            return heading;
+        }
+        long delta = timestamp - ts1;
+        if (delta <= 0) return heading; // a repeated timestamp
+        double h2 = delta * 1e-9;
+
+        double trapezoid = 0.5 * (rate1 + rate) * h2;
+        long p = period;
+        if (delta > GAP_FACTOR * p) {
+            // bridge the gap assuming the rate changed linearly
+            gaps++;
+            missed += Math.max(1, Math.round((double) delta / p) - 1);
+            heading += trapezoid;
+            error += 0.5 * Math.abs(rate - rate1) * h2;
+        } else {
+            double increment;
+            double check;
+            switch (method) {
+                case RECTANGULAR:
+                    increment = rate * h2;
+                    check = trapezoid;
+                    break;
+                case TRAPEZOIDAL:
+                    increment = trapezoid;
+                    check = (history > 1) ? quadratic(rate, h2) : trapezoid;
+                    break;
+                default:
+                    increment = (history > 1) ? quadratic(rate, h2) :
+                            trapezoid;
+                    check = trapezoid;
+            }
+            heading += increment;
+            // the higher order method approximates the error of the lower
+            if (history > 1 || method == Method.RECTANGULAR)
+                error += Math.abs(increment - check);
+        }
+
+        rate0 = rate1;
+        ts0 = ts1;
+        rate1 = rate;
+        ts1 = timestamp;
+        history = 2;
+        return heading;
+    }
+
+    /**
+     * Returns the integral over the latest interval of the quadratic
+     * through the last three samples.
+     * @param rate the latest rate
+     * @param h2 the latest interval in seconds
+     */
+    private double quadratic(float rate, double h2) {
+        double h1 = (ts1 - ts0) * 1e-9;
+        double h = h1 + h2;
+        return h2 / 6 * ((3 * h1 + 2 * h2) / h * rate +
+                (3 * h1 + h2) / h1 * rate1 - h2 * h2 / (h1 * h) * rate0);
+    }
+
+    /**
+     * Returns the heading.
+     * @return the heading in degrees
+     */
+    public double getHeading() {
+        return heading;
+    }
+
+    /**
+     * Returns the accumulated error estimate.
+     * @return the estimate in degrees
+     */
+    public double getErrorEstimate() {
+        return error;
+    }
+
+    /**
+     * Returns the number of gaps bridged.
+     * @return number of gaps
+     */
+    public long getGapCount() {
+        return gaps;
+    }
+
+    /**
+     * Returns the estimated number of samples missed in the gaps.
+     * @return number of samples
+     */
+    public long getMissedCount() {
+        return missed;
+    }
+}
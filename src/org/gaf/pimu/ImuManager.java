@@ -0,0 +1,519 @@
+package org.gaf.pimu;
+
+import com.diozero.api.RuntimeIOException;
+import java.io.IOException;
+
+/**
+ * Runs several gyroscopes (for example one per PIMU board, on separate I2C
+ * buses) concurrently, and fuses their samples into one redundant stream.
+ * <p>
+ * Each unit is a Gyro delivering raw three axis records to its own ring;
+ * each acquires on its own thread (its interrupt handler, or its hybrid
+ * polling thread if it has no interrupt pin), so a slow bus does not hold
+ * up the others. A unit can also be any ring delivering records in the Gyro
+ * three axis layout, such as a simulation.
+ * </p>
+ * <p>
+ * Each unit's zero offset is subtracted from its records before they are
+ * aligned, so units with different biases agree: for a Gyro, the zero
+ * offset at activation (calibrate first, for example with
+ * {@link #calcZeroOffset(int)}); for another unit, the offset given when it
+ * was added.
+ * </p>
+ * <p>
+ * Only gyroscopes are fused. AccelMag can be created on any bus and address
+ * too, but accelerometer and magnetometer units are not managed here.
+ * </p>
+ * <p>
+ * The units' sample clocks are independent, so the manager aligns them to
+ * one clock: ticks every tick period of System.nanoTime, the clock of the
+ * interrupt timestamps. Each unit's value at a tick is interpolated
+ * linearly between its samples either side. A tick is fused once every
+ * live unit has a sample after it, so the output lags by up to one sample
+ * period of the slowest unit. A unit with no sample within STALE_NANOS of
+ * the newest from any unit is taken to have stopped, and is left out until
+ * it catches up.
+ * </p>
+ * <p>
+ * At each tick the units are voted: a unit differing on any axis by more
+ * than the tolerance from the median of the units trusted at the last tick
+ * (those not excluded), for FAULT_TICKS ticks in a row, is excluded until
+ * it agrees again. Units are excluded only if at least QUORUM agreeing
+ * units remain; so exclusion needs at least three units (of two, it cannot
+ * tell which is wrong), and if the units disagree too widely to leave a
+ * quorum, none is excluded. The remaining units are averaged, or their
+ * median taken. A tick no unit can be interpolated at is not published.
+ * </p>
+ * <p>
+ * Output records are OUTPUT_RECORD_WIDTH fields wide, in the Gyro three axis
+ * layout (values in counts less the zero offset, rounded; TS_DELTA is the
+ * tick period), plus the
+ * units used at UNITS as a bit mask. The manager is driven by calling
+ * {@link #pump()} from a single consumer thread; pumping allocates nothing.
+ * </p>
+ */
+public class ImuManager implements AutoCloseable {
+
+    /**
+     * How the units are combined.
+     */
+    public enum Vote {
+        AVERAGE,
+        MEDIAN
+    }
+
+    /**
+     * The output record field holding the units used, as a bit mask.
+     */
+    public static final int UNITS = 5;
+    /**
+     * The number of fields in an output record.
+     */
+    public static final int OUTPUT_RECORD_WIDTH = 6;
+    /**
+     * The number of ticks in a row a unit must disagree to be excluded.
+     */
+    public static final int FAULT_TICKS = 10;
+    /**
+     * The time behind the newest sample after which a unit is taken to
+     * have stopped, in nanoseconds.
+     */
+    public static final long STALE_NANOS = 50_000_000;
+    /**
+     * The least number of agreeing units that must remain for any unit to
+     * be excluded.
+     */
+    public static final int QUORUM = 2;
+
+    private static final int MAX_UNITS = 8;
+    private static final int UNIT_RING_SIZE = 256;
+    private static final int HISTORY = 256;
+    private static final int[] CHANNELS = {Gyro.VALUE_X, Gyro.VALUE_Y,
+        Gyro.VALUE};
+
+    private final SampleRing out;
+    private final long tick;
+    private final Vote vote;
+    private final double tolerance;
+
+    private final Unit[] units = new Unit[MAX_UNITS];
+    private int unitCount = 0;
+    private final long[] record = new long[Gyro.XYZ_RECORD_WIDTH];
+    private long nextTick = 0;
+    private long outputs = 0;
+
+    // voting work space: per axis, the values of the units
+    private final double[][] values = new double[3][MAX_UNITS];
+    private final boolean[] present = new boolean[MAX_UNITS];
+    private final double[] sorted = new double[MAX_UNITS];
+    private final double[] reference = new double[3];
+
+    /**
+     * Creates a manager.
+     * @param out the ring to receive the fused records; records must be at
+     * least OUTPUT_RECORD_WIDTH wide
+     * @param tickNanos the output period in nanoseconds
+     * @param vote how to combine the units
+     * @param tolerance the difference from the median, in counts, beyond
+     * which a unit disagrees
+     */
+    public ImuManager(SampleRing out, long tickNanos, Vote vote,
+            float tolerance) {
+        if (out.width() < OUTPUT_RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("Tick must be > 0");
+        this.out = out;
+        this.tick = tickNanos;
+        this.vote = vote;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Adds a gyroscope. Units must be added before pumping.
+     * @param controller the I2C controller (bus)
+     * @param address the I2C address of the FXAS21002C
+     * @param interruptPin the GPIO pin for interrupts; -1 if not connected
+     * @return the unit number
+     * @throws IOException if the gyroscope cannot be created
+     */
+    public int addGyro(int controller, int address, int interruptPin)
+            throws IOException {
+        checkRoom();
+        SampleRing ring = new SampleRing(UNIT_RING_SIZE,
+                Gyro.XYZ_RECORD_WIDTH);
+        Gyro gyro = new Gyro(controller, address, interruptPin, ring);
+        units[unitCount] = new Unit(ring, gyro);
+        return unitCount++;
+    }
+
+    /**
+     * Adds a unit delivering records in the Gyro three axis layout, with
+     * the zero offset already subtracted. Units must be added before
+     * pumping.
+     * @param ring the ring delivering the records
+     * @return the unit number
+     */
+    public int addUnit(SampleRing ring) {
+        return addUnit(ring, new float[3]);
+    }
+
+    /**
+     * Adds a unit delivering raw records in the Gyro three axis layout.
+     * Units must be added before pumping.
+     * @param ring the ring delivering the records
+     * @param zeroOffset the X, Y, Z zero offset of the unit in counts
+     * @return the unit number
+     */
+    public int addUnit(SampleRing ring, float[] zeroOffset) {
+        if (ring.width() < Gyro.XYZ_RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        checkRoom();
+        units[unitCount] = new Unit(ring, null);
+        System.arraycopy(zeroOffset, 0, units[unitCount].offset, 0, 3);
+        return unitCount++;
+    }
+
+    private void checkRoom() {
+        if (unitCount == MAX_UNITS)
+            throw new IllegalStateException("Too many units");
+    }
+
+    /**
+     * Configures all the gyroscopes.
+     * @param lpfCutoff the low pass filter cutoff
+     * @param odr the output data rate
+     * @throws RuntimeIOException
+     */
+    public void begin(FXAS21002C.LpfCutoff lpfCutoff, FXAS21002C.ODR odr)
+            throws RuntimeIOException {
+        for (int i = 0; i < unitCount; i++) {
+            if (units[i].gyro != null) units[i].gyro.begin(lpfCutoff, odr);
+        }
+    }
+
+    /**
+     * Calculates the zero offset of each gyroscope not already calibrated,
+     * one after another. The gyroscopes must be still.
+     * @param period the time to gather data per gyroscope in milliseconds
+     * @throws RuntimeIOException
+     */
+    public void calcZeroOffset(int period) throws RuntimeIOException {
+        for (int i = 0; i < unitCount; i++) {
+            Gyro gyro = units[i].gyro;
+            if (gyro != null && !gyro.isCalibrated())
+                gyro.calcZeroOffset(period);
+        }
+    }
+
+    /**
+     * Activates all the gyroscopes to deliver raw three axis results, takes
+     * their zero offsets, and restarts the alignment.
+     * @throws RuntimeIOException
+     */
+    public void activate() throws RuntimeIOException {
+        nextTick = 0;
+        for (int i = 0; i < unitCount; i++) {
+            Unit u = units[i];
+            u.reset();
+            if (u.gyro != null) {
+                u.gyro.getZeroOffset(u.offset);
+                u.gyro.activateRawXYZ();
+            }
+        }
+    }
+
+    /**
+     * Deactivates all the gyroscopes.
+     */
+    public void deactivate() {
+        for (int i = 0; i < unitCount; i++) {
+            if (units[i].gyro != null) units[i].gyro.deactivate();
+        }
+    }
+
+    /**
+     * Closes all the gyroscopes.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < unitCount; i++) {
+            if (units[i].gyro != null) units[i].gyro.close();
+        }
+    }
+
+    /**
+     * Processes all records available from the units, publishing fused
+     * records for the ticks all live units have passed.
+     * @return the number of unit records processed
+     */
+    public int pump() {
+        int n = 0;
+        long newest = Long.MIN_VALUE;
+        for (int i = 0; i < unitCount; i++) {
+            Unit u = units[i];
+            while (u.ring.poll(record)) {
+                u.add(record);
+                n++;
+            }
+            if (u.count > 0) newest = Math.max(newest, u.latest());
+        }
+        if (newest == Long.MIN_VALUE) return n;
+
+        // the ticks passed by every live unit
+        long passed = Long.MAX_VALUE;
+        long first = Long.MIN_VALUE;
+        for (int i = 0; i < unitCount; i++) {
+            Unit u = units[i];
+            u.stale = u.count == 0 || newest - u.latest() > STALE_NANOS;
+            if (u.stale) continue;
+            passed = Math.min(passed, u.latest());
+            first = Math.max(first, u.ts[(int) (u.cursor & (HISTORY - 1))]);
+        }
+        if (passed == Long.MAX_VALUE) return n;
+        if (nextTick == 0) nextTick = Math.floorDiv(first, tick) * tick + tick;
+        while (nextTick <= passed) {
+            fuse(nextTick);
+            nextTick += tick;
+        }
+        return n;
+    }
+
+    /**
+     * Interpolates the live units at a tick, votes, and publishes.
+     */
+    private void fuse(long t) {
+        int available = 0;
+        for (int i = 0; i < unitCount; i++) {
+            Unit u = units[i];
+            present[i] = !u.stale && u.interpolate(t, values, i);
+            if (present[i]) available++;
+        }
+        if (available == 0) return;
+
+        // the reference: the median of the units trusted at the last tick,
+        // if a quorum of them is present; else of all present
+        int trusted = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (present[i] && !units[i].excluded) trusted++;
+        }
+        for (int a = 0; a < 3; a++) {
+            reference[a] = median(a, trusted >= QUORUM);
+        }
+
+        // find the disagreeing units
+        int agreeing = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (!present[i]) continue;
+            Unit u = units[i];
+            boolean disagrees = false;
+            for (int a = 0; a < 3; a++) {
+                if (Math.abs(values[a][i] - reference[a]) > tolerance)
+                    disagrees = true;
+            }
+            u.disagree = disagrees ? u.disagree + 1 : 0;
+            if (u.disagree < FAULT_TICKS) agreeing++;
+        }
+
+        // exclude them, unless that leaves too few to vote
+        for (int i = 0; i < unitCount; i++) {
+            if (!present[i]) continue;
+            Unit u = units[i];
+            boolean excluded = agreeing >= QUORUM &&
+                    u.disagree >= FAULT_TICKS;
+            if (excluded && !u.excluded) u.faults++;
+            u.excluded = excluded;
+        }
+
+        // combine the others
+        long used = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (present[i] && !units[i].excluded) used |= 1L << i;
+        }
+        if (out.claim()) {
+            for (int a = 0; a < 3; a++) {
+                double v = (vote == Vote.MEDIAN) ? median(a, true) :
+                        average(a);
+                out.put(CHANNELS[a], Math.round(v));
+            }
+            out.put(Gyro.TIMESTAMP, t);
+            out.put(Gyro.TS_DELTA, tick);
+            out.put(UNITS, used);
+            out.publish();
+        }
+        outputs++;
+    }
+
+    /**
+     * Returns the median of an axis over the present units, optionally
+     * leaving out the excluded ones.
+     */
+    private double median(int axis, boolean skipExcluded) {
+        int n = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (!present[i] || (skipExcluded && units[i].excluded)) continue;
+            // insertion sort
+            double v = values[axis][i];
+            int j = n++;
+            while (j > 0 && sorted[j - 1] > v) {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = v;
+        }
+        if (n == 0) return 0;
+        return (n % 2 == 1) ? sorted[n / 2] :
+                0.5 * (sorted[n / 2 - 1] + sorted[n / 2]);
+    }
+
+    /**
+     * Returns the average of an axis over the present units not excluded.
+     */
+    private double average(int axis) {
+        double sum = 0;
+        int n = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (present[i] && !units[i].excluded) {
+                sum += values[axis][i];
+                n++;
+            }
+        }
+        return (n == 0) ? 0 : sum / n;
+    }
+
+    /**
+     * Returns the number of units.
+     * @return number of units
+     */
+    public int getUnitCount() {
+        return unitCount;
+    }
+
+    /**
+     * Returns the gyroscope of a unit.
+     * @param unit the unit number
+     * @return the gyroscope; null if the unit is not a gyroscope
+     */
+    public Gyro getGyro(int unit) {
+        return units[unit].gyro;
+    }
+
+    /**
+     * Returns the number of samples received from a unit since activation.
+     * @param unit the unit number
+     * @return number of samples
+     */
+    public long getSampleCount(int unit) {
+        return units[unit].count;
+    }
+
+    /**
+     * Returns the number of times a unit has been excluded by the vote.
+     * @param unit the unit number
+     * @return number of exclusions
+     */
+    public long getFaultCount(int unit) {
+        return units[unit].faults;
+    }
+
+    /**
+     * Indicates if a unit is currently excluded by the vote.
+     * @param unit the unit number
+     * @return true if excluded
+     */
+    public boolean isExcluded(int unit) {
+        return units[unit].excluded;
+    }
+
+    /**
+     * Indicates if a unit is currently taken to have stopped.
+     * @param unit the unit number
+     * @return true if stopped
+     */
+    public boolean isStale(int unit) {
+        return units[unit].stale;
+    }
+
+    /**
+     * Returns the number of fused records produced since creation.
+     * @return number of records
+     */
+    public long getOutputCount() {
+        return outputs;
+    }
+
+    /**
+     * A unit: its ring, its recent samples, and its voting state.
+     */
+    private static class Unit {
+        final SampleRing ring;
+        final Gyro gyro;
+        final float[] offset = new float[3];
+        final long[] ts = new long[HISTORY];
+        final double[][] history = new double[3][HISTORY];
+        long count;
+        // the oldest sample still needed: at or before the next tick
+        long cursor;
+        boolean stale = true;
+        int disagree;
+        boolean excluded;
+        long faults;
+
+        Unit(SampleRing ring, Gyro gyro) {
+            this.ring = ring;
+            this.gyro = gyro;
+        }
+
+        void reset() {
+            count = 0;
+            cursor = 0;
+            stale = true;
+            disagree = 0;
+            excluded = false;
+        }
+
+        void add(long[] record) {
+            int slot = (int) (count & (HISTORY - 1));
+            ts[slot] = record[Gyro.TIMESTAMP];
+            for (int a = 0; a < 3; a++) {
+                history[a][slot] = record[CHANNELS[a]] - offset[a];
+            }
+            count++;
+            // if the history is full, lose the oldest
+            if (count - cursor > HISTORY) cursor = count - HISTORY;
+        }
+
+        long latest() {
+            return ts[(int) ((count - 1) & (HISTORY - 1))];
+        }
+
+        /**
+         * Interpolates the unit at a time, into a column of the values.
+         * @return false if the unit has no samples either side of the time,
+         * nor one exactly at it
+         */
+        boolean interpolate(long t, double[][] values, int column) {
+            while (cursor + 1 < count &&
+                    ts[(int) ((cursor + 1) & (HISTORY - 1))] <= t) {
+                cursor++;
+            }
+            int s0 = (int) (cursor & (HISTORY - 1));
+            if (ts[s0] > t) return false;
+            if (cursor + 1 >= count) {
+                // a sample exactly at the time needs none after it
+                if (ts[s0] != t) return false;
+                for (int a = 0; a < 3; a++) {
+                    values[a][column] = history[a][s0];
+                }
+                return true;
+            }
+            int s1 = (int) ((cursor + 1) & (HISTORY - 1));
+            double f = (double) (t - ts[s0]) / (ts[s1] - ts[s0]);
+            for (int a = 0; a < 3; a++) {
+                values[a][column] = history[a][s0] +
+                        f * (history[a][s1] - history[a][s0]);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.gaf.pimu;
+
+import java.util.Arrays;
+
+/**
+ * A streaming magnetometer calibrator that fits an ellipsoid to the raw
+ * samples, giving the hard iron offsets and the soft iron matrix that map
+ * the ellipsoid back onto a sphere.
+ * <p>
+ * The general ellipsoid
+ * ax² + by² + cz² + 2fyz + 2gxz + 2hxy + 2px + 2qy + 2rz = 1
+ * is fitted by least squares. Each sample updates the normal equations
+ * (a 9x9 symmetric matrix and a 9-vector) and is then discarded, so memory
+ * is constant however many samples are added. The fit is solved on demand
+ * by {@link #compute()}. For numerical conditioning, samples are scaled by
+ * the expected field magnitude before accumulation. (They are not shifted:
+ * this form cannot represent an ellipsoid through the origin.)
+ * </p>
+ * <p>
+ * A calibrated value is softIron * (raw - hardIron); the soft iron matrix
+ * is scaled so calibrated values have the same average magnitude as the
+ * raw ones. Adding and computing are thread safe and allocate nothing.
+ * </p>
+ */
+public class MagCalibrator {
+
+    /**
+     * The default expected field magnitude in counts (50 uT).
+     */
+    public static final float DEFAULT_SCALE = 500;
+
+    private static final int N = 9;
+    private static final int MIN_SAMPLES = 100;
+
+    private final double scale;
+
+    // normal equations, upper triangle of D'D row major, and D'1
+    private final double[] dtd = new double[N * (N + 1) / 2];
+    private final double[] dt1 = new double[N];
+    private final double[] row = new double[N];
+    private long count = 0;
+
+    // solution work space
+    private final double[][] m = new double[N][N + 1];
+    private final double[] beta = new double[N];
+    private final double[][] a3 = new double[3][3];
+    private final double[][] v3 = new double[3][3];
+
+    // results
+    private final float[] hardIron = new float[3];
+    private final float[] softIron = new float[9];
+    private float fieldStrength;
+    private float fitError;
+    private boolean valid = false;
+
+    /**
+     * Creates a calibrator with the default scale.
+     */
+    public MagCalibrator() {
+        this(DEFAULT_SCALE);
+    }
+
+    /**
+     * Creates a calibrator.
+     * @param scale the expected field magnitude in counts, used to
+     * condition the fit
+     */
+    public MagCalibrator(float scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Adds a raw sample to the fit.
+     * @param x the X value in counts
+     * @param y the Y value in counts
+     * @param z the Z value in counts
+     */
+    public synchronized void add(float x, float y, float z) {
+        double u = x / scale;
+        double v = y / scale;
+        double w = z / scale;
+        row[0] = u * u;
+        row[1] = v * v;
+        row[2] = w * w;
+        row[3] = 2 * v * w;
+        row[4] = 2 * u * w;
+        row[5] = 2 * u * v;
+        row[6] = 2 * u;
+        row[7] = 2 * v;
+        row[8] = 2 * w;
+        int k = 0;
+        for (int i = 0; i < N; i++) {
+            double ri = row[i];
+            for (int j = i; j < N; j++) {
+                dtd[k++] += ri * row[j];
+            }
+            dt1[i] += ri;
+        }
+        count++;
+    }
+
+    /**
+     * Discards all samples and results.
+     */
+    public synchronized void reset() {
+        Arrays.fill(dtd, 0);
+        Arrays.fill(dt1, 0);
+        count = 0;
+        valid = false;
+    }
+
+    /**
+     * Returns the number of samples added.
+     * @return number of samples
+     */
+    public synchronized long getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Solves the fit from the samples so far. The samples should cover as
+     * much of the sphere of orientations as possible.
+     * @return true if the fit is an ellipsoid, so the results are valid
+     */
+    public synchronized boolean compute() {
+        valid = false;
+        if (count < MIN_SAMPLES || !solve()) return false;
+
+        // A = [[a h g] [h b f] [g f c]], linear terms [p q r]
+        a3[0][0] = beta[0];
+        a3[1][1] = beta[1];
+        a3[2][2] = beta[2];
+        a3[1][2] = a3[2][1] = beta[3];
+        a3[0][2] = a3[2][0] = beta[4];
+        a3[0][1] = a3[1][0] = beta[5];
+
+        // center = -inverse(A) [p q r]
+        double det = det3();
+        if (det <= 0) return false;
+        double cx = -(cof(0, 0) * beta[6] + cof(1, 0) * beta[7] +
+                cof(2, 0) * beta[8]) / det;
+        double cy = -(cof(0, 1) * beta[6] + cof(1, 1) * beta[7] +
+                cof(2, 1) * beta[8]) / det;
+        double cz = -(cof(0, 2) * beta[6] + cof(1, 2) * beta[7] +
+                cof(2, 2) * beta[8]) / det;
+
+        // (u - c)' A (u - c) = k
+        double k = 1 + cx * (a3[0][0] * cx + a3[0][1] * cy + a3[0][2] * cz)
+                + cy * (a3[1][0] * cx + a3[1][1] * cy + a3[1][2] * cz)
+                + cz * (a3[2][0] * cx + a3[2][1] * cy + a3[2][2] * cz);
+        if (k <= 0) return false;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                a3[i][j] /= k;
+            }
+        }
+
+        // soft iron = sqrt(A / k) scaled to the mean radius
+        if (!eigen(a3, v3)) return false;
+        double radius = Math.pow(a3[0][0] * a3[1][1] * a3[2][2], -1.0 / 6);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double s = 0;
+                for (int e = 0; e < 3; e++) {
+                    s += v3[i][e] * Math.sqrt(a3[e][e]) * v3[j][e];
+                }
+                softIron[3 * i + j] = (float) (s * radius);
+            }
+        }
+        hardIron[0] = (float) (cx * scale);
+        hardIron[1] = (float) (cy * scale);
+        hardIron[2] = (float) (cz * scale);
+        fieldStrength = (float) (radius * scale);
+
+        // RMS algebraic residual from the normal equations
+        double rss = count;
+        int idx = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = i; j < N; j++) {
+                double term = beta[i] * dtd[idx++] * beta[j];
+                rss += (i == j) ? term : 2 * term;
+            }
+            rss -= 2 * beta[i] * dt1[i];
+        }
+        fitError = (float) Math.sqrt(Math.max(0, rss) / count);
+        valid = true;
+        return true;
+    }
+
+    /**
+     * Indicates if the last compute gave valid results.
+     * @return true if valid
+     */
+    public synchronized boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Copies the hard iron offsets from the last compute.
+     * @param hard array of at least 3 to receive the offsets in counts
+     */
+    public synchronized void getHardIron(float[] hard) {
+        System.arraycopy(hardIron, 0, hard, 0, 3);
+    }
+
+    /**
+     * Copies the soft iron matrix from the last compute.
+     * @param soft array of at least 9 to receive the matrix, row major
+     */
+    public synchronized void getSoftIron(float[] soft) {
+        System.arraycopy(softIron, 0, soft, 0, 9);
+    }
+
+    /**
+     * Returns the field magnitude from the last compute.
+     * @return the magnitude in counts
+     */
+    public synchronized float getFieldStrength() {
+        return fieldStrength;
+    }
+
+    /**
+     * Returns the RMS algebraic residual of the fit from the last compute;
+     * 0 is a perfect fit, and values of a few hundredths are typical.
+     * @return the residual
+     */
+    public synchronized float getFitError() {
+        return fitError;
+    }
+
+    /**
+     * Applies a calibration to a raw sample: 3 subtractions and 9
+     * multiply-adds.
+     * @param hard the hard iron offsets
+     * @param soft the soft iron matrix, row major
+     * @param raw the raw X, Y, Z values
+     * @param out array of at least 3 to receive the calibrated values
+     */
+    public static void apply(float[] hard, float[] soft, int[] raw,
+            float[] out) {
+        float x = raw[0] - hard[0];
+        float y = raw[1] - hard[1];
+        float z = raw[2] - hard[2];
+        out[0] = soft[0] * x + soft[1] * y + soft[2] * z;
+        out[1] = soft[3] * x + soft[4] * y + soft[5] * z;
+        out[2] = soft[6] * x + soft[7] * y + soft[8] * z;
+    }
+
+    /**
+     * Solves the normal equations by Gaussian elimination with partial
+     * pivoting.
+     */
+    private boolean solve() {
+        int k = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = i; j < N; j++) {
+                m[i][j] = dtd[k];
+                m[j][i] = dtd[k];
+                k++;
+            }
+            m[i][N] = dt1[i];
+        }
+        for (int c = 0; c < N; c++) {
+            int pivot = c;
+            for (int r = c + 1; r < N; r++) {
+                if (Math.abs(m[r][c]) > Math.abs(m[pivot][c])) pivot = r;
+            }
+            if (Math.abs(m[pivot][c]) < 1e-12 * count) return false;
+            double[] t = m[c];
+            m[c] = m[pivot];
+            m[pivot] = t;
+            for (int r = c + 1; r < N; r++) {
+                double f = m[r][c] / m[c][c];
+                for (int j = c; j <= N; j++) {
+                    m[r][j] -= f * m[c][j];
+                }
+            }
+        }
+        for (int r = N - 1; r >= 0; r--) {
+            double s = m[r][N];
+            for (int j = r + 1; j < N; j++) {
+                s -= m[r][j] * beta[j];
+            }
+            beta[r] = s / m[r][r];
+        }
+        return true;
+    }
+
+    private double det3() {
+        return a3[0][0] * cof(0, 0) + a3[0][1] * cof(0, 1) +
+                a3[0][2] * cof(0, 2);
+    }
+
+    /**
+     * Returns the cofactor of an element of a3.
+     */
+    private double cof(int r, int c) {
+        int r1 = (r + 1) % 3;
+        int r2 = (r + 2) % 3;
+        int c1 = (c + 1) % 3;
+        int c2 = (c + 2) % 3;
+        return a3[r1][c1] * a3[r2][c2] - a3[r1][c2] * a3[r2][c1];
+    }
+
+    /**
+     * Diagonalises a symmetric 3x3 matrix in place by Jacobi rotations;
+     * the eigenvectors are the columns of v.
+     * @return true if all eigenvalues are positive
+     */
+    private static boolean eigen(double[][] a, double[][] v) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                v[i][j] = (i == j) ? 1 : 0;
+            }
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double off = a[0][1] * a[0][1] + a[0][2] * a[0][2] +
+                    a[1][2] * a[1][2];
+            if (off < 1e-30) break;
+            for (int p = 0; p < 2; p++) {
+                for (int q = p + 1; q < 3; q++) {
+                    if (a[p][q] == 0) continue;
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) /
+                            (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        double akp = a[k][p];
+                        double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double apk = a[p][k];
+                        double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        double vkp = v[k][p];
+                        double vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        return a[0][0] > 0 && a[1][1] > 0 && a[2][2] > 0;
+    }
+}
@@ -0,0 +1,201 @@
+package org.gaf.pimu;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Characterises the noise of a multi-axis sensor (usually the gyroscope)
+ * from a recording of any length, streamed through one
+ * {@link AllanVariance} per axis in a single pass. It gives the angle
+ * random walk and bias instability of each axis, and suggests a dead zone
+ * for Gyro.
+ * <p>
+ * Samples are collected in blocks, one array per axis. A full block is
+ * handed to one single thread executor per axis, so the axes are processed
+ * in parallel and each in order, while the caller fills a second block.
+ * Memory is the two blocks plus the octave accumulators, whatever the
+ * length of the recording.
+ * </p>
+ * <p>
+ * Recordings should be made with the sensor still, at the ODR and LPF
+ * setting to be characterised, in raw counts (so the suggested dead zone is
+ * in counts at the recording's range). Hours give the bias instability;
+ * minutes are enough for the angle random walk and the dead zone. Adding
+ * must be done from a single thread.
+ * </p>
+ */
+public class NoiseAnalyzer implements AutoCloseable {
+
+    /**
+     * The default number of samples per block.
+     */
+    public static final int DEFAULT_BLOCK = 8192;
+    /**
+     * The number of per-sample standard deviations of white noise covered
+     * by the suggested dead zone.
+     */
+    public static final double DEAD_ZONE_SIGMAS = 3;
+
+    private final AllanVariance[] variances;
+    private final ExecutorService[] executors;
+    private final int blockSize;
+
+    // two blocks, each with an array per axis, and their pending work
+    private final double[][][] blocks;
+    private final Future<?>[][] pending;
+    private int current = 0;
+    private int fill = 0;
+
+    /**
+     * Creates an analyzer with the default block size.
+     * @param axes the number of axes
+     * @param rate the sample rate in Hz
+     */
+    public NoiseAnalyzer(int axes, double rate) {
+        this(axes, rate, DEFAULT_BLOCK);
+    }
+
+    /**
+     * Creates an analyzer.
+     * @param axes the number of axes
+     * @param rate the sample rate in Hz
+     * @param blockSize the number of samples per block
+     */
+    public NoiseAnalyzer(int axes, double rate, int blockSize) {
+        if (axes < 1 || blockSize < 1)
+            throw new IllegalArgumentException("Axes and block size must be >= 1");
+        this.blockSize = blockSize;
+        variances = new AllanVariance[axes];
+        executors = new ExecutorService[axes];
+        for (int a = 0; a < axes; a++) {
+            variances[a] = new AllanVariance(1 / rate);
+            final int axis = a;
+            executors[a] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "noise-axis-" + axis);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        blocks = new double[2][axes][blockSize];
+        pending = new Future<?>[2][axes];
+    }
+
+    /**
+     * Adds a sample of raw counts, for example as read by
+     * FXAS21002C.readRaw.
+     * @param values a value per axis
+     * @throws InterruptedException if interrupted while waiting for a block
+     */
+    public void add(int[] values) throws InterruptedException {
+        double[][] block = blocks[current];
+        for (int a = 0; a < block.length; a++) {
+            block[a][fill] = values[a];
+        }
+        if (++fill == blockSize) submit();
+    }
+
+    /**
+     * Adds a sample.
+     * @param values a value per axis
+     * @throws InterruptedException if interrupted while waiting for a block
+     */
+    public void add(double[] values) throws InterruptedException {
+        double[][] block = blocks[current];
+        for (int a = 0; a < block.length; a++) {
+            block[a][fill] = values[a];
+        }
+        if (++fill == blockSize) submit();
+    }
+
+    /**
+     * Processes the samples added so far, and waits until done. Results are
+     * then available from {@link #getVariance(int)} and the others; more
+     * samples can still be added.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        if (fill > 0) submit();
+        await(0);
+        await(1);
+    }
+
+    /**
+     * Hands the current block to the axis executors, and switches to the
+     * other block once its earlier work is done.
+     */
+    private void submit() throws InterruptedException {
+        double[][] block = blocks[current];
+        int length = fill;
+        for (int a = 0; a < variances.length; a++) {
+            AllanVariance variance = variances[a];
+            double[] values = block[a];
+            pending[current][a] = executors[a].submit(
+                    () -> variance.add(values, 0, length));
+        }
+        current ^= 1;
+        fill = 0;
+        await(current);
+    }
+
+    /**
+     * Waits for the work on a block.
+     */
+    private void await(int block) throws InterruptedException {
+        for (int a = 0; a < variances.length; a++) {
+            Future<?> f = pending[block][a];
+            if (f == null) continue;
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Analysis failed", ex.getCause());
+            }
+            pending[block][a] = null;
+        }
+    }
+
+    /**
+     * Returns the Allan variance of an axis. Call {@link #finish()} first.
+     * @param axis the axis
+     * @return the Allan variance
+     */
+    public AllanVariance getVariance(int axis) {
+        return variances[axis];
+    }
+
+    /**
+     * Returns the number of axes.
+     * @return number of axes
+     */
+    public int getAxes() {
+        return variances.length;
+    }
+
+    /**
+     * Suggests a dead zone for an axis: DEAD_ZONE_SIGMAS per-sample
+     * deviations of the noise, plus the bias instability (the residual
+     * bias wander after the zero offset is removed). Call
+     * {@link #finish()} first.
+     * @param axis the axis
+     * @return the dead zone, rounded up, in the units of the samples; -1 if
+     * too few samples
+     */
+    public long suggestDeadZone(int axis) {
+        AllanVariance variance = variances[axis];
+        double bias = variance.getBiasInstability();
+        if (variance.getLevels() == 0 || Double.isNaN(bias)) return -1;
+        return (long) Math.ceil(DEAD_ZONE_SIGMAS * variance.getDeviation(0) +
+                bias);
+    }
+
+    /**
+     * Stops the axis executors.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService e : executors) {
+            e.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.gaf.pimu;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single producer, single consumer ring buffer of fixed-layout
+ * sample records. Each record is a fixed number of long fields, all held
+ * in one preallocated primitive array, so publishing and consuming
+ * allocate nothing.
+ * <p>
+ * The producer (typically an interrupt handler) publishes with
+ * {@link #offer(long, long)}, or with {@link #claim()}, {@link #put(int, long)}
+ * and {@link #publish()} for wider records. The consumer copies records out
+ * with {@link #poll(long[])} (non-blocking) or {@link #take(long[])}
+ * (parking until a record is available).
+ * </p>
+ * <p>
+ * When the consumer falls behind and the ring is full, the overflow policy
+ * decides what the producer does: drop the new record (the default), evict
+ * the oldest record, coalesce (evict all pending records so the consumer
+ * gets the latest), or block up to a timeout and then drop the new record.
+ * Lock-free counters track the records offered by the producer, delivered
+ * to the consumer and dropped, so that offered = delivered + dropped +
+ * size().
+ * </p>
+ */
+public class SampleRing {
+
+    /**
+     * What the producer does when the ring is full.
+     */
+    public enum Overflow {
+        /** Drop the new record. */
+        DROP_NEWEST,
+        /** Evict the oldest pending record. */
+        DROP_OLDEST,
+        /** Evict all pending records, so the new record is the only one. */
+        COALESCE,
+        /** Wait up to the timeout for space, then drop the new record. */
+        BLOCK
+    }
+
+    private final long[] records;
+    private final int width;
+    private final int mask;
+
+    // next record to consume; advanced by the consumer, and by the producer
+    // when evicting, so always by compare and set
+    private final AtomicLong head = new AtomicLong();
+    // next record to publish; written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // producer's view of head, to avoid reading the shared value each time
+    private long headCache = 0;
+    // record claimed but not yet published
+    private int claimed = -1;
+
+    // consumer thread parked waiting for a record
+    private volatile Thread waiter = null;
+
+    private volatile Overflow overflow = Overflow.DROP_NEWEST;
+    private volatile long blockTimeout = 0;
+
+    // metrics; offered is written only by the producer, delivered only by
+    // the consumer
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a ring buffer.
+     * @param capacity the number of records; must be a power of 2
+     * @param width the number of long fields in a record
+     */
+    public SampleRing(int capacity, int width) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        if (width < 1)
+            throw new IllegalArgumentException("Width must be >= 1");
+        this.records = new long[capacity * width];
+        this.width = width;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns the capacity in records.
+     * @return capacity
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of long fields in a record.
+     * @return width
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Sets the overflow policy. For BLOCK, the producer waits up to a timeout
+     * for space; use with care from an interrupt handler.
+     * @param overflow the policy
+     * @param timeout for BLOCK, the maximum time to wait; otherwise ignored
+     * @param unit the unit of the timeout
+     */
+    public void setOverflow(Overflow overflow, long timeout, TimeUnit unit) {
+        this.blockTimeout = unit.toNanos(timeout);
+        this.overflow = overflow;
+    }
+
+    /**
+     * Sets the overflow policy.
+     * @param overflow the policy; for BLOCK, the timeout is unchanged
+     */
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * Returns the overflow policy.
+     * @return the policy
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Returns the number of records the producer has offered (claimed).
+     * @return number of records
+     */
+    public long getOffered() {
+        return offered.get();
+    }
+
+    /**
+     * Returns the number of records the consumer has removed.
+     * @return number of records
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of records dropped: rejected or evicted by the
+     * overflow policy, or discarded by {@link #clear()}.
+     * @return number of records
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of records available to consume.
+     * @return number of records
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Producer: claims the next record for writing. If the ring is full, the
+     * overflow policy applies.
+     * @return true if claimed; false if the record is dropped
+     */
+    public boolean claim() {
+        offered.lazySet(offered.get() + 1);
+        long t = tail.get();
+        if (t - headCache > mask) {
+            headCache = head.get();
+            if (t - headCache > mask && !overflow(t)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        claimed = (int) (t & mask) * width;
+        return true;
+    }
+
+    /**
+     * Producer: writes a field of the claimed record.
+     * @param field the field index
+     * @param value the value
+     */
+    public void put(int field, long value) {
+        records[claimed + field] = value;
+    }
+
+    /**
+     * Producer: makes the claimed record available to the consumer.
+     */
+    public void publish() {
+        claimed = -1;
+        tail.set(tail.get() + 1);
+        Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    /**
+     * Producer: publishes a record of two fields.
+     * @param field0 the first field
+     * @param field1 the second field
+     * @return true if published; false if the ring is full
+     */
+    public boolean offer(long field0, long field1) {
+        if (!claim()) return false;
+        records[claimed] = field0;
+        if (width > 1) records[claimed + 1] = field1;
+        publish();
+        return true;
+    }
+
+    /**
+     * Consumer: copies the next record, if any, and removes it.
+     * @param record array of at least width to receive the fields
+     * @return true if a record was available
+     */
+    public boolean poll(long[] record) {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) return false;
+            System.arraycopy(records, (int) (h & mask) * width, record, 0,
+                    width);
+            // if the producer evicted the record while it was copied, the
+            // copy may be torn, so try the new head
+            if (head.compareAndSet(h, h + 1)) {
+                delivered.lazySet(delivered.get() + 1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Consumer: copies the next record and removes it, parking until a
+     * record is available.
+     * @param record array of at least width to receive the fields
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void take(long[] record) throws InterruptedException {
+        while (!poll(record)) {
+            park(0);
+        }
+    }
+
+    /**
+     * Consumer: copies the next record and removes it, parking up to a
+     * timeout until a record is available.
+     * @param record array of at least width to receive the fields
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if a record was available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean take(long[] record, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!poll(record)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            park(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Consumer: discards all available records.
+     */
+    public void clear() {
+        long h;
+        long t;
+        do {
+            h = head.get();
+            t = tail.get();
+        } while (h != t && !head.compareAndSet(h, t));
+        dropped.addAndGet(t - h);
+    }
+
+    /**
+     * Producer: makes space in a full ring according to the overflow
+     * policy.
+     * @param t the tail
+     * @return true if there is space
+     */
+    private boolean overflow(long t) {
+        switch (overflow) {
+            case DROP_OLDEST:
+                // fails only if the consumer removed the record, making space
+                if (head.compareAndSet(headCache, headCache + 1))
+                    dropped.incrementAndGet();
+                headCache = head.get();
+                return true;
+            case COALESCE:
+                long h = headCache;
+                while (h != t && !head.compareAndSet(h, t)) {
+                    h = head.get();
+                }
+                dropped.addAndGet(t - h);
+                headCache = t;
+                return true;
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeout;
+                while (t - (headCache = head.get()) > mask) {
+                    if (System.nanoTime() - deadline >= 0) return false;
+                    Thread.yield();
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parks the consumer until a record is published, the timeout (if
+     * any) expires, or interrupted.
+     */
+    private void park(long nanos) throws InterruptedException {
+        waiter = Thread.currentThread();
+        // re-check after announcing, so a publish cannot be missed
+        if (head.get() == tail.get()) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        waiter = null;
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+
+    /**
+     * Encodes a float for storage in a record field.
+     * @param value the float
+     * @return the field value
+     */
+    public static long fromFloat(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    /**
+     * Decodes a float stored in a record field.
+     * @param field the field value
+     * @return the float
+     */
+    public static float toFloat(long field) {
+        return Float.intBitsToFloat((int) field);
+    }
+}
@@ -0,0 +1,420 @@
+package org.gaf.pimu;
+
+/**
+ * Analyses the vibration in an accelerometer stream, for example to spot
+ * failing wheel bearings or loose mounts while driving. It keeps the latest
+ * N samples, and every hop samples computes the power spectrum of them with
+ * a Hann window, so with a hop of 1 at 400 Hz there is a new spectrum every
+ * 2.5 ms. The energy in each configured band is compared with the band's
+ * threshold, and an alarm record is published when a band goes over it.
+ * <p>
+ * The signal is read from the records of a source ring (such as AccelMag
+ * frames): a single field is used as is; several (such as the three axes)
+ * are combined into the vector magnitude, which does not depend on how the
+ * device is mounted. The mean of the window (gravity, for the magnitude) is
+ * removed before the transform.
+ * </p>
+ * <p>
+ * The spectrum is computed by a real FFT: the N real samples are packed
+ * into N/2 complex values, transformed by an iterative radix-2 FFT and
+ * then separated. The bit reversal and twiddle tables, the window and all
+ * buffers are allocated at construction, so processing allocates nothing.
+ * The spectrum is one sided, scaled so that the sum over a band is the
+ * mean square of the signal in that band (in counts squared); band levels
+ * and thresholds are RMS values in counts.
+ * </p>
+ * <p>
+ * Alarm records are ALARM_RECORD_WIDTH fields wide: the band number (at
+ * ALARM_BAND), the band RMS as a float (at ALARM_RMS; see
+ * SampleRing.toFloat) and the timestamp of the latest sample (at
+ * ALARM_TIMESTAMP). A band must fall below HYSTERESIS times its threshold
+ * before it can alarm again.
+ * </p>
+ * <p>
+ * The analyzer is driven by calling {@link #pump()} (or {@link #add}) from
+ * a single consumer thread.
+ * </p>
+ */
+public class VibrationAnalyzer {
+
+    /**
+     * The alarm record field holding the band number.
+     */
+    public static final int ALARM_BAND = 0;
+    /**
+     * The alarm record field holding the band RMS.
+     */
+    public static final int ALARM_RMS = 1;
+    /**
+     * The alarm record field holding the timestamp.
+     */
+    public static final int ALARM_TIMESTAMP = 2;
+    /**
+     * The number of fields in an alarm record.
+     */
+    public static final int ALARM_RECORD_WIDTH = 3;
+    /**
+     * The fraction of its threshold a band must fall below to end an alarm.
+     */
+    public static final double HYSTERESIS = 0.8;
+
+    private static final int MAX_BANDS = 16;
+
+    private final SampleRing source;
+    private final int[] fields;
+    private final int kindField;
+    private final long kind;
+    private final int timestampField;
+    private final long[] record;
+    private SampleRing alarms = null;
+
+    private final int size;
+    private final int hop;
+    private final double rate;
+
+    // the latest samples, circular
+    private final double[] history;
+    private final int historyMask;
+    private long samples = 0;
+    private int phase = 0;
+    private long timestamp = 0;
+
+    // the transform: N/2 point complex FFT tables, the separation
+    // twiddles, the window, the work buffers and the spectrum
+    private final int[] bitReverse;
+    private final double[] cos;
+    private final double[] sin;
+    private final double[] splitCos;
+    private final double[] splitSin;
+    private final double[] window;
+    private final double scale;
+    private final double[] re;
+    private final double[] im;
+    private final double[] power;
+    private long spectra = 0;
+
+    // bands: bins [low, high), threshold, latest RMS, alarm state
+    private final int[] bandLow = new int[MAX_BANDS];
+    private final int[] bandHigh = new int[MAX_BANDS];
+    private final double[] bandThreshold = new double[MAX_BANDS];
+    private final double[] bandRms = new double[MAX_BANDS];
+    private final boolean[] bandAlarm = new boolean[MAX_BANDS];
+    private final long[] bandAlarms = new long[MAX_BANDS];
+    private int bandCount = 0;
+
+    /**
+     * Creates an analyzer.
+     * @param source the ring delivering the accelerometer stream
+     * @param fields the fields of a record holding the signal; the vector
+     * magnitude is used if more than one
+     * @param kindField the field holding the kind of sample, if the source
+     * delivers more than one kind (as AccelMag does in FIFO mode), so only
+     * accelerometer samples are used; -1 if none
+     * @param timestampField the field holding the timestamp; -1 if none
+     * @param size the number of samples transformed (a power of 2, at
+     * least 4)
+     * @param hop the number of samples between spectra (1 or more)
+     * @param rate the sample rate in Hz
+     */
+    public VibrationAnalyzer(SampleRing source, int[] fields, int kindField,
+            int timestampField, int size, int hop, double rate) {
+        if (size < 4 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("Size must be a power of 2 >= 4");
+        if (hop < 1)
+            throw new IllegalArgumentException("Hop must be >= 1");
+        for (int f : fields) {
+            if (f < 0 || f >= source.width())
+                throw new IllegalArgumentException("No such field " + f);
+        }
+        this.source = source;
+        this.fields = fields.clone();
+        this.kindField = kindField;
+        this.kind = AccelMag.KIND_ACCEL;
+        this.timestampField = timestampField;
+        this.record = new long[source.width()];
+        this.size = size;
+        this.hop = hop;
+        this.rate = rate;
+
+        history = new double[size];
+        historyMask = size - 1;
+
+        int m = size / 2;
+        int bits = Integer.numberOfTrailingZeros(m);
+        bitReverse = new int[m];
+        for (int i = 0; i < m; i++) {
+            bitReverse[i] = (bits == 0) ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[m / 2];
+        sin = new double[m / 2];
+        for (int k = 0; k < m / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / m);
+            sin[k] = Math.sin(2 * Math.PI * k / m);
+        }
+        splitCos = new double[m + 1];
+        splitSin = new double[m + 1];
+        for (int k = 0; k <= m; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+        // periodic Hann window; the scale makes the one sided spectrum sum
+        // to the mean square of the signal
+        window = new double[size];
+        double sumSquares = 0;
+        for (int i = 0; i < size; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / size);
+            sumSquares += window[i] * window[i];
+        }
+        scale = 1 / (size * sumSquares);
+        re = new double[m];
+        im = new double[m];
+        power = new double[m + 1];
+    }
+
+    /**
+     * Sets the ring to receive alarm records.
+     * @param alarms the ring; records must be at least ALARM_RECORD_WIDTH
+     * wide; null for none
+     */
+    public void setAlarmRing(SampleRing alarms) {
+        if (alarms != null && alarms.width() < ALARM_RECORD_WIDTH)
+            throw new IllegalArgumentException("Ring records too narrow");
+        this.alarms = alarms;
+    }
+
+    /**
+     * Adds a band to watch. Bands must be added before pumping.
+     * @param low the low edge in Hz
+     * @param high the high edge in Hz (exclusive)
+     * @param threshold the RMS in counts above which the band alarms
+     * @return the band number
+     */
+    public int addBand(double low, double high, double threshold) {
+        if (bandCount == MAX_BANDS)
+            throw new IllegalStateException("Too many bands");
+        int lowBin = (int) Math.ceil(low / getBinWidth());
+        int highBin = Math.min(size / 2 + 1,
+                (int) Math.ceil(high / getBinWidth()));
+        if (lowBin >= highBin)
+            throw new IllegalArgumentException("Band narrower than a bin");
+        bandLow[bandCount] = lowBin;
+        bandHigh[bandCount] = highBin;
+        bandThreshold[bandCount] = threshold;
+        return bandCount++;
+    }
+
+    /**
+     * Processes all records available from the source.
+     * @return the number of samples processed
+     */
+    public int pump() {
+        int n = 0;
+        while (source.poll(record)) {
+            if (kindField >= 0 && record[kindField] != kind) continue;
+            if (timestampField >= 0) timestamp = record[timestampField];
+            double value;
+            if (fields.length == 1) {
+                value = record[fields[0]];
+            } else {
+                double sum = 0;
+                for (int f : fields) {
+                    double v = record[f];
+                    sum += v * v;
+                }
+                value = Math.sqrt(sum);
+            }
+            add(value);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds a sample directly, rather than from the source; computes a
+     * spectrum if due.
+     * @param value the sample
+     * @return true if a spectrum was computed
+     */
+    public boolean add(double value) {
+        history[(int) (samples & historyMask)] = value;
+        samples++;
+        if (++phase < hop || samples < size) return false;
+        phase = 0;
+        transform();
+        checkBands();
+        return true;
+    }
+
+    /**
+     * Computes the power spectrum of the latest N samples.
+     */
+    private void transform() {
+        int m = size / 2;
+        long start = samples - size;
+        double mean = 0;
+        for (int i = 0; i < size; i++) {
+            mean += history[(int) ((start + i) & historyMask)];
+        }
+        mean /= size;
+
+        // pack even samples as real, odd as imaginary, in bit reversed order
+        for (int n = 0; n < m; n++) {
+            int r = bitReverse[n];
+            int i = 2 * n;
+            re[r] = (history[(int) ((start + i) & historyMask)] - mean) *
+                    window[i];
+            im[r] = (history[(int) ((start + i + 1) & historyMask)] - mean) *
+                    window[i + 1];
+        }
+
+        // radix-2 butterflies
+        for (int length = 2; length <= m; length <<= 1) {
+            int half = length >> 1;
+            int step = m / length;
+            for (int block = 0; block < m; block += length) {
+                for (int j = 0; j < half; j++) {
+                    double wr = cos[j * step];
+                    double wi = -sin[j * step];
+                    int a = block + j;
+                    int b = a + half;
+                    double tr = wr * re[b] - wi * im[b];
+                    double ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        // separate the spectrum of the real samples
+        power[0] = (re[0] + im[0]) * (re[0] + im[0]) * scale;
+        power[m] = (re[0] - im[0]) * (re[0] - im[0]) * scale;
+        for (int k = 1; k < m; k++) {
+            double a = re[k];
+            double b = im[k];
+            double c = re[m - k];
+            double d = im[m - k];
+            double er = 0.5 * (a + c);
+            double ei = 0.5 * (b - d);
+            double or = 0.5 * (b + d);
+            double oi = -0.5 * (a - c);
+            double wr = splitCos[k];
+            double ws = splitSin[k];
+            double xr = er + wr * or + ws * oi;
+            double xi = ei + wr * oi - ws * or;
+            power[k] = 2 * (xr * xr + xi * xi) * scale;
+        }
+        spectra++;
+    }
+
+    /**
+     * Updates the band levels, and publishes an alarm for each band that
+     * has gone over its threshold.
+     */
+    private void checkBands() {
+        for (int b = 0; b < bandCount; b++) {
+            double sum = 0;
+            for (int k = bandLow[b]; k < bandHigh[b]; k++) {
+                sum += power[k];
+            }
+            double rms = Math.sqrt(sum);
+            bandRms[b] = rms;
+            if (!bandAlarm[b] && rms > bandThreshold[b]) {
+                bandAlarm[b] = true;
+                bandAlarms[b]++;
+                SampleRing ring = alarms;
+                if (ring != null && ring.claim()) {
+                    ring.put(ALARM_BAND, b);
+                    ring.put(ALARM_RMS, SampleRing.fromFloat((float) rms));
+                    ring.put(ALARM_TIMESTAMP, timestamp);
+                    ring.publish();
+                }
+            } else if (bandAlarm[b] && rms < HYSTERESIS * bandThreshold[b]) {
+                bandAlarm[b] = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the spacing of the spectrum bins.
+     * @return the bin width in Hz
+     */
+    public double getBinWidth() {
+        return rate / size;
+    }
+
+    /**
+     * Returns the number of bins in the spectrum (N/2 + 1, from 0 Hz to
+     * half the sample rate).
+     * @return number of bins
+     */
+    public int getBins() {
+        return size / 2 + 1;
+    }
+
+    /**
+     * Copies the latest spectrum.
+     * @param out array of at least getBins() to receive the power of each
+     * bin in counts squared
+     */
+    public void getSpectrum(double[] out) {
+        System.arraycopy(power, 0, out, 0, power.length);
+    }
+
+    /**
+     * Returns the frequency of the bin with the most power in the latest
+     * spectrum, excluding 0 Hz.
+     * @return the frequency in Hz
+     */
+    public double getPeakFrequency() {
+        int peak = 1;
+        for (int k = 2; k < power.length; k++) {
+            if (power[k] > power[peak]) peak = k;
+        }
+        return peak * getBinWidth();
+    }
+
+    /**
+     * Returns the number of spectra computed.
+     * @return number of spectra
+     */
+    public long getSpectrumCount() {
+        return spectra;
+    }
+
+    /**
+     * Returns the number of samples processed.
+     * @return number of samples
+     */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Returns the level of a band in the latest spectrum.
+     * @param band the band number
+     * @return the RMS in counts
+     */
+    public double getBandRms(int band) {
+        return bandRms[band];
+    }
+
+    /**
+     * Indicates if a band is in alarm.
+     * @param band the band number
+     * @return true if in alarm
+     */
+    public boolean isAlarm(int band) {
+        return bandAlarm[band];
+    }
+
+    /**
+     * Returns the number of alarms raised by a band.
+     * @param band the band number
+     * @return number of alarms
+     */
+    public long getAlarmCount(int band) {
+        return bandAlarms[band];
+    }
+}
@@ -2,8 +2,8 @@ package org.gaf.pimu.test;
 
 import com.diozero.util.Diozero;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
 import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.SampleRing;
 
 /**
  * Tests AccelMag
@@ -11,18 +11,20 @@ import org.gaf.pimu.AccelMag;
 public class TestAccelMag {
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        // set up queue
-        ArrayBlockingQueue queue = new ArrayBlockingQueue(10);
+        // set up ring buffer
+        SampleRing ring = new SampleRing(16, AccelMag.RECORD_WIDTH);
+        long[] sample = new long[AccelMag.RECORD_WIDTH];
         
-        try (AccelMag am = new AccelMag(18, queue)) {
+        try (AccelMag am = new AccelMag(18, ring)) {
             
             am.begin();
            
             am.activateRaw();
             
             for (int cnt = 0; cnt < 100; cnt++) {
-                long[] sample = (long[]) queue.take();
-                System.out.println(sample[0] + ", " + sample[1]/100000);
+                ring.take(sample);
+                System.out.println(sample[AccelMag.VALUE] + ", " + 
+                        sample[AccelMag.TS_DELTA]/100000);
             }
             
             am.deactivate();
@@ -0,0 +1,98 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import com.diozero.util.SleepUtil;
+import java.io.IOException;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.FXOS8700CQ;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Compares AccelMag data ready mode with FIFO mode at several output data
+ * rates. Reports the interrupt rate, and estimates the I2C bus time per
+ * second from the bytes moved per interrupt at 400 kHz.
+ * <p>
+ * Argument: FIFO watermark (default 16).
+ * </p>
+ */
+public class TestAccelMagFifo {
+
+    // I2C at 400 kHz: 9 bits per byte
+    private static final double BYTE_US = 9 / 0.4;
+    // write of address and register, then read address
+    private static final int OVERHEAD_BYTES = 3;
+
+    private static final FXOS8700CQ.ODR[] RATES = {
+        FXOS8700CQ.ODR.ODR_200, FXOS8700CQ.ODR.ODR_400, FXOS8700CQ.ODR.ODR_800};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int watermark = (args.length > 0) ? Integer.valueOf(args[0]) : 16;
+
+        SampleRing ring = new SampleRing(256, AccelMag.BATCH_RECORD_WIDTH);
+        long[] sample = new long[AccelMag.BATCH_RECORD_WIDTH];
+
+        try (AccelMag am = new AccelMag(18, ring)) {
+            for (FXOS8700CQ.ODR odr : RATES) {
+                am.begin(odr);
+                float rate = odr.odr / 2;
+                int seconds = 2;
+
+                // data ready mode: one interrupt and one 12 byte read per sample
+                am.activateRaw();
+                long tStart = System.nanoTime();
+                int number = 0;
+                while (System.nanoTime() - tStart < seconds * 1_000_000_000L) {
+                    if (ring.poll(sample)) number++;
+                    else SleepUtil.sleepMillis(1);
+                }
+                am.deactivate();
+                double interrupts = number / (double) seconds;
+                report("data ready", rate, interrupts, interrupts,
+                        interrupts * busMicros(12));
+
+                // FIFO mode: one interrupt, a FIFO read and a mag read per batch
+                am.activateFifo(watermark);
+                tStart = System.nanoTime();
+                int accel = 0;
+                int mag = 0;
+                long tsFirst = 0;
+                long tsLast = 0;
+                while (System.nanoTime() - tStart < seconds * 1_000_000_000L) {
+                    if (ring.poll(sample)) {
+                        if (sample[AccelMag.KIND] == AccelMag.KIND_ACCEL) {
+                            if (tsFirst == 0) tsFirst = sample[AccelMag.TIMESTAMP];
+                            tsLast = sample[AccelMag.TIMESTAMP];
+                            accel++;
+                        } else {
+                            mag++;
+                        }
+                    } else {
+                        SleepUtil.sleepMillis(1);
+                    }
+                }
+                am.deactivate();
+                double batches = am.getBatchCount() / (double) seconds;
+                double bytes = busMicros(1 + watermark * 6) + busMicros(6);
+                report("FIFO " + watermark, rate, accel / (double) seconds,
+                        batches, batches * bytes);
+                System.out.format("  mag samples/s=%.1f mean period=%.1f us " +
+                        "overflows=%d%n", mag / (double) seconds,
+                        (tsLast - tsFirst) / 1e3 / Math.max(1, accel - 1),
+                        am.getFifoOverflowCount());
+            }
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+
+    private static double busMicros(int bytes) {
+        return (bytes + OVERHEAD_BYTES) * BYTE_US;
+    }
+
+    private static void report(String mode, float rate, double samples,
+            double interrupts, double busMicros) {
+        System.out.format("%s @ %.1f Hz: samples/s=%.1f interrupts/s=%.1f " +
+                "I2C bus=%.1f ms/s%n", mode, rate, samples, interrupts,
+                busMicros / 1e3);
+    }
+}
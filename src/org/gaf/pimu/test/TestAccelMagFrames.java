@@ -0,0 +1,57 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.FXOS8700CQ;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests AccelMag frame mode: for each kind of frame, takes two seconds of
+ * frames, prints the first few, and reports the frame rate (which should be
+ * the rate of each sensor, half the ODR in hybrid mode) and any drops.
+ */
+public class TestAccelMagFrames {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SampleRing ring = new SampleRing(256, AccelMag.FRAME_RECORD_WIDTH);
+        long[] frame = new long[AccelMag.FRAME_RECORD_WIDTH];
+
+        try (AccelMag am = new AccelMag(18, ring)) {
+            am.begin(FXOS8700CQ.ODR.ODR_400);
+
+            for (AccelMag.Frame kind : AccelMag.Frame.values()) {
+                am.activateFrames(kind);
+                long start = System.nanoTime();
+                int count = 0;
+                while (System.nanoTime() - start < 2_000_000_000L) {
+                    ring.take(frame);
+                    if (count++ < 5) print(kind, frame);
+                }
+                am.deactivate();
+                System.out.format("%s: %.1f frames/s, %d dropped so far%n", kind,
+                        count / ((System.nanoTime() - start) / 1e9),
+                        ring.getDropped());
+            }
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+
+    private static void print(AccelMag.Frame kind, long[] frame) {
+        if (kind == AccelMag.Frame.SIX_AXIS) {
+            System.out.format("  accel %6d %6d %6d  mag %6d %6d %6d  " +
+                    "ts %d  delta %d%n", frame[AccelMag.ACCEL_X],
+                    frame[AccelMag.ACCEL_Y], frame[AccelMag.ACCEL_Z],
+                    frame[AccelMag.MAG_X], frame[AccelMag.MAG_Y],
+                    frame[AccelMag.MAG_Z], frame[AccelMag.FRAME_TIMESTAMP],
+                    frame[AccelMag.FRAME_TS_DELTA]);
+        } else {
+            System.out.format("  %s %6d %6d %6d  ts %d%n",
+                    (frame[AccelMag.KIND] == AccelMag.KIND_ACCEL) ?
+                            "accel" : "mag  ",
+                    frame[AccelMag.X], frame[AccelMag.Y], frame[AccelMag.Z],
+                    frame[AccelMag.TIMESTAMP]);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.FXOS8700CQ;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests AccelMag motion wake. First, with the device still, compares the
+ * interrupt rate and process CPU time of streaming six axis frames at
+ * 400 Hz with motion wake (idle at 12.5 Hz) over the same period. Then, for
+ * a while, reports each second whether streaming, with the frames received
+ * and the events counted; move, tap and drop (onto something soft) the
+ * device to see the switching.
+ * <p>
+ * Arguments: seconds for each phase (default 30).
+ * </p>
+ */
+public class TestAccelMagMotion {
+
+    private static final com.sun.management.OperatingSystemMXBean OS =
+            (com.sun.management.OperatingSystemMXBean)
+                    ManagementFactory.getOperatingSystemMXBean();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = (args.length > 0) ? Integer.valueOf(args[0]) : 30;
+        SampleRing ring = new SampleRing(1024, AccelMag.FRAME_RECORD_WIDTH);
+        long[] frame = new long[AccelMag.FRAME_RECORD_WIDTH];
+
+        try (AccelMag am = new AccelMag(18, ring)) {
+            am.begin(FXOS8700CQ.ODR.ODR_400);
+
+            System.out.format("Keep still for %d s ...%n", 2 * seconds);
+            // streaming all the time
+            am.activateFrames(AccelMag.Frame.SIX_AXIS);
+            long cpu = OS.getProcessCpuTime();
+            long frames = drain(ring, frame, seconds);
+            cpu = OS.getProcessCpuTime() - cpu;
+            am.deactivate();
+            System.out.format("streaming: %.1f interrupts/s, CPU %.2f s%n",
+                    (double) frames / seconds, cpu / 1e9);
+
+            // motion wake
+            am.activateMotionWake(AccelMag.Frame.SIX_AXIS,
+                    FXOS8700CQ.ODR.ODR_12_5, FXOS8700CQ.ODR.ODR_400, 2000);
+            long wakeCpu = OS.getProcessCpuTime();
+            frames = drain(ring, frame, seconds);
+            wakeCpu = OS.getProcessCpuTime() - wakeCpu;
+            System.out.format("motion wake: %.2f interrupts/s, %d frames, " +
+                    "%d wakes, CPU %.2f s (saved %.2f s, %.0f%%)%n",
+                    (double) am.getInterruptCount() / seconds, frames,
+                    am.getWakeCount(), wakeCpu / 1e9, (cpu - wakeCpu) / 1e9,
+                    100.0 * (cpu - wakeCpu) / cpu);
+
+            System.out.format("Now move, tap and drop for %d s ...%n", seconds);
+            for (int s = 0; s < seconds; s++) {
+                frames = drain(ring, frame, 1);
+                System.out.format("%s: %d frames, %d wakes, %d taps, " +
+                        "%d double taps, %d freefalls%n",
+                        am.isStreaming() ? "streaming" : "idle     ", frames,
+                        am.getWakeCount(), am.getTapCount(),
+                        am.getDoubleTapCount(), am.getFreefallCount());
+            }
+            System.out.format("streaming for %.1f s of %d s, %d interrupts%n",
+                    am.getStreamingTime() / 1e9, 2 * seconds,
+                    am.getInterruptCount());
+            am.deactivate();
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+
+    /**
+     * Takes frames for a number of seconds.
+     * @return the number of frames
+     */
+    private static long drain(SampleRing ring, long[] frame, int seconds)
+            throws InterruptedException {
+        long count = 0;
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (ring.take(frame, remaining, TimeUnit.NANOSECONDS)) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,254 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.finish;
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import org.gaf.pimu.Acquisition;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * A latency harness for the acquisition modes: runs each mode at each ODR,
+ * and reports the latency from data ready to the consumer, the CPU used,
+ * and missed samples. Then, for each ODR and latency budget, names the
+ * mode using the least CPU whose 99th percentile latency meets the budget
+ * without missing samples.
+ * <p>
+ * Arguments: "sim" to use a simulated sensor instead of the FXAS21002C
+ * (only the polling modes, no hardware needed; checks the hybrid mode
+ * uses less CPU than polling and, at the ODRs the host wakes threads in
+ * time for, delivers nearly every sample; and checks that a failing
+ * handler stops the polling thread with the failure kept); then optionally
+ * the latency budgets in microseconds (default 200 1000 5000).
+ * </p>
+ */
+public class TestAcquisition {
+
+    private static final com.sun.management.OperatingSystemMXBean OS =
+            (com.sun.management.OperatingSystemMXBean)
+            ManagementFactory.getOperatingSystemMXBean();
+    private static final int GYRO_PIN = 18;
+    private static final float SECONDS = 2;
+
+    // results per run
+    private static long p50, p99, max;
+    private static float cpu;
+    private static long missed;
+
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        boolean sim = args.length > 0 && args[0].equals("sim");
+        int first = sim ? 1 : 0;
+        long[] budgets = (args.length > first) ? new long[args.length - first] :
+                new long[] {200, 1000, 5000};
+        for (int i = first; i < args.length; i++) {
+            budgets[i - first] = Long.parseLong(args[i]);
+        }
+
+        FXAS21002C.ODR[] odrs = FXAS21002C.ODR.values();
+        Acquisition.Mode[] modes = sim ?
+                new Acquisition.Mode[] {Acquisition.Mode.POLL,
+                    Acquisition.Mode.HYBRID} :
+                new Acquisition.Mode[] {Acquisition.Mode.INTERRUPT,
+                    Acquisition.Mode.HYBRID, Acquisition.Mode.POLL};
+        long[][] p99s = new long[odrs.length][modes.length];
+        long[][] misses = new long[odrs.length][modes.length];
+        float[][] cpus = new float[odrs.length][modes.length];
+        boolean ok = true;
+        StringBuilder skipped = new StringBuilder();
+
+        System.out.println("ODR(Hz)  mode       samples  missed  p50(us)  " +
+                "p99(us)  max(us)  CPU(%)  polls/sample");
+        if (sim) {
+            // compile the loops first, so the first runs are not held up
+            for (Acquisition.Mode mode : modes) {
+                runSim(odrs[0].odr, mode);
+            }
+            long wakeLateness = wakeLateness();
+            System.out.format("(host wakes a parked thread up to %.0f us " +
+                    "late)%n", wakeLateness / 1e3);
+            for (int o = 0; o < odrs.length; o++) {
+                for (int m = 0; m < modes.length; m++) {
+                    Acquisition acquisition = runSim(odrs[o].odr, modes[m]);
+                    report(odrs[o], modes[m], acquisition);
+                    p99s[o][m] = p99;
+                    misses[o][m] = missed;
+                    cpus[o][m] = cpu;
+                }
+                // the hybrid mode must use less CPU, and deliver (nearly)
+                // every sample where the host wakes it in time to: a wake
+                // up later than half a period can lose a burst of samples
+                ok &= cpus[o][1] < cpus[o][0];
+                if (wakeLateness < (long) (5e8 / odrs[o].odr)) {
+                    ok &= misses[o][1] <= SECONDS * odrs[o].odr / 200;
+                } else {
+                    skipped.append(String.format(" %.1f", odrs[o].odr));
+                }
+            }
+        } else {
+            SampleRing ring = new SampleRing(1024, Gyro.XYZ_RECORD_WIDTH);
+            try (Gyro gyro = new Gyro(GYRO_PIN, ring)) {
+                for (int o = 0; o < odrs.length; o++) {
+                    for (int m = 0; m < modes.length; m++) {
+                        gyro.setAcquisitionMode(modes[m]);
+                        gyro.begin(FXAS21002C.LpfCutoff.Lowest, odrs[o]);
+                        gyro.activateRawXYZ();
+                        measure(ring, odrs[o].odr);
+                        gyro.deactivate();
+                        report(odrs[o], modes[m], gyro.getAcquisition());
+                        p99s[o][m] = p99;
+                        misses[o][m] = missed;
+                        cpus[o][m] = cpu;
+                    }
+                }
+            } finally {
+                Diozero.shutdown();
+            }
+        }
+
+        // the cheapest mode meeting each budget
+        System.out.println();
+        for (int o = 0; o < odrs.length; o++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%7.1f Hz:", odrs[o].odr));
+            for (long budget : budgets) {
+                String choice = "none";
+                float cheapest = Float.MAX_VALUE;
+                for (int m = 0; m < modes.length; m++) {
+                    if (misses[o][m] == 0 && p99s[o][m] <= budget * 1000 &&
+                            cpus[o][m] < cheapest) {
+                        cheapest = cpus[o][m];
+                        choice = modes[m].name();
+                    }
+                }
+                sb.append(String.format("  %dus -> %s", budget, choice));
+            }
+            System.out.println(sb);
+        }
+
+        if (sim) {
+            if (skipped.length() > 0) System.out.println("\nhybrid misses " +
+                    "not checked at" + skipped + " Hz: the host wakes too late");
+            ok &= failure();
+            finish(ok);
+        }
+    }
+
+    /**
+     * Runs an acquisition of a simulated sensor: data is ready every period,
+     * and a read takes about 150 us, as an I2C block read at 400 kHz does.
+     */
+    private static Acquisition runSim(float odr, Acquisition.Mode mode)
+            throws InterruptedException {
+        SampleRing ring = new SampleRing(1024, Gyro.XYZ_RECORD_WIDTH);
+        long period = (long) (1e9 / odr);
+        long start = System.nanoTime();
+        long[] next = {start + period};
+        Acquisition acquisition = new Acquisition(null,
+                () -> System.nanoTime() >= next[0], mode);
+        acquisition.setOdr(odr);
+        acquisition.start(timestamp -> {
+            long done = System.nanoTime() + 150_000;
+            while (System.nanoTime() < done) {
+                Thread.onSpinWait();
+            }
+            // data for samples not read before the next was ready is lost
+            long now = System.nanoTime();
+            while (next[0] + period <= now) {
+                next[0] += period;
+            }
+            if (ring.claim()) {
+                ring.put(Gyro.VALUE, next[0]);
+                ring.put(Gyro.TIMESTAMP, timestamp);
+                ring.publish();
+            }
+            next[0] += period;
+        });
+        measure(ring, odr);
+        acquisition.stop();
+        return acquisition;
+    }
+
+    /**
+     * Measures how late the host wakes a parked thread, as the hybrid mode
+     * parks: the worst of 2000 parks of 1 ms.
+     */
+    private static long wakeLateness() {
+        long worst = 0;
+        for (int i = 0; i < 2000; i++) {
+            long start = System.nanoTime();
+            LockSupport.parkNanos(1_000_000);
+            worst = Math.max(worst, System.nanoTime() - start - 1_000_000);
+        }
+        return worst;
+    }
+
+    /**
+     * Runs a polling acquisition whose handler fails at the third sample:
+     * the polling thread must stop, keeping the failure.
+     */
+    private static boolean failure() throws InterruptedException {
+        int[] count = {0};
+        Acquisition acquisition = new Acquisition(null, () -> true,
+                Acquisition.Mode.POLL);
+        acquisition.start(timestamp -> {
+            if (++count[0] == 3) throw new IllegalStateException("read failed");
+        });
+        long tEnd = System.nanoTime() + 1_000_000_000L;
+        while (acquisition.isRunning() && System.nanoTime() < tEnd) {
+            Thread.sleep(1);
+        }
+        acquisition.stop();
+        RuntimeException failure = acquisition.getFailure();
+        System.out.println("\nfailing handler: " + ((failure == null) ?
+                "no failure" : failure.getMessage()) + " after " +
+                acquisition.getSampleCount() + " samples");
+        return failure != null && count[0] == 3;
+    }
+
+    /**
+     * Takes records for the run time, measuring the latency of each and the
+     * process CPU use, and counting missed samples from the timestamp gaps.
+     */
+    private static void measure(SampleRing ring, float odr)
+            throws InterruptedException {
+        long period = (long) (1e9 / odr);
+        int expected = (int) (SECONDS * odr);
+        long[] latencies = new long[expected];
+        long[] record = new long[ring.width()];
+        long cpuStart = OS.getProcessCpuTime();
+        long wallStart = System.nanoTime();
+
+        int n = 0;
+        long last = 0;
+        missed = 0;
+        while (n < expected) {
+            ring.take(record);
+            long now = System.nanoTime();
+            long timestamp = record[Gyro.TIMESTAMP];
+            latencies[n++] = now - timestamp;
+            if (last != 0) missed += Math.max(0,
+                    Math.round((double) (timestamp - last) / period) - 1);
+            last = timestamp;
+        }
+
+        cpu = 100f * (OS.getProcessCpuTime() - cpuStart) /
+                (System.nanoTime() - wallStart);
+        Arrays.sort(latencies, 0, n);
+        p50 = latencies[n / 2];
+        p99 = latencies[Math.min(n - 1, (int) (n * 0.99))];
+        max = latencies[n - 1];
+    }
+
+    private static void report(FXAS21002C.ODR odr, Acquisition.Mode mode,
+            Acquisition acquisition) {
+        System.out.format("%7.1f  %-9s  %7d  %6d  %7.0f  %7.0f  %7.0f  %6.1f" +
+                "  %12.1f%n", odr.odr, mode, acquisition.getSampleCount(),
+                missed, p50 / 1e3, p99 / 1e3, max / 1e3, cpu,
+                acquisition.getPollsPerSample());
+    }
+}
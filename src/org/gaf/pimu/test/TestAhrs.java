@@ -0,0 +1,124 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.io.PrintWriter;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.Ahrs;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.FXOS8700CQ;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests Ahrs live: fuses all three gyro axes at the full gyro ODR with the
+ * accelerometer and magnetometer (in FIFO mode), and prints the Euler
+ * angles a few times a second. Optionally records the samples for replay
+ * by TestAhrsReplay.
+ * <p>
+ * Arguments: seconds (default 20), algorithm MADGWICK or MAHONY (default
+ * MADGWICK), recording file (default none).
+ * </p>
+ */
+public class TestAhrs {
+
+    private static final float DEG_TO_RAD = (float) (Math.PI / 180);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int seconds = (args.length > 0) ? Integer.valueOf(args[0]) : 20;
+        Ahrs.Algorithm algorithm = (args.length > 1) ?
+                Ahrs.Algorithm.valueOf(args[1]) : Ahrs.Algorithm.MADGWICK;
+        PrintWriter record = (args.length > 2) ? new PrintWriter(args[2]) : null;
+
+        SampleRing gyroRing = new SampleRing(256, Gyro.XYZ_RECORD_WIDTH);
+        SampleRing amRing = new SampleRing(256, AccelMag.BATCH_RECORD_WIDTH);
+        long[] g = new long[Gyro.XYZ_RECORD_WIDTH];
+        long[] am = new long[AccelMag.BATCH_RECORD_WIDTH];
+        boolean amPending = false;
+
+        float gSens = FXAS21002C.Range.DPS250.sensitivity * DEG_TO_RAD;
+        float aSens = FXOS8700CQ.AccelRange.RANGE_2G.sensitivity;
+        float mSens = FXOS8700CQ.MAG_SENSITIVITY;
+        float ax = 0, ay = 0, az = 0, mx = 0, my = 0, mz = 0;
+
+        Ahrs ahrs = new Ahrs(algorithm);
+        boolean aligned = false;
+
+        try (Gyro gyro = new Gyro(18, gyroRing);
+                AccelMag accelMag = new AccelMag(17, amRing)) {
+
+            gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_800);
+            accelMag.begin(FXOS8700CQ.ODR.ODR_400);
+
+            accelMag.activateFifo(8);
+            gyro.activateRawXYZ();
+            if (record != null)
+                record.println("# timestamp_ns,kind,x,y,z: G deg/s, A g, M uT");
+
+            long tsGyro = 0;
+            long tsPrint = 0;
+            long tEnd = System.nanoTime() + seconds * 1_000_000_000L;
+            int updates = 0;
+            while (System.nanoTime() < tEnd) {
+                gyroRing.take(g);
+                long ts = g[Gyro.TIMESTAMP];
+                float dt = (tsGyro == 0) ? 0 : (ts - tsGyro) / 1e9f;
+                tsGyro = ts;
+
+                // bring the accelerometer and magnetometer up to this time
+                while (amPending || amRing.poll(am)) {
+                    if (am[AccelMag.TIMESTAMP] > ts) {
+                        amPending = true;
+                        break;
+                    }
+                    amPending = false;
+                    boolean accel = am[AccelMag.KIND] == AccelMag.KIND_ACCEL;
+                    float sens = accel ? aSens : mSens;
+                    float x = am[AccelMag.X] * sens;
+                    float y = am[AccelMag.Y] * sens;
+                    float z = am[AccelMag.Z] * sens;
+                    if (accel) {
+                        ax = x;
+                        ay = y;
+                        az = z;
+                    } else {
+                        mx = x;
+                        my = y;
+                        mz = z;
+                    }
+                    if (record != null)
+                        record.format("%d,%s,%f,%f,%f%n", 
+                                am[AccelMag.TIMESTAMP], accel ? "A" : "M",
+                                x, y, z);
+                }
+
+                float gx = g[Gyro.VALUE_X] * gSens;
+                float gy = g[Gyro.VALUE_Y] * gSens;
+                float gz = g[Gyro.VALUE] * gSens;
+                if (record != null)
+                    record.format("%d,G,%f,%f,%f%n", ts, gx / DEG_TO_RAD,
+                            gy / DEG_TO_RAD, gz / DEG_TO_RAD);
+
+                if (!aligned && az != 0 && mz != 0) {
+                    ahrs.align(ax, ay, az, mx, my, mz);
+                    aligned = true;
+                }
+                ahrs.update(gx, gy, gz, ax, ay, az, mx, my, mz, dt);
+                updates++;
+
+                if (ts - tsPrint > 250_000_000L) {
+                    tsPrint = ts;
+                    System.out.format("roll=%6.1f pitch=%6.1f yaw=%6.1f%n",
+                            ahrs.getRoll(), ahrs.getPitch(), ahrs.getYaw());
+                }
+            }
+
+            gyro.deactivate();
+            accelMag.deactivate();
+            System.out.format("updates/s=%.1f%n", updates / (double) seconds);
+        } finally {
+            if (record != null) record.close();
+            Diozero.shutdown();
+        }
+    }
+}
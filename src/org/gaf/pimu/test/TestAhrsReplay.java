@@ -0,0 +1,356 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.finish;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import org.gaf.pimu.Ahrs;
+
+/**
+ * Replays recorded IMU data through both Ahrs algorithms, then benchmarks
+ * updates per second. No hardware needed.
+ * <p>
+ * With a file argument, replays a recording made by TestAhrs: lines of
+ * "timestamp_ns,kind,x,y,z" where kind is G (deg/s), A (g) or M (uT), and
+ * lines starting with '#' are comments. The Euler angles are printed once
+ * a second. Without an argument, replays a synthetic recording of a known
+ * motion (with sensor noise and gyroscope bias), and checks the error
+ * against the true orientation.
+ * </p>
+ */
+public class TestAhrsReplay {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final float DEG_TO_RAD = (float) (Math.PI / 180);
+
+    // synthetic recording
+    private static final int GYRO_HZ = 800;
+    private static final int ACCEL_MAG_DIVIDER = 4; // 200 Hz
+    private static final int SECONDS = 40;
+    private static final int SETTLE_SECONDS = 2;
+    private static final double[] EARTH_FIELD = {20, 0, -45}; // uT, Z up
+    // acceptable RMS error in degrees for roll, pitch, yaw
+    private static final double[] LIMIT = {2, 2, 4};
+
+    // the recording: one sample per entry
+    private static long[] timestamp;
+    private static char[] kind;
+    private static float[][] value;
+    private static int size;
+    // the true orientation at each gyroscope sample, if known
+    private static float[][] truth;
+
+    public static void main(String[] args) throws IOException {
+        boolean ok = true;
+        if (args.length > 0) {
+            load(args[0]);
+            System.out.println("Replaying " + size + " samples from " + args[0]);
+        } else {
+            synthesize(new Random(42));
+            System.out.println("Replaying " + size + " synthetic samples");
+        }
+
+        for (Ahrs.Algorithm algorithm : Ahrs.Algorithm.values()) {
+            ok &= replay(new Ahrs(algorithm), truth != null);
+            ok &= still(new Ahrs(algorithm));
+        }
+
+        for (Ahrs.Algorithm algorithm : Ahrs.Algorithm.values()) {
+            ok &= benchmark(new Ahrs(algorithm));
+        }
+
+        finish(ok);
+    }
+
+    /**
+     * Updates with noise-free samples of a level, still sensor, already
+     * aligned: the gradient is then exactly zero, and the orientation must
+     * stay level rather than become NaN.
+     */
+    private static boolean still(Ahrs ahrs) {
+        float[] q = new float[4];
+        for (int j = 0; j < 100; j++) {
+            if ((j & 1) == 0) {
+                ahrs.update(0, 0, 0, 0, 0, 1, 1f / GYRO_HZ);
+            } else {
+                ahrs.update(0, 0, 0, 0, 0, 1, 1, 0, 0, 1f / GYRO_HZ);
+            }
+        }
+        ahrs.getQuaternion(q);
+        boolean ok = q[0] == 1 && q[1] == 0 && q[2] == 0 && q[3] == 0;
+        System.out.format("%s still and aligned: q %s%s%n",
+                ahrs.getAlgorithm(), Arrays.toString(q), ok ? "" : " WRONG");
+        return ok;
+    }
+
+    /**
+     * Replays the recording, after aligning with the first accelerometer and
+     * magnetometer samples; if the truth is known, checks the RMS error
+     * after the filter settles.
+     */
+    private static boolean replay(Ahrs ahrs, boolean check) {
+        float[] am = new float[6];
+        float[] rpy = new float[3];
+        double[] sumSq = new double[3];
+        int compared = 0;
+        int gyro = 0;
+        long tsGyro = 0;
+        long tsPrint = 0;
+        boolean aligned = false;
+        for (int i = 0; i < size; i++) {
+            float[] v = value[i];
+            if (kind[i] == 'A') {
+                System.arraycopy(v, 0, am, 0, 3);
+            } else if (kind[i] == 'M') {
+                System.arraycopy(v, 0, am, 3, 3);
+            } else {
+                // align with the first accelerometer and magnetometer samples
+                if (!aligned && am[2] != 0 && am[5] != 0) {
+                    ahrs.align(am[0], am[1], am[2], am[3], am[4], am[5]);
+                    aligned = true;
+                }
+                float dt = (tsGyro == 0) ? 0 : (timestamp[i] - tsGyro) / 1e9f;
+                tsGyro = timestamp[i];
+                ahrs.update(v[0] * DEG_TO_RAD, v[1] * DEG_TO_RAD,
+                        v[2] * DEG_TO_RAD, am[0], am[1], am[2], am[3], am[4],
+                        am[5], dt);
+                ahrs.getEuler(rpy);
+                if (check) {
+                    if (gyro >= SETTLE_SECONDS * GYRO_HZ) {
+                        for (int a = 0; a < 3; a++) {
+                            double e = wrap(rpy[a] - truth[gyro][a]);
+                            sumSq[a] += e * e;
+                        }
+                        compared++;
+                    }
+                } else if (tsGyro - tsPrint >= 1_000_000_000L) {
+                    tsPrint = tsGyro;
+                    System.out.format("  %s t=%.1f s roll=%.1f pitch=%.1f " +
+                            "yaw=%.1f%n", ahrs.getAlgorithm(),
+                            (tsGyro - timestamp[0]) / 1e9, rpy[0], rpy[1],
+                            rpy[2]);
+                }
+                gyro++;
+            }
+        }
+        if (!check) return true;
+
+        boolean ok = true;
+        double[] rms = new double[3];
+        for (int a = 0; a < 3; a++) {
+            rms[a] = Math.sqrt(sumSq[a] / compared);
+            ok &= rms[a] < LIMIT[a];
+        }
+        System.out.format("%s: RMS error deg roll=%.2f pitch=%.2f yaw=%.2f %s%n",
+                ahrs.getAlgorithm(), rms[0], rms[1], rms[2], ok ? "OK" : "TOO BIG");
+        return ok;
+    }
+
+    /**
+     * Runs the gyroscope samples through an update repeatedly for about
+     * two seconds; reports the rate and checks nothing is allocated.
+     */
+    private static boolean benchmark(Ahrs ahrs) {
+        float[] am = new float[6];
+        int updates = 0;
+        long bytes = 0;
+        long tStart = 0;
+        // the first passes warm up
+        for (int pass = 0; pass < 1000; pass++) {
+            if (pass == 2) {
+                updates = 0;
+                bytes = allocated();
+                tStart = System.nanoTime();
+            }
+            for (int i = 0; i < size; i++) {
+                float[] v = value[i];
+                if (kind[i] == 'A') {
+                    am[0] = v[0];
+                    am[1] = v[1];
+                    am[2] = v[2];
+                } else if (kind[i] == 'M') {
+                    am[3] = v[0];
+                    am[4] = v[1];
+                    am[5] = v[2];
+                } else {
+                    ahrs.update(v[0] * DEG_TO_RAD, v[1] * DEG_TO_RAD,
+                            v[2] * DEG_TO_RAD, am[0], am[1], am[2], am[3],
+                            am[4], am[5], 1f / GYRO_HZ);
+                    updates++;
+                }
+            }
+            if (pass > 2 && System.nanoTime() - tStart > 2_000_000_000L) break;
+        }
+        double seconds = (System.nanoTime() - tStart) / 1e9;
+        bytes = allocated() - bytes;
+        System.out.format("%s: %.0f updates/s (%.2f us/update), " +
+                "%.3f bytes/update%n", ahrs.getAlgorithm(), updates / seconds,
+                seconds * 1e6 / updates, (double) bytes / updates);
+        return bytes == 0;
+    }
+
+    /**
+     * Loads a recording.
+     */
+    private static void load(String file) throws IOException {
+        allocate(1024);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split(",");
+                add(Long.parseLong(f[0].trim()), f[1].trim().charAt(0),
+                        Float.parseFloat(f[2]), Float.parseFloat(f[3]),
+                        Float.parseFloat(f[4]));
+            }
+        }
+    }
+
+    /**
+     * Creates a synthetic recording of a smooth motion about all three
+     * axes, from a non-identity start, with the true orientation.
+     */
+    private static void synthesize(Random random) {
+        int gyroSamples = SECONDS * GYRO_HZ;
+        allocate(gyroSamples * 3 / 2 + 16);
+        truth = new float[gyroSamples][];
+
+        double[] bias = {0.2, -0.15, 0.1}; // deg/s
+        double dt = 1.0 / GYRO_HZ;
+        int substeps = 8;
+        // true orientation, starting rolled 20, pitched -10, yawed 30 deg
+        double[] q = fromEuler(20, -10, 30);
+        double[] w = new double[3];
+        for (int n = 0; n < gyroSamples; n++) {
+            // integrate the true motion finely up to this sample
+            for (int s = 0; s < substeps; s++) {
+                double t = (n * substeps + s) * dt / substeps;
+                rates(t, w);
+                rotate(q, w, dt / substeps);
+            }
+            double t = n * dt;
+            long ts = 1_000_000_000L + Math.round(t * 1e9);
+            rates(t, w);
+
+            if (n % ACCEL_MAG_DIVIDER == 0) {
+                double[] a = toBody(q, new double[]{0, 0, 1});
+                add(ts, 'A', noisy(a[0], 0.005, random),
+                        noisy(a[1], 0.005, random), noisy(a[2], 0.005, random));
+                double[] m = toBody(q, EARTH_FIELD);
+                add(ts, 'M', noisy(m[0], 0.5, random),
+                        noisy(m[1], 0.5, random), noisy(m[2], 0.5, random));
+            }
+            add(ts, 'G',
+                    noisy(Math.toDegrees(w[0]) + bias[0], 0.1, random),
+                    noisy(Math.toDegrees(w[1]) + bias[1], 0.1, random),
+                    noisy(Math.toDegrees(w[2]) + bias[2], 0.1, random));
+            truth[n] = toEuler(q);
+        }
+    }
+
+    /**
+     * The true body rates in radians/s.
+     */
+    private static void rates(double t, double[] w) {
+        w[0] = Math.toRadians(30) * Math.sin(2 * Math.PI * 0.13 * t);
+        w[1] = Math.toRadians(25) * Math.sin(2 * Math.PI * 0.07 * t + 1);
+        w[2] = Math.toRadians(45) * Math.sin(2 * Math.PI * 0.05 * t + 2);
+    }
+
+    /**
+     * Rotates a quaternion by body rates for a time, exactly.
+     */
+    private static void rotate(double[] q, double[] w, double dt) {
+        double angle = Math.sqrt(w[0] * w[0] + w[1] * w[1] + w[2] * w[2]) * dt;
+        if (angle == 0) return;
+        double s = Math.sin(angle / 2) / (angle / dt);
+        double r0 = Math.cos(angle / 2);
+        double r1 = w[0] * s;
+        double r2 = w[1] * s;
+        double r3 = w[2] * s;
+        double a = q[0] * r0 - q[1] * r1 - q[2] * r2 - q[3] * r3;
+        double b = q[0] * r1 + q[1] * r0 + q[2] * r3 - q[3] * r2;
+        double c = q[0] * r2 - q[1] * r3 + q[2] * r0 + q[3] * r1;
+        double d = q[0] * r3 + q[1] * r2 - q[2] * r1 + q[3] * r0;
+        q[0] = a;
+        q[1] = b;
+        q[2] = c;
+        q[3] = d;
+    }
+
+    /**
+     * Expresses an earth frame vector in the body frame.
+     */
+    private static double[] toBody(double[] q, double[] v) {
+        double q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+        return new double[]{
+            (1 - 2 * (q2 * q2 + q3 * q3)) * v[0] + 2 * (q1 * q2 + q0 * q3) * v[1]
+                    + 2 * (q1 * q3 - q0 * q2) * v[2],
+            2 * (q1 * q2 - q0 * q3) * v[0] + (1 - 2 * (q1 * q1 + q3 * q3)) * v[1]
+                    + 2 * (q2 * q3 + q0 * q1) * v[2],
+            2 * (q1 * q3 + q0 * q2) * v[0] + 2 * (q2 * q3 - q0 * q1) * v[1]
+                    + (1 - 2 * (q1 * q1 + q2 * q2)) * v[2]};
+    }
+
+    private static double[] fromEuler(double roll, double pitch, double yaw) {
+        double cr = Math.cos(Math.toRadians(roll) / 2);
+        double sr = Math.sin(Math.toRadians(roll) / 2);
+        double cp = Math.cos(Math.toRadians(pitch) / 2);
+        double sp = Math.sin(Math.toRadians(pitch) / 2);
+        double cy = Math.cos(Math.toRadians(yaw) / 2);
+        double sy = Math.sin(Math.toRadians(yaw) / 2);
+        return new double[]{
+            cr * cp * cy + sr * sp * sy,
+            sr * cp * cy - cr * sp * sy,
+            cr * sp * cy + sr * cp * sy,
+            cr * cp * sy - sr * sp * cy};
+    }
+
+    private static float[] toEuler(double[] q) {
+        double sinp = Math.max(-1, Math.min(1, 2 * (q[0] * q[2] - q[1] * q[3])));
+        return new float[]{
+            (float) Math.toDegrees(Math.atan2(2 * (q[0] * q[1] + q[2] * q[3]),
+                    1 - 2 * (q[1] * q[1] + q[2] * q[2]))),
+            (float) Math.toDegrees(Math.asin(sinp)),
+            (float) Math.toDegrees(Math.atan2(2 * (q[0] * q[3] + q[1] * q[2]),
+                    1 - 2 * (q[2] * q[2] + q[3] * q[3])))};
+    }
+
+    private static float noisy(double value, double sigma, Random random) {
+        return (float) (value + sigma * random.nextGaussian());
+    }
+
+    private static double wrap(double degrees) {
+        return degrees - 360 * Math.floor((degrees + 180) / 360);
+    }
+
+    private static void allocate(int capacity) {
+        timestamp = new long[capacity];
+        kind = new char[capacity];
+        value = new float[capacity][];
+        size = 0;
+    }
+
+    private static void add(long ts, char k, float x, float y, float z) {
+        if (size == timestamp.length) {
+            int capacity = size * 2;
+            timestamp = Arrays.copyOf(timestamp, capacity);
+            kind = Arrays.copyOf(kind, capacity);
+            value = Arrays.copyOf(value, capacity);
+        }
+        timestamp[size] = ts;
+        kind[size] = k;
+        value[size] = new float[]{x, y, z};
+        size++;
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
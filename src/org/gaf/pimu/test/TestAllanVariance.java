@@ -0,0 +1,106 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.util.Random;
+import org.gaf.pimu.AllanVariance;
+import org.gaf.pimu.NoiseAnalyzer;
+
+/**
+ * Tests AllanVariance and NoiseAnalyzer with two hours of simulated still
+ * gyroscope data at 800 Hz on three axes: white noise (angle random walk N)
+ * plus a rate random walk (K), with different levels per axis. For that
+ * noise the Allan variance is N²/tau + K²tau/3, so the angle random walk
+ * and the minimum deviation, sqrt(2NK/sqrt(3)), are known. The parallel
+ * results are compared with a serial pass, and the throughput is
+ * reported. No hardware needed.
+ */
+public class TestAllanVariance {
+
+    private static final double RATE = 800;
+    private static final int SECONDS = 2 * 3600;
+    // per axis: white noise per sample and rate random walk per sample, in
+    // counts
+    private static final double[] WHITE = {8, 12, 16};
+    private static final double[] WALK = {0.002, 0.004, 0.001};
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok = true;
+        long number = (long) (RATE * SECONDS);
+        AllanVariance serial = new AllanVariance(1 / RATE);
+
+        long nanos;
+        try (NoiseAnalyzer analyzer = new NoiseAnalyzer(3, RATE)) {
+            Random random = new Random(5);
+            double[] bias = new double[3];
+            double[] sample = new double[3];
+            long start = System.nanoTime();
+            for (long n = 0; n < number; n++) {
+                for (int a = 0; a < 3; a++) {
+                    bias[a] += WALK[a] * random.nextGaussian();
+                    sample[a] = bias[a] + WHITE[a] * random.nextGaussian();
+                }
+                analyzer.add(sample);
+                serial.add(sample[0]);
+            }
+            analyzer.finish();
+            nanos = System.nanoTime() - start;
+
+            for (int a = 0; a < 3; a++) {
+                ok &= checkAxis(analyzer, a);
+            }
+            ok &= checkSerial(analyzer.getVariance(0), serial);
+        }
+        System.out.format("%d samples x 3 axes in %.1f s (including noise " +
+                "generation and a serial pass)%n", number, nanos / 1e9);
+        finish(ok);
+    }
+
+    private static boolean checkAxis(NoiseAnalyzer analyzer, int axis) {
+        AllanVariance v = analyzer.getVariance(axis);
+        double period = 1 / RATE;
+        // in counts * sqrt(s) and counts / sqrt(s)
+        double n = WHITE[axis] * Math.sqrt(period);
+        double k = WALK[axis] / Math.sqrt(period);
+        double minimum = Math.sqrt(2 * n * k / Math.sqrt(3));
+
+        System.out.format("axis %d: %d octaves%n", axis, v.getLevels());
+        for (int level = 0; level < v.getLevels(); level++) {
+            double tau = v.getTau(level);
+            double expected = Math.sqrt(n * n / tau + k * k * tau / 3);
+            System.out.format("  tau %10.5f s  adev %8.4f  expected %8.4f  " +
+                    "(%d clusters)%n", tau, v.getDeviation(level), expected,
+                    v.getClusterCount(level));
+        }
+        double arw = v.getAngleRandomWalk();
+        double floor = v.getBiasInstability() * Math.sqrt(2 * Math.log(2) /
+                Math.PI);
+        System.out.format("  ARW %.4f (true %.4f), minimum %.4f at %.1f s " +
+                "(true %.4f at %.1f s), dead zone %d%n", arw, n, floor,
+                v.getTau(v.getMinimumLevel()), minimum,
+                Math.sqrt(3) * n / k, analyzer.suggestDeadZone(axis));
+        // the memory is logarithmic: 2 hours at 800 Hz needs 22 octaves
+        boolean levels = v.getLevels() <= 64 - Long.numberOfLeadingZeros(
+                v.getSampleCount());
+        // the minimum of a non-overlapping estimate scatters with the few
+        // long clusters; the dead zone covers 3 sigma plus the bias wander
+        long deadZone = analyzer.suggestDeadZone(axis);
+        double sigmas = 3 * WHITE[axis];
+        return check("axis " + axis, levels &&
+                Math.abs(arw / n - 1) < 0.1 &&
+                Math.abs(floor / minimum - 1) < 0.2 &&
+                deadZone >= sigmas && deadZone <= sigmas * 1.05 + 2 * floor + 1);
+    }
+
+    /**
+     * The parallel result must be the same as a serial pass.
+     */
+    private static boolean checkSerial(AllanVariance parallel,
+            AllanVariance serial) {
+        boolean same = parallel.getLevels() == serial.getLevels();
+        for (int level = 0; same && level < serial.getLevels(); level++) {
+            same = parallel.getVariance(level) == serial.getVariance(level);
+        }
+        return check("parallel equals serial", same);
+    }
+}
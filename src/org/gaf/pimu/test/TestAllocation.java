@@ -0,0 +1,112 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.FXOS8700CQ;
+
+/**
+ * Checks the allocation budget of the register decode paths used by the
+ * interrupt handlers: zero bytes per sample. The decode checks need no
+ * hardware; with the argument "hw" the complete read paths of the
+ * FXAS21002C and FXOS8700CQ are checked too.
+ */
+public class TestAllocation {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int SAMPLES = 100_000;
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws IOException {
+        boolean ok = true;
+
+        // check the decoded values, including sign extension
+        byte[] fxas = {(byte) 0x80, 0x00, 0x12, 0x34, (byte) 0xFF, (byte) 0xFE};
+        int[] xyz = new int[3];
+        FXAS21002C.decode(fxas, 0, xyz, 0, 1);
+        ok &= check("FXAS21002C decode", xyz[0] == -32768 &&
+                xyz[1] == 0x1234 && xyz[2] == -2);
+        byte[] fxos = {(byte) 0xFF, (byte) 0x9C, 0x00, 0x64, 0x01, 0x00,
+            0x3F, (byte) 0xFF, 0x20, 0x00, 0x00, 0x01};
+        int[] xyzxyz = new int[6];
+        FXOS8700CQ.decodeRaw(fxos, xyzxyz);
+        ok &= check("FXOS8700CQ decodeRaw", xyzxyz[0] == -100 &&
+                xyzxyz[1] == 100 && xyzxyz[2] == 256 && xyzxyz[3] == -1 &&
+                xyzxyz[4] == -8192 && xyzxyz[5] == 1);
+
+        // warm up so the measured loops are compiled, then measure
+        long sink = 0;
+        for (int pass = 0; pass < WARMUP + 1; pass++) {
+            long bytes = allocated();
+            for (int i = 0; i < SAMPLES; i++) {
+                fxas[5] = (byte) i;
+                FXAS21002C.decode(fxas, 0, xyz, 0, 1);
+                sink += xyz[2];
+            }
+            bytes = allocated() - bytes;
+            if (pass == WARMUP) ok &= budget("FXAS21002C decode", bytes, SAMPLES);
+
+            bytes = allocated();
+            for (int i = 0; i < SAMPLES; i++) {
+                fxos[11] = (byte) i;
+                FXOS8700CQ.decodeRaw(fxos, xyzxyz);
+                sink += xyzxyz[5];
+            }
+            bytes = allocated() - bytes;
+            if (pass == WARMUP) ok &= budget("FXOS8700CQ decodeRaw", bytes, SAMPLES);
+        }
+        System.out.println("(checksum " + sink + ")");
+
+        if (args.length > 0 && args[0].equals("hw")) {
+            try (FXAS21002C gyro = new FXAS21002C();
+                    FXOS8700CQ accelMag = new FXOS8700CQ()) {
+                gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_800);
+                accelMag.begin();
+                int reads = SAMPLES / 10;
+                for (int pass = 0; pass < WARMUP + 1; pass++) {
+                    long bytes = allocated();
+                    for (int i = 0; i < reads; i++) {
+                        gyro.readRaw(xyz);
+                    }
+                    bytes = allocated() - bytes;
+                    if (pass == WARMUP) ok &= budget("FXAS21002C readRaw",
+                            bytes, reads);
+
+                    bytes = allocated();
+                    for (int i = 0; i < reads; i++) {
+                        gyro.readRawZ();
+                    }
+                    bytes = allocated() - bytes;
+                    if (pass == WARMUP) ok &= budget("FXAS21002C readRawZ",
+                            bytes, reads);
+
+                    bytes = allocated();
+                    for (int i = 0; i < reads; i++) {
+                        accelMag.readRaw(xyzxyz);
+                    }
+                    bytes = allocated() - bytes;
+                    if (pass == WARMUP) ok &= budget("FXOS8700CQ readRaw",
+                            bytes, reads);
+                }
+            } finally {
+                Diozero.shutdown();
+            }
+        }
+
+        finish(ok);
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean budget(String name, long bytes, int samples) {
+        double perSample = (double) bytes / samples;
+        System.out.format("%s: %.3f bytes/sample (budget 0)%n", name, perSample);
+        return bytes == 0;
+    }
+}
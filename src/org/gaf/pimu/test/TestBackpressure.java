@@ -0,0 +1,118 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.util.concurrent.TimeUnit;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests the SampleRing overflow policies and metrics: first the records
+ * kept by each policy when a consumer does not keep up, then a producer and
+ * consumer thread racing under each policy, checking every record is
+ * intact and in order and the counters add up. No hardware needed.
+ */
+public class TestBackpressure {
+
+    private static final int RACE_RECORDS = 2_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok = true;
+        ok &= kept(SampleRing.Overflow.DROP_NEWEST, new long[] {0, 1, 2, 3});
+        ok &= kept(SampleRing.Overflow.DROP_OLDEST, new long[] {6, 7, 8, 9});
+        ok &= kept(SampleRing.Overflow.COALESCE, new long[] {8, 9});
+        ok &= block();
+        for (SampleRing.Overflow overflow : SampleRing.Overflow.values()) {
+            ok &= race(overflow);
+        }
+        finish(ok);
+    }
+
+    /**
+     * Offers 10 records to a ring of 4, then checks which are kept.
+     */
+    private static boolean kept(SampleRing.Overflow overflow, long[] expected) {
+        SampleRing ring = new SampleRing(4, 2);
+        ring.setOverflow(overflow);
+        for (int i = 0; i < 10; i++) {
+            ring.offer(i, -i);
+        }
+        long[] record = new long[2];
+        boolean ok = true;
+        for (long value : expected) {
+            ok &= ring.poll(record) && record[0] == value && record[1] == -value;
+        }
+        ok &= !ring.poll(record);
+        ok &= ring.getOffered() == 10 && ring.getDelivered() == expected.length
+                && ring.getDropped() == 10 - expected.length;
+        return check(overflow.name(), ok);
+    }
+
+    /**
+     * Checks BLOCK waits for the timeout before dropping, and that clear
+     * counts as dropped.
+     */
+    private static boolean block() {
+        SampleRing ring = new SampleRing(4, 2);
+        ring.setOverflow(SampleRing.Overflow.BLOCK, 2, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            ring.offer(i, -i);
+        }
+        long elapsed = System.nanoTime() - start;
+        boolean ok = elapsed >= 4_000_000 && ring.size() == 4 &&
+                ring.getDropped() == 2;
+        ring.clear();
+        ok &= ring.size() == 0 && ring.getDropped() == 6 &&
+                ring.getOffered() == 6;
+        return check("BLOCK timeout and clear", ok);
+    }
+
+    /**
+     * Races a producer against a slower consumer. Each record holds a
+     * sequence number and a check value.
+     */
+    private static boolean race(SampleRing.Overflow overflow)
+            throws InterruptedException {
+        SampleRing ring = new SampleRing(16, 2);
+        ring.setOverflow(overflow, 1, TimeUnit.SECONDS);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < RACE_RECORDS; i++) {
+                ring.offer(i, checksum(i));
+            }
+        });
+        producer.start();
+
+        long[] record = new long[2];
+        long last = -1;
+        long received = 0;
+        boolean intact = true;
+        while (producer.isAlive() || ring.size() > 0) {
+            if (!ring.poll(record)) {
+                Thread.yield();
+                continue;
+            }
+            intact &= record[1] == checksum(record[0]) && record[0] > last;
+            last = record[0];
+            received++;
+            // consume a little slower than the producer
+            if ((received & 3) == 0) Thread.yield();
+        }
+        producer.join();
+
+        boolean ok = intact && ring.getOffered() == RACE_RECORDS &&
+                ring.getDelivered() == received &&
+                received + ring.getDropped() == RACE_RECORDS;
+        if (overflow == SampleRing.Overflow.BLOCK) ok &= received == RACE_RECORDS;
+        // the newest record survives unless new records are dropped
+        if (overflow == SampleRing.Overflow.DROP_OLDEST ||
+                overflow == SampleRing.Overflow.COALESCE)
+            ok &= last == RACE_RECORDS - 1;
+        System.out.format("%s race: delivered %d, dropped %d%n", overflow,
+                ring.getDelivered(), ring.getDropped());
+        return check(overflow.name() + " race", ok);
+    }
+
+    private static long checksum(long value) {
+        return value * 31 + 7;
+    }
+}
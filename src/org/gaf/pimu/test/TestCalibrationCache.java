@@ -0,0 +1,86 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.gaf.pimu.BiasEstimator;
+import org.gaf.pimu.CalibrationCache;
+
+/**
+ * Tests CalibrationCache persistence and temperature bands, and
+ * BiasEstimator refinement with simulated gyroscope data. No hardware
+ * needed.
+ */
+public class TestCalibrationCache {
+
+    public static void main(String[] args) throws IOException {
+        boolean ok = true;
+        Path file = Files.createTempFile("pimu-calibration", ".properties");
+        Files.delete(file);
+        try {
+            ok &= testCache(file.toString());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        ok &= testEstimator();
+        finish(ok);
+    }
+
+    private static boolean testCache(String file) throws IOException {
+        float[] bias = {-12.5f, 3.25f, 40.0f};
+        float[] hard = {100, -50, 25};
+        float[] soft = {1.1f, 0.01f, 0, 0.01f, 0.9f, 0, 0, 0, 1};
+
+        CalibrationCache cache = new CalibrationCache(file);
+        float[] got = new float[9];
+        boolean ok = check("empty cache", !cache.getGyroBias("G", 22, got));
+        cache.putGyroBias("G", 22, bias);
+        cache.putMagCalibration("M", hard, soft);
+        cache.save();
+
+        // reload from the file
+        cache = new CalibrationCache(file);
+        ok &= check("same band", cache.getGyroBias("G", 24, got) &&
+                got[0] == bias[0] && got[1] == bias[1] && got[2] == bias[2]);
+        ok &= check("nearby band", cache.getGyroBias("G", 31, got));
+        ok &= check("distant band", !cache.getGyroBias("G", 40, got));
+        ok &= check("other device", !cache.getGyroBias("H", 22, got));
+        float[] gotHard = new float[3];
+        ok &= check("magnetometer", cache.getMagCalibration("M", gotHard, got) &&
+                gotHard[1] == hard[1] && got[4] == soft[4]);
+        return ok;
+    }
+
+    /**
+     * Simulates a gyroscope at 50 Hz whose bias drifts, alternately
+     * stationary and rotating slowly; the estimate should follow the bias
+     * while stationary and ignore the rotation.
+     */
+    private static boolean testEstimator() {
+        Random random = new Random(7);
+        BiasEstimator estimator = new BiasEstimator(25, 10, 20, 0.1f);
+        float[] truth = {-30, 12, 55};
+        float[] bias = {-25, 10, 60}; // a stale cached profile
+        int[] xyz = new int[3];
+        for (int n = 0; n < 50 * 120; n++) {
+            // 10 s stationary, then 5 s rotating at 40 counts/s about Z
+            boolean rotating = (n / 50) % 15 >= 10;
+            for (int a = 0; a < 3; a++) {
+                truth[a] += 0.0005f; // slow drift with temperature
+                xyz[a] = Math.round(truth[a] + 3 * (float) random.nextGaussian());
+            }
+            if (rotating) xyz[2] += 40;
+            estimator.update(xyz, bias);
+        }
+        float error = 0;
+        for (int a = 0; a < 3; a++) {
+            error = Math.max(error, Math.abs(bias[a] - truth[a]));
+        }
+        System.out.format("estimator: refinements=%d max error=%.2f counts%n",
+                estimator.getUpdateCount(), error);
+        return check("estimator", error < 1.0f && estimator.getUpdateCount() > 0);
+    }
+}
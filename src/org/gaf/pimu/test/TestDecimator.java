@@ -0,0 +1,144 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.lang.management.ManagementFactory;
+import org.gaf.pimu.Decimator;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests Decimator with a simulated 800 Hz gyroscope stream: an offset plus
+ * a slow 1 Hz rotation (to keep) and a 250 Hz vibration (to remove) on each
+ * axis. The stream is fanned out to 800 Hz (pass through), 50 Hz (FIR and
+ * CIC) and 10 Hz (FIR). Each output is compared with the slow signal at its
+ * timestamp; the cost per source sample and the allocation are reported.
+ * No hardware needed.
+ */
+public class TestDecimator {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final float RATE = 800;
+    private static final int SECONDS = 60;
+    private static final int[] CHANNELS =
+        {Gyro.VALUE_X, Gyro.VALUE_Y, Gyro.VALUE};
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        ok &= run("pass through", 1, Decimator.Filter.NONE, 501);
+        ok &= run("50 Hz FIR", 16, Decimator.Filter.FIR, 4);
+        ok &= run("50 Hz CIC", 16, Decimator.Filter.CIC, 10);
+        ok &= run("10 Hz FIR", 80, Decimator.Filter.FIR, 4);
+        ok &= fanOut();
+        finish(ok);
+    }
+
+    /**
+     * Runs one subscriber and checks its output against the slow signal.
+     * Passed through, the vibration remains; the CIC filter has passband
+     * droop, so its limit is wider too.
+     */
+    private static boolean run(String name, int factor,
+            Decimator.Filter filter, double limit) {
+        SampleRing source = new SampleRing(64, Gyro.XYZ_RECORD_WIDTH);
+        SampleRing out = new SampleRing(64, Gyro.XYZ_RECORD_WIDTH);
+        Decimator decimator = new Decimator(source, CHANNELS, Gyro.TIMESTAMP,
+                Gyro.TS_DELTA);
+        decimator.subscribe(out, factor, filter);
+
+        long[] record = new long[Gyro.XYZ_RECORD_WIDTH];
+        int number = (int) (RATE * SECONDS);
+        double maxError = 0;
+        long outputs = 0;
+        for (int n = 0; n < number; n++) {
+            produce(source, n);
+            decimator.pump();
+            while (out.poll(record)) {
+                double t = record[Gyro.TIMESTAMP] / 1e9;
+                for (int a = 0; a < 3; a++) {
+                    maxError = Math.max(maxError, Math.abs(
+                            record[CHANNELS[a]] - slow(a, t)));
+                }
+                outputs++;
+            }
+        }
+        // the filter must fill before the first output
+        long expected = number / factor;
+        System.out.format("%s: %d outputs, delay %d samples, max error %.1f " +
+                "counts%n", name, outputs, decimator.getDelay(0), maxError);
+        return check(name, maxError < limit &&
+                outputs <= expected && outputs >= expected - 10);
+    }
+
+    /**
+     * Runs all subscribers from one source, and measures the cost and
+     * allocation per source sample after a warm-up.
+     */
+    private static boolean fanOut() {
+        SampleRing source = new SampleRing(64, Gyro.XYZ_RECORD_WIDTH);
+        Decimator decimator = new Decimator(source, CHANNELS, Gyro.TIMESTAMP,
+                Gyro.TS_DELTA);
+        SampleRing[] outs = new SampleRing[4];
+        int[] factors = {1, 16, 16, 80};
+        Decimator.Filter[] filters = {Decimator.Filter.NONE,
+            Decimator.Filter.FIR, Decimator.Filter.CIC, Decimator.Filter.FIR};
+        for (int i = 0; i < outs.length; i++) {
+            outs[i] = new SampleRing(64, Gyro.XYZ_RECORD_WIDTH);
+            decimator.subscribe(outs[i], factors[i], filters[i]);
+        }
+        long[] record = new long[Gyro.XYZ_RECORD_WIDTH];
+        int number = (int) (RATE * SECONDS);
+        long bytes = 0;
+        long nanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            bytes = allocated();
+            long start = System.nanoTime();
+            for (int n = 0; n < number; n++) {
+                produce(source, pass * number + n);
+                decimator.pump();
+                for (SampleRing out : outs) {
+                    while (out.poll(record)) {
+                        // drain
+                    }
+                }
+            }
+            nanos = System.nanoTime() - start;
+            bytes = allocated() - bytes;
+        }
+        System.out.format("fan out to 4 subscribers: %.0f ns per source " +
+                "sample, %.4f bytes/sample%n", (double) nanos / number,
+                (double) bytes / number);
+        boolean ok = bytes < 1024;
+        for (int i = 0; i < outs.length; i++) {
+            long expected = 2L * number / factors[i];
+            ok &= decimator.getOutputCount(i) <= expected &&
+                    decimator.getOutputCount(i) >= expected - 10;
+        }
+        return check("fan out", ok);
+    }
+
+    private static void produce(SampleRing source, int n) {
+        double t = n / RATE;
+        long ts = (long) (t * 1e9) + 1_000_000_000L;
+        source.claim();
+        for (int a = 0; a < 3; a++) {
+            double vibration = 500 * Math.sin(2 * Math.PI * 250 * t + a);
+            source.put(CHANNELS[a], Math.round(slow(a, ts / 1e9) + vibration));
+        }
+        source.put(Gyro.TS_DELTA, (long) (1e9 / RATE));
+        source.put(Gyro.TIMESTAMP, ts);
+        source.publish();
+    }
+
+    /**
+     * The slow part of the signal of an axis at a time in seconds.
+     */
+    private static double slow(int axis, double t) {
+        return 20 * (axis - 1) + 1000 * Math.sin(2 * Math.PI * t + axis);
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
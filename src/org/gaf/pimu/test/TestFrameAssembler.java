@@ -0,0 +1,139 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.finish;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.FrameAssembler;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests FrameAssembler with simulated streams: the gyroscope at 800 Hz,
+ * and the accelerometer at 200 Hz delivered in FIFO batches of 8 with one
+ * magnetometer sample per batch. Every axis value is a linear function of
+ * time, so an aligned frame can be checked exactly. The accelerometer 
+ * tolerance is its period, the magnetometer tolerance the batch period. The
+ * accelerometer skew must be within half its period, and the mean 
+ * magnetometer skew within a quarter of the batch period (as for a skew 
+ * spread evenly up to half the period), allowing for the timestamp jitter.
+ * Some gyroscope samples are deliberately lost. No hardware needed.
+ */
+public class TestFrameAssembler {
+
+    private static final long GYRO_PERIOD = 1_250_000; // 800 Hz
+    private static final int ACCEL_DIVIDER = 4; // 200 Hz
+    private static final int WATERMARK = 8;
+    private static final int SAMPLES = 80_000;
+    private static final int LOSE_EVERY = 997;
+    private static final long ACCEL_PERIOD = ACCEL_DIVIDER * GYRO_PERIOD;
+    private static final long MAG_PERIOD = WATERMARK * ACCEL_PERIOD;
+    private static final long JITTER = 50_000;
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        for (FrameAssembler.Alignment alignment :
+                FrameAssembler.Alignment.values()) {
+            ok &= run(alignment);
+        }
+        finish(ok);
+    }
+
+    private static boolean run(FrameAssembler.Alignment alignment) {
+        SampleRing gyroRing = new SampleRing(64, Gyro.XYZ_RECORD_WIDTH);
+        SampleRing amRing = new SampleRing(64, AccelMag.BATCH_RECORD_WIDTH);
+        SampleRing frameRing = new SampleRing(256, FrameAssembler.FRAME_WIDTH);
+        FrameAssembler assembler = new FrameAssembler(gyroRing, amRing,
+                frameRing, alignment, ACCEL_PERIOD);
+        assembler.setMagTolerance(MAG_PERIOD);
+        long[] frame = new long[FrameAssembler.FRAME_WIDTH];
+
+        long[] fifo = new long[WATERMARK];
+        int fifoCount = 0;
+        int lost = 0;
+        long maxError = 0;
+        long start = 1_000_000_000L;
+        for (int n = 0; n < SAMPLES; n++) {
+            // timestamps jitter by up to +-50 us, as interrupt timestamps do
+            long ts = start + n * GYRO_PERIOD + ((n * 7919) % 101 - 50) * 1000;
+            if (n % LOSE_EVERY == LOSE_EVERY - 1) {
+                lost++;
+            } else {
+                gyroRing.claim();
+                gyroRing.put(Gyro.VALUE_X, n);
+                gyroRing.put(Gyro.VALUE_Y, -n);
+                gyroRing.put(Gyro.VALUE, 2 * n);
+                gyroRing.put(Gyro.TIMESTAMP, ts);
+                gyroRing.publish();
+            }
+
+            if (n % ACCEL_DIVIDER == 0) {
+                fifo[fifoCount++] = start + n * GYRO_PERIOD;
+                if (fifoCount == WATERMARK) {
+                    // a batch: the accelerometer samples, then one magnetometer
+                    for (int i = 0; i < WATERMARK; i++) {
+                        publish(amRing, AccelMag.KIND_ACCEL, fifo[i]);
+                    }
+                    publish(amRing, AccelMag.KIND_MAG, fifo[WATERMARK - 1]);
+                    fifoCount = 0;
+                }
+            }
+
+            assembler.pump();
+            while (frameRing.poll(frame)) {
+                // the values expected at the frame time
+                long us = frame[FrameAssembler.TIMESTAMP] / 1000;
+                long error = Math.max(
+                        Math.abs(frame[FrameAssembler.AX] - us / 100),
+                        Math.abs(frame[FrameAssembler.MZ] + us / 100));
+                // before the first magnetometer sample there is nothing to
+                // interpolate from, so the nearest is used
+                boolean bracketed = frame[FrameAssembler.TIMESTAMP] >= start +
+                        (WATERMARK - 1) * ACCEL_DIVIDER * GYRO_PERIOD;
+                if (alignment == FrameAssembler.Alignment.INTERPOLATE &&
+                        bracketed && error > maxError)
+                    maxError = error;
+                if (frame[FrameAssembler.GY] != -frame[FrameAssembler.GX] ||
+                        frame[FrameAssembler.GZ] != 2 * frame[FrameAssembler.GX])
+                    maxError = Long.MAX_VALUE;
+            }
+        }
+
+        long frames = assembler.getFrameCount();
+        System.out.format("%s: gyro=%d frames=%d unmatched=%d lost=%d " +
+                "gaps found=%d frame drops=%d pending drops=%d%n", alignment,
+                SAMPLES - lost, frames, assembler.getUnmatchedCount(), lost,
+                assembler.getGyroGapCount(), assembler.getFrameDropCount(),
+                assembler.getPendingDropCount());
+        System.out.format("  skew us: accel mean=%.1f max=%.1f mag mean=%.1f " +
+                "max=%.1f; max value error=%d%n",
+                assembler.getAccelSkewMean() / 1e3,
+                assembler.getAccelSkewMax() / 1e3,
+                assembler.getMagSkewMean() / 1e3,
+                assembler.getMagSkewMax() / 1e3, maxError);
+
+        // the samples in the last unfinished batch are still held
+        long held = SAMPLES - lost - frames - assembler.getUnmatchedCount();
+        boolean skews = assembler.getAccelSkewMax() <= 
+                ACCEL_PERIOD / 2 + JITTER && 
+                assembler.getMagSkewMean() <= MAG_PERIOD / 4 + JITTER &&
+                assembler.getUnmatchedCount() == 0;
+        return skews && assembler.getGyroGapCount() == lost && maxError <= 1 &&
+                held <= WATERMARK * ACCEL_DIVIDER &&
+                assembler.getFrameDropCount() == 0 &&
+                assembler.getPendingDropCount() == 0;
+    }
+
+    /**
+     * Publishes an accelerometer or magnetometer sample whose values are a
+     * linear function of its time.
+     */
+    private static void publish(SampleRing ring, int kind, long ts) {
+        long v = ts / 1000 / 100;
+        ring.claim();
+        ring.put(AccelMag.KIND, kind);
+        ring.put(AccelMag.X, v);
+        ring.put(AccelMag.Y, 2 * v);
+        ring.put(AccelMag.Z, -v);
+        ring.put(AccelMag.TIMESTAMP, ts);
+        ring.publish();
+    }
+}
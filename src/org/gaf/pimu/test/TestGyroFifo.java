@@ -0,0 +1,53 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests Gyro FIFO burst mode, and reports the interrupt rate compared to
+ * the sample rate.
+ */
+public class TestGyroFifo {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int watermark = (args.length > 0) ? Integer.valueOf(args[0]) : 16;
+        
+        // set up ring buffer big enough for a few batches
+        SampleRing ring = new SampleRing(128, Gyro.RECORD_WIDTH);
+        long[] sample = new long[Gyro.RECORD_WIDTH];
+        
+        try (Gyro gyro = new Gyro(18, ring)) {
+            
+            gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_800);
+           
+            gyro.activateFifo(watermark);
+            
+            long tStart = System.nanoTime();
+            int number = 8000;
+            long tsSum = 0;
+            for (int cnt = 0; cnt < number; cnt++) {
+                ring.take(sample);
+                tsSum += sample[Gyro.TS_DELTA];
+                if (cnt < 40) 
+                    System.out.println(sample[Gyro.VALUE] + ", " + 
+                            sample[Gyro.TS_DELTA]/1000);
+            }
+            long tDelta = System.nanoTime() - tStart;
+            
+            gyro.deactivate();
+            
+            double seconds = tDelta / 1e9;
+            long batches = gyro.getBatchCount();
+            System.out.format("samples/s=%.1f interrupts/s=%.1f " + 
+                    "samples/interrupt=%.1f%n", number / seconds, 
+                    batches / seconds, (double) number / batches);
+            System.out.format("mean period=%.1f us overflows=%d%n", 
+                    tsSum / 1e3 / number, gyro.getFifoOverflowCount());
+        } finally {
+            Diozero.shutdown();
+        }
+    }    
+}
@@ -0,0 +1,131 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import org.gaf.pimu.AllanVariance;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.NoiseAnalyzer;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Characterises the gyroscope noise with NoiseAnalyzer, to choose the dead
+ * zone and LPF setting. The gyroscope must be kept still.
+ * <p>
+ * Arguments: seconds [LPF cutoff (Highest, Medium, Lowest; default Lowest)
+ * [file]] records raw counts at 800 Hz for that long, analysing as it goes,
+ * and writes the recording to the file if given; or -f file analyses a
+ * recording (lines of "timestamp_ns,x,y,z" in raw counts after a
+ * "# odr" line; other lines starting with '#' are comments) in one
+ * streaming pass.
+ * </p>
+ */
+public class TestGyroNoise {
+
+    private static final String[] AXES = {"X", "Y", "Z"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 1 && args[0].equals("-f")) {
+            replay(args[1]);
+        } else {
+            long seconds = (args.length > 0) ? Long.valueOf(args[0]) : 600;
+            FXAS21002C.LpfCutoff lpf = (args.length > 1) ?
+                    FXAS21002C.LpfCutoff.valueOf(args[1]) :
+                    FXAS21002C.LpfCutoff.Lowest;
+            record(seconds, lpf, (args.length > 2) ? args[2] : null);
+        }
+    }
+
+    private static void record(long seconds, FXAS21002C.LpfCutoff lpf,
+            String file) throws IOException, InterruptedException {
+        SampleRing ring = new SampleRing(1024, Gyro.XYZ_RECORD_WIDTH);
+        long[] sample = new long[Gyro.XYZ_RECORD_WIDTH];
+        int[] xyz = new int[3];
+        FXAS21002C.ODR odr = FXAS21002C.ODR.ODR_800;
+
+        try (Gyro gyro = new Gyro(18, ring);
+                NoiseAnalyzer analyzer = new NoiseAnalyzer(3, odr.odr);
+                PrintWriter out = (file == null) ? null : new PrintWriter(file)) {
+            gyro.begin(lpf, odr);
+            if (out != null) {
+                out.format("# odr %f%n", odr.odr);
+                out.format("# lpf %s, range %s%n", lpf, FXAS21002C.Range.DPS250);
+            }
+            System.out.format("Recording for %d s, LPF %s; keep still%n",
+                    seconds, lpf);
+            gyro.activateRawXYZ();
+            long samples = seconds * (long) odr.odr;
+            for (long n = 0; n < samples; n++) {
+                ring.take(sample);
+                xyz[0] = (int) sample[Gyro.VALUE_X];
+                xyz[1] = (int) sample[Gyro.VALUE_Y];
+                xyz[2] = (int) sample[Gyro.VALUE];
+                analyzer.add(xyz);
+                if (out != null) out.format("%d,%d,%d,%d%n",
+                        sample[Gyro.TIMESTAMP], xyz[0], xyz[1], xyz[2]);
+            }
+            gyro.deactivate();
+            System.out.format("ring dropped %d%n", ring.getDropped());
+            analyzer.finish();
+            report(analyzer);
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+
+    private static void replay(String file) throws IOException, InterruptedException {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            while (line != null && !line.startsWith("# odr")) {
+                line = in.readLine();
+            }
+            if (line == null) throw new IOException("No '# odr' line in " + file);
+            double rate = Double.valueOf(line.substring(5).trim());
+
+            int[] xyz = new int[3];
+            long start = System.nanoTime();
+            try (NoiseAnalyzer analyzer = new NoiseAnalyzer(3, rate)) {
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    String[] fields = line.split(",");
+                    for (int a = 0; a < 3; a++) {
+                        xyz[a] = Integer.parseInt(fields[a + 1].trim());
+                    }
+                    analyzer.add(xyz);
+                }
+                analyzer.finish();
+                System.out.format("Analysed %d samples in %.1f s%n",
+                        analyzer.getVariance(0).getSampleCount(),
+                        (System.nanoTime() - start) / 1e9);
+                report(analyzer);
+            }
+        }
+    }
+
+    private static void report(NoiseAnalyzer analyzer) {
+        // the recordings are at the default range
+        float sensitivity = FXAS21002C.Range.DPS250.sensitivity;
+        for (int a = 0; a < analyzer.getAxes(); a++) {
+            AllanVariance v = analyzer.getVariance(a);
+            System.out.format("%s axis (%d samples)%n", AXES[a],
+                    v.getSampleCount());
+            for (int level = 0; level < v.getLevels(); level++) {
+                System.out.format("  tau %10.4f s  adev %9.4f counts  " +
+                        "%9.5f dps  (%d clusters)%n", v.getTau(level),
+                        v.getDeviation(level),
+                        v.getDeviation(level) * sensitivity,
+                        v.getClusterCount(level));
+            }
+            System.out.format("  ARW %.4f deg/sqrt(h), bias instability " +
+                    "%.2f deg/h at tau %.1f s%n",
+                    v.getAngleRandomWalk() * sensitivity * 60,
+                    v.getBiasInstability() * sensitivity * 3600,
+                    v.getTau(Math.max(0, v.getMinimumLevel())));
+            System.out.format("  suggested dead zone %d counts (default %d)%n",
+                    analyzer.suggestDeadZone(a), Gyro.DEFAULT_DEAD_ZONE);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests Gyro reconfiguration while delivering a heading: switches back and
+ * forth between low power cruising (12.5 Hz, 250 dps) and high rate
+ * manoeuvring (800 Hz, 2000 dps), reporting the data gap per switch and the
+ * heading (which should hold steady if the gyroscope is still) and the dead
+ * zone (which scales with the range). Then, for comparison, the gap for a
+ * full begin (standby, reset, settle).
+ * <p>
+ * Argument: number of switches (default 10).
+ * </p>
+ */
+public class TestGyroReconfigure {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int switches = (args.length > 0) ? Integer.valueOf(args[0]) : 10;
+        SampleRing ring = new SampleRing(1024, Gyro.RECORD_WIDTH);
+        long[] sample = new long[Gyro.RECORD_WIDTH];
+
+        try (Gyro gyro = new Gyro(18, ring)) {
+            gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_50);
+            System.out.println("\n... Calculating offset ...\n");
+            gyro.calcZeroOffset(2000);
+            gyro.activateHeading();
+
+            for (int n = 0; n < switches; n++) {
+                boolean cruise = n % 2 == 0;
+                FXAS21002C.ODR odr = cruise ? FXAS21002C.ODR.ODR_12_5 :
+                        FXAS21002C.ODR.ODR_800;
+                FXAS21002C.Range range = cruise ? FXAS21002C.Range.DPS250 :
+                        FXAS21002C.Range.DPS2000;
+                FXAS21002C.LpfCutoff lpf = cruise ?
+                        FXAS21002C.LpfCutoff.Lowest :
+                        FXAS21002C.LpfCutoff.Highest;
+                long start = System.nanoTime();
+                gyro.reconfigure(lpf, odr, range);
+                long call = System.nanoTime() - start;
+
+                // run for a second
+                float heading = 0;
+                int count = 0;
+                long deadline = System.nanoTime() + 1_000_000_000L;
+                while (System.nanoTime() < deadline) {
+                    if (ring.take(sample, 100, TimeUnit.MILLISECONDS)) {
+                        heading = SampleRing.toFloat(sample[Gyro.VALUE]);
+                        count++;
+                    }
+                }
+                System.out.format("to %6.1f Hz %4d dps: call %.2f ms, gap " +
+                        "%.2f ms (1/ODR + 5 = %.2f ms), %d samples/s, " +
+                        "heading %.2f, dead zone %d%n", odr.odr, range.range,
+                        call / 1e6, gyro.getAcquisition().getLastGap() / 1e6,
+                        1000 / odr.odr + 5, count, heading,
+                        gyro.getDeadZone());
+            }
+
+            // the full begin, for comparison
+            gyro.deactivate();
+            long start = System.nanoTime();
+            gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_800);
+            gyro.activateRaw();
+            ring.take(sample);
+            System.out.format("full begin to first sample: %.2f ms%n",
+                    (System.nanoTime() - start) / 1e6);
+            gyro.deactivate();
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+}
@@ -2,37 +2,59 @@ package org.gaf.pimu.test;
 
 import com.diozero.util.Diozero;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
+import org.gaf.pimu.CalibrationCache;
 import org.gaf.pimu.FXAS21002C;
 import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
 
 /**
- * Tests Gyro heading delivery
+ * Tests Gyro heading delivery. The zero offset is loaded from a calibration
+ * cache if possible, else calculated, and is refined while stationary and 
+ * saved at the end.
  */
 public class TestGyro_Heading {
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments: calibration cache file
+     * (default pimu-calibration.properties)
      */
     public static void main(String[] args) throws IOException, InterruptedException {
-        // set up queue
-        ArrayBlockingQueue queue = new ArrayBlockingQueue(10);
-
-        try ( Gyro gyro = new Gyro(18, queue)) {
-
-            gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_50);
-
-            System.out.println("\n... Calculating offset ...\n");
-            gyro.calcZeroOffset(4000);
+        // set up ring buffer
+        SampleRing ring = new SampleRing(16, Gyro.RECORD_WIDTH);
+        long[] sample = new long[Gyro.RECORD_WIDTH];
+
+        CalibrationCache cache = new CalibrationCache(
+                (args.length > 0) ? args[0] : "pimu-calibration.properties");
+
+        try ( Gyro gyro = new Gyro(18, ring)) {
+
+            long tStart = System.nanoTime();
+            boolean loaded = gyro.begin(FXAS21002C.LpfCutoff.Lowest,
+                    FXAS21002C.ODR.ODR_50, cache);
+            System.out.format("Temperature %d C, zero offset %s%n",
+                    gyro.getCalibrationTemperature(),
+                    loaded ? "loaded" : "not found");
+            if (!loaded) {
+                System.out.println("\n... Calculating offset ...\n");
+                gyro.calcZeroOffset(4000);
+            }
+            gyro.enableBiasEstimation(true);
 
             gyro.activateHeading(FXAS21002C.Range.DPS250);
 
             for (int cnt = 0; cnt < 5000; cnt++) {
-                float heading = (float) queue.take();
+                ring.take(sample);
+                if (cnt == 0) 
+                    System.out.format("time to first heading: %d ms%n", 
+                            (System.nanoTime() - tStart) / 1_000_000);
+                float heading = SampleRing.toFloat(sample[Gyro.VALUE]);
                 System.out.println(heading);
             }
 
             gyro.deactivate();
+            System.out.println("bias refinements: " + 
+                    gyro.getBiasEstimator().getUpdateCount());
+            gyro.saveCalibration();
         } finally {
             Diozero.shutdown();
         }
@@ -2,9 +2,9 @@ package org.gaf.pimu.test;
 
 import com.diozero.util.Diozero;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
 import org.gaf.pimu.FXAS21002C;
 import org.gaf.pimu.Gyro;
+import org.gaf.pimu.SampleRing;
 
 /**
  * Tests Gyro zero offset and dead zone
@@ -15,10 +15,11 @@ public class TestGyro_ZO {
      * @param args the command line arguments
      */
     public static void main(String[] args) throws IOException, InterruptedException {
-        // set up queue
-        ArrayBlockingQueue queue = new ArrayBlockingQueue(10);
+        // set up ring buffer
+        SampleRing ring = new SampleRing(16, Gyro.RECORD_WIDTH);
+        long[] sample = new long[Gyro.RECORD_WIDTH];
 
-        try ( Gyro gyro = new Gyro(18, queue)) {
+        try ( Gyro gyro = new Gyro(18, ring)) {
 
             gyro.begin(FXAS21002C.LpfCutoff.Lowest, FXAS21002C.ODR.ODR_50);
 
@@ -29,8 +30,9 @@ public class TestGyro_ZO {
             gyro.activateZODZ();
 
             for (int cnt = 0; cnt < 100; cnt++) {
-                long[] sample = (long[]) queue.take();
-                System.out.println(sample[0] + ", " + sample[1] / 100000);
+                ring.take(sample);
+                System.out.println(sample[Gyro.VALUE] + ", " + 
+                        sample[Gyro.TS_DELTA] / 100000);
             }
 
             gyro.deactivate();
@@ -0,0 +1,133 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.gaf.pimu.HeadingIntegrator;
+
+/**
+ * Tests HeadingIntegrator with a simulated gyroscope: a nominal 800 Hz ODR
+ * that actually runs 2% fast, interrupt timestamps with 20-80 us latency,
+ * isolated missed samples, and one gap of 50 ms. The rate is a sum of
+ * sinusoids, so the true heading is known exactly. Each method is compared
+ * with the original constant period integration; the cost and allocation
+ * per sample are measured. No hardware needed.
+ */
+public class TestHeadingIntegrator {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final long NOMINAL_PERIOD = 1_250_000; // 800 Hz
+    private static final double TRUE_RATE = 816; // 2% fast
+    private static final int SECONDS = 60;
+    private static final int MISS_EVERY = 397;
+    private static final int GAP_AT = 24_000;
+    private static final int GAP_LENGTH = 40;
+    private static final int BENCHMARK = 10_000_000;
+
+    private static double estimate;
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        double baseline = simulate(null);
+        System.out.format("constant period: final error %.3f deg%n", baseline);
+        for (HeadingIntegrator.Method method : HeadingIntegrator.Method.values()) {
+            ok &= simulateMethod(method, Math.abs(baseline));
+        }
+        ok &= benchmark();
+        finish(ok);
+    }
+
+    private static boolean simulateMethod(HeadingIntegrator.Method method,
+            double baseline) {
+        double error = Math.abs(simulate(method));
+        // all use the timestamps; the higher orders should be much better,
+        // and the estimate should cover the error (which here is mostly
+        // from bridging the long gap)
+        double limit = (method == HeadingIntegrator.Method.RECTANGULAR) ?
+                baseline / 5 : baseline / 20;
+        return check(method.name(), error < limit && estimate >= error);
+    }
+
+    /**
+     * Integrates the simulated samples.
+     * @param method the method; null for constant period integration
+     * @return the final heading error in degrees
+     */
+    private static double simulate(HeadingIntegrator.Method method) {
+        Random random = new Random(11);
+        HeadingIntegrator integrator = (method == null) ? null :
+                new HeadingIntegrator(method, NOMINAL_PERIOD);
+        double constant = 0;
+        double t = 0;
+        int number = (int) (SECONDS * TRUE_RATE);
+        for (int n = 0; n < number; n++) {
+            if (n % MISS_EVERY == MISS_EVERY - 1 ||
+                    (n >= GAP_AT && n < GAP_AT + GAP_LENGTH)) continue;
+            t = n / TRUE_RATE;
+            float rate = (float) rate(t);
+            long timestamp = (long) (t * 1e9) + 20_000 + random.nextInt(60_000);
+            if (integrator != null) {
+                integrator.update(rate, timestamp);
+            } else {
+                constant += rate * (NOMINAL_PERIOD * 1e-9);
+            }
+        }
+        // the first sample starts the heading
+        double truth = heading(t) - heading(0);
+        if (integrator == null) return constant - truth;
+        double error = integrator.getHeading() - truth;
+        estimate = integrator.getErrorEstimate();
+        System.out.format("%s: final error %.4f deg, estimate %.4f deg, " +
+                "%d gaps, %d missed%n", method, error,
+                integrator.getErrorEstimate(), integrator.getGapCount(),
+                integrator.getMissedCount());
+        return error;
+    }
+
+    private static boolean benchmark() {
+        HeadingIntegrator integrator = new HeadingIntegrator(
+                HeadingIntegrator.Method.QUADRATIC, NOMINAL_PERIOD);
+        long ts = 0;
+        // warm up, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            long bytes = allocated();
+            long start = System.nanoTime();
+            for (int n = 0; n < BENCHMARK; n++) {
+                ts += NOMINAL_PERIOD + (n & 7) * 1000;
+                integrator.update((n & 255) - 128, ts);
+            }
+            long nanos = System.nanoTime() - start;
+            bytes = allocated() - bytes;
+            if (pass == 1) {
+                System.out.format("QUADRATIC update: %.1f ns/sample, " +
+                        "%.4f bytes/sample (heading %.1f)%n",
+                        (double) nanos / BENCHMARK, (double) bytes / BENCHMARK,
+                        integrator.getHeading());
+                return check("allocation", bytes < 1024);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The simulated rate in degrees/s at a time in seconds.
+     */
+    private static double rate(double t) {
+        return 90 * Math.sin(2 * Math.PI * 0.5 * t) +
+                30 * Math.sin(2 * Math.PI * 3 * t) + 5;
+    }
+
+    /**
+     * The integral of the rate.
+     */
+    private static double heading(double t) {
+        return -90 / (2 * Math.PI * 0.5) * Math.cos(2 * Math.PI * 0.5 * t) -
+                30 / (2 * Math.PI * 3) * Math.cos(2 * Math.PI * 3 * t) + 5 * t;
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
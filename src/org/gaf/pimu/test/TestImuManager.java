@@ -0,0 +1,206 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.ImuManager;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests ImuManager with four simulated 400 Hz gyroscopes, each with its own
+ * clock error, phase, timestamp jitter, noise and static bias (given to the
+ * manager as its zero offset), all measuring the same rotation. The biases
+ * differ by more than the vote tolerance, so they must be removed before
+ * voting. After 5 s unit 2 develops a further bias on X; after 8 s unit 3
+ * stops.
+ * Checks that the fused output is on a regular tick, follows the rotation,
+ * excludes unit 2 and carries on without unit 3, and that pumping
+ * allocates nothing. Then checks that three units which all disagree are
+ * not excluded below the quorum. No hardware needed.
+ */
+public class TestImuManager {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final long TICK = 2_500_000;
+    private static final double PERIOD = 1 / 400.0;
+    private static final double[] PPM = {0, 150, -200, 1000};
+    private static final double JITTER = 20e-6; // s RMS
+    private static final double NOISE = 3; // counts RMS
+    // static bias per unit and axis, counts
+    private static final float[][] BIAS = {{12, -30, 45}, {-40, 20, -10},
+        {60, 35, -55}, {-25, -45, 30}};
+    private static final double FAULT_AT = 5;
+    private static final double FAULT_BIAS = 300; // counts
+    private static final double STOP_AT = 8;
+    private static final double SECONDS = 12;
+    private static final float TOLERANCE = 50;
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        for (int pass = 0; pass < 2; pass++) {
+            ok &= run(pass == 1);
+        }
+        ok &= quorum();
+        finish(ok);
+    }
+
+    private static boolean run(boolean report) {
+        SampleRing out = new SampleRing(1024, ImuManager.OUTPUT_RECORD_WIDTH);
+        ImuManager manager = new ImuManager(out, TICK, ImuManager.Vote.AVERAGE,
+                TOLERANCE);
+        int units = PPM.length;
+        SampleRing[] rings = new SampleRing[units];
+        double[] next = new double[units];
+        Random random = new Random(7);
+        for (int u = 0; u < units; u++) {
+            rings[u] = new SampleRing(256, Gyro.XYZ_RECORD_WIDTH);
+            manager.addUnit(rings[u], BIAS[u]);
+            next[u] = random.nextDouble() * PERIOD;
+        }
+
+        long[] record = new long[ImuManager.OUTPUT_RECORD_WIDTH];
+        long last = 0;
+        boolean regular = true;
+        long outputs = 0;
+        long settledOutputs = 0;
+        double sumSquares = 0;
+        double worst = 0;
+        long faultyUsed = 0;
+        long stoppedUsed = 0;
+        long bytes = allocated();
+        // simulate in 1 ms steps
+        for (double now = 0; now < SECONDS; now += 0.001) {
+            for (int u = 0; u < units; u++) {
+                while (next[u] <= now) {
+                    if (u != 3 || next[u] < STOP_AT) produce(rings[u], u,
+                            next[u], random);
+                    next[u] += PERIOD * (1 + PPM[u] * 1e-6);
+                }
+            }
+            manager.pump();
+            while (out.poll(record)) {
+                long t = record[Gyro.TIMESTAMP];
+                if (last != 0 && t - last != TICK) regular = false;
+                last = t;
+                outputs++;
+                double s = t / 1e9;
+                double e = 0;
+                e = Math.max(e, Math.abs(record[Gyro.VALUE_X] - rate(0, s)));
+                e = Math.max(e, Math.abs(record[Gyro.VALUE_Y] - rate(1, s)));
+                e = Math.max(e, Math.abs(record[Gyro.VALUE] - rate(2, s)));
+                // allow for the exclusion to take effect
+                double settled = (ImuManager.FAULT_TICKS + 2) * PERIOD;
+                if (s < FAULT_AT || s > FAULT_AT + settled) {
+                    sumSquares += e * e;
+                    settledOutputs++;
+                    worst = Math.max(worst, e);
+                }
+                if (s > FAULT_AT + settled &&
+                        (record[ImuManager.UNITS] & 4) != 0) faultyUsed++;
+                if (s > STOP_AT + 2 * ImuManager.STALE_NANOS / 1e9 &&
+                        (record[ImuManager.UNITS] & 8) != 0) stoppedUsed++;
+            }
+        }
+        bytes = allocated() - bytes;
+        if (!report) return true;
+
+        double rms = Math.sqrt(sumSquares / settledOutputs);
+        long expected = (long) (SECONDS / (TICK / 1e9));
+        System.out.format("%d outputs (about %d expected), regular %b; " +
+                "error RMS %.2f, worst %.2f counts; unit 2 faults %d, " +
+                "excluded %b, used %d times after; unit 3 stale %b, used %d " +
+                "times after; %d bytes allocated%n", outputs, expected,
+                regular, rms, worst, manager.getFaultCount(2),
+                manager.isExcluded(2), faultyUsed, manager.isStale(3),
+                stoppedUsed, bytes);
+        return check("alignment", regular && outputs > expected * 0.99 &&
+                        rms < 3 && worst < 15) &
+                check("vote", manager.getFaultCount(2) == 1 &&
+                        manager.isExcluded(2) && faultyUsed == 0 &&
+                        manager.getFaultCount(0) == 0 &&
+                        manager.getFaultCount(1) == 0) &
+                check("stale", manager.isStale(3) && stoppedUsed == 0) &
+                check("allocation", bytes < 1024);
+    }
+
+    /**
+     * Runs three units without noise that, after 1 s, each differ from the
+     * median on some axis. None can be told to be wrong, so none may be
+     * excluded: every tick must be fused from all three.
+     */
+    private static boolean quorum() {
+        SampleRing out = new SampleRing(1024, ImuManager.OUTPUT_RECORD_WIDTH);
+        ImuManager manager = new ImuManager(out, TICK, ImuManager.Vote.MEDIAN,
+                TOLERANCE);
+        // X and Y offset per unit after 1 s, counts
+        double[][] drift = {{0, 0}, {300, 600}, {600, 300}};
+        SampleRing[] rings = new SampleRing[drift.length];
+        for (int u = 0; u < rings.length; u++) {
+            rings[u] = new SampleRing(256, Gyro.XYZ_RECORD_WIDTH);
+            manager.addUnit(rings[u]);
+        }
+
+        long[] record = new long[ImuManager.OUTPUT_RECORD_WIDTH];
+        long outputs = 0;
+        long partial = 0;
+        for (int n = 0; n < 800; n++) {
+            double t = n * PERIOD;
+            for (int u = 0; u < rings.length; u++) {
+                double[] d = (t >= 1) ? drift[u] : drift[0];
+                rings[u].claim();
+                rings[u].put(Gyro.VALUE_X, Math.round(rate(0, t) + d[0]));
+                rings[u].put(Gyro.VALUE_Y, Math.round(rate(1, t) + d[1]));
+                rings[u].put(Gyro.VALUE, Math.round(rate(2, t)));
+                rings[u].put(Gyro.TIMESTAMP, (long) (t * 1e9));
+                rings[u].put(Gyro.TS_DELTA, (long) (PERIOD * 1e9));
+                rings[u].publish();
+            }
+            manager.pump();
+            while (out.poll(record)) {
+                outputs++;
+                if (record[ImuManager.UNITS] != 7) partial++;
+            }
+        }
+        System.out.format("quorum: %d outputs, %d without all 3 units; " +
+                "faults %d %d %d%n", outputs, partial,
+                manager.getFaultCount(0), manager.getFaultCount(1),
+                manager.getFaultCount(2));
+        return check("quorum", outputs > 700 && partial == 0 &&
+                manager.getFaultCount(0) + manager.getFaultCount(1) +
+                manager.getFaultCount(2) == 0);
+    }
+
+    /**
+     * Publishes a sample of a unit taken at a true time in seconds.
+     */
+    private static void produce(SampleRing ring, int unit, double t,
+            Random random) {
+        double fault = (unit == 2 && t >= FAULT_AT) ? FAULT_BIAS : 0;
+        float[] bias = BIAS[unit];
+        ring.claim();
+        ring.put(Gyro.VALUE_X, Math.round(rate(0, t) + bias[0] + fault +
+                NOISE * random.nextGaussian()));
+        ring.put(Gyro.VALUE_Y, Math.round(rate(1, t) + bias[1] +
+                NOISE * random.nextGaussian()));
+        ring.put(Gyro.VALUE, Math.round(rate(2, t) + bias[2] +
+                NOISE * random.nextGaussian()));
+        ring.put(Gyro.TIMESTAMP, (long) ((t + JITTER * random.nextGaussian())
+                * 1e9));
+        ring.put(Gyro.TS_DELTA, (long) (PERIOD * 1e9));
+        ring.publish();
+    }
+
+    /**
+     * The true rotation rate of an axis at a time in seconds, in counts.
+     */
+    private static double rate(int axis, double t) {
+        return 800 * Math.sin(2 * Math.PI * (2 + axis) * t + axis);
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
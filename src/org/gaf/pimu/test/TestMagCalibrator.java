@@ -0,0 +1,133 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.finish;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.gaf.pimu.MagCalibrator;
+
+/**
+ * Tests MagCalibrator with millions of simulated magnetometer samples: a
+ * field of known magnitude in random directions, distorted by known soft
+ * and hard iron, plus noise. Checks the fit recovers the hard iron, that
+ * calibrated magnitudes are nearly constant, and that adding and applying
+ * allocate nothing. No hardware needed.
+ * <p>
+ * Argument: number of samples (default 2,000,000).
+ * </p>
+ */
+public class TestMagCalibrator {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int WARMUP = 200_000;
+
+    public static void main(String[] args) {
+        int number = (args.length > 0) ? Integer.valueOf(args[0]) : 2_000_000;
+        Random random = new Random(3);
+
+        // 50 uT in counts, distorted by soft and hard iron
+        float field = 500;
+        float[][] distortion = {{1.15f, 0.08f, -0.03f}, {0.08f, 0.92f, 0.05f},
+            {-0.03f, 0.05f, 1.02f}};
+        float[] hard = {312, -147, 85};
+        int[] raw = new int[3];
+
+        // warm up so compilation does not count as allocation
+        MagCalibrator calibrator = new MagCalibrator();
+        for (int n = 0; n < WARMUP; n++) {
+            sample(random, field, distortion, hard, raw);
+            calibrator.add(raw[0], raw[1], raw[2]);
+        }
+        calibrator.reset();
+        long bytes = allocated();
+        long tStart = System.nanoTime();
+        for (int n = 0; n < number; n++) {
+            sample(random, field, distortion, hard, raw);
+            calibrator.add(raw[0], raw[1], raw[2]);
+        }
+        double seconds = (System.nanoTime() - tStart) / 1e9;
+        bytes = allocated() - bytes;
+        System.out.format("added %d samples: %.0f samples/s, %.4f bytes/sample%n",
+                calibrator.getSampleCount(), number / seconds,
+                (double) bytes / number);
+        boolean ok = bytes < 4096; // constant, whatever the number
+
+        tStart = System.nanoTime();
+        ok &= calibrator.compute();
+        System.out.format("compute: %.1f us, fit error %.4f%n",
+                (System.nanoTime() - tStart) / 1e3, calibrator.getFitError());
+
+        float[] hardFit = new float[3];
+        float[] softFit = new float[9];
+        calibrator.getHardIron(hardFit);
+        calibrator.getSoftIron(softFit);
+        float hardError = 0;
+        for (int a = 0; a < 3; a++) {
+            hardError = Math.max(hardError, Math.abs(hardFit[a] - hard[a]));
+        }
+        System.out.format("hard iron fit %.1f, %.1f, %.1f (true %.0f, %.0f, " +
+                "%.0f); field %.1f (undistorted %.0f)%n", hardFit[0], hardFit[1],
+                hardFit[2], hard[0], hard[1], hard[2],
+                calibrator.getFieldStrength(), field);
+        ok &= hardError < 2;
+
+        // magnitudes before and after calibration
+        float[] out = new float[3];
+        double[] rawStats = new double[2];
+        double[] calStats = new double[2];
+        int check = 100_000;
+        bytes = allocated();
+        tStart = System.nanoTime();
+        for (int n = 0; n < check; n++) {
+            sample(random, field, distortion, hard, raw);
+            MagCalibrator.apply(hardFit, softFit, raw, out);
+            accumulate(rawStats, raw[0] - hard[0], raw[1] - hard[1],
+                    raw[2] - hard[2]);
+            accumulate(calStats, out[0], out[1], out[2]);
+        }
+        bytes = allocated() - bytes;
+        double rawSpread = spread(rawStats, check);
+        double calSpread = spread(calStats, check);
+        System.out.format("magnitude spread: raw %.2f%%, calibrated %.2f%%; " +
+                "apply %.4f bytes/sample%n", rawSpread * 100, calSpread * 100,
+                (double) bytes / check);
+        ok &= calSpread < 0.01 && bytes < 4096;
+
+        finish(ok);
+    }
+
+    private static void sample(Random random, float field, float[][] d,
+            float[] hard, int[] raw) {
+        // a uniformly random direction
+        double z = 2 * random.nextDouble() - 1;
+        double phi = 2 * Math.PI * random.nextDouble();
+        double r = Math.sqrt(1 - z * z);
+        double vx = field * r * Math.cos(phi);
+        double vy = field * r * Math.sin(phi);
+        double vz = field * z;
+        for (int a = 0; a < 3; a++) {
+            double m = d[a][0] * vx + d[a][1] * vy + d[a][2] * vz;
+            raw[a] = (int) Math.round(m + hard[a] + 2 * random.nextGaussian());
+        }
+    }
+
+    private static void accumulate(double[] stats, double x, double y,
+            double z) {
+        double m = Math.sqrt(x * x + y * y + z * z);
+        stats[0] += m;
+        stats[1] += m * m;
+    }
+
+    /**
+     * Returns the standard deviation of the magnitude relative to its mean.
+     */
+    private static double spread(double[] stats, int n) {
+        double mean = stats[0] / n;
+        return Math.sqrt(stats[1] / n - mean * mean) / mean;
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
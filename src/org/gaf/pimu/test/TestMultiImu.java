@@ -0,0 +1,124 @@
+package org.gaf.pimu.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.gaf.pimu.FXAS21002C;
+import org.gaf.pimu.Gyro;
+import org.gaf.pimu.ImuManager;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Tests several gyroscopes on separate I2C buses. First measures the raw
+ * read throughput of each bus alone, then of all buses at once, each read
+ * by its own thread; if the buses do not serialize each other, the
+ * concurrent rate of each is close to its rate alone. Then runs the units
+ * together through ImuManager (polling, no interrupt pins) and reports the
+ * rate of each unit, the fused rate, and any faults.
+ * <p>
+ * Arguments: units as controller:address, for example 1:0x21 0:0x21 (the
+ * default).
+ * </p>
+ */
+public class TestMultiImu {
+
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+    private static final int FUSE_SECONDS = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) args = new String[] {"1:0x21", "0:0x21"};
+        int n = args.length;
+        int[] controllers = new int[n];
+        int[] addresses = new int[n];
+        for (int i = 0; i < n; i++) {
+            String[] parts = args[i].split(":");
+            controllers[i] = Integer.parseInt(parts[0]);
+            addresses[i] = Integer.decode(parts[1]);
+        }
+
+        try {
+            // raw throughput
+            FXAS21002C[] devices = new FXAS21002C[n];
+            for (int i = 0; i < n; i++) {
+                devices[i] = new FXAS21002C(controllers[i], addresses[i]);
+                devices[i].begin(FXAS21002C.LpfCutoff.Highest,
+                        FXAS21002C.ODR.ODR_800);
+            }
+            double[] alone = new double[n];
+            for (int i = 0; i < n; i++) {
+                alone[i] = measure(new FXAS21002C[] {devices[i]})[0];
+            }
+            double[] together = measure(devices);
+            for (int i = 0; i < n; i++) {
+                System.out.format("%s: %.0f reads/s alone, %.0f reads/s " +
+                        "concurrently (%.0f%%)%n", devices[i].getKey(), alone[i],
+                        together[i], 100 * together[i] / alone[i]);
+                devices[i].close();
+            }
+
+            // fused
+            SampleRing out = new SampleRing(1024,
+                    ImuManager.OUTPUT_RECORD_WIDTH);
+            long[] record = new long[ImuManager.OUTPUT_RECORD_WIDTH];
+            try (ImuManager manager = new ImuManager(out, 2_500_000,
+                    ImuManager.Vote.MEDIAN, 200)) {
+                for (int i = 0; i < n; i++) {
+                    manager.addGyro(controllers[i], addresses[i], -1);
+                }
+                manager.begin(FXAS21002C.LpfCutoff.Lowest,
+                        FXAS21002C.ODR.ODR_400);
+                manager.activate();
+                System.out.format("Fusing for %d s, keep still ...%n",
+                        FUSE_SECONDS);
+                long deadline = System.nanoTime() + FUSE_SECONDS *
+                        1_000_000_000L;
+                long outputs = 0;
+                while (System.nanoTime() < deadline) {
+                    TimeUnit.MILLISECONDS.sleep(5);
+                    manager.pump();
+                    while (out.poll(record)) outputs++;
+                }
+                manager.deactivate();
+                for (int i = 0; i < n; i++) {
+                    System.out.format("unit %d: %.1f samples/s, %d faults%s%n",
+                            i, (double) manager.getSampleCount(i) / FUSE_SECONDS,
+                            manager.getFaultCount(i),
+                            manager.isStale(i) ? ", stopped" : "");
+                }
+                System.out.format("fused: %.1f records/s, last Z %d units 0x%X%n",
+                        (double) outputs / FUSE_SECONDS, record[Gyro.VALUE],
+                        record[ImuManager.UNITS]);
+            }
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+
+    /**
+     * Reads the devices as fast as possible, each on its own thread, for a
+     * while.
+     * @return the reads per second of each device
+     */
+    private static double[] measure(FXAS21002C[] devices)
+            throws InterruptedException {
+        double[] rates = new double[devices.length];
+        Thread[] threads = new Thread[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            final int d = i;
+            threads[i] = new Thread(() -> {
+                int[] xyz = new int[3];
+                long count = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                while ((elapsed = System.nanoTime() - start) < MEASURE_NANOS) {
+                    devices[d].readRaw(xyz);
+                    count++;
+                }
+                rates[d] = count / (elapsed / 1e9);
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return rates;
+    }
+}
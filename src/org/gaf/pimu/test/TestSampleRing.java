@@ -0,0 +1,103 @@
+package org.gaf.pimu.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import org.gaf.pimu.SampleRing;
+
+/**
+ * Compares SampleRing with ArrayBlockingQueue for delivering samples from
+ * an "interrupt handler" thread to a consumer thread: allocation on the
+ * producer thread and producer-to-consumer latency. No hardware needed.
+ * <p>
+ * Arguments: sample rate in Hz (default 800), seconds per run (default 2).
+ * </p>
+ */
+public class TestSampleRing {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        int rate = (args.length > 0) ? Integer.valueOf(args[0]) : 800;
+        int seconds = (args.length > 1) ? Integer.valueOf(args[1]) : 2;
+        int number = rate * seconds;
+        long period = 1_000_000_000L / rate;
+
+        // warm up both, then measure
+        runQueue(number / 4, period);
+        runRing(number / 4, period);
+        report("ArrayBlockingQueue", runQueue(number, period));
+        report("SampleRing", runRing(number, period));
+    }
+
+    /**
+     * Runs a producer publishing long[]{value, timestamp} to a queue.
+     * @return latencies, followed by allocated bytes for producer
+     */
+    private static long[] runQueue(int number, long period)
+            throws InterruptedException {
+        ArrayBlockingQueue<long[]> queue = new ArrayBlockingQueue<>(16);
+        long[] result = new long[number + 1];
+        Thread producer = new Thread(() -> {
+            long id = Thread.currentThread().getId();
+            long bytes = THREADS.getThreadAllocatedBytes(id);
+            long next = System.nanoTime();
+            for (int i = 0; i < number; i++) {
+                next += period;
+                LockSupport.parkNanos(next - System.nanoTime());
+                long[] sample = {i, System.nanoTime()};
+                if (!queue.offer(sample)) result[i] = -1;
+            }
+            result[number] = THREADS.getThreadAllocatedBytes(id) - bytes;
+        });
+        producer.start();
+        for (int i = 0; i < number; i++) {
+            long[] sample = queue.take();
+            result[(int) sample[0]] = System.nanoTime() - sample[1];
+        }
+        producer.join();
+        return result;
+    }
+
+    /**
+     * Runs a producer publishing {value, timestamp} records to a ring.
+     * @return latencies, followed by allocated bytes for producer
+     */
+    private static long[] runRing(int number, long period)
+            throws InterruptedException {
+        SampleRing ring = new SampleRing(16, 2);
+        long[] result = new long[number + 1];
+        Thread producer = new Thread(() -> {
+            long id = Thread.currentThread().getId();
+            long bytes = THREADS.getThreadAllocatedBytes(id);
+            long next = System.nanoTime();
+            for (int i = 0; i < number; i++) {
+                next += period;
+                LockSupport.parkNanos(next - System.nanoTime());
+                if (!ring.offer(i, System.nanoTime())) result[i] = -1;
+            }
+            result[number] = THREADS.getThreadAllocatedBytes(id) - bytes;
+        });
+        producer.start();
+        long[] sample = new long[2];
+        for (int i = 0; i < number; i++) {
+            ring.take(sample);
+            result[(int) sample[0]] = System.nanoTime() - sample[1];
+        }
+        producer.join();
+        return result;
+    }
+
+    private static void report(String name, long[] result) {
+        int number = result.length - 1;
+        long[] latency = Arrays.copyOf(result, number);
+        Arrays.sort(latency);
+        System.out.format("%s: %d samples, producer allocated %.1f bytes/sample%n",
+                name, number, (double) result[number] / number);
+        System.out.format("  latency us: p50=%.1f p99=%.1f max=%.1f%n",
+                latency[number / 2] / 1e3, latency[number * 99 / 100] / 1e3,
+                latency[number - 1] / 1e3);
+    }
+}
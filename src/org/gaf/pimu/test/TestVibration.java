@@ -0,0 +1,202 @@
+package org.gaf.pimu.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.gaf.pimu.AccelMag;
+import org.gaf.pimu.SampleRing;
+import org.gaf.pimu.VibrationAnalyzer;
+
+/**
+ * Tests VibrationAnalyzer with a simulated 400 Hz accelerometer stream of
+ * AccelMag frames (FIFO layout): gravity, a 12 Hz body motion, noise and,
+ * after 10 s, a 97 Hz "bearing" tone. Checks the spectrum against a direct
+ * DFT, the tone's frequency and level, and the alarm timing in a band
+ * around it. Then benchmarks the analyzer updating a 256 point spectrum on
+ * every sample, against the 2.5 ms sample period. No hardware needed.
+ */
+public class TestVibration {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final double RATE = 400;
+    private static final int SIZE = 256;
+    private static final int[] AXES = {AccelMag.X, AccelMag.Y, AccelMag.Z};
+    private static final double FAULT_AT = 10;
+    private static final double FAULT_HZ = 97;
+    private static final double FAULT_AMPLITUDE = 60; // counts
+    private static final double THRESHOLD = 25; // counts RMS
+    private static final int BENCHMARK_SECONDS = 600;
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        ok &= detect();
+        ok &= benchmark();
+        finish(ok);
+    }
+
+    private static boolean detect() {
+        SampleRing source = new SampleRing(64, AccelMag.BATCH_RECORD_WIDTH);
+        SampleRing alarms = new SampleRing(16,
+                VibrationAnalyzer.ALARM_RECORD_WIDTH);
+        VibrationAnalyzer analyzer = new VibrationAnalyzer(source, AXES,
+                AccelMag.KIND, AccelMag.TIMESTAMP, SIZE, 4, RATE);
+        analyzer.setAlarmRing(alarms);
+        int bearing = analyzer.addBand(85, 110, THRESHOLD);
+        int body = analyzer.addBand(5, 20, 1000);
+
+        Random random = new Random(3);
+        double[] signal = new double[SIZE];
+        long[] alarm = new long[VibrationAnalyzer.ALARM_RECORD_WIDTH];
+        double alarmAt = -1;
+        boolean early = false;
+        int number = (int) (20 * RATE);
+        for (int n = 0; n < number; n++) {
+            double t = n / RATE;
+            produce(source, t, random);
+            // a magnetometer sample, to be skipped
+            if (n % 4 == 0) {
+                source.claim();
+                source.put(AccelMag.KIND, AccelMag.KIND_MAG);
+                source.publish();
+            }
+            analyzer.pump();
+            while (alarms.poll(alarm)) {
+                double at = alarm[VibrationAnalyzer.ALARM_TIMESTAMP] / 1e9;
+                if (at < FAULT_AT) early = true;
+                if (alarmAt < 0) alarmAt = at;
+            }
+        }
+        // the magnitude of the last N samples, as the analyzer computed it
+        source.clear();
+        random = new Random(3);
+        for (int n = 0; n < number; n++) {
+            long[] r = sample(n / RATE, random);
+            int i = n - (number - SIZE);
+            if (i >= 0) signal[i] = Math.sqrt((double) r[0] * r[0] +
+                    (double) r[1] * r[1] + (double) r[2] * r[2]);
+        }
+        double[] spectrum = new double[analyzer.getBins()];
+        analyzer.getSpectrum(spectrum);
+        double dftError = compareDft(signal, spectrum);
+
+        double rms = FAULT_AMPLITUDE / Math.sqrt(2);
+        System.out.format("DFT max relative error %.2e; peak %.1f Hz; " +
+                "bearing band %.1f (tone RMS %.1f), body band %.1f counts " +
+                "RMS; first alarm at %.2f s (fault at %.1f s)%n", dftError,
+                analyzer.getPeakFrequency(), analyzer.getBandRms(bearing), rms,
+                analyzer.getBandRms(body), alarmAt, FAULT_AT);
+        // the window needs to fill with enough of the tone
+        double window = SIZE / RATE;
+        return check("spectrum", dftError < 1e-9) &
+                check("peak", Math.abs(analyzer.getPeakFrequency() - FAULT_HZ) <=
+                        analyzer.getBinWidth()) &
+                check("band level", Math.abs(analyzer.getBandRms(bearing) / rms
+                        - 1) < 0.1) &
+                check("alarm", !early && alarmAt >= FAULT_AT &&
+                        alarmAt < FAULT_AT + window &&
+                        analyzer.getAlarmCount(bearing) == 1 &&
+                        analyzer.getAlarmCount(body) == 0);
+    }
+
+    /**
+     * Returns the largest difference between the analyzer's spectrum and a
+     * direct DFT of the same windowed samples, relative to the largest bin.
+     */
+    private static double compareDft(double[] signal, double[] spectrum) {
+        int n = signal.length;
+        double mean = 0;
+        for (double v : signal) mean += v;
+        mean /= n;
+        double[] x = new double[n];
+        double sumSquares = 0;
+        for (int i = 0; i < n; i++) {
+            double w = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / n);
+            x[i] = (signal[i] - mean) * w;
+            sumSquares += w * w;
+        }
+        double largest = 0;
+        double error = 0;
+        for (int k = 0; k <= n / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int i = 0; i < n; i++) {
+                re += x[i] * Math.cos(2 * Math.PI * k * i / n);
+                im -= x[i] * Math.sin(2 * Math.PI * k * i / n);
+            }
+            double p = (re * re + im * im) / (n * sumSquares);
+            if (k > 0 && k < n / 2) p *= 2;
+            largest = Math.max(largest, p);
+            error = Math.max(error, Math.abs(p - spectrum[k]));
+        }
+        return error / largest;
+    }
+
+    /**
+     * Updates the spectrum on every sample (a spectrum every 2.5 ms) with
+     * two bands, and measures the cost and allocation per sample after a
+     * warm-up.
+     */
+    private static boolean benchmark() {
+        SampleRing source = new SampleRing(64, AccelMag.BATCH_RECORD_WIDTH);
+        VibrationAnalyzer analyzer = new VibrationAnalyzer(source, AXES,
+                AccelMag.KIND, AccelMag.TIMESTAMP, SIZE, 1, RATE);
+        analyzer.addBand(85, 110, THRESHOLD);
+        analyzer.addBand(5, 20, 1000);
+        Random random = new Random(4);
+        int number = (int) (BENCHMARK_SECONDS * RATE);
+        long nanos = 0;
+        long bytes = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            bytes = allocated();
+            long start = System.nanoTime();
+            for (int n = 0; n < number; n++) {
+                produce(source, n / RATE, random);
+                analyzer.pump();
+            }
+            nanos = System.nanoTime() - start;
+            bytes = allocated() - bytes;
+        }
+        double perSample = (double) nanos / number;
+        double period = 1e9 / RATE;
+        System.out.format("%d point spectrum per sample: %.1f us/sample " +
+                "(including the simulation), %.1f%% of one core at %.0f Hz, " +
+                "%.4f bytes/sample%n", SIZE, perSample / 1000,
+                100 * perSample / period, RATE, (double) bytes / number);
+        // keep up with plenty of headroom
+        return check("benchmark", perSample < period / 10 && bytes < 1024);
+    }
+
+    private static void produce(SampleRing source, double t, Random random) {
+        long[] r = sample(t, random);
+        source.claim();
+        source.put(AccelMag.KIND, AccelMag.KIND_ACCEL);
+        source.put(AccelMag.X, r[0]);
+        source.put(AccelMag.Y, r[1]);
+        source.put(AccelMag.Z, r[2]);
+        source.put(AccelMag.TIMESTAMP, (long) (t * 1e9));
+        source.publish();
+    }
+
+    private static final long[] SAMPLE = new long[3];
+
+    /**
+     * The simulated accelerometer axes at a time in seconds: gravity on Z
+     * (4096 counts at 2 g range), a body motion, noise, and the fault
+     * (mostly on Z).
+     */
+    private static long[] sample(double t, Random random) {
+        double body = 80 * Math.sin(2 * Math.PI * 12 * t);
+        double fault = (t >= FAULT_AT) ?
+                FAULT_AMPLITUDE * Math.sin(2 * Math.PI * FAULT_HZ * t) : 0;
+        SAMPLE[0] = Math.round(body + 5 * random.nextGaussian());
+        SAMPLE[1] = Math.round(0.3 * fault + 5 * random.nextGaussian());
+        SAMPLE[2] = Math.round(4096 + fault + 5 * random.nextGaussian());
+        return SAMPLE;
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -4,6 +4,8 @@ import com.diozero.api.SerialDevice;
 import com.diozero.api.RuntimeIOException;
 import com.diozero.util.SleepUtil;
 import java.io.IOException;
+import org.gaf.util.SerialDevicePort;
+import org.gaf.util.SerialPort;
 
 /**
  * This class represents the Basicmicro RoboClaw 2x15A DC motor controller
@@ -17,7 +19,7 @@ import java.io.IOException;
  */
 public class RoboClaw implements AutoCloseable {
     
-    private SerialDevice device; // the serial device instance
+    private SerialPort device; // the serial device instance
     private final int address; // device address
     
     private int crc = 0; // for CRC generation; only least significant 2 bytes meaningful
@@ -34,13 +36,24 @@ public class RoboClaw implements AutoCloseable {
     public RoboClaw(String deviceFile, int deviceAddress) 
             throws IOException {
         try {
-            this.device = new SerialDevice(deviceFile); 
+            this.device = new SerialDevicePort(new SerialDevice(deviceFile)); 
             this.address = deviceAddress;
         } catch (RuntimeIOException ex) {
             throw new IOException(ex.getMessage());            
         }        
     }
     
+    /**
+     * Constructs a RoboClaw instance that communicates over an already open
+     * serial port; for example, a ReactorSerialPort.
+     * @param port serial port connected to the RoboClaw
+     * @param deviceAddress address to use for RoboClaw (0x80-0x87)
+     */
+    public RoboClaw(SerialPort port, int deviceAddress) {
+        this.device = port;
+        this.address = deviceAddress;
+    }
+    
     /**
      * Close the RoboClaw device.
      */
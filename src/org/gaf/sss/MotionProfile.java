@@ -0,0 +1,349 @@
+package org.gaf.sss;
+
+/**
+ * A precomputed table of step times for a move of a stepper motor that
+ * accelerates, cruises and decelerates, so the motor need not start and stop
+ * at full speed.
+ * <p>
+ * The profile starts at the start speed (which the motor must be able to
+ * reach instantly, typically its pull-in speed), accelerates to the maximum
+ * speed, cruises, and decelerates back to the start speed, symmetrically.
+ * If the move is too short to reach the maximum speed, the profile peaks at
+ * the speed reached at half way. A move that continues from or into
+ * another can have different start and end speeds; it then peaks where the
+ * acceleration and deceleration meet. Speeds are in steps per second and
+ * acceleration in steps per second squared; a step is whatever the driver
+ * steps, for example a microstep.
+ * </p>
+ * <p>
+ * With the TRAPEZOID shape, the acceleration is constant, and the speed
+ * ramps linearly. With the S_CURVE shape, the acceleration rises smoothly
+ * from zero to its maximum and falls back to zero (a cycloid: the jerk is
+ * finite, which excites less vibration and resonance); it then takes twice
+ * as long to reach a speed as the TRAPEZOID shape with the same maximum
+ * acceleration.
+ * </p>
+ * <p>
+ * Step k (0 to steps - 1) is issued when the ideal position of the motor
+ * reaches k + 0.5 steps, so the times of a symmetric profile are symmetric
+ * about the middle of the move, and the move ends when the position
+ * reaches steps. Times are held as nanoseconds from the start of the move,
+ * each rounded from the exact time, so the intervals do not accumulate
+ * error.
+ * </p>
+ */
+public class MotionProfile {
+
+    /**
+     * The shape of the acceleration.
+     */
+    public enum Shape {
+        TRAPEZOID,
+        S_CURVE
+    }
+
+    private final Shape shape;
+    private final int steps;
+    private final double startSpeed;
+    private final double endSpeed;
+    private final double peakSpeed;
+    private final double acceleration;
+    // durations in seconds, and distances in steps, of the ramps
+    private final double accelTime;
+    private final double accelDistance;
+    private final double decelTime;
+    private final double decelDistance;
+    private final double cruiseTime;
+    private final double duration;
+
+    private final long[] times;
+
+    /**
+     * Creates a profile.
+     * @param shape the shape of the acceleration
+     * @param steps the number of steps in the move
+     * @param startSpeed the speed at the start and end, steps per second;
+     * may be 0
+     * @param maxSpeed the maximum speed, steps per second
+     * @param acceleration the maximum acceleration, steps per second squared
+     */
+    public MotionProfile(Shape shape, int steps, double startSpeed,
+            double maxSpeed, double acceleration) {
+        this(shape, steps, startSpeed, maxSpeed, startSpeed, acceleration,
+                true);
+    }
+
+    /**
+     * Creates a profile with a trapezoid shape.
+     * @param steps the number of steps in the move
+     * @param startSpeed the speed at the start and end, steps per second;
+     * may be 0
+     * @param maxSpeed the maximum speed, steps per second
+     * @param acceleration the acceleration, steps per second squared
+     */
+    public MotionProfile(int steps, double startSpeed, double maxSpeed,
+            double acceleration) {
+        this(Shape.TRAPEZOID, steps, startSpeed, maxSpeed, acceleration);
+    }
+
+    /**
+     * Creates a profile with different start and end speeds, for a move
+     * that continues from, or into, another.
+     * @param shape the shape of the acceleration
+     * @param steps the number of steps in the move
+     * @param startSpeed the speed at the start, steps per second; may be 0
+     * @param maxSpeed the maximum speed, steps per second
+     * @param endSpeed the speed at the end, steps per second; may be 0
+     * @param acceleration the maximum acceleration, steps per second squared
+     * @throws IllegalArgumentException if the end speed cannot be reached
+     * from the start speed in the steps
+     */
+    public MotionProfile(Shape shape, int steps, double startSpeed,
+            double maxSpeed, double endSpeed, double acceleration) {
+        this(shape, steps, startSpeed, maxSpeed, endSpeed, acceleration, true);
+    }
+
+    /**
+     * Creates a profile, optionally without the table of step times, for
+     * callers that use timeAt.
+     */
+    MotionProfile(Shape shape, int steps, double startSpeed, double maxSpeed,
+            double endSpeed, double acceleration, boolean table) {
+        if (steps < 0)
+            throw new IllegalArgumentException("Steps must be >= 0");
+        if (startSpeed < 0 || endSpeed < 0 || maxSpeed <= 0 ||
+                startSpeed > maxSpeed || endSpeed > maxSpeed)
+            throw new IllegalArgumentException(
+                    "Speeds must be 0 <= start, end <= max, max > 0");
+        if (acceleration <= 0)
+            throw new IllegalArgumentException("Acceleration must be > 0");
+        this.shape = shape;
+        this.steps = steps;
+        this.startSpeed = startSpeed;
+        this.endSpeed = endSpeed;
+        this.acceleration = acceleration;
+
+        // the average acceleration over a ramp
+        double average = (shape == Shape.S_CURVE) ? acceleration / 2 :
+                acceleration;
+        double v0 = startSpeed * startSpeed;
+        double v1 = endSpeed * endSpeed;
+        double peak = maxSpeed;
+        double accel = (peak * peak - v0) / (2 * average);
+        double decel = (peak * peak - v1) / (2 * average);
+        if (accel + decel > steps) {
+            // short move: peak where the ramps meet
+            double squared = average * steps + (v0 + v1) / 2;
+            if (squared < Math.max(v0, v1) * (1 - 1e-9))
+                throw new IllegalArgumentException("End speed not reachable");
+            peak = Math.sqrt(Math.max(squared, Math.max(v0, v1)));
+            accel = (peak * peak - v0) / (2 * average);
+            decel = steps - accel;
+        }
+        this.peakSpeed = peak;
+        this.accelDistance = accel;
+        this.decelDistance = decel;
+        this.accelTime = (peak - startSpeed) / average;
+        this.decelTime = (peak - endSpeed) / average;
+        this.cruiseTime = (peak > 0) ?
+                Math.max(0, steps - accel - decel) / peak : 0;
+        this.duration = accelTime + cruiseTime + decelTime;
+
+        if (table) {
+            times = new long[steps];
+            for (int k = 0; k < steps; k++) {
+                times[k] = Math.round(timeAt(k + 0.5) * 1e9);
+            }
+        } else {
+            times = null;
+        }
+    }
+
+    /**
+     * Returns the time at which the ideal position reaches a distance.
+     * @param s the distance in steps, 0 to steps
+     * @return the time in seconds from the start of the move
+     */
+    public double timeAt(double s) {
+        if (s > steps - decelDistance) return duration -
+                rampTime(endSpeed, decelTime, steps - s);
+        if (s <= accelDistance) return rampTime(startSpeed, accelTime, s);
+        return accelTime + (s - accelDistance) / peakSpeed;
+    }
+
+    /**
+     * Returns the ideal position at a time.
+     * @param t the time in seconds from the start of the move
+     * @return the distance in steps
+     */
+    public double positionAt(double t) {
+        if (t <= 0) return 0;
+        if (t >= duration) return steps;
+        if (t > duration - decelTime) return steps -
+                rampPosition(endSpeed, decelTime, duration - t);
+        if (t <= accelTime) return rampPosition(startSpeed, accelTime, t);
+        return accelDistance + (t - accelTime) * peakSpeed;
+    }
+
+    /**
+     * Returns the ideal speed at a time.
+     * @param t the time in seconds from the start of the move
+     * @return the speed in steps per second
+     */
+    public double speedAt(double t) {
+        if (t < 0 || t > duration) return 0;
+        if (t > duration - decelTime) return rampSpeed(endSpeed, decelTime,
+                duration - t);
+        if (t <= accelTime) return rampSpeed(startSpeed, accelTime, t);
+        return peakSpeed;
+    }
+
+    /**
+     * Returns the position at a time in a ramp from a speed up to the peak
+     * speed. The deceleration is the reverse of a ramp from the end speed.
+     */
+    private double rampPosition(double v0, double ramp, double t) {
+        double dv = peakSpeed - v0;
+        if (shape == Shape.TRAPEZOID) {
+            return v0 * t + 0.5 * acceleration * t * t;
+        } else {
+            double w = 2 * Math.PI / ramp;
+            return v0 * t + dv * (t * t / (2 * ramp) +
+                    (Math.cos(w * t) - 1) / (w * w * ramp));
+        }
+    }
+
+    /**
+     * Returns the speed at a time in a ramp from a speed up to the peak
+     * speed.
+     */
+    private double rampSpeed(double v0, double ramp, double t) {
+        if (shape == Shape.TRAPEZOID) {
+            return v0 + acceleration * t;
+        } else {
+            double w = 2 * Math.PI / ramp;
+            return v0 + (peakSpeed - v0) *
+                    (t / ramp - Math.sin(w * t) / (w * ramp));
+        }
+    }
+
+    /**
+     * Returns the time at which the position reaches a distance in a ramp
+     * from a speed up to the peak speed.
+     */
+    private double rampTime(double v0, double ramp, double s) {
+        if (s <= 0 || ramp <= 0) return (s <= 0) ? 0 : s / v0;
+        // the trapezoid inverts directly
+        double t = (Math.sqrt(v0 * v0 + 2 * acceleration * s) - v0) /
+                acceleration;
+        if (shape == Shape.TRAPEZOID) return t;
+
+        // the S-curve by Newton's method, kept in a bracket
+        double low = 0;
+        double high = ramp;
+        t = Math.min(Math.max(t, low), high);
+        for (int i = 0; i < 100; i++) {
+            double error = rampPosition(v0, ramp, t) - s;
+            if (error > 0) high = t;
+            else low = t;
+            double speed = rampSpeed(v0, ramp, t);
+            double next = (speed > 0) ? t - error / speed : -1;
+            if (next <= low || next >= high) next = 0.5 * (low + high);
+            if (Math.abs(next - t) < 1e-13) return next;
+            t = next;
+        }
+        return t;
+    }
+
+    /**
+     * Returns the shape.
+     * @return shape
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Returns the number of steps.
+     * @return steps
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns the start speed.
+     * @return steps per second
+     */
+    public double getStartSpeed() {
+        return startSpeed;
+    }
+
+    /**
+     * Returns the end speed.
+     * @return steps per second
+     */
+    public double getEndSpeed() {
+        return endSpeed;
+    }
+
+    /**
+     * Returns the highest speed reached; the maximum speed unless the move
+     * is too short.
+     * @return steps per second
+     */
+    public double getPeakSpeed() {
+        return peakSpeed;
+    }
+
+    /**
+     * Returns the maximum acceleration.
+     * @return steps per second squared
+     */
+    public double getAcceleration() {
+        return acceleration;
+    }
+
+    /**
+     * Returns the duration of the acceleration.
+     * @return seconds
+     */
+    public double getAccelTime() {
+        return accelTime;
+    }
+
+    /**
+     * Returns the duration of the deceleration.
+     * @return seconds
+     */
+    public double getDecelTime() {
+        return decelTime;
+    }
+
+    /**
+     * Returns the duration of the move.
+     * @return seconds
+     */
+    public double getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the time of a step from the start of the move.
+     * @param k the step, 0 to steps - 1
+     * @return nanoseconds
+     */
+    public long getTime(int k) {
+        return times[k];
+    }
+
+    /**
+     * Returns the interval before a step: from the start of the move for the
+     * first step, otherwise from the previous step.
+     * @param k the step, 0 to steps - 1
+     * @return nanoseconds
+     */
+    public long getInterval(int k) {
+        return (k == 0) ? times[0] : times[k] - times[k - 1];
+    }
+}
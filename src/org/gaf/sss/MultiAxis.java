@@ -0,0 +1,335 @@
+package org.gaf.sss;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves several stepper motors in coordination, along straight line
+ * segments, from one step generator.
+ * <p>
+ * A move gives the signed number of steps for each axis (positive is CW).
+ * The axis with the most steps, the major axis, steps on every tick of the
+ * move's motion profile; the others step on the ticks chosen by a
+ * Bresenham distributor, spread evenly, so all axes start and finish
+ * together and keep in proportion throughout. Speeds and accelerations are
+ * those of the major axis of each move.
+ * </p>
+ * <p>
+ * Moves are queued, and up to LOOK_AHEAD moves not yet started are planned
+ * together, so consecutive moves blend without stopping. The speed at the
+ * junction of two moves is limited so no axis changes speed by more than
+ * the start speed (which a motor can change instantly, as at the start of a
+ * move); a move continuing in the same direction keeps its speed, while a
+ * reversal slows to half the start speed. Each move's start and end speeds
+ * are then set so it can accelerate and decelerate to them within its
+ * steps, and the last move ends at a speed the motors can stop from. A move
+ * queued after the previous one has started decelerating to stop continues
+ * from that speed. Moves are planned again as each is queued, except the
+ * move being made, whose profile is fixed.
+ * </p>
+ * <p>
+ * The axes should not run moves of their own while moving here.
+ * </p>
+ */
+public class MultiAxis implements AutoCloseable {
+
+    /**
+     * The number of moves not yet started that are planned together; moving
+     * waits while this many are queued.
+     */
+    public static final int LOOK_AHEAD = 32;
+
+    private final Stepper[] axes;
+    private final MotionProfile.Shape shape;
+    private final double startSpeed;
+    private final double acceleration;
+    // the average acceleration over a ramp
+    private final double average;
+    private final StepGenerator generator;
+
+    private final Object lock = new Object();
+    private final List<Segment> pending = new ArrayList<>();
+    // the segment being made, if any, and if the schedule is running
+    private Segment executing = null;
+    private boolean active = false;
+    private final Path path;
+    private volatile long segments = 0;
+
+    /**
+     * Creates a controller.
+     * @param axes the axes
+     * @param shape the shape of the accelerations
+     * @param startSpeed the speed, in steps per second, at which any axis
+     * can start, stop or change speed instantly
+     * @param acceleration the maximum acceleration in steps per second
+     * squared
+     */
+    public MultiAxis(Stepper[] axes, MotionProfile.Shape shape,
+            double startSpeed, double acceleration) {
+        if (axes.length == 0)
+            throw new IllegalArgumentException("No axes");
+        if (startSpeed <= 0 || acceleration <= 0)
+            throw new IllegalArgumentException(
+                    "Start speed and acceleration must be > 0");
+        this.axes = axes.clone();
+        this.shape = shape;
+        this.startSpeed = startSpeed;
+        this.acceleration = acceleration;
+        this.average = (shape == MotionProfile.Shape.S_CURVE) ?
+                acceleration / 2 : acceleration;
+        path = new Path();
+        generator = new StepGenerator("MultiAxis");
+    }
+
+    /**
+     * Queues a straight line move, and starts moving if not already. Waits
+     * while LOOK_AHEAD moves are queued. A move of no steps is ignored.
+     * @param maxSpeed the maximum speed of the major axis, in steps per
+     * second
+     * @param deltas the signed steps for each axis
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void move(double maxSpeed, int... deltas)
+            throws InterruptedException {
+        if (deltas.length != axes.length)
+            throw new IllegalArgumentException("Need a delta for each axis");
+        if (maxSpeed <= 0)
+            throw new IllegalArgumentException("Speed must be > 0");
+        Segment segment = new Segment(maxSpeed, deltas);
+        if (segment.steps == 0) return;
+
+        synchronized (lock) {
+            while (pending.size() >= LOOK_AHEAD) lock.wait();
+            // the junction with the previous move
+            Segment previous = pending.isEmpty() ? executing :
+                    pending.get(pending.size() - 1);
+            if (previous == null) {
+                segment.junction = Math.min(startSpeed, maxSpeed);
+            } else {
+                double change = 0;
+                for (int i = 0; i < axes.length; i++) {
+                    change = Math.max(change, Math.abs(segment.direction[i] -
+                            previous.direction[i]));
+                }
+                double limit = (change == 0) ? Double.MAX_VALUE :
+                        startSpeed / change;
+                segment.junction = Math.min(limit,
+                        Math.min(previous.maxSpeed, maxSpeed));
+            }
+            pending.add(segment);
+            plan();
+            if (!active) {
+                active = true;
+                path.reset();
+                generator.start(path, this::done);
+            }
+        }
+    }
+
+    /**
+     * Plans the start and end speeds of the queued moves. Call holding the
+     * lock.
+     */
+    private void plan() {
+        int n = pending.size();
+        // backward from a speed the motors can stop from
+        Segment last = pending.get(n - 1);
+        double speed = Math.min(startSpeed / 2, last.maxSpeed);
+        for (int i = n - 1; i >= 0; i--) {
+            Segment s = pending.get(i);
+            s.exit = speed;
+            s.entry = Math.min(s.junction,
+                    Math.sqrt(speed * speed + 2 * average * s.steps));
+            speed = s.entry;
+        }
+        // forward from the end of the move being made
+        Segment first = pending.get(0);
+        speed = Math.min(first.entry, (executing != null) ?
+                executing.exit : first.junction);
+        for (int i = 0; i < n; i++) {
+            Segment s = pending.get(i);
+            s.entry = speed;
+            s.exit = Math.min(s.exit,
+                    Math.sqrt(speed * speed + 2 * average * s.steps));
+            speed = s.exit;
+        }
+    }
+
+    /**
+     * Takes the next move to make, if any. Called by the schedule.
+     * @return the move; null if none
+     */
+    private Segment take() {
+        synchronized (lock) {
+            executing = pending.isEmpty() ? null : pending.remove(0);
+            lock.notifyAll();
+            return executing;
+        }
+    }
+
+    /**
+     * Called when the schedule ends: starts it again if moves were queued
+     * as it ended.
+     */
+    private void done() {
+        synchronized (lock) {
+            executing = null;
+            active = false;
+            if (!pending.isEmpty()) {
+                active = true;
+                path.reset();
+                generator.start(path, this::done);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for all queued moves to be made.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        synchronized (lock) {
+            while (active || !pending.isEmpty()) lock.wait();
+        }
+    }
+
+    /**
+     * Stops moving immediately, and discards the queued moves.
+     */
+    public void stop() {
+        synchronized (lock) {
+            pending.clear();
+        }
+        generator.stop();
+    }
+
+    /**
+     * Stops moving, and ends the step generator.
+     */
+    @Override
+    public void close() {
+        stop();
+        generator.close();
+    }
+
+    /**
+     * Indicates if moving.
+     * @return true if moving
+     */
+    public boolean isRunning() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    /**
+     * Returns the number of moves queued and not yet started.
+     * @return number of moves
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Returns the number of moves completed since creation.
+     * @return number of moves
+     */
+    public long getMoveCount() {
+        return segments;
+    }
+
+    /**
+     * Returns the step generator, for its timing statistics.
+     * @return the step generator
+     */
+    public StepGenerator getStepGenerator() {
+        return generator;
+    }
+
+    /**
+     * A straight line move, and its plan.
+     */
+    private static class Segment {
+        final int[] deltas;
+        // steps of the major axis
+        final int steps;
+        // deltas relative to the major axis
+        final double[] direction;
+        final double maxSpeed;
+        // planned speeds
+        double junction;
+        double entry;
+        double exit;
+
+        Segment(double maxSpeed, int[] deltas) {
+            this.deltas = deltas.clone();
+            this.maxSpeed = maxSpeed;
+            int most = 0;
+            for (int d : deltas) most = Math.max(most, Math.abs(d));
+            steps = most;
+            direction = new double[deltas.length];
+            for (int i = 0; i < deltas.length; i++) {
+                direction[i] = (most == 0) ? 0 : (double) deltas[i] / most;
+            }
+        }
+    }
+
+    /**
+     * The schedule: the steps of the moves, one after another.
+     */
+    private class Path implements StepGenerator.Schedule {
+        private Segment segment;
+        private MotionProfile profile;
+        private int k;
+        // time of the start of the move, seconds from the schedule start
+        private double base;
+        private final int[] error = new int[axes.length];
+
+        void reset() {
+            segment = null;
+            profile = null;
+            base = 0;
+        }
+
+        @Override
+        public long next() {
+            if (segment == null || k == segment.steps) {
+                if (segment != null) {
+                    base += profile.getDuration();
+                    segments++;
+                }
+                segment = take();
+                if (segment == null) return StepGenerator.END;
+                profile = new MotionProfile(shape, segment.steps,
+                        segment.entry, segment.maxSpeed, segment.exit,
+                        acceleration, false);
+                for (int i = 0; i < axes.length; i++) {
+                    if (segment.deltas[i] != 0) axes[i].setDirection(
+                            (segment.deltas[i] > 0) ?
+                                    SilentStepStick.Direction.CW :
+                                    SilentStepStick.Direction.CCW);
+                    // start half way, to centre the steps
+                    error[i] = segment.steps / 2;
+                }
+                k = 0;
+            }
+            return Math.round((base + profile.timeAt(k + 0.5)) * 1e9);
+        }
+
+        @Override
+        public void step() {
+            int n = segment.steps;
+            for (int i = 0; i < axes.length; i++) {
+                error[i] += Math.abs(segment.deltas[i]);
+                if (error[i] >= n) {
+                    error[i] -= n;
+                    axes[i].step();
+                }
+            }
+            k++;
+        }
+    }
+}
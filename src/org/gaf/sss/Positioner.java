@@ -0,0 +1,354 @@
+package org.gaf.sss;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves a stepper motor to absolute positions, without blocking, and lets
+ * the target change during a move.
+ * <p>
+ * Positions are the stepper's signed absolute positions in steps (CW
+ * positive). Moving to a target returns a future, completed with the
+ * position when the motor has stopped at the target. A new target replaces
+ * the current one at once: the motion is planned again from the current
+ * position and speed, with the motion limits, so there is no jump in speed.
+ * If the new target is ahead and far enough to stop at, the move carries on
+ * towards it; if not (it is behind, or too close at the current speed), the
+ * motor brakes, overshooting, and comes back. The replaced target's future
+ * is cancelled.
+ * </p>
+ * <p>
+ * Each part of a move is a motion profile with the configured shape, from
+ * the current speed to the start speed at the target. A move from rest
+ * starts after a pause of REST_NANOS, to let the motor rest (see p.9 of
+ * the SilentStepStick datasheet), without blocking the caller. A reversal
+ * brakes to, and starts from, half the start speed.
+ * </p>
+ * <p>
+ * Futures are completed on the step generator thread, so lengthy actions
+ * depending on them should use the async methods of CompletableFuture. If a
+ * step fails, the move ends, and its future completes exceptionally with
+ * the failure.
+ * </p>
+ */
+public class Positioner {
+
+    /**
+     * The pause before a move from rest, in nanoseconds.
+     */
+    public static final long REST_NANOS = 100_000_000;
+
+    private final Stepper stepper;
+    private final StepGenerator generator;
+    private final Follower follower = new Follower();
+
+    private final Object lock = new Object();
+    // motion limits, steps per second (squared)
+    private MotionProfile.Shape shape = null;
+    private double startSpeed;
+    private double maxSpeed;
+    private double acceleration;
+    private double average;
+    // the target, and whether the follower is running
+    private long target;
+    private boolean retarget = false;
+    private boolean moving = false;
+    private CompletableFuture<Long> arrival = null;
+    private long retargets = 0;
+
+    /**
+     * Creates a positioner.
+     * @param stepper the stepper
+     * @param generator the step generator for the stepper
+     */
+    public Positioner(Stepper stepper, StepGenerator generator) {
+        this.stepper = stepper;
+        this.generator = generator;
+    }
+
+    /**
+     * Sets the motion limits. Takes effect from the next target.
+     * @param shape the shape of the accelerations
+     * @param startSpeed the speed the motor can start and stop at
+     * instantly, steps per second
+     * @param maxSpeed the maximum speed, steps per second
+     * @param acceleration the maximum acceleration, steps per second squared
+     */
+    public void setMotion(MotionProfile.Shape shape, double startSpeed,
+            double maxSpeed, double acceleration) {
+        if (startSpeed <= 0 || maxSpeed < startSpeed || acceleration <= 0)
+            throw new IllegalArgumentException(
+                    "Need 0 < start speed <= max speed, acceleration > 0");
+        synchronized (lock) {
+            this.shape = shape;
+            this.startSpeed = startSpeed;
+            this.maxSpeed = maxSpeed;
+            this.acceleration = acceleration;
+            this.average = (shape == MotionProfile.Shape.S_CURVE) ?
+                    acceleration / 2 : acceleration;
+        }
+    }
+
+    /**
+     * Moves to an absolute position, replacing any current target.
+     * @param position the target position in steps
+     * @return a future completed with the position when stopped there;
+     * completed exceptionally with IllegalStateException if the step
+     * generator is busy with another move
+     * @throws IllegalStateException if the motion limits are not set
+     */
+    public CompletableFuture<Long> moveTo(long position) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        CompletableFuture<Long> replaced;
+        synchronized (lock) {
+            if (shape == null)
+                throw new IllegalStateException("Motion limits not set");
+            replaced = arrival;
+            target = position;
+            if (moving) {
+                retarget = true;
+                retargets++;
+            } else {
+                follower.reset();
+                if (!generator.start(follower, this::followed)) {
+                    future.completeExceptionally(new IllegalStateException(
+                            "Running another move"));
+                    return future;
+                }
+                moving = true;
+            }
+            arrival = future;
+        }
+        if (replaced != null) replaced.cancel(false);
+        return future;
+    }
+
+    /**
+     * Moves by a number of steps from the current target if moving, or from
+     * the current position if not, replacing any current target.
+     * @param steps the signed steps
+     * @return a future completed with the position when stopped there
+     * @throws IllegalStateException if the motion limits are not set
+     */
+    public CompletableFuture<Long> moveBy(long steps) {
+        long from;
+        synchronized (lock) {
+            from = moving ? target : stepper.getPosition();
+        }
+        return moveTo(from + steps);
+    }
+
+    /**
+     * Stops immediately, and cancels the current target. Waits for the
+     * motion to end, unless called on the step generator thread.
+     */
+    public void stop() {
+        CompletableFuture<Long> cancelled;
+        boolean running;
+        synchronized (lock) {
+            cancelled = arrival;
+            arrival = null;
+            retarget = false;
+            running = moving;
+        }
+        if (running) {
+            generator.stop();
+            boolean interrupted = false;
+            synchronized (lock) {
+                // the generator is free once stopped, unless it is this thread
+                while (moving && !generator.isRunning()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        if (cancelled != null) cancelled.cancel(false);
+    }
+
+    /**
+     * Indicates if moving to a target.
+     * @return true if moving
+     */
+    public boolean isMoving() {
+        synchronized (lock) {
+            return moving;
+        }
+    }
+
+    /**
+     * Returns the current target.
+     * @return the target position in steps
+     */
+    public long getTarget() {
+        synchronized (lock) {
+            return target;
+        }
+    }
+
+    /**
+     * Returns the position of the stepper.
+     * @return the position in steps
+     */
+    public long getPosition() {
+        return stepper.getPosition();
+    }
+
+    /**
+     * Returns the number of times a target has been replaced during a move.
+     * @return number of replacements
+     */
+    public long getRetargetCount() {
+        synchronized (lock) {
+            return retargets;
+        }
+    }
+
+    /**
+     * Called when the follower ends, at the target or stopped: starts it
+     * again, from rest, if a target arrived as it ended.
+     */
+    private void followed() {
+        RuntimeException failure = generator.getFailure();
+        CompletableFuture<Long> failed;
+        synchronized (lock) {
+            if (retarget && failure == null) {
+                retarget = false;
+                follower.reset();
+                if (generator.start(follower, this::followed)) return;
+            }
+            moving = false;
+            failed = arrival;
+            arrival = null;
+            lock.notifyAll();
+        }
+        // not at the target, so stopped, or a step failed
+        if (failed != null) failed.completeExceptionally((failure != null) ?
+                failure : new CancellationException("Stopped"));
+    }
+
+    /**
+     * The schedule: the steps to the target, planned again when the target
+     * changes.
+     */
+    private class Follower implements StepGenerator.Schedule {
+        private MotionProfile profile;
+        // the direction of the profile: 1 CW, -1 CCW
+        private int sign;
+        private int k;
+        // time of the start of the profile, seconds from the schedule start
+        private double base;
+
+        void reset() {
+            profile = null;
+            sign = 0;
+            base = REST_NANOS / 1e9;
+        }
+
+        @Override
+        public long next() {
+            CompletableFuture<Long> arrived = null;
+            synchronized (lock) {
+                boolean finished = profile == null ||
+                        k == profile.getSteps();
+                if (retarget || finished) {
+                    retarget = false;
+                    if (!plan(finished)) {
+                        arrived = arrival;
+                        arrival = null;
+                    }
+                }
+            }
+            if (profile == null) {
+                if (arrived != null) arrived.complete(stepper.getPosition());
+                return StepGenerator.END;
+            }
+            return Math.round((base + profile.timeAt(k + 0.5)) * 1e9);
+        }
+
+        @Override
+        public void step() {
+            stepper.step();
+            k++;
+        }
+
+        /**
+         * Plans the motion from the current position and speed to the
+         * target. Call holding the lock.
+         * @param finished true if the current profile is finished
+         * @return false if stopped at the target
+         */
+        private boolean plan(boolean finished) {
+            // the current speed, and the time the next profile starts: at
+            // the ideal position half a step after the last step
+            double v = 0;
+            if (profile != null) {
+                double t = finished ? profile.getDuration() :
+                        profile.timeAt(k);
+                base += t;
+                v = finished ? profile.getEndSpeed() : profile.speedAt(t);
+            }
+            long remaining = target - stepper.getPosition();
+            int want = Long.signum(remaining);
+            long distance = Math.abs(remaining);
+            double reverse = startSpeed / 2;
+
+            if (v == 0) {
+                // from rest
+                if (distance == 0) return stop();
+                return start(want, distance, Math.min(startSpeed, maxSpeed));
+            }
+            if (want == sign) {
+                // ahead: carry on if it can stop in time
+                double stopping = (v * v - startSpeed * startSpeed) /
+                        (2 * average);
+                if (distance >= stopping)
+                    return start(want, distance, v);
+            } else if (distance == 0 && v <= startSpeed) {
+                return stop();
+            }
+            // brake for a reversal
+            int braking = (int) Math.ceil((v * v - reverse * reverse) /
+                    (2 * average));
+            if (braking > 0) {
+                profile = new MotionProfile(shape, braking, v, v, reverse,
+                        acceleration, false);
+                k = 0;
+                return true;
+            }
+            if (distance == 0) return stop();
+            return start(want, distance, Math.min(v, reverse));
+        }
+
+        /**
+         * Starts a profile towards the target.
+         */
+        private boolean start(int direction, long distance, double entry) {
+            if (direction != sign) {
+                stepper.setDirection((direction > 0) ?
+                        SilentStepStick.Direction.CW :
+                        SilentStepStick.Direction.CCW);
+                sign = direction;
+            }
+            int steps = (int) Math.min(distance, Integer.MAX_VALUE);
+            double exit = Math.min(startSpeed,
+                    Math.sqrt(entry * entry + 2 * average * steps));
+            profile = new MotionProfile(shape, steps, entry,
+                    Math.max(maxSpeed, entry), exit, acceleration, false);
+            k = 0;
+            return true;
+        }
+
+        /**
+         * Stops at the target.
+         */
+        private boolean stop() {
+            profile = null;
+            sign = 0;
+            return false;
+        }
+    }
+}
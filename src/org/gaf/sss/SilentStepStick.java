@@ -5,18 +5,28 @@ import com.diozero.api.RuntimeIOException;
 import com.diozero.api.function.Action;
 import com.diozero.util.SleepUtil;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents the Watterott SilentStepStick stepper motor driver.
  */
-public class SilentStepStick implements AutoCloseable {
+public class SilentStepStick implements Stepper, AutoCloseable {
     
     private DigitalOutputDevice dir;
     private DigitalOutputDevice enable;
     private DigitalOutputDevice step;
 
     private final float microstepsPerRev;            
-    private boolean running = false;
+    private volatile boolean running = false;
+    private volatile int stepsTaken = 0;
+    // orders setting running at a start before clearing it at completion
+    private final Object startLock = new Object();
+    // absolute position in micro-steps, CW positive, and the step sign
+    private volatile long position = 0;
+    private volatile int sign = 1;
+    
+    private final StepGenerator generator;
+    private final Positioner positioner;
 
     /**
      * Constructor for Watterott SilentStepStick.
@@ -30,6 +40,8 @@ public class SilentStepStick implements AutoCloseable {
      */
     public SilentStepStick(int enablePin, int directionPin, int stepPin,
             int stepsPerRev, Resolution resolution) throws IOException {
+        generator = new StepGenerator("SilentStepStick-" + stepPin);
+        positioner = new Positioner(this, generator);
         try {
             // set up GPIO
             enable = new DigitalOutputDevice(enablePin, false, false);
@@ -40,6 +52,7 @@ public class SilentStepStick implements AutoCloseable {
             microstepsPerRev = 
                     (float) (stepsPerRev * resolution.resolution);        
         } catch (RuntimeIOException ex) {
+            generator.close();
             throw new IOException(ex.getMessage());
         }
     }    
@@ -51,16 +64,17 @@ public class SilentStepStick implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        // stop
+        positioner.stop();
+        generator.close();
+        running = false;
         // disable
         if (enable != null) {
             enable.off();
             enable.close();
             enable = null;
         }
-        // stop
         if (step != null) {
-            // turn it off
-            step.stopOnOffLoop();
             step.close();
             step = null;
         }        
@@ -95,9 +109,11 @@ public class SilentStepStick implements AutoCloseable {
      * @param direction 
      * @throws RuntimeIOException for IO errors
      */
-    private void setDirection(Direction direction) throws RuntimeIOException {
+    @Override
+    public void setDirection(Direction direction) throws RuntimeIOException {
         if (direction == Direction.CW) dir.off();
         else dir.on();
+        sign = (direction == Direction.CW) ? 1 : -1;
     } 
     
     /**
@@ -115,39 +131,47 @@ public class SilentStepStick implements AutoCloseable {
      */
     public void run(Direction direction, float speedRPM) 
         throws RuntimeIOException {
-        if (running) step.stopOnOffLoop();
+        if (isRunning()) stop();
         // let motor rest (see p.9 of datasheet)
         SleepUtil.sleepMillis(100);
         // set direction
         setDirection(direction);
         // start the step signal in background
-        float halfPeriod = getHalfPeriod(speedRPM);
-        step.onOffLoop(halfPeriod, halfPeriod, 
-                DigitalOutputDevice.INFINITE_ITERATIONS, 
-                true, null);
-        running = true;
+        start(new ConstantSchedule(getPeriod(speedRPM), Long.MAX_VALUE), 
+                null);
     }  
     
     /**
-     * Stops the step signal to the driver.
+     * Stops the step signal to the driver. Waits for the step signal to
+     * stop, unless called from a stop action. Cancels any move to a 
+     * position.
      * @throws RuntimeIOException for IO errors
      */
     public void stop() throws RuntimeIOException {       
-        step.stopOnOffLoop();
+        positioner.stop();
+        generator.stop();
         running = false;
     }
+    
+    /**
+     * Indicates if the driver is running a move: run, stepCount, 
+     * stepProfile or a move to a position.
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return running || positioner.isMoving();
+    }
         
     /**
-     * Calculates the half period of step signal from the desired 
+     * Calculates the period of step signal from the desired 
      * rotational speed of the motor.
      * @param speedRPM in revolutions per minute
-     * @return half period
+     * @return period in nanoseconds
      */
-    private float getHalfPeriod(float speedRPM) {
+    private long getPeriod(float speedRPM) {
         float speedRPS = speedRPM/60f; // speed in revolutions per second
         float frequency = speedRPS * microstepsPerRev; // microsteps per second
-        float halfPeriod = 0.5f / frequency;
-        return halfPeriod;
+        return Math.round(1e9 / frequency);
     }
     
     /**
@@ -169,43 +193,292 @@ public class SilentStepStick implements AutoCloseable {
             boolean background, Action stopAction) 
             throws RuntimeIOException {
         
-        if (running) {
+        if (isRunning()) {
             return false;
         } else {
             // let motor rest (see p.9 of datasheet)
             SleepUtil.sleepMillis(100);
             
-            // set up an intercept so will know when stepping finished
-            Action intercept = () -> {
-//                System.out.println("intercept");
-                running = false;
-            };
-            
             // set direction
             setDirection(direction);
             
             // start stepping
-            running = true;
-            float halfPeriod = getHalfPeriod(speedRPM);
-            if (stopAction != null) {
-                step.onOffLoop(halfPeriod, halfPeriod,
-                        count, background,
-                        intercept.andThen(stopAction));                
-            } else {
-                step.onOffLoop(halfPeriod, halfPeriod,
-                        count, background, intercept);
-            }
+            if (!start(new ConstantSchedule(getPeriod(speedRPM), count), 
+                    stopAction)) return false;
+            if (!background) await();
              
             return true;
         }
     }
     
+    /**
+     * Creates a motion profile for a move, in the micro-steps of this
+     * driver.
+     * @param count number of steps to take
+     * @param startRPM speed at the start and end of the move, in RPM; one 
+     * the motor can reach instantly
+     * @param speedRPM maximum speed in RPM
+     * @param accelRPMPerSec maximum acceleration in RPM per second
+     * @param shape shape of the acceleration
+     * @return the profile
+     */
+    public MotionProfile createProfile(int count, float startRPM, 
+            float speedRPM, float accelRPMPerSec, MotionProfile.Shape shape) {
+        float perRPM = microstepsPerRev / 60f; // microsteps per second
+        return new MotionProfile(shape, count, startRPM * perRPM, 
+                speedRPM * perRPM, accelRPMPerSec * perRPM);
+    }
+    
+    /**
+     * Causes the driver to run the steps of a motion profile in the 
+     * requested direction, accelerating, cruising and decelerating as the 
+     * profile requires. This lets the motor reach speeds it cannot start at.
+     * <p>
+     * The step train is generated from the profile's table of step times, 
+     * each step issued at its time from the start of the move, so timing 
+     * errors do not accumulate. The motor runs only if the driver is 
+     * enabled. A move can be ended early with stop().
+     * </p>
+     * @param profile the profile, created for the micro-steps of this driver
+     * @param direction desired direction of travel
+     * @param background run in background
+     * @param stopAction Action to take at completion
+     * @return true if action started in background or completed in foreground;
+     * false if already running
+     * @throws RuntimeIOException for IO errors
+     */
+    public boolean stepProfile(MotionProfile profile, Direction direction, 
+            boolean background, Action stopAction) 
+            throws RuntimeIOException {
+        
+        if (isRunning()) {
+            return false;
+        } else {
+            // let motor rest (see p.9 of datasheet)
+            SleepUtil.sleepMillis(100);
+            
+            // set direction
+            setDirection(direction);
+            
+            // start stepping
+            if (!start(new ProfileSchedule(profile), stopAction)) 
+                return false;
+            if (!background) await();
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Starts the step generator on a schedule.
+     * @param schedule the steps
+     * @param stopAction Action to take at completion; may be null
+     * @return true if started; false if the generator is running another
+     * move
+     */
+    private boolean start(StepGenerator.Schedule schedule, 
+            Action stopAction) {
+        // the count restarts at the first step, on the generator thread, so
+        // a start that fails leaves the count of the move running alone
+        StepGenerator.Schedule counted = new StepGenerator.Schedule() {
+            private boolean first = true;
+
+            @Override
+            public long next() {
+                if (first) {
+                    stepsTaken = 0;
+                    first = false;
+                }
+                return schedule.next();
+            }
+
+            @Override
+            public void step() {
+                schedule.step();
+            }
+        };
+        // set up an intercept so will know when stepping finished
+        Action intercept = () -> {
+            synchronized (startLock) {
+                running = false;
+            }
+        };
+        synchronized (startLock) {
+            if (!generator.start(counted, (stopAction == null) ? intercept :
+                    intercept.andThen(stopAction)))
+                return false;
+            running = true;
+        }
+        return true;
+    }
+    
+    /**
+     * Waits for the step generator to finish; stops it if interrupted.
+     */
+    private void await() {
+        try {
+            generator.await();
+        } catch (InterruptedException ex) {
+            stop();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Issues a step. The GPIO writes take far longer than the minimum pulse
+     * width. For stepping from another timing source, such as a MultiAxis; 
+     * the driver must not be running a move of its own.
+     * @throws RuntimeIOException for IO errors
+     */
+    @Override
+    public void step() throws RuntimeIOException {
+        step.on();
+        step.off();
+        stepsTaken++;
+        position += sign;
+    }
+    
+    /**
+     * Returns the absolute position: the signed count of every step issued,
+     * by any move, since creation or the last setPosition.
+     * @return position in micro-steps, CW positive
+     */
+    @Override
+    public long getPosition() {
+        return position;
+    }
+    
+    /**
+     * Sets the absolute position, for example to zero it at a home 
+     * position.
+     * @param position position in micro-steps, CW positive
+     * @throws IllegalStateException if running
+     */
+    public void setPosition(long position) {
+        if (isRunning()) 
+            throw new IllegalStateException(
+                    "Cannot set position while running");
+        this.position = position;
+    }
+    
+    /**
+     * Sets the motion for moves to a position. Must be called before the
+     * first such move; takes effect from the next target.
+     * @param startRPM speed at which the motor can start, stop and reverse,
+     * in RPM
+     * @param speedRPM maximum speed in RPM
+     * @param accelRPMPerSec maximum acceleration in RPM per second
+     * @param shape shape of the acceleration
+     */
+    public void setMotion(float startRPM, float speedRPM, 
+            float accelRPMPerSec, MotionProfile.Shape shape) {
+        float perRPM = microstepsPerRev / 60f; // microsteps per second
+        positioner.setMotion(shape, startRPM * perRPM, speedRPM * perRPM, 
+                accelRPMPerSec * perRPM);
+    }
+    
+    /**
+     * Moves to an absolute position, in the background, accelerating and
+     * decelerating as set by setMotion. If already moving to a position, 
+     * the new target replaces the old at once, without stopping, and the 
+     * old target's future is cancelled. 
+     * <p>
+     * The motor runs only if the driver is enabled. The future completes on
+     * the step generator thread; stop() cancels it.
+     * </p>
+     * @param target position in micro-steps, CW positive
+     * @return future completed with the position when stopped at the 
+     * target; completed exceptionally if running run, stepCount or 
+     * stepProfile
+     * @throws IllegalStateException if the motion is not set
+     */
+    public CompletableFuture<Long> moveTo(long target) {
+        return positioner.moveTo(target);
+    }
+    
+    /**
+     * Moves by a number of micro-steps from the current target if moving to
+     * one, or from the current position if not. As for moveTo.
+     * @param steps signed micro-steps, CW positive
+     * @return future completed with the position when stopped at the 
+     * target
+     * @throws IllegalStateException if the motion is not set
+     */
+    public CompletableFuture<Long> moveBy(long steps) {
+        return positioner.moveBy(steps);
+    }
+    
+    /**
+     * Returns the target of the current, or last, move to a position.
+     * @return position in micro-steps, CW positive
+     */
+    public long getTarget() {
+        return positioner.getTarget();
+    }
+    
     /**
      * Get the count of steps taken.
      * @return number of steps taken
      */
     public int getStepCount() {
-        return step.getCycleCount();
+        return stepsTaken;
+    }
+    
+    /**
+     * Returns the step generator, for its timing statistics.
+     * @return the step generator
+     */
+    public StepGenerator getStepGenerator() {
+        return generator;
+    }
+    
+    /**
+     * Steps at a constant rate.
+     */
+    private class ConstantSchedule implements StepGenerator.Schedule {
+        private final long period;
+        private final long count;
+        private long k = 0;
+
+        ConstantSchedule(long period, long count) {
+            this.period = period;
+            this.count = count;
+        }
+
+        @Override
+        public long next() {
+            return (k < count) ? k * period : StepGenerator.END;
+        }
+
+        @Override
+        public void step() {
+            SilentStepStick.this.step();
+            k++;
+        }
+    }
+    
+    /**
+     * Steps at the times of a motion profile.
+     */
+    private class ProfileSchedule implements StepGenerator.Schedule {
+        private final MotionProfile profile;
+        private int k = 0;
+
+        ProfileSchedule(MotionProfile profile) {
+            this.profile = profile;
+        }
+
+        @Override
+        public long next() {
+            return (k < profile.getSteps()) ? profile.getTime(k) : 
+                    StepGenerator.END;
+        }
+
+        @Override
+        public void step() {
+            SilentStepStick.this.step();
+            k++;
+        }
     }
         
     public enum Direction {
@@ -0,0 +1,369 @@
+package org.gaf.sss;
+
+import com.diozero.api.function.Action;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Issues step pulses at precise times, on a dedicated thread.
+ * <p>
+ * The steps come from a schedule, which gives the time of each step from
+ * the start, and issues it. Each time is an absolute deadline, so timing
+ * errors do not accumulate. The thread sleeps until shortly before each
+ * deadline, then spins until it: sleeping alone wakes tens to hundreds of
+ * microseconds late, and unevenly, which limits the step rate and makes the
+ * motor rough. The margin adapts: it grows when a sleep overshoots the
+ * deadline, and shrinks while it does not. When steps are closer than the
+ * margin, the thread spins all the time.
+ * </p>
+ * <p>
+ * The thread runs at the highest Java priority; on Linux that takes effect
+ * only with suitable JVM options and privileges, so for the best timing
+ * also give the JVM a core of its own (for example with isolcpus and
+ * taskset).
+ * </p>
+ * <p>
+ * If the thread is held up (for example preempted) so that a step is more
+ * than MAX_LATENESS late, the rest of the schedule slips by the lateness,
+ * rather than issuing the missed steps in a burst the motor cannot follow.
+ * The slips, and the time lost, are counted.
+ * </p>
+ * <p>
+ * If the schedule throws an exception, it ends there: the completion
+ * action is taken, and the exception is kept for getFailure.
+ * </p>
+ * <p>
+ * The lateness of each step (from its deadline to its issue) is recorded in
+ * a histogram of 1 microsecond buckets, to give percentiles.
+ * </p>
+ */
+public class StepGenerator implements AutoCloseable {
+
+    /**
+     * A sequence of steps.
+     */
+    public interface Schedule {
+
+        /**
+         * Returns the time of the next step.
+         * @return nanoseconds from the start of the schedule; END if there
+         * are no more steps
+         */
+        long next();
+
+        /**
+         * Issues the step, at its time.
+         */
+        void step();
+    }
+
+    /**
+     * Returned by a schedule with no more steps.
+     */
+    public static final long END = -1;
+
+    /**
+     * The lateness beyond which a schedule slips, in nanoseconds.
+     */
+    public static final long MAX_LATENESS = 100_000;
+
+    // sleep margin limits
+    private static final long MIN_MARGIN = 20_000;
+    private static final long INITIAL_MARGIN = 100_000;
+    private static final long MAX_MARGIN = 2_000_000;
+    // histogram buckets of 1 us; the last counts all later
+    private static final int BUCKETS = 1024;
+
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // the schedule being run, and its completion action
+    private volatile Schedule schedule = null;
+    private volatile Action whenDone = null;
+    private volatile boolean stopping = false;
+    private volatile RuntimeException failure = null;
+    private final Object lock = new Object();
+
+    // statistics, written by the thread
+    private final long[] histogram = new long[BUCKETS];
+    private long steps;
+    private long latenessSum;
+    private long latenessMax;
+    private long oversleeps;
+    private long slips;
+    private long slipTime;
+    private long margin = INITIAL_MARGIN;
+
+    /**
+     * Creates a generator, and starts its thread.
+     * @param name the name of the thread
+     */
+    public StepGenerator(String name) {
+        thread = new Thread(this::serve, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Starts running a schedule.
+     * @param schedule the schedule; its times are from now
+     * @param whenDone Action to take at completion (or stop); may be null
+     * @return true if started; false if a schedule is already running
+     */
+    public boolean start(Schedule schedule, Action whenDone) {
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("Closed");
+            if (this.schedule != null) return false;
+            stopping = false;
+            failure = null;
+            this.whenDone = whenDone;
+            this.schedule = schedule;
+        }
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Indicates if a schedule is running.
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return schedule != null;
+    }
+
+    /**
+     * Returns the exception thrown by the last schedule, which ended it. Set
+     * before the completion action is taken, and cleared at the next start.
+     * @return the exception; null if none
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits for the running schedule, if any, to finish.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        synchronized (lock) {
+            while (schedule != null) lock.wait();
+        }
+    }
+
+    /**
+     * Stops the running schedule, if any, and waits for it to end. The
+     * completion action is still taken. If called from the completion
+     * action or the schedule, does not wait.
+     */
+    public void stop() {
+        stopping = true;
+        if (Thread.currentThread() == thread) return;
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (schedule != null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stops the running schedule, if any, and ends the thread.
+     */
+    @Override
+    public void close() {
+        stop();
+        closed = true;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The body of the thread: runs schedules as they arrive.
+     */
+    private void serve() {
+        while (!closed) {
+            Schedule s = schedule;
+            if (s == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                run(s);
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
+            Action done = whenDone;
+            synchronized (lock) {
+                schedule = null;
+                whenDone = null;
+                lock.notifyAll();
+            }
+            if (done != null) done.action();
+        }
+    }
+
+    /**
+     * Runs a schedule.
+     */
+    private void run(Schedule s) {
+        long start = System.nanoTime();
+        long t;
+        while (!stopping && (t = s.next()) != END) {
+            long deadline = start + t;
+            long now = System.nanoTime();
+            long wake = deadline - margin;
+            if (now < wake) {
+                // sleep until the margin before the deadline
+                do {
+                    LockSupport.parkNanos(wake - now);
+                } while (!stopping && (now = System.nanoTime()) < wake);
+                if (stopping) break;
+                if (now > deadline) {
+                    // overslept, so wake earlier next time
+                    oversleeps++;
+                    margin = Math.min(MAX_MARGIN, margin + margin / 2);
+                } else {
+                    margin = Math.max(MIN_MARGIN, margin - margin / 16);
+                }
+            }
+            // spin until the deadline
+            while (now < deadline) {
+                Thread.onSpinWait();
+                now = System.nanoTime();
+            }
+            s.step();
+            long lateness = now - deadline;
+            record(lateness);
+            if (lateness > MAX_LATENESS) {
+                start += lateness;
+                slips++;
+                slipTime += lateness;
+            }
+        }
+    }
+
+    /**
+     * Records the lateness of a step.
+     * @param lateness nanoseconds
+     */
+    private void record(long lateness) {
+        histogram[(int) Math.min(BUCKETS - 1, lateness / 1000)]++;
+        steps++;
+        latenessSum += lateness;
+        if (lateness > latenessMax) latenessMax = lateness;
+    }
+
+    /**
+     * Clears the statistics. Call while no schedule is running.
+     */
+    public void clearStatistics() {
+        Arrays.fill(histogram, 0);
+        steps = 0;
+        latenessSum = 0;
+        latenessMax = 0;
+        oversleeps = 0;
+        slips = 0;
+        slipTime = 0;
+    }
+
+    /**
+     * Returns the number of steps issued since the statistics were cleared.
+     * @return number of steps
+     */
+    public long getStepCount() {
+        return steps;
+    }
+
+    /**
+     * Returns the mean lateness of the steps.
+     * @return nanoseconds
+     */
+    public long getLatenessMean() {
+        return (steps == 0) ? 0 : latenessSum / steps;
+    }
+
+    /**
+     * Returns the maximum lateness of the steps.
+     * @return nanoseconds
+     */
+    public long getLatenessMax() {
+        return latenessMax;
+    }
+
+    /**
+     * Returns a percentile of the lateness of the steps, to the histogram
+     * resolution of 1 microsecond (the upper edge of the bucket).
+     * @param percent the percentile, 0 to 100
+     * @return nanoseconds; the maximum if beyond the histogram
+     */
+    public long getLatenessPercentile(double percent) {
+        long n = steps;
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(n * percent / 100);
+        long count = 0;
+        for (int b = 0; b < BUCKETS - 1; b++) {
+            count += histogram[b];
+            if (count >= rank) return (b + 1) * 1000L;
+        }
+        return latenessMax;
+    }
+
+    /**
+     * Copies the lateness histogram: element b counts the steps late by b
+     * to b + 1 microseconds, and the last element counts all later ones.
+     * @param counts the array to receive the counts; copies as many
+     * buckets as fit
+     * @return the number of buckets
+     */
+    public int getHistogram(long[] counts) {
+        System.arraycopy(histogram, 0, counts, 0,
+                Math.min(counts.length, BUCKETS));
+        return BUCKETS;
+    }
+
+    /**
+     * Returns the number of times a sleep overshot a step's deadline.
+     * @return number of oversleeps
+     */
+    public long getOversleepCount() {
+        return oversleeps;
+    }
+
+    /**
+     * Returns the number of times a schedule slipped because a step was
+     * more than MAX_LATENESS late.
+     * @return number of slips
+     */
+    public long getSlipCount() {
+        return slips;
+    }
+
+    /**
+     * Returns the total time by which schedules slipped.
+     * @return nanoseconds
+     */
+    public long getSlipTime() {
+        return slipTime;
+    }
+
+    /**
+     * Returns the current sleep margin: how long before a deadline spinning
+     * starts.
+     * @return nanoseconds
+     */
+    public long getMargin() {
+        return margin;
+    }
+}
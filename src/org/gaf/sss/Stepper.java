@@ -0,0 +1,30 @@
+package org.gaf.sss;
+
+import com.diozero.api.RuntimeIOException;
+
+/**
+ * The direction and step signals of a stepper motor driver, so that several
+ * motors can be stepped in coordination from one timing source.
+ */
+public interface Stepper {
+
+    /**
+     * Sets the direction of rotation for the following steps.
+     * @param direction the direction
+     * @throws RuntimeIOException for IO errors
+     */
+    void setDirection(SilentStepStick.Direction direction)
+            throws RuntimeIOException;
+
+    /**
+     * Issues one step.
+     * @throws RuntimeIOException for IO errors
+     */
+    void step() throws RuntimeIOException;
+
+    /**
+     * Returns the absolute position: the signed count of the steps issued.
+     * @return position in steps, CW positive
+     */
+    long getPosition();
+}
@@ -0,0 +1,125 @@
+package org.gaf.sss.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import org.gaf.sss.MotionProfile;
+
+/**
+ * Tests MotionProfile. For each shape, for a long move (with a cruise), a
+ * short move (that cannot reach the maximum speed), and with and without a
+ * start speed, checks the step times in the table against a separate
+ * simulation of the profile's speed, and checks the speed limit, the
+ * symmetry and the duration. Then compares a Metronome-style move at
+ * constant speed with a profiled one. No hardware needed.
+ */
+public class TestMotionProfile {
+
+    // time step of the simulation, seconds
+    private static final double DT = 1e-6;
+    // allowed difference between the table and the simulation, seconds
+    private static final double TOLERANCE = 1e-6;
+
+    public static void main(String[] args) {
+        boolean ok = true;
+        for (MotionProfile.Shape shape : MotionProfile.Shape.values()) {
+            ok &= checkProfile(shape, 3000, 0, 1600, 4000);
+            ok &= checkProfile(shape, 3000, 200, 1600, 4000);
+            ok &= checkProfile(shape, 60, 0, 1600, 4000);
+            ok &= checkProfile(shape, 61, 100, 1600, 4000);
+            ok &= checkProfile(shape, 1, 50, 1600, 4000);
+        }
+        ok &= speedUp();
+        finish(ok);
+    }
+
+    private static boolean checkProfile(MotionProfile.Shape shape, int steps,
+            double startSpeed, double maxSpeed, double acceleration) {
+        MotionProfile profile = new MotionProfile(shape, steps, startSpeed,
+                maxSpeed, acceleration);
+
+        // the profile, worked out independently
+        double average = (shape == MotionProfile.Shape.S_CURVE) ?
+                acceleration / 2 : acceleration;
+        double peak = Math.min(maxSpeed,
+                Math.sqrt(startSpeed * startSpeed + average * steps));
+        double ramp = (peak - startSpeed) / average;
+        double rampDistance = (peak * peak - startSpeed * startSpeed) /
+                (2 * average);
+        double duration = 2 * ramp + (steps - 2 * rampDistance) / peak;
+
+        // simulate, noting when the position passes each step
+        double worst = 0;
+        double s = 0;
+        double v = startSpeed;
+        int k = 0;
+        for (long i = 0; k < steps && i * DT < duration + 1; i++) {
+            double t = i * DT;
+            double v1 = speed(shape, t + DT, ramp, duration, startSpeed, peak);
+            double s1 = s + 0.5 * (v + v1) * DT;
+            while (k < steps && s1 >= k + 0.5) {
+                double at = t + DT * (k + 0.5 - s) / (s1 - s);
+                worst = Math.max(worst,
+                        Math.abs(profile.getTime(k) / 1e9 - at));
+                k++;
+            }
+            s = s1;
+            v = v1;
+        }
+
+        // the fastest step, and the symmetry
+        long shortest = Long.MAX_VALUE;
+        long asymmetry = 0;
+        for (int i = 1; i < steps; i++) {
+            shortest = Math.min(shortest, profile.getInterval(i));
+            asymmetry = Math.max(asymmetry, Math.abs(profile.getInterval(i) -
+                    profile.getInterval(steps - i)));
+        }
+        double fastest = (steps > 1) ? 1e9 / shortest : 0;
+
+        System.out.format("%-9s %4d steps from %4.0f: peak %6.1f steps/s " +
+                "(fastest step %6.1f), %.4f s; worst timing error %.2e s, " +
+                "asymmetry %d ns%n", shape, steps, startSpeed,
+                profile.getPeakSpeed(), fastest, profile.getDuration(), worst,
+                asymmetry);
+        return check("table", k == steps && worst < TOLERANCE) &
+                check("speed", Math.abs(profile.getPeakSpeed() - peak) < 1e-9 &&
+                        fastest <= peak * 1.001) &
+                check("symmetry", asymmetry <= 2) &
+                check("duration",
+                        Math.abs(profile.getDuration() - duration) < 1e-9);
+    }
+
+    /**
+     * The speed of a profile at a time.
+     */
+    private static double speed(MotionProfile.Shape shape, double t,
+            double ramp, double duration, double startSpeed, double peak) {
+        // the deceleration mirrors the acceleration
+        if (t > duration / 2) t = duration - t;
+        if (t < 0) return 0;
+        if (t >= ramp) return peak;
+        double f = t / ramp;
+        if (shape == MotionProfile.Shape.S_CURVE) {
+            f -= Math.sin(2 * Math.PI * f) / (2 * Math.PI);
+        }
+        return startSpeed + (peak - startSpeed) * f;
+    }
+
+    /**
+     * Compares the Metronome's move of one revolution at its 4 RPM, which
+     * it must start at, with a profile starting at 4 RPM and running at up
+     * to 20 RPM (quarter steps, 200 steps per revolution).
+     */
+    private static boolean speedUp() {
+        int microsteps = 800;
+        double perRPM = microsteps / 60.0;
+        double constant = microsteps / (4 * perRPM);
+        MotionProfile profile = new MotionProfile(MotionProfile.Shape.S_CURVE,
+                microsteps, 4 * perRPM, 20 * perRPM, 40 * perRPM);
+        double ratio = constant / profile.getDuration();
+        System.out.format("one revolution: %.2f s at constant 4 RPM, %.2f s " +
+                "profiled to %.1f RPM, %.1f times faster%n", constant,
+                profile.getDuration(), profile.getPeakSpeed() / perRPM, ratio);
+        return check("speed up", ratio > 3);
+    }
+}
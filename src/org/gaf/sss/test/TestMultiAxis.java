@@ -0,0 +1,178 @@
+package org.gaf.sss.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.util.Arrays;
+import org.gaf.sss.MotionProfile;
+import org.gaf.sss.MultiAxis;
+import org.gaf.sss.SilentStepStick;
+import org.gaf.sss.Stepper;
+
+/**
+ * Tests MultiAxis with three simulated axes that record the time of each
+ * step. For each shape: makes one three axis move and checks every axis
+ * makes its steps, evenly spread along the major axis and finishing
+ * together; then queues a path (straight on, a right angle corner, a
+ * reversal) and checks the moves blend (the speed is kept straight on and
+ * only slowed to the start speed at the corner), the axes end where they
+ * should, and the path takes less time than the same moves made one at a
+ * time (leaving out any time lost to slips). No hardware needed.
+ */
+public class TestMultiAxis {
+
+    private static final double START = 1000;
+    private static final double SPEED = 10000;
+    private static final double ACCEL = 40000;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok = true;
+        for (MotionProfile.Shape shape : MotionProfile.Shape.values()) {
+            ok &= single(shape);
+            ok &= path(shape);
+        }
+        finish(ok);
+    }
+
+    private static boolean single(MotionProfile.Shape shape)
+            throws InterruptedException {
+        Axis[] axes = axes(4000);
+        int[] deltas = {2000, -700, 1301};
+        try (MultiAxis multi = new MultiAxis(axes, shape, START, ACCEL)) {
+            multi.move(SPEED, deltas);
+            multi.await();
+        }
+        boolean counts = true;
+        int worst = 0;
+        for (int i = 0; i < axes.length; i++) {
+            counts &= axes[i].position == deltas[i];
+            // the major axis step of each step, against the ideal
+            int n = Math.abs(deltas[i]);
+            for (int j = 0; j < n; j++) {
+                double ideal = (j + 0.5) * deltas[0] / n;
+                int tick = tick(axes[0], axes[i].times[j]);
+                worst = Math.max(worst, (int) Math.ceil(Math.abs(tick -
+                        ideal)));
+            }
+        }
+        System.out.format("%-9s single move: positions %d %d %d, worst " +
+                "spread %d tick%n", shape, axes[0].position, axes[1].position,
+                axes[2].position, worst);
+        return check("counts", counts) & check("spread", worst <= 1);
+    }
+
+    private static boolean path(MotionProfile.Shape shape)
+            throws InterruptedException {
+        int[][] moves = {{1500, 0, 0}, {1500, 0, 0}, {1500, 0, 0},
+            {1500, 0, 0}, {0, 3000, 0}, {0, -1500, 200}};
+        Axis[] axes = axes(12000);
+        long blended;
+        long separate;
+        try (MultiAxis multi = new MultiAxis(axes, shape, START, ACCEL)) {
+            long start = System.nanoTime();
+            for (int[] move : moves) multi.move(SPEED, move);
+            multi.await();
+            // leave out the time lost to slips
+            blended = System.nanoTime() - start -
+                    multi.getStepGenerator().getSlipTime();
+            boolean ends = axes[0].position == 6000 &&
+                    axes[1].position == 1500 && axes[2].position == 200;
+
+            // straight on: around step 3000 of axis 0, half way
+            double straight = speed(axes[0].times, 3000);
+            // the corner: the last steps of axis 0, the first of axis 1
+            long[] corner = {axes[0].times[5998], axes[0].times[5999],
+                axes[1].times[0], axes[1].times[1]};
+            double cornerSpeed = 1e9 / median(new long[] {
+                corner[1] - corner[0], corner[2] - corner[1],
+                corner[3] - corner[2]});
+
+            Axis[] again = axes(12000);
+            try (MultiAxis one = new MultiAxis(again, shape, START, ACCEL)) {
+                start = System.nanoTime();
+                for (int[] move : moves) {
+                    one.move(SPEED, move);
+                    one.await();
+                }
+                separate = System.nanoTime() - start -
+                        one.getStepGenerator().getSlipTime();
+            }
+            System.out.format("%-9s path: %.3f s blended, %.3f s one at a " +
+                    "time; %.0f steps/s straight on, %.0f at the corner; " +
+                    "%d slips%n", shape, blended / 1e9, separate / 1e9,
+                    straight, cornerSpeed,
+                    multi.getStepGenerator().getSlipCount());
+            return check("ends", ends && multi.getMoveCount() == 6) &
+                    check("straight on", straight > 0.9 * SPEED) &
+                    check("corner", cornerSpeed > 0.7 * START &&
+                            cornerSpeed < 1.3 * START) &
+                    check("blended", blended < 0.9 * separate);
+        }
+    }
+
+    /**
+     * Returns the speed around a step, from the median of the intervals
+     * either side (a slip makes one interval long).
+     */
+    private static double speed(long[] times, int at) {
+        long[] intervals = new long[6];
+        for (int j = 0; j < 6; j++) {
+            intervals[j] = times[at - 3 + j] - times[at - 4 + j];
+        }
+        return 1e9 / median(intervals);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Returns the number of steps of an axis made before a time; steps of
+     * one tick are made in axis order, so a later axis's step in a tick
+     * comes after the earlier axis's.
+     */
+    private static int tick(Axis axis, long time) {
+        int index = Arrays.binarySearch(axis.times, 0, axis.count, time);
+        if (index < 0) index = -index - 1;
+        else while (index + 1 < axis.count && axis.times[index + 1] == time)
+            index++;
+        return index;
+    }
+
+    private static Axis[] axes(int capacity) {
+        Axis[] axes = new Axis[3];
+        for (int i = 0; i < axes.length; i++) axes[i] = new Axis(capacity);
+        return axes;
+    }
+
+    /**
+     * A simulated axis.
+     */
+    private static class Axis implements Stepper {
+        final long[] times;
+        int count = 0;
+        int position = 0;
+        int sign = 1;
+
+        Axis(int capacity) {
+            times = new long[capacity];
+        }
+
+        @Override
+        public void setDirection(SilentStepStick.Direction direction) {
+            sign = (direction == SilentStepStick.Direction.CW) ? 1 : -1;
+        }
+
+        @Override
+        public void step() {
+            times[count++] = System.nanoTime();
+            position += sign;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+    }
+}
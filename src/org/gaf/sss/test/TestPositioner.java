@@ -0,0 +1,217 @@
+package org.gaf.sss.test;
+
+import static org.gaf.test.Checks.check;
+import static org.gaf.test.Checks.finish;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.gaf.sss.MotionProfile;
+import org.gaf.sss.Positioner;
+import org.gaf.sss.SilentStepStick;
+import org.gaf.sss.StepGenerator;
+import org.gaf.sss.Stepper;
+
+/**
+ * Tests Positioner with a simulated stepper that records the time and
+ * direction of each step. For each shape: moves to a position and by a
+ * relative amount, checking the futures complete with the targets; changes
+ * the target to one behind during a move, checking the motor reverses
+ * once, ends at the new target and the old future is cancelled; changes the
+ * target to one farther on during a move, checking the motor keeps its
+ * speed; stops during a move, checking the future is cancelled; and fails
+ * a step, checking the future completes with the failure. No hardware
+ * needed.
+ */
+public class TestPositioner {
+
+    private static final double START = 1000;
+    private static final double SPEED = 8000;
+    private static final double ACCEL = 40000;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        for (MotionProfile.Shape shape : MotionProfile.Shape.values()) {
+            Axis axis = new Axis(40000);
+            try (StepGenerator generator = new StepGenerator("positioner")) {
+                Positioner positioner = new Positioner(axis, generator);
+                positioner.setMotion(shape, START, SPEED, ACCEL);
+                ok &= moves(shape, positioner, axis);
+                ok &= reverse(shape, positioner, axis);
+                ok &= farther(shape, positioner, axis);
+                ok &= stop(shape, positioner, axis);
+                ok &= fail(shape, positioner, generator, axis);
+            }
+        }
+        finish(ok);
+    }
+
+    private static boolean moves(MotionProfile.Shape shape,
+            Positioner positioner, Axis axis) throws Exception {
+        long to = positioner.moveTo(2000).get(5, TimeUnit.SECONDS);
+        long by = positioner.moveBy(-500).get(5, TimeUnit.SECONDS);
+        System.out.format("%-9s moveTo(2000) %d, moveBy(-500) %d, position " +
+                "%d%n", shape, to, by, axis.getPosition());
+        return check("moveTo", to == 2000) & check("moveBy", by == 1500 &&
+                axis.getPosition() == 1500);
+    }
+
+    private static boolean reverse(MotionProfile.Shape shape,
+            Positioner positioner, Axis axis) throws Exception {
+        axis.clear();
+        CompletableFuture<Long> first = positioner.moveTo(6000);
+        // well into the move, at speed
+        waitFor(axis, 2000);
+        CompletableFuture<Long> second = positioner.moveTo(1000);
+        long end = second.get(5, TimeUnit.SECONDS);
+        int turns = axis.turns();
+        System.out.format("%-9s reversed: ended %d, %d turn(s), farthest " +
+                "%d, first future %s%n", shape, end, turns, axis.farthest,
+                first.isCancelled() ? "cancelled" : "not cancelled");
+        return check("reverse end", end == 1000 &&
+                axis.getPosition() == 1000) &
+                check("reverse turns", turns == 1) &
+                check("cancelled", first.isCancelled());
+    }
+
+    private static boolean farther(MotionProfile.Shape shape,
+            Positioner positioner, Axis axis) throws Exception {
+        axis.clear();
+        CompletableFuture<Long> first = positioner.moveTo(7000);
+        waitFor(axis, 3000);
+        CompletableFuture<Long> second = positioner.moveBy(3000);
+        long end = second.get(5, TimeUnit.SECONDS);
+        // the speed either side of the change
+        int at = axis.count;
+        for (int j = 3000; j < axis.count; j++) {
+            if (axis.times[j] > axis.changed) {
+                at = j;
+                break;
+            }
+        }
+        double before = axis.speed(at - 8);
+        double after = axis.speed(at + 8);
+        double slowest = SPEED;
+        for (int j = at - 8; j <= at + 8; j++) {
+            slowest = Math.min(slowest, axis.speed(j));
+        }
+        System.out.format("%-9s retargeted farther at step %d: ended %d, " +
+                "%.0f steps/s before, %.0f after, slowest %.0f%n", shape,
+                at, end, before, after, slowest);
+        return check("farther end", end == 10000 &&
+                axis.turns() == 0) &
+                check("farther cancelled", first.isCancelled()) &
+                check("no slowdown", before > 0.9 * SPEED &&
+                        slowest > 0.9 * SPEED);
+    }
+
+    private static boolean stop(MotionProfile.Shape shape,
+            Positioner positioner, Axis axis) throws Exception {
+        axis.clear();
+        CompletableFuture<Long> future = positioner.moveTo(0);
+        waitFor(axis, 1000);
+        positioner.stop();
+        boolean stopped = !positioner.isMoving();
+        int count = axis.count;
+        Thread.sleep(50);
+        System.out.format("%-9s stopped at %d: future %s%n", shape,
+                axis.getPosition(), future.isCancelled() ? "cancelled" :
+                        "not cancelled");
+        return check("stop", stopped && future.isCancelled() &&
+                axis.count == count);
+    }
+
+    private static boolean fail(MotionProfile.Shape shape,
+            Positioner positioner, StepGenerator generator, Axis axis)
+            throws Exception {
+        axis.clear();
+        axis.failAt = 500;
+        CompletableFuture<Long> future = positioner.moveTo(5000);
+        Throwable cause = null;
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+            cause = ex.getCause();
+        }
+        axis.failAt = -1;
+        System.out.format("%-9s failed at step %d: future %s%n", shape,
+                axis.count, (cause == null) ? "completed" : cause.getMessage());
+        return check("fail", cause != null && cause == generator.getFailure()
+                && !positioner.isMoving());
+    }
+
+    private static void waitFor(Axis axis, int steps)
+            throws InterruptedException {
+        while (axis.count < steps) Thread.sleep(1);
+        axis.changed = System.nanoTime();
+    }
+
+    /**
+     * A simulated stepper.
+     */
+    private static class Axis implements Stepper {
+        final long[] times;
+        final int[] signs;
+        volatile int count = 0;
+        volatile long position = 0;
+        volatile long changed;
+        volatile int failAt = -1;
+        long farthest;
+        int sign = 1;
+
+        Axis(int capacity) {
+            times = new long[capacity];
+            signs = new int[capacity];
+        }
+
+        void clear() {
+            count = 0;
+            farthest = position;
+        }
+
+        @Override
+        public void setDirection(SilentStepStick.Direction direction) {
+            sign = (direction == SilentStepStick.Direction.CW) ? 1 : -1;
+        }
+
+        @Override
+        public void step() {
+            if (count == failAt) throw new IllegalStateException(
+                    "Step " + count + " failed");
+            times[count] = System.nanoTime();
+            signs[count] = sign;
+            count++;
+            position += sign;
+            if (Math.abs(position) > Math.abs(farthest)) farthest = position;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the number of changes of direction between steps.
+         */
+        int turns() {
+            int turns = 0;
+            for (int j = 1; j < count; j++) {
+                if (signs[j] != signs[j - 1]) turns++;
+            }
+            return turns;
+        }
+
+        /**
+         * Returns the speed around a step, from the median of the intervals
+         * either side (a slip makes one interval long).
+         */
+        double speed(int at) {
+            long[] intervals = new long[6];
+            for (int j = 0; j < 6; j++) {
+                intervals[j] = times[at - 2 + j] - times[at - 3 + j];
+            }
+            Arrays.sort(intervals);
+            return 1e9 / intervals[3];
+        }
+    }
+}
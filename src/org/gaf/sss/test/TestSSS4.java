@@ -0,0 +1,42 @@
+package org.gaf.sss.test;
+
+import com.diozero.util.Diozero;
+import java.io.IOException;
+import org.gaf.sss.MotionProfile;
+import org.gaf.sss.SilentStepStick;
+
+/**
+ * Test the motion profile capability of SilentStepStick: moves one
+ * revolution CW and back CCW, starting at 4 RPM, with increasing maximum
+ * speeds. Mark the shaft; if it does not return to the mark, steps were
+ * lost.
+ */
+public class TestSSS4 {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try (SilentStepStick stepper = new SilentStepStick(4, 27, 17, 200,
+                SilentStepStick.Resolution.Quarter)) {
+
+            stepper.enable(true);
+
+            for (float speed : new float[] {4f, 8f, 16f, 24f, 32f}) {
+                MotionProfile profile = stepper.createProfile(800, 4f, speed,
+                        2 * speed, MotionProfile.Shape.S_CURVE);
+                System.out.format("Up to %.0f RPM (%.2f s per move)%n", speed,
+                        profile.getDuration());
+                stepper.stepProfile(profile, SilentStepStick.Direction.CW,
+                        false, null);
+                stepper.stepProfile(profile, SilentStepStick.Direction.CCW,
+                        false, null);
+                System.out.println("Count = " + stepper.getStepCount());
+            }
+
+            System.out.println("Disabling");
+            stepper.enable(false);
+
+            System.out.println("Closing");
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.gaf.sss.test;
+
+import com.diozero.util.Diozero;
+import java.util.concurrent.CompletableFuture;
+import org.gaf.sss.MotionProfile;
+import org.gaf.sss.SilentStepStick;
+
+/**
+ * Test the move to position capability of SilentStepStick: moves to half a
+ * revolution CW, changes the target to half a revolution CCW during the
+ * move, then back to zero. Mark the shaft; if it does not return to the
+ * mark, steps were lost.
+ */
+public class TestSSS5 {
+
+    public static void main(String[] args) throws Exception {
+        try (SilentStepStick stepper = new SilentStepStick(4, 27, 17, 200,
+                SilentStepStick.Resolution.Quarter)) {
+
+            stepper.enable(true);
+            stepper.setMotion(4f, 30f, 60f, MotionProfile.Shape.S_CURVE);
+
+            CompletableFuture<Long> first = stepper.moveTo(400);
+            Thread.sleep(600);
+            System.out.println("Changing target at " + stepper.getPosition());
+            CompletableFuture<Long> second = stepper.moveTo(-400);
+            System.out.println("Reached " + second.get() + "; first " +
+                    (first.isCancelled() ? "cancelled" : "not cancelled"));
+            System.out.println("Back to " + stepper.moveTo(0).get());
+
+            System.out.println("Disabling");
+            stepper.enable(false);
+
+            System.out.println("Closing");
+        } finally {
+            Diozero.shutdown();
+        }
+    }
+}
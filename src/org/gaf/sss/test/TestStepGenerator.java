@@ -0,0 +1,126 @@
+package org.gaf.sss.test;
+
+import static org.gaf.test.Checks.finish;
+import com.diozero.api.DigitalOutputDevice;
+import com.diozero.util.Diozero;
+import java.util.concurrent.locks.LockSupport;
+import org.gaf.sss.StepGenerator;
+
+/**
+ * Benchmarks StepGenerator: after a warm-up, runs steps at increasing
+ * constant rates for a second each, and reports the p50, p99 and maximum
+ * lateness and the slips, against the same deadlines met by sleeping alone.
+ * The achievable rate is the highest whose p99 lateness is within a tenth
+ * of the step period. Checks the generator's median lateness beats
+ * sleeping alone at every rate (the tail depends on the machine's load and
+ * cores, and is only reported). Without
+ * arguments the steps do nothing; with a GPIO pin argument they pulse it,
+ * to include the GPIO writes (and to see the steps on an oscilloscope).
+ */
+public class TestStepGenerator {
+
+    private static final int[] RATES = {500, 1000, 2000, 5000, 10000, 20000,
+        50000, 100000};
+
+    private static DigitalOutputDevice pin = null;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok;
+        try {
+            if (args.length > 0)
+                pin = new DigitalOutputDevice(Integer.parseInt(args[0]), true,
+                        false);
+            ok = benchmark();
+        } finally {
+            if (pin != null) {
+                pin.close();
+                Diozero.shutdown();
+            }
+        }
+        finish(ok);
+    }
+
+    private static boolean benchmark() throws InterruptedException {
+        boolean ok = true;
+        int achievable = 0;
+        System.out.println("   rate   generator p50/p99/max (us) slips" +
+                "   sleep p50/p99/max (us)");
+        try (StepGenerator generator = new StepGenerator("benchmark")) {
+            // warm up
+            generator.start(new Constant(100_000, 20000), null);
+            generator.await();
+            sleep(100_000, 2000);
+            for (int rate : RATES) {
+                long period = 1_000_000_000L / rate;
+                generator.clearStatistics();
+                generator.start(new Constant(period, rate), null);
+                generator.await();
+                long p50 = generator.getLatenessPercentile(50);
+                long p99 = generator.getLatenessPercentile(99);
+                long max = generator.getLatenessMax();
+
+                long[] slept = sleep(period, Math.min(rate, 2000));
+                System.out.format("%7d   %7.1f %7.1f %9.1f %5d   %7.1f %7.1f " +
+                        "%9.1f%n", rate, p50 / 1e3, p99 / 1e3, max / 1e3,
+                        generator.getSlipCount(), slept[0] / 1e3,
+                        slept[1] / 1e3, slept[2] / 1e3);
+                if (p99 <= period / 10) achievable = rate;
+                ok &= p50 < slept[0];
+            }
+        }
+        System.out.format("achievable: %d steps/s with p99 lateness within " +
+                "10%% of the period%n", achievable);
+        return ok;
+    }
+
+    /**
+     * Meets deadlines by sleeping alone.
+     * @return the p50, p99 and maximum lateness in nanoseconds
+     */
+    private static long[] sleep(long period, int count) {
+        long[] lateness = new long[count];
+        long start = System.nanoTime();
+        for (int k = 0; k < count; k++) {
+            long deadline = start + k * period;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            step();
+            lateness[k] = now - deadline;
+        }
+        java.util.Arrays.sort(lateness);
+        return new long[] {lateness[count / 2],
+            lateness[Math.min(count - 1, (int) (count * 0.99))],
+            lateness[count - 1]};
+    }
+
+    private static void step() {
+        if (pin != null) {
+            pin.on();
+            pin.off();
+        }
+    }
+
+    private static class Constant implements StepGenerator.Schedule {
+        private final long period;
+        private final long count;
+        private long k = 0;
+
+        Constant(long period, long count) {
+            this.period = period;
+            this.count = count;
+        }
+
+        @Override
+        public long next() {
+            return (k < count) ? k * period : StepGenerator.END;
+        }
+
+        @Override
+        public void step() {
+            TestStepGenerator.step();
+            k++;
+        }
+    }
+}
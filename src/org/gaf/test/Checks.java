@@ -0,0 +1,33 @@
+package org.gaf.test;
+
+/**
+ * Reporting for the test programs that need no hardware: each check that
+ * fails is named, and the program ends with PASS, or with FAIL and a
+ * non-zero exit status.
+ */
+public class Checks {
+
+    private Checks() {
+    }
+
+    /**
+     * Names a check if it failed.
+     * @param name the name of the check
+     * @param passed the outcome of the check
+     * @return the outcome
+     */
+    public static boolean check(String name, boolean passed) {
+        if (!passed) System.out.println(name + ": WRONG");
+        return passed;
+    }
+
+    /**
+     * Reports the overall outcome, and exits with status 1 if any check
+     * failed.
+     * @param ok true if all checks passed
+     */
+    public static void finish(boolean ok) {
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) System.exit(1);
+    }
+}
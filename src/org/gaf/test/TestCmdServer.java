@@ -2,34 +2,34 @@ package org.gaf.test;
 
 import static com.diozero.api.SerialConstants.*;
 import com.diozero.api.SerialDevice;
+import org.gaf.cmd.Command;
+import org.gaf.cmd.CommandClient;
+import org.gaf.util.SerialDevicePort;
+import org.gaf.util.SerialPort;
 
 /**
  * Play with Command Server. Get the ID and echo a parameter.
  */
 public class TestCmdServer {
 
+    private static final Command ID = new Command(10, false, 1);
+    private static final Command ECHO = new Command(11, true, 1);
+
     public static void main(String[] args) throws InterruptedException {
         SerialDevice device = new SerialDevice("/dev/ttyACM0", BAUD_115200, 
                     DEFAULT_DATA_BITS, DEFAULT_STOP_BITS, DEFAULT_PARITY);
         
-        // get the ID        
-        device.writeByte((byte) 10);
-        byte[] res = new byte[2];        
-        // read the response byte array
-        device.read(res);           
-        // construct response as short
-        short value = (short)(res[0] << 8);
-        value = (short) (value | (short) Byte.toUnsignedInt(res[1]));
-        System.out.println("ID= " + value);
-        
-        // echo a parameter
-        short parameter = 12345;
-        device.write((byte) 11, (byte) (parameter >> 8), (byte) parameter);        
-        // read the response byte array
-        device.read(res);           
-        // construct response as short
-        value = (short)(res[0] << 8);
-        value = (short) (value | (short) Byte.toUnsignedInt(res[1]));
-        System.out.println("Parameter= " + value);
+        try (SerialPort port = new SerialDevicePort(device)) {
+            CommandClient client = new CommandClient(port, 1);
+            
+            // get the ID        
+            short value = client.call(ID, 0, null, 1000)[0];
+            System.out.println("ID= " + value);
+
+            // echo a parameter
+            short parameter = 12345;
+            value = client.call(ECHO, parameter, null, 1000)[0];
+            System.out.println("Parameter= " + value);
+        }
     }    
 }
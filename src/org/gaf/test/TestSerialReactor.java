@@ -0,0 +1,131 @@
+package org.gaf.test;
+
+import com.diozero.api.RuntimeIOException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.gaf.lidar.Lidar;
+import org.gaf.lidar.LidarMap;
+import org.gaf.lidar.LidarSimulator;
+import org.gaf.util.ReactorSerialPort;
+import org.gaf.util.SerialHandler;
+import org.gaf.util.SerialReactor;
+
+/**
+ * Runs several simulated Lidar Units on one serial reactor, each driven 
+ * by its own application thread, and reports the reactor statistics. A
+ * further device has a handler that throws, and must be dropped without
+ * stopping the others. Then overruns the buffer of a ReactorSerialPort, and checks the dropped bytes
+ * are counted and the rest read intact.
+ */
+public class TestSerialReactor {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int devices = 3;
+        final int scans = 50;
+
+        LidarMap map = new LidarMap().addRectangle(0, 0, 500, 400);
+        Lidar[] lidars = new Lidar[devices];
+        SerialReactor.Registration[] regs = 
+                new SerialReactor.Registration[devices];
+        Thread[] users = new Thread[devices];
+        AtomicInteger completed = new AtomicInteger();
+        AtomicReference<RuntimeException> reported = new AtomicReference<>();
+
+        try (SerialReactor reactor = new SerialReactor()) {
+            reactor.start();
+            for (int i = 0; i < devices; i++) {
+                LidarSimulator sim = new LidarSimulator(map, i);
+                sim.setPose(250, 200, 0);
+                sim.setLatency(1000);
+                lidars[i] = new Lidar(sim);
+                regs[i] = lidars[i].attach(reactor);
+            }
+            LidarSimulator faulty = new LidarSimulator(map, devices);
+            faulty.setPose(250, 200, 0);
+            SerialReactor.Registration faultyReg = reactor.register(faulty, 
+                    new SerialHandler() {
+                @Override
+                public void onData(byte[] data, int offset, int length) {
+                    throw new IllegalStateException("faulty handler");
+                }
+
+                @Override
+                public void onError(RuntimeIOException ex) {
+                    reported.set(ex);
+                }
+            });
+
+            long tStart = System.nanoTime();
+            for (int i = 0; i < devices; i++) {
+                final Lidar lidar = lidars[i];
+                users[i] = new Thread(() -> {
+                    short[] ranges = new short[Lidar.SCAN_SIZE];
+                    try {
+                        for (int n = 0; n < scans; n++) {
+                            lidar.scan(0);
+                            lidar.scanRetrieve(ranges);
+                        }
+                        completed.incrementAndGet();
+                    } catch (IOException | RuntimeIOException ex) {
+                        System.out.println("Failed: " + ex);
+                    }
+                });
+                users[i].start();
+            }
+            // makes the faulty handler throw while the others are busy
+            faulty.write((byte) 50, (byte) 0, (byte) 1); // MULTIPLE
+            for (Thread user : users) {
+                user.join();
+            }
+            long tDelta = System.nanoTime() - tStart;
+
+            for (int i = 0; i < devices; i++) {
+                System.out.format("device %d: %d bytes in %d dispatches%n", i, 
+                        regs[i].getBytesIn(), regs[i].getDispatches());
+                lidars[i].close();
+            }
+            System.out.format("%d scans in %.1f ms; reactor loops=%d parks=%d%n",
+                    devices * scans, tDelta / 1e6, 
+                    reactor.getLoops(), reactor.getParks());
+
+            boolean ok = completed.get() == devices;
+            RuntimeException error = reported.get();
+            ok &= faultyReg.isFailed() && error != null && 
+                    error.getCause() instanceof IllegalStateException;
+            System.out.format("faulty device: failed=%b, reported %s%n", 
+                    faultyReg.isFailed(), error);
+
+            ok &= overrun(reactor, map);
+            Checks.finish(ok);
+        }
+    }
+
+    /**
+     * Asks for 20 ranges (40 bytes) through a 16 byte buffer, without 
+     * reading until all have arrived.
+     */
+    private static boolean overrun(SerialReactor reactor, LidarMap map) 
+            throws InterruptedException {
+        LidarSimulator sim = new LidarSimulator(map, 0);
+        sim.setPose(250, 200, 0);
+        ReactorSerialPort port = new ReactorSerialPort(sim, reactor, 16, 1000);
+        try {
+            port.write((byte) 50, (byte) 0, (byte) 20); // MULTIPLE
+            while (port.getRegistration().getBytesIn() < 40) Thread.sleep(1);
+            boolean ok = port.getDroppedBytes() == 24 && 
+                    port.bytesAvailable() == 16;
+            // without noise, all the ranges are the same
+            byte[] ranges = new byte[16];
+            port.read(ranges, 0, 16);
+            for (int i = 2; i < ranges.length; i++) {
+                ok &= ranges[i] == ranges[i % 2];
+            }
+            System.out.format("overrun: %d bytes dropped, %d kept%n",
+                    port.getDroppedBytes(), ranges.length);
+            return ok && port.bytesAvailable() == 0;
+        } finally {
+            port.close();
+        }
+    }
+}
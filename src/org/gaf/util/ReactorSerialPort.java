@@ -0,0 +1,165 @@
+package org.gaf.util;
+
+import com.diozero.api.RuntimeIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SerialPort whose input is read by a SerialReactor into a buffer. 
+ * Reads take bytes from the buffer, waiting (up to a timeout) if 
+ * necessary; writes go directly to the underlying port. It allows a device
+ * class written for blocking reads to share the reactor thread with other
+ * devices.
+ * <p>
+ * If the buffer overruns, the oldest bytes are dropped, and counted, so
+ * corrupt replies can be diagnosed.
+ * </p>
+ */
+public class ReactorSerialPort implements SerialPort, SerialHandler {
+
+    private final SerialPort port;
+    private final byte[] ring;
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0;
+    private final long timeout;
+    private RuntimeIOException error = null;
+    private final SerialReactor.Registration registration;
+    private final SerialReactor reactor;
+
+    /**
+     * Creates an instance and registers it with a reactor.
+     * @param port the underlying serial port
+     * @param reactor the reactor that reads the port
+     * @param bufferSize the size of the input buffer in bytes
+     * @param timeout maximum time to wait for input in milliseconds;
+     * 0 means forever
+     */
+    public ReactorSerialPort(SerialPort port, SerialReactor reactor, 
+            int bufferSize, long timeout) {
+        this.port = port;
+        this.ring = new byte[bufferSize];
+        this.timeout = timeout;
+        this.reactor = reactor;
+        this.registration = reactor.register(port, this);
+    }
+
+    /**
+     * Returns the registration with the reactor, which provides statistics.
+     * @return the registration
+     */
+    public SerialReactor.Registration getRegistration() {
+        return registration;
+    }
+
+    @Override
+    public synchronized void onData(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (count == ring.length) {
+                // overrun; drop the oldest byte
+                head = (head + 1) % ring.length;
+                count--;
+                dropped++;
+            }
+            ring[(head + count) % ring.length] = data[offset + i];
+            count++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes dropped because the input buffer overran.
+     * @return number of bytes dropped
+     */
+    public synchronized long getDroppedBytes() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized void onError(RuntimeIOException ex) {
+        error = ex;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int read() throws RuntimeIOException {
+        return Byte.toUnsignedInt(readByte());
+    }
+
+    @Override
+    public synchronized byte readByte() throws RuntimeIOException {
+        await(1);
+        byte data = ring[head];
+        head = (head + 1) % ring.length;
+        count--;
+        return data;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer) throws RuntimeIOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) 
+            throws RuntimeIOException {
+        int done = 0;
+        while (done < length) {
+            await(1);
+            // copy what is buffered, up to the end of the ring
+            int n = Math.min(length - done, 
+                    Math.min(count, ring.length - head));
+            System.arraycopy(ring, head, buffer, offset + done, n);
+            head = (head + n) % ring.length;
+            count -= n;
+            done += n;
+        }
+        return length;
+    }
+
+    @Override
+    public void writeByte(byte data) throws RuntimeIOException {
+        port.writeByte(data);
+    }
+
+    @Override
+    public void write(byte... data) throws RuntimeIOException {
+        port.write(data);
+    }
+
+    @Override
+    public synchronized int bytesAvailable() throws RuntimeIOException {
+        return count;
+    }
+
+    /**
+     * Unregisters from the reactor and closes the underlying port.
+     */
+    @Override
+    public void close() {
+        reactor.unregister(registration);
+        port.close();
+    }
+
+    /**
+     * Waits for the number of bytes requested.
+     */
+    private void await(int number) throws RuntimeIOException {
+        long deadline = System.nanoTime() + timeout * 1_000_000;
+        while (count < number) {
+            if (error != null) throw error;
+            long remaining = deadline - System.nanoTime();
+            if (timeout > 0 && remaining <= 0) 
+                throw new RuntimeIOException("Read timeout");
+            try {
+                if (timeout > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException(ex);
+            }
+        }
+    }
+}
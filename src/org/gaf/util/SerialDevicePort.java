@@ -0,0 +1,97 @@
+package org.gaf.util;
+
+import com.diozero.api.RuntimeIOException;
+import com.diozero.api.SerialDevice;
+
+/**
+ * A SerialPort backed by a diozero SerialDevice.
+ */
+public class SerialDevicePort implements SerialPort {
+    
+    private static final int MAX_EXACT = 64;
+    private static final int MAX_BULK = 512;
+
+    private final SerialDevice device;
+    // exact size buffers, by length, for partial buffer reads: any length
+    // up to MAX_EXACT, and powers of 2 up to MAX_BULK
+    private final byte[][] exact = new byte[MAX_BULK + 1][];
+
+    /**
+     * Creates an instance wrapping an open SerialDevice.
+     * @param device the serial device
+     */
+    public SerialDevicePort(SerialDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public int read() throws RuntimeIOException {
+        return device.read();
+    }
+
+    @Override
+    public byte readByte() throws RuntimeIOException {
+        return device.readByte();
+    }
+
+    @Override
+    public int read(byte[] buffer) throws RuntimeIOException {
+        return device.read(buffer);
+    }
+
+    /**
+     * Reads into part of a buffer with a single device read, for lengths up 
+     * to MAX_EXACT; longer reads are made in pieces of powers of 2 up to
+     * MAX_BULK, and a last piece up to MAX_EXACT, so take a few device 
+     * reads. Uses exact size buffers, allocated only on first use of each
+     * length.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length) 
+            throws RuntimeIOException {
+        if (offset == 0 && length == buffer.length) return device.read(buffer);
+        int done = 0;
+        while (length - done > MAX_EXACT) {
+            int piece = Math.min(MAX_BULK, Integer.highestOneBit(length - done));
+            readExact(buffer, offset + done, piece);
+            done += piece;
+        }
+        if (length > done) readExact(buffer, offset + done, length - done);
+        return length;
+    }
+
+    /**
+     * Reads into part of a buffer with a single device read of an exact 
+     * size buffer.
+     */
+    private void readExact(byte[] buffer, int offset, int length) 
+            throws RuntimeIOException {
+        byte[] b = exact[length];
+        if (b == null) {
+            b = new byte[length];
+            exact[length] = b;
+        }
+        device.read(b);
+        System.arraycopy(b, 0, buffer, offset, length);
+    }
+
+    @Override
+    public void writeByte(byte data) throws RuntimeIOException {
+        device.writeByte(data);
+    }
+
+    @Override
+    public void write(byte... data) throws RuntimeIOException {
+        device.write(data);
+    }
+
+    @Override
+    public int bytesAvailable() throws RuntimeIOException {
+        return device.bytesAvailable();
+    }
+
+    @Override
+    public void close() {
+        device.close();
+    }
+}
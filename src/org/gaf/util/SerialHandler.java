@@ -0,0 +1,30 @@
+package org.gaf.util;
+
+import com.diozero.api.RuntimeIOException;
+
+/**
+ * A protocol handler for bytes received by a SerialReactor from a 
+ * serial port. Handlers are called only from the reactor thread, so
+ * they must not block.
+ */
+public interface SerialHandler {
+    
+    /**
+     * Handles bytes received from the serial port. The buffer is reused
+     * by the reactor, so the bytes must be consumed or copied before
+     * returning.
+     * @param data the buffer holding the bytes
+     * @param offset where in the buffer the bytes start
+     * @param length the number of bytes
+     */
+    void onData(byte[] data, int offset, int length);
+    
+    /**
+     * Handles an error reading the serial port, or an exception thrown by
+     * onData (wrapped, as the cause). The port has been unregistered before
+     * the call.
+     * @param ex the error
+     */
+    default void onError(RuntimeIOException ex) {
+    }
+}
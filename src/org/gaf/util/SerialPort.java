@@ -0,0 +1,77 @@
+package org.gaf.util;
+
+import com.diozero.api.RuntimeIOException;
+
+/**
+ * The subset of serial port operations used by the devices in this project.
+ * It allows a device class to run over a diozero SerialDevice or over 
+ * a stand-in, such as a simulator.
+ */
+public interface SerialPort extends AutoCloseable {
+    
+    /**
+     * Reads a single byte; blocks until available.
+     * @return the byte read (in LSB)
+     * @throws RuntimeIOException
+     */
+    int read() throws RuntimeIOException;
+    
+    /**
+     * Reads a single byte; blocks until available.
+     * @return the byte read
+     * @throws RuntimeIOException
+     */
+    byte readByte() throws RuntimeIOException;
+    
+    /**
+     * Reads enough bytes to fill the buffer; blocks until done.
+     * @param buffer the buffer to fill
+     * @return the number of bytes read
+     * @throws RuntimeIOException
+     */
+    int read(byte[] buffer) throws RuntimeIOException;
+    
+    /**
+     * Reads the requested number of bytes into part of a buffer; blocks 
+     * until done.
+     * @param buffer the buffer
+     * @param offset where in the buffer to start
+     * @param length the number of bytes to read
+     * @return the number of bytes read
+     * @throws RuntimeIOException
+     */
+    default int read(byte[] buffer, int offset, int length) 
+            throws RuntimeIOException {
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] = readByte();
+        }
+        return length;
+    }
+    
+    /**
+     * Writes a single byte.
+     * @param data the byte to write
+     * @throws RuntimeIOException
+     */
+    void writeByte(byte data) throws RuntimeIOException;
+    
+    /**
+     * Writes a number of bytes.
+     * @param data the bytes to write
+     * @throws RuntimeIOException
+     */
+    void write(byte... data) throws RuntimeIOException;
+    
+    /**
+     * Returns the number of bytes available to read without blocking.
+     * @return number of bytes available
+     * @throws RuntimeIOException
+     */
+    int bytesAvailable() throws RuntimeIOException;
+    
+    /**
+     * Closes the port.
+     */
+    @Override
+    void close();
+}
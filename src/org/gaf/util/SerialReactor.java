@@ -0,0 +1,224 @@
+package org.gaf.util;
+
+import com.diozero.api.RuntimeIOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread event loop that services any number of serial ports,
+ * dispatching received bytes to a protocol handler per port. It replaces
+ * a blocked thread (or a sleep-polling loop) per device.
+ * <p>
+ * The serial ports available via diozero cannot be registered with a
+ * java.nio Selector, so the loop checks each port for available bytes
+ * without blocking. When no port has data it backs off: it spins briefly,
+ * then parks for progressively longer, up to a limit that bounds the
+ * added latency. Any data resets the back-off.
+ * </p>
+ * <p>
+ * The reactor only reads; writes are done by the caller directly on the
+ * port.
+ * </p>
+ * <p>
+ * A port that fails to read, or whose handler throws, is unregistered and
+ * its handler told through onError; the other ports carry on.
+ * </p>
+ */
+public class SerialReactor implements AutoCloseable {
+
+    private static final int SPINS = 100;
+    private static final long MIN_PARK_NANOS = 20_000;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    private static final int BUFFER_SIZE = 512;
+
+    private final CopyOnWriteArrayList<Registration> registrations = 
+            new CopyOnWriteArrayList<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    private final AtomicLong loops = new AtomicLong();
+    private final AtomicLong parks = new AtomicLong();
+
+    /**
+     * Starts the reactor thread.
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::loop, "serial-reactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the reactor thread. Does not close the registered ports.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Registers a serial port and the handler for its received bytes.
+     * @param port the serial port
+     * @param handler the protocol handler
+     * @return the registration, which provides statistics
+     */
+    public Registration register(SerialPort port, SerialHandler handler) {
+        Registration registration = new Registration(port, handler);
+        registrations.add(registration);
+        if (thread != null) LockSupport.unpark(thread);
+        return registration;
+    }
+
+    /**
+     * Unregisters a serial port.
+     * @param registration the registration for the port
+     */
+    public void unregister(Registration registration) {
+        registrations.remove(registration);
+    }
+
+    /**
+     * Returns the number of passes made over the registered ports.
+     * @return number of loops
+     */
+    public long getLoops() {
+        return loops.get();
+    }
+
+    /**
+     * Returns the number of times the reactor parked for lack of data.
+     * @return number of parks
+     */
+    public long getParks() {
+        return parks.get();
+    }
+
+    private void loop() {
+        int idle = 0;
+        long park = MIN_PARK_NANOS;
+        while (running) {
+            boolean progress = false;
+            for (Registration r : registrations) {
+                progress |= service(r);
+            }
+            loops.incrementAndGet();
+            if (progress) {
+                idle = 0;
+                park = MIN_PARK_NANOS;
+            } else if (++idle > SPINS) {
+                parks.incrementAndGet();
+                LockSupport.parkNanos(park);
+                park = Math.min(park * 2, MAX_PARK_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Reads whatever a port has available and dispatches it. A failure
+     * unregisters the port, and is passed to its handler; an exception
+     * other than an I/O error (a fault in the handler) is wrapped.
+     * @return true if any bytes were read
+     */
+    private boolean service(Registration r) {
+        try {
+            int available = r.port.bytesAvailable();
+            if (available <= 0) return false;
+            while (available > 0) {
+                int length = Math.min(available, BUFFER_SIZE);
+                r.port.read(buffer, 0, length);
+                r.bytesIn.addAndGet(length);
+                r.dispatches.incrementAndGet();
+                r.handler.onData(buffer, 0, length);
+                available -= length;
+            }
+            return true;
+        } catch (RuntimeIOException ex) {
+            fail(r, ex);
+            return false;
+        } catch (RuntimeException ex) {
+            fail(r, new RuntimeIOException(ex));
+            return false;
+        }
+    }
+
+    /**
+     * Unregisters a failed port and tells its handler, which must not end
+     * the reactor thread either.
+     */
+    private void fail(Registration r, RuntimeIOException ex) {
+        registrations.remove(r);
+        r.failures.incrementAndGet();
+        try {
+            r.handler.onError(ex);
+        } catch (RuntimeException ignored) {
+            // the port is already unregistered; nothing more to do
+        }
+    }
+
+    /**
+     * The registration of a serial port with the reactor.
+     */
+    public static class Registration {
+
+        private final SerialPort port;
+        private final SerialHandler handler;
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong dispatches = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        private Registration(SerialPort port, SerialHandler handler) {
+            this.port = port;
+            this.handler = handler;
+        }
+
+        /**
+         * Returns the serial port.
+         * @return the port
+         */
+        public SerialPort getPort() {
+            return port;
+        }
+
+        /**
+         * Returns the number of bytes received from the port.
+         * @return bytes received
+         */
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        /**
+         * Returns the number of times received bytes were dispatched to
+         * the handler.
+         * @return number of dispatches
+         */
+        public long getDispatches() {
+            return dispatches.get();
+        }
+
+        /**
+         * Indicates if the port was unregistered by a failure: a read
+         * error, or an exception from its handler.
+         * @return true if failed
+         */
+        public boolean isFailed() {
+            return failures.get() > 0;
+        }
+    }
+}